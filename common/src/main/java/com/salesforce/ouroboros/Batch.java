@@ -39,6 +39,10 @@ import com.salesforce.ouroboros.util.Pool.Clearable;
  * 
  */
 public class Batch extends BatchIdentity implements Clearable {
+    /**
+     * The magic of the events of the batch, checksummed with CRC32C
+     */
+    public static final int     EVENT_MAGIC = EventChecksum.CRC32C.mark(BatchHeader.MAGIC);
     private static final double ONE_BILLION = 1000000000D;
 
     public MappedByteBuffer     batch;
@@ -131,7 +135,7 @@ public class Batch extends BatchIdentity implements Clearable {
 
         for (ByteBuffer event : events) {
             event.rewind();
-            EventHeader.append(BatchHeader.MAGIC, event, batch);
+            EventHeader.append(EVENT_MAGIC, event, batch);
         }
 
         assert batch.remaining() == 0;
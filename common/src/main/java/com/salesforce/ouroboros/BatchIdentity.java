@@ -29,6 +29,11 @@ import java.nio.ByteBuffer;
 import java.util.UUID;
 
 /**
+ * The identity of an event batch, as the channel and sequence number of the
+ * batch. The identity also serves as the acknowledgement of the batch; the
+ * negative acknowledgement of a batch carries the complement of the batch's
+ * sequence number, which is negative for the non negative sequence numbers of
+ * the batches.
  * 
  * @author hhildebrand
  * 
@@ -39,6 +44,19 @@ public class BatchIdentity implements Comparable<BatchIdentity> {
     public volatile UUID    channel;
     public volatile long    sequenceNumber;
 
+    /**
+     * Answer the negative acknowledgement of the batch
+     * 
+     * @param channel
+     *            - the channel of the batch
+     * @param sequenceNumber
+     *            - the sequence number of the batch
+     * @return the negative acknowledgement of the batch
+     */
+    public static BatchIdentity nack(UUID channel, long sequenceNumber) {
+        return new BatchIdentity(channel, ~sequenceNumber);
+    }
+
     public BatchIdentity() {
     }
 
@@ -107,6 +125,22 @@ public class BatchIdentity implements Comparable<BatchIdentity> {
         */
     }
 
+    /**
+     * @return the identity of the batch negatively acknowledged by the
+     *         receiver
+     */
+    public BatchIdentity getNacked() {
+        return new BatchIdentity(channel, ~sequenceNumber);
+    }
+
+    /**
+     * @return true if the receiver is the negative acknowledgement of its
+     *         batch
+     */
+    public boolean isNack() {
+        return sequenceNumber < 0;
+    }
+
     public void serializeOn(ByteBuffer buffer) {
         buffer.putLong(channel.getMostSignificantBits());
         buffer.putLong(channel.getLeastSignificantBits());
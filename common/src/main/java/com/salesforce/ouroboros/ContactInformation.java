@@ -37,6 +37,7 @@ import java.net.InetSocketAddress;
 public class ContactInformation implements Serializable {
     private static final long      serialVersionUID = 1L;
 
+    public final InetSocketAddress flyer;
     public final InetSocketAddress replication;
     public final InetSocketAddress spindle;
     public final InetSocketAddress xerox;
@@ -44,14 +45,21 @@ public class ContactInformation implements Serializable {
     public ContactInformation(InetSocketAddress spindle,
                               InetSocketAddress replication,
                               InetSocketAddress xerox) {
+        this(spindle, replication, xerox, null);
+    }
+
+    public ContactInformation(InetSocketAddress spindle,
+                              InetSocketAddress replication,
+                              InetSocketAddress xerox, InetSocketAddress flyer) {
         this.spindle = spindle;
         this.replication = replication;
         this.xerox = xerox;
+        this.flyer = flyer;
     }
 
     @Override
     public String toString() {
         return "ContactInfo[replication=" + replication + ", spindle="
-               + spindle + ", xerox=" + xerox + "]";
+               + spindle + ", xerox=" + xerox + ", flyer=" + flyer + "]";
     }
 }
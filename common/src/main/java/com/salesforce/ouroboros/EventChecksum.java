@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum algorithms of events.
+ * 
+ * The algorithm used to checksum an event is recorded in the high order byte
+ * of the event's magic, so that events checksummed with different algorithms
+ * may coexist within a segment. A magic with a zero high order byte denotes
+ * the original CRC32 checksum.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public enum EventChecksum {
+    CRC32(0) {
+        @Override
+        protected Checksum newChecksum() {
+            return new java.util.zip.CRC32();
+        }
+    },
+    CRC32C(1) {
+        @Override
+        protected Checksum newChecksum() {
+            return Crc32c.newChecksum();
+        }
+    };
+
+    /**
+     * The Castagnoli CRC32, computed eight bytes at a time
+     */
+    private static final class Crc32c implements Checksum {
+        private static final Class<?> INTRINSIC = intrinsic();
+        private static final int      POLYNOMIAL = 0x82F63B78;
+        private static final int[][]  TABLES     = tables();
+
+        /**
+         * @return the platform's CRC32C if the platform provides one, otherwise
+         *         a new instance of the receiver
+         */
+        static Checksum newChecksum() {
+            if (INTRINSIC != null) {
+                try {
+                    return (Checksum) INTRINSIC.getDeclaredConstructor().newInstance();
+                } catch (NoSuchMethodException e) {
+                    // fall through
+                } catch (InstantiationException e) {
+                    // fall through
+                } catch (IllegalAccessException e) {
+                    // fall through
+                } catch (InvocationTargetException e) {
+                    // fall through
+                }
+            }
+            return new Crc32c();
+        }
+
+        private static Class<?> intrinsic() {
+            try {
+                return Class.forName("java.util.zip.CRC32C");
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+
+        private static int[][] tables() {
+            int[][] tables = new int[8][256];
+            for (int n = 0; n < 256; n++) {
+                int crc = n;
+                for (int k = 0; k < 8; k++) {
+                    crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL : crc >>> 1;
+                }
+                tables[0][n] = crc;
+            }
+            for (int n = 0; n < 256; n++) {
+                int crc = tables[0][n];
+                for (int k = 1; k < 8; k++) {
+                    crc = crc >>> 8 ^ tables[0][crc & 0xFF];
+                    tables[k][n] = crc;
+                }
+            }
+            return tables;
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+            int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            int value = crc;
+            int end = off + len;
+            for (; off + 8 <= end; off += 8) {
+                int low = value ^ (b[off] & 0xFF | (b[off + 1] & 0xFF) << 8
+                                   | (b[off + 2] & 0xFF) << 16 | b[off + 3] << 24);
+                int high = b[off + 4] & 0xFF | (b[off + 5] & 0xFF) << 8
+                           | (b[off + 6] & 0xFF) << 16 | b[off + 7] << 24;
+                value = t7[low & 0xFF] ^ t6[low >>> 8 & 0xFF]
+                        ^ t5[low >>> 16 & 0xFF] ^ t4[low >>> 24]
+                        ^ t3[high & 0xFF] ^ t2[high >>> 8 & 0xFF]
+                        ^ t1[high >>> 16 & 0xFF] ^ t0[high >>> 24];
+            }
+            for (; off < end; off++) {
+                value = value >>> 8 ^ t0[(value ^ b[off]) & 0xFF];
+            }
+            crc = value;
+        }
+
+        @Override
+        public void update(int b) {
+            crc = crc >>> 8 ^ TABLES[0][(crc ^ b) & 0xFF];
+        }
+    }
+
+    public static final int                  VERSION_MASK  = 0xFF000000;
+    private static final int                 SCRATCH_SIZE  = 8 * 1024;
+    private static final ThreadLocal<byte[]> SCRATCH       = new ThreadLocal<byte[]>() {
+                                                               @Override
+                                                               protected byte[] initialValue() {
+                                                                   return new byte[SCRATCH_SIZE];
+                                                               }
+                                                           };
+    private static final int                 VERSION_SHIFT = 24;
+    private static final EventChecksum[]     VERSIONS;
+
+    static {
+        VERSIONS = new EventChecksum[values().length];
+        for (EventChecksum checksum : values()) {
+            VERSIONS[checksum.version] = checksum;
+        }
+    }
+
+    /**
+     * Answer the checksum of the buffer's bytes between the position and the
+     * limit of the buffer, using the algorithm recorded in the magic
+     * 
+     * @throws IllegalArgumentException
+     *             if the magic does not record a known algorithm
+     */
+    public static int checksum(int magic, ByteBuffer buffer, int position) {
+        EventChecksum checksum = forMagic(magic);
+        if (checksum == null) {
+            throw new IllegalArgumentException(
+                                               String.format("Unknown checksum algorithm in magic: %s",
+                                                             Integer.toHexString(magic)));
+        }
+        return checksum.checksum(buffer, position);
+    }
+
+    /**
+     * @return the checksum algorithm recorded in the magic, or null if the
+     *         algorithm is unknown
+     */
+    public static EventChecksum forMagic(int magic) {
+        int version = magic >>> VERSION_SHIFT;
+        return version < VERSIONS.length ? VERSIONS[version] : null;
+    }
+
+    private final ThreadLocal<Checksum> checksums = new ThreadLocal<Checksum>() {
+                                                      @Override
+                                                      protected Checksum initialValue() {
+                                                          return newChecksum();
+                                                      }
+                                                  };
+    private final int                   version;
+
+    EventChecksum(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the checksum of the bytes
+     */
+    public int checksum(byte[] bytes) {
+        Checksum checksum = checksums.get();
+        checksum.reset();
+        checksum.update(bytes, 0, bytes.length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Answer the checksum of the buffer's bytes between the position and the
+     * limit of the buffer. The buffer is left positioned at its limit. The
+     * bytes of a direct buffer are copied through a per thread scratch array,
+     * so that every checksum is computed by the array update of the algorithm.
+     */
+    public int checksum(ByteBuffer buffer, int position) {
+        Checksum checksum = checksums.get();
+        checksum.reset();
+        buffer.position(position);
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(),
+                            buffer.arrayOffset() + buffer.position(),
+                            buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] scratch = SCRATCH.get();
+            while (buffer.hasRemaining()) {
+                int length = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, length);
+                checksum.update(scratch, 0, length);
+            }
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * @return the version of the algorithm recorded in the magic of events
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Answer the magic recording the receiver as the checksum algorithm
+     * 
+     * @param magic
+     *            - the magic of the event, the high order byte of which is
+     *            replaced by the version of the receiver
+     */
+    public int mark(int magic) {
+        return magic & ~VERSION_MASK | version << VERSION_SHIFT;
+    }
+
+    protected abstract Checksum newChecksum();
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The filter of the events of a channel delivered to a consumer. The filter is
+ * evaluated by the weaver against the header and the leading bytes of the
+ * payload of each event, so that the events which do not match are never sent
+ * to the consumer.
+ * <p>
+ * An event matches the filter if the masked magic of the event equals the
+ * masked magic of the filter, the size of the payload lies within the bounds
+ * of the filter and the payload starts with the prefix of the filter. The
+ * serialized filter is comprised of:
+ * 
+ * <pre>
+ *       4 byte magic
+ *       4 byte magic mask
+ *       4 byte minimum payload size
+ *       4 byte maximum payload size
+ *       4 byte prefix length
+ *       n byte prefix
+ * </pre>
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class EventFilter {
+    public static final int    MAX_PREFIX_LENGTH = 256;
+    protected static final int MAGIC_OFFSET      = 0;
+    protected static final int MASK_OFFSET       = MAGIC_OFFSET + 4;
+    protected static final int MIN_SIZE_OFFSET   = MASK_OFFSET + 4;
+    protected static final int MAX_SIZE_OFFSET   = MIN_SIZE_OFFSET + 4;
+    protected static final int PREFIX_OFFSET     = MAX_SIZE_OFFSET + 4;
+    public static final int    MIN_BYTE_SIZE     = PREFIX_OFFSET + 4;
+    public static final int    MAX_BYTE_SIZE     = MIN_BYTE_SIZE
+                                                   + MAX_PREFIX_LENGTH;
+
+    /**
+     * @param magic
+     * @return the filter matching the events with the magic, whatever the
+     *         checksum algorithm recorded in the magic of the events
+     */
+    public static EventFilter forMagic(int magic) {
+        return new EventFilter(magic, ~EventChecksum.VERSION_MASK, 0,
+                               Integer.MAX_VALUE, new byte[0]);
+    }
+
+    /**
+     * @param prefix
+     * @return the filter matching the events whose payload starts with the
+     *         prefix
+     */
+    public static EventFilter forPrefix(byte[] prefix) {
+        return new EventFilter(0, 0, prefix.length, Integer.MAX_VALUE, prefix);
+    }
+
+    private final int    magic;
+    private final int    mask;
+    private final int    maxSize;
+    private final int    minSize;
+    private final byte[] prefix;
+
+    /**
+     * Read the serialized filter from the buffer, between the position and the
+     * limit of the buffer
+     * 
+     * @param bytes
+     */
+    public EventFilter(ByteBuffer bytes) {
+        magic = bytes.getInt();
+        mask = bytes.getInt();
+        minSize = bytes.getInt();
+        maxSize = bytes.getInt();
+        int length = bytes.getInt();
+        if (length < 0 || length > MAX_PREFIX_LENGTH
+            || length > bytes.remaining()) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid prefix length %s of event filter",
+                                                             length));
+        }
+        prefix = new byte[length];
+        bytes.get(prefix);
+    }
+
+    /**
+     * @param magic
+     *            - the magic of the matching events
+     * @param mask
+     *            - the bits of the magic which are matched, or 0 if any magic
+     *            matches
+     * @param minSize
+     *            - the minimum payload size of the matching events
+     * @param maxSize
+     *            - the maximum payload size of the matching events
+     * @param prefix
+     *            - the leading bytes of the payload of the matching events
+     */
+    public EventFilter(int magic, int mask, int minSize, int maxSize,
+                       byte[] prefix) {
+        assert prefix.length <= MAX_PREFIX_LENGTH : String.format("Prefix must not exceed %s bytes",
+                                                                  MAX_PREFIX_LENGTH);
+        assert minSize <= maxSize : "Minimum size must not exceed the maximum size";
+        this.magic = magic;
+        this.mask = mask;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.prefix = prefix.clone();
+    }
+
+    /**
+     * @return the byte size of the serialized filter
+     */
+    public int byteSize() {
+        return MIN_BYTE_SIZE + prefix.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof EventFilter)) {
+            return false;
+        }
+        EventFilter filter = (EventFilter) o;
+        return filter.magic == magic && filter.mask == mask
+               && filter.minSize == minSize && filter.maxSize == maxSize
+               && Arrays.equals(filter.prefix, prefix);
+    }
+
+    /**
+     * @return the byte length of the payload prefix matched by the filter
+     */
+    public int getPrefixLength() {
+        return prefix.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * magic + mask) + Arrays.hashCode(prefix);
+    }
+
+    /**
+     * Answer true if the event matches the filter
+     * 
+     * @param header
+     *            - the header of the event
+     * @param payload
+     *            - the buffer of the leading bytes of the payload, between
+     *            its position and limit
+     * @return true if the event matches the filter
+     */
+    public boolean matches(EventHeader header, ByteBuffer payload) {
+        int size = header.size();
+        if ((header.getMagic() & mask) != (magic & mask) || size < minSize
+            || size > maxSize) {
+            return false;
+        }
+        if (prefix.length == 0) {
+            return true;
+        }
+        if (size < prefix.length || payload.remaining() < prefix.length) {
+            return false;
+        }
+        int position = payload.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (payload.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every event matches the filter
+     */
+    public boolean matchesAll() {
+        return mask == 0 && minSize <= 0 && maxSize == Integer.MAX_VALUE
+               && prefix.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EventFilter[magic=%s, mask=%s, size=[%s, %s], prefix=%s]",
+                             magic, mask, minSize, maxSize, prefix.length);
+    }
+
+    /**
+     * Write the serialized filter into the buffer, at the position of the
+     * buffer
+     * 
+     * @param bytes
+     */
+    public void write(ByteBuffer bytes) {
+        bytes.putInt(magic);
+        bytes.putInt(mask);
+        bytes.putInt(minSize);
+        bytes.putInt(maxSize);
+        bytes.putInt(prefix.length);
+        bytes.put(prefix);
+    }
+}
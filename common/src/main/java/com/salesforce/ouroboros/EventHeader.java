@@ -45,6 +45,9 @@ import com.salesforce.ouroboros.util.Utils;
  *       4 byte CRC32
  * </pre>
  * 
+ * The high order byte of the magic records the algorithm of the checksum, see
+ * {@link EventChecksum}.
+ * 
  * @author hhildebrand
  * 
  */
@@ -73,7 +76,8 @@ public class EventHeader implements Cloneable {
         int position = destination.position();
         destination.putInt(position + SIZE_OFFSET, payload.remaining());
         destination.putInt(position + MAGIC_OFFSET, magic);
-        destination.putInt(position + CRC_OFFSET, Event.crc32(payload, 0));
+        destination.putInt(position + CRC_OFFSET,
+                           EventChecksum.checksum(magic, payload, 0));
         payload.rewind();
         destination.position(position + HEADER_BYTE_SIZE);
         destination.put(payload);
@@ -127,6 +131,46 @@ public class EventHeader implements Cloneable {
         return offset + HEADER_BYTE_SIZE;
     }
 
+    /**
+     * Verify the events between the position and the limit of the buffer. The
+     * size of each event must lie within the buffer, and the payload of each
+     * event must match the event's checksum. The position and limit of the
+     * buffer are not modified.
+     * 
+     * @param events
+     *            - the buffer containing the events
+     * @return the position of the first invalid event in the buffer, or -1 if
+     *         all the events are valid
+     */
+    public static int verify(ByteBuffer events) {
+        ByteBuffer cursor = events.duplicate();
+        int end = events.limit();
+        int position = events.position();
+        while (position < end) {
+            int payload = position + HEADER_BYTE_SIZE;
+            if (payload > end) {
+                return position;
+            }
+            int size = cursor.getInt(position + SIZE_OFFSET);
+            if (size < 0 || size > end - payload) {
+                return position;
+            }
+            EventChecksum checksum = EventChecksum.forMagic(cursor.getInt(position
+                                                                          + MAGIC_OFFSET));
+            if (checksum == null) {
+                return position;
+            }
+            cursor.limit(payload + size);
+            if (checksum.checksum(cursor, payload) != cursor.getInt(position
+                                                                    + CRC_OFFSET)) {
+                return position;
+            }
+            cursor.limit(end);
+            position = payload + size;
+        }
+        return -1;
+    }
+
     protected final ByteBuffer bytes;
 
     public EventHeader() {
@@ -195,7 +239,8 @@ public class EventHeader implements Cloneable {
     }
 
     public void initialize(int magic, ByteBuffer payload) {
-        initialize(payload.remaining(), magic, Event.crc32(payload, 0));
+        initialize(payload.remaining(), magic,
+                   EventChecksum.checksum(magic, payload, 0));
         payload.rewind();
     }
 
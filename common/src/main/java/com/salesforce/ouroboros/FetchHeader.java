@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+
+/**
+ * The header of a request to fetch the events of a channel.
+ * <p>
+ * The header is comprised of:
+ * 
+ * <pre>
+ *       4 byte magic
+ *       4 byte maximum byte length of the fetched span
+ *       8 byte offset of the first event of the span
+ *      16 byte channel
+ * </pre>
+ * 
+ * The fetch is answered with a {@link SpanHeader}, followed by the events of
+ * the span. A fetch with the offset of {@link #NEXT_OFFSET} continues from the
+ * end of the span answered for the previous fetch of the channel, which allows
+ * a consumer to keep several fetches of a channel in flight. A fetch with the
+ * offset of {@link #CURSOR_OFFSET} starts at the committed cursor of the
+ * consumer.
+ * <p>
+ * The header with the {@link #IDENTIFY} magic identifies the consumer of the
+ * connection, carried in the channel of the header. The header with the
+ * {@link #COMMIT} magic commits the offset as the cursor of the consumer of
+ * the channel. Neither is answered.
+ * <p>
+ * The header with the {@link #FILTER} magic sets the {@link EventFilter} of the
+ * events of the channel fetched on the connection. The header is followed by
+ * the serialized filter, whose byte length is carried in the maximum bytes of
+ * the header. The fetches of a filtered channel are answered with the spans of
+ * the contiguous runs of the matching events. Setting a filter which matches
+ * every event clears the filter of the channel.
+ * <p>
+ * The header with the {@link #SEEK} magic positions the fetches of the channel
+ * following the header at the events received by the weaver at or after the
+ * time carried in the offset of the header, in milliseconds since the epoch.
+ * The header is not answered.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class FetchHeader {
+    public static final int    COMMIT           = 0x163A;
+    public static final long   CURSOR_OFFSET    = -2L;
+    public static final int    FILTER           = 0x163C;
+    public static final int    IDENTIFY         = 0x163B;
+    public static final int    MAGIC            = 0x1639;
+    public static final long   NEXT_OFFSET      = -1L;
+    public static final int    SEEK             = 0x163D;
+    protected static final int MAGIC_OFFSET     = 0;
+    protected static final int MAX_BYTES_OFFSET = MAGIC_OFFSET + 4;
+    protected static final int OFFSET_OFFSET    = MAX_BYTES_OFFSET + 4;
+    protected static final int CH_MSB_OFFSET    = OFFSET_OFFSET + 8;
+    protected static final int CH_LSB_OFFSET    = CH_MSB_OFFSET + 8;
+    public static final int    HEADER_BYTE_SIZE = CH_LSB_OFFSET + 8;
+
+    protected final ByteBuffer bytes;
+
+    public FetchHeader() {
+        this(ByteBuffer.allocateDirect(HEADER_BYTE_SIZE));
+    }
+
+    public FetchHeader(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    public FetchHeader(UUID channel, long offset, int maxBytes) {
+        this();
+        set(channel, offset, maxBytes);
+    }
+
+    public void clear() {
+        bytes.clear();
+    }
+
+    public ByteBuffer getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the channel identifier of the fetch
+     */
+    public UUID getChannel() {
+        return new UUID(bytes.getLong(CH_MSB_OFFSET),
+                        bytes.getLong(CH_LSB_OFFSET));
+    }
+
+    /**
+     * @return the magic value of the header
+     */
+    public int getMagic() {
+        return bytes.getInt(MAGIC_OFFSET);
+    }
+
+    /**
+     * @return the maximum byte length of the fetched span
+     */
+    public int getMaxBytes() {
+        return bytes.getInt(MAX_BYTES_OFFSET);
+    }
+
+    /**
+     * @return the offset of the first event of the fetched span, or
+     *         NEXT_OFFSET
+     */
+    public long getOffset() {
+        return bytes.getLong(OFFSET_OFFSET);
+    }
+
+    public boolean hasRemaining() {
+        return bytes.hasRemaining();
+    }
+
+    /**
+     * Read the header from the channel
+     * 
+     * @param channel
+     *            - the channel to read from
+     * @return the number of bytes read, or -1 if the channel is closed.
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        return channel.read(bytes);
+    }
+
+    /**
+     * Rewind the byte content of the receiver
+     */
+    public void rewind() {
+        bytes.rewind();
+    }
+
+    public void set(UUID channel, long offset, int maxBytes) {
+        set(MAGIC, channel, offset, maxBytes);
+    }
+
+    public void set(int magic, UUID channel, long offset, int maxBytes) {
+        bytes.clear();
+        bytes.putInt(MAGIC_OFFSET, magic);
+        bytes.putInt(MAX_BYTES_OFFSET, maxBytes);
+        bytes.putLong(OFFSET_OFFSET, offset);
+        bytes.putLong(CH_MSB_OFFSET, channel.getMostSignificantBits());
+        bytes.putLong(CH_LSB_OFFSET, channel.getLeastSignificantBits());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FetchHeader[magic=%s, channel=%s, offset=%s, maxBytes=%s]",
+                             getMagic(), getChannel(), getOffset(),
+                             getMaxBytes());
+    }
+
+    /**
+     * Write the byte contents of the receiver on the channel
+     * 
+     * @param channel
+     *            - the channel to write the contents of the receiver
+     * @return the number of bytes written, or -1 if the channel is closed
+     * @throws IOException
+     *             - if problems occur during write
+     */
+    public int write(WritableByteChannel channel) throws IOException {
+        return channel.write(bytes);
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+
+/**
+ * The header of a span of events delivered to a consumer. The header is
+ * followed by the length bytes of the events of the span.
+ * <p>
+ * The header is comprised of:
+ * 
+ * <pre>
+ *      16 byte channel
+ *       8 byte offset of the first event of the span
+ *       8 byte length of the span
+ * </pre>
+ * 
+ * A span of length zero answers a fetch which expired before events were
+ * appended to the channel, or a fetch of a filtered channel whose scanned
+ * events did not match the filter, in which case the offset of the span
+ * follows the scanned events. A span with the length of {@link #NOT_HOSTED}
+ * answers a fetch of a channel that is not hosted by the weaver.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SpanHeader {
+    public static final long   NOT_HOSTED       = -1L;
+    protected static final int CH_MSB_OFFSET    = 0;
+    protected static final int CH_LSB_OFFSET    = CH_MSB_OFFSET + 8;
+    protected static final int OFFSET_OFFSET    = CH_LSB_OFFSET + 8;
+    protected static final int LENGTH_OFFSET    = OFFSET_OFFSET + 8;
+    public static final int    HEADER_BYTE_SIZE = LENGTH_OFFSET + 8;
+
+    protected final ByteBuffer bytes;
+
+    public SpanHeader() {
+        this(ByteBuffer.allocateDirect(HEADER_BYTE_SIZE));
+    }
+
+    public SpanHeader(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    public void clear() {
+        bytes.clear();
+    }
+
+    public ByteBuffer getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the channel identifier of the span
+     */
+    public UUID getChannel() {
+        return new UUID(bytes.getLong(CH_MSB_OFFSET),
+                        bytes.getLong(CH_LSB_OFFSET));
+    }
+
+    /**
+     * @return the byte length of the span
+     */
+    public long getLength() {
+        return bytes.getLong(LENGTH_OFFSET);
+    }
+
+    /**
+     * @return the offset of the first event of the span
+     */
+    public long getOffset() {
+        return bytes.getLong(OFFSET_OFFSET);
+    }
+
+    public boolean hasRemaining() {
+        return bytes.hasRemaining();
+    }
+
+    /**
+     * Answer true if the span is of the channel
+     * 
+     * @param channel
+     * @return true if the span is of the channel
+     */
+    public boolean isOf(UUID channel) {
+        return bytes.getLong(CH_MSB_OFFSET) == channel.getMostSignificantBits()
+               && bytes.getLong(CH_LSB_OFFSET) == channel.getLeastSignificantBits();
+    }
+
+    /**
+     * Read the header from the channel
+     * 
+     * @param channel
+     *            - the channel to read from
+     * @return the number of bytes read, or -1 if the channel is closed.
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        return channel.read(bytes);
+    }
+
+    /**
+     * Rewind the byte content of the receiver
+     */
+    public void rewind() {
+        bytes.rewind();
+    }
+
+    public void set(UUID channel, long offset, long length) {
+        bytes.clear();
+        bytes.putLong(CH_MSB_OFFSET, channel.getMostSignificantBits());
+        bytes.putLong(CH_LSB_OFFSET, channel.getLeastSignificantBits());
+        bytes.putLong(OFFSET_OFFSET, offset);
+        bytes.putLong(LENGTH_OFFSET, length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpanHeader[channel=%s, offset=%s, length=%s]",
+                             getChannel(), getOffset(), getLength());
+    }
+
+    /**
+     * Write the byte contents of the receiver on the channel
+     * 
+     * @param channel
+     *            - the channel to write the contents of the receiver
+     * @return the number of bytes written, or -1 if the channel is closed
+     * @throws IOException
+     *             - if problems occur during write
+     */
+    public int write(WritableByteChannel channel) throws IOException {
+        return channel.write(bytes);
+    }
+}
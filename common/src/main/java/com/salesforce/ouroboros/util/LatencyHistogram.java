@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies. Samples are counted in logarithmic
+ * buckets, each power of two divided into {@link #SUB_BUCKETS} linear sub
+ * buckets, so that the percentiles answered are within 1/8 of the recorded
+ * samples at any magnitude, while the histogram occupies a fixed amount of
+ * memory. The unit of the samples is up to the recorder.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class LatencyHistogram {
+    public static final int       SUB_BUCKETS     = 8;
+    private static final int      SUB_BUCKET_BITS = 3;
+
+    private final AtomicLongArray buckets         = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong      count           = new AtomicLong();
+    private final AtomicLong      max             = new AtomicLong();
+    private final AtomicLong      total           = new AtomicLong();
+
+    /**
+     * Answer the bucket counting the value
+     * 
+     * @param value
+     *            - the non negative value
+     * @return the index of the bucket
+     */
+    public static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Answer the smallest value counted by the bucket
+     * 
+     * @param bucket
+     * @return the lower bound of the bucket
+     */
+    public static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the number of recorded samples
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest recorded sample
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded samples, or 0 if no samples have been
+     *         recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) total.get() / n;
+    }
+
+    /**
+     * Answer the percentile of the recorded samples
+     * 
+     * @param percentile
+     *            - the percentile, between 0.0 and 1.0
+     * @return the upper bound of the bucket containing the percentile, or 0 if
+     *         no samples have been recorded
+     */
+    public long getPercentile(double percentile) {
+        assert percentile >= 0.0 && percentile <= 1.0 : "Percentile must be between 0 and 1";
+        long n = count.get();
+        if (n == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile * n));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(lowerBoundOf(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Record the sample. Negative samples are recorded as 0
+     * 
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketFor(value));
+        total.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Reset the histogram
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        max.set(0L);
+        total.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%s, mean=%.1f, p50=%s, p99=%s, p999=%s, max=%s",
+                             getCount(), getMean(), getPercentile(0.5),
+                             getPercentile(0.99), getPercentile(0.999),
+                             getMax());
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestEventChecksum {
+    @Test
+    public void testChecksums() {
+        byte[] check = "123456789".getBytes();
+        assertEquals(0xCBF43926, EventChecksum.CRC32.checksum(check));
+        assertEquals(0xE3069283, EventChecksum.CRC32C.checksum(check));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(check.length + 3);
+        direct.position(3);
+        direct.put(check);
+        assertEquals(0xE3069283, EventChecksum.CRC32C.checksum(direct, 3));
+        assertFalse(direct.hasRemaining());
+        assertEquals(0xCBF43926, EventChecksum.CRC32.checksum(direct, 3));
+        assertFalse(direct.hasRemaining());
+    }
+
+    @Test
+    public void testMagic() {
+        int magic = EventChecksum.CRC32C.mark(BatchHeader.MAGIC);
+        assertEquals(BatchHeader.MAGIC, magic & ~EventChecksum.VERSION_MASK);
+        assertSame(EventChecksum.CRC32C, EventChecksum.forMagic(magic));
+        assertSame(EventChecksum.CRC32, EventChecksum.forMagic(BatchHeader.MAGIC));
+        assertNull(EventChecksum.forMagic(0x7F000000 | BatchHeader.MAGIC));
+    }
+
+    @Test
+    public void testMixedFormats() {
+        byte[] src = "Give me Slack, or give me Food, or Kill me".getBytes();
+        Event legacy = new Event(BatchHeader.MAGIC, ByteBuffer.wrap(src));
+        Event current = new Event(Batch.EVENT_MAGIC, ByteBuffer.wrap(src));
+        assertEquals(Event.crc32(src), legacy.getCrc32());
+        assertEquals(EventChecksum.CRC32C.checksum(src), current.getCrc32());
+        assertTrue(legacy.validate());
+        assertTrue(current.validate());
+
+        ByteBuffer bytes = ByteBuffer.allocate(legacy.totalSize());
+        legacy.rewind();
+        legacy.transferTo(bytes);
+        bytes.putInt(EventHeader.MAGIC_OFFSET, EventChecksum.CRC32C.mark(BatchHeader.MAGIC));
+        assertFalse(new Event(bytes).validate());
+        bytes.putInt(EventHeader.MAGIC_OFFSET, 0x7F000000 | BatchHeader.MAGIC);
+        assertFalse(new Event(bytes).validate());
+    }
+}
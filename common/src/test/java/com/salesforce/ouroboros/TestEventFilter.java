@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestEventFilter {
+    @Test
+    public void testMagic() {
+        EventFilter filter = EventFilter.forMagic(666);
+        assertTrue(matches(filter, new Event(666, payload("Slack"))));
+        assertFalse(matches(filter, new Event(777, payload("Slack"))));
+
+        // the checksum algorithm of the magic is masked
+        assertTrue(matches(filter,
+                           new Event(EventChecksum.CRC32C.mark(666),
+                                     payload("Slack"))));
+        assertFalse(matches(filter,
+                            new Event(EventChecksum.CRC32C.mark(777),
+                                      payload("Slack"))));
+
+        // the events of producer batches
+        EventFilter producer = EventFilter.forMagic(BatchHeader.MAGIC);
+        assertTrue(matches(producer, new Event(Batch.EVENT_MAGIC,
+                                               payload("Slack"))));
+    }
+
+    @Test
+    public void testPrefix() {
+        EventFilter filter = EventFilter.forPrefix("Sla".getBytes());
+        assertTrue(matches(filter, new Event(666, payload("Slack"))));
+        assertFalse(matches(filter, new Event(666, payload("Food"))));
+        assertFalse(matches(filter, new Event(666, payload("Sl"))));
+        assertFalse(filter.matchesAll());
+        assertTrue(new EventFilter(0, 0, 0, Integer.MAX_VALUE, new byte[0]).matchesAll());
+    }
+
+    @Test
+    public void testSerialization() {
+        EventFilter filter = new EventFilter(666, -1, 4, 64,
+                                             "Bob".getBytes());
+        ByteBuffer bytes = ByteBuffer.allocate(filter.byteSize());
+        filter.write(bytes);
+        assertFalse(bytes.hasRemaining());
+        bytes.flip();
+        EventFilter read = new EventFilter(bytes);
+        assertEquals(filter, read);
+        assertTrue(matches(read, new Event(666, payload("Bobbing"))));
+        assertFalse(matches(read, new Event(666, payload("Bob"))));
+        byte[] large = new byte[65];
+        System.arraycopy("Bob".getBytes(), 0, large, 0, 3);
+        assertFalse(matches(read, new Event(666, ByteBuffer.wrap(large))));
+    }
+
+    private boolean matches(EventFilter filter, Event event) {
+        ByteBuffer payload = event.getBytes().duplicate();
+        payload.position(EventHeader.HEADER_BYTE_SIZE);
+        payload.limit(Math.min(payload.capacity(),
+                               EventHeader.HEADER_BYTE_SIZE
+                                       + filter.getPrefixLength()));
+        return filter.matches(event, payload);
+    }
+
+    private ByteBuffer payload(String payload) {
+        return ByteBuffer.wrap(payload.getBytes());
+    }
+}
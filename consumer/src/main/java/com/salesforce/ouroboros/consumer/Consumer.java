@@ -25,117 +25,657 @@
  */
 package com.salesforce.ouroboros.consumer;
 
+import static com.salesforce.ouroboros.util.Utils.point;
+
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.salesforce.ouroboros.ContactInformation;
+import com.salesforce.ouroboros.FetchHeader;
 import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.partition.Message;
+import com.salesforce.ouroboros.partition.Switchboard;
 import com.salesforce.ouroboros.partition.Switchboard.Member;
 import com.salesforce.ouroboros.partition.messages.BootstrapMessage;
 import com.salesforce.ouroboros.partition.messages.ChannelMessage;
 import com.salesforce.ouroboros.partition.messages.DiscoveryMessage;
 import com.salesforce.ouroboros.partition.messages.FailoverMessage;
 import com.salesforce.ouroboros.partition.messages.WeaverRebalanceMessage;
+import com.salesforce.ouroboros.util.ConsistentHashFunction;
 
 /**
  * 
- * The event consumer of Ouroboros.
+ * The event consumer of Ouroboros. The consumers of a group share the
+ * consumption of the channels of the group, each channel being consumed by a
+ * single member of the group.
+ * <p>
+ * The members of the group discover each other when the partition stabilizes,
+ * and the channels are assigned to the members with a consistent hash ring of
+ * the members. When the membership changes, only the channels whose owner
+ * changes move. The previous owner of a channel commits its cursor and
+ * releases the channel to the new owner, which resumes the consumption of the
+ * channel at the released offset. A release which reaches the new owner before
+ * the new owner has rebalanced is retained until the rebalance. The channels of
+ * a member which has left the group, and the channels whose release is not
+ * received within the handoff timeout, are resumed from the committed cursors
+ * of the group.
+ * <p>
+ * The sessions of the assigned channels are connected by the session openers
+ * of the consumer, so that the connection to the weavers never blocks the
+ * dispatch of the switchboard messages.
+ * <p>
+ * The weaver serving a channel, either the primary, the mirror or one of the
+ * additional replicas of the channel, is selected by the {@link ReadPolicy}
+ * of the consumer.
  * 
  * @author hhildebrand
  * 
  */
 public class Consumer implements Member {
+    /**
+     * The application consuming the channels assigned to the consumer
+     */
+    public interface Listener {
+        /**
+         * The channel of the open session has been assigned to the consumer
+         * 
+         * @param session
+         */
+        void assigned(Session session);
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#advertise()
+        /**
+         * The channel of the session has been revoked from the consumer. When
+         * this method returns, the session must no longer be used.
+         * 
+         * @param session
+         */
+        void revoked(Session session);
+    }
+
+    /**
+     * The connection of the session of a channel assigned to the consumer
      */
+    private class Opening implements Runnable {
+        private final UUID    channel;
+        private final long    offset;
+        private final Session session;
+
+        private Opening(UUID channel, long offset, Session session) {
+            this.channel = channel;
+            this.offset = offset;
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            IOException failure = null;
+            try {
+                session.open(offset);
+            } catch (IOException e) {
+                failure = e;
+            }
+            opened(this, failure);
+        }
+    }
+
+    private final static Logger                             log         = LoggerFactory.getLogger(Consumer.class.getCanonicalName());
+
+    // The channels consumed by the group
+    private final SortedSet<UUID>                           channels    = new ConcurrentSkipListSet<UUID>();
+    private final int                                       depth;
+    // The expirations of the handoffs
+    private final Map<UUID, Future<?>>                      expirations = new HashMap<UUID, Future<?>>();
+    private final UUID                                      group;
+    private ConsistentHashFunction<Node>                    groupRing;
+    // The channels waiting to be released by their previous owner
+    private final Map<UUID, Node>                           handoffs    = new HashMap<UUID, Node>();
+    private final long                                      handoffTimeout;
+    private final ScheduledExecutorService                  handoffTimer;
+    // The weavers hosting the sessions
+    private final Map<UUID, Node>                           hosts       = new HashMap<UUID, Node>();
+    private final Listener                                  listener;
+    private final int                                       maxBytes;
+    private final SortedSet<Node>                           members     = new ConcurrentSkipListSet<Node>();
+    private final int                                       numberOfReplicas;
+    // The sessions being connected
+    private final Map<UUID, Opening>                        openings    = new HashMap<UUID, Opening>();
+    // The owners of the channels, as advertised by the members
+    private final Map<UUID, Node>                           owners      = new ConcurrentHashMap<UUID, Node>();
+    private final ReadPolicy                                readPolicy;
+    // The offsets of the channels released before the receiver rebalanced
+    private final Map<UUID, Long>                           released    = new HashMap<UUID, Long>();
+    private final int                                       replicationFactor;
+    private final Node                                      self;
+    private final Executor                                  sessionOpeners;
+    private final Map<UUID, Session>                        sessions    = new HashMap<UUID, Session>();
+    private final ConsistentHashFunction.SkipStrategy<Node> skipStrategy;
+    private final Switchboard                               switchboard;
+    private ConsistentHashFunction<Node>                    weaverRing;
+    private final SortedSet<Node>                           weavers     = new ConcurrentSkipListSet<Node>();
+    private final Map<Node, ContactInformation>             yellowPages = new ConcurrentHashMap<Node, ContactInformation>();
+
+    public Consumer(Node self, Switchboard switchboard,
+                    ConsumerConfiguration configuration, Listener listener) {
+        configuration.validate();
+        this.self = self;
+        this.switchboard = switchboard;
+        this.listener = listener;
+        group = configuration.getGroup();
+        depth = configuration.getDepth();
+        handoffTimeout = configuration.getHandoffTimeoutUnit().toMillis(configuration.getHandoffTimeout());
+        handoffTimer = configuration.getHandoffTimer();
+        maxBytes = configuration.getMaxBytes();
+        numberOfReplicas = configuration.getNumberOfReplicas();
+        readPolicy = configuration.getReadPolicy();
+        replicationFactor = configuration.getReplicationFactor();
+        sessionOpeners = configuration.getSessionOpeners();
+        skipStrategy = configuration.getSkipStrategy();
+        groupRing = createRing();
+        weaverRing = createRing();
+        switchboard.setMember(this);
+    }
+
     @Override
     public void advertise() {
-        // TODO Auto-generated method stub
-
+        UUID[] consumed;
+        UUID[] owned;
+        synchronized (this) {
+            consumed = channels.toArray(new UUID[channels.size()]);
+            Collection<UUID> assigned = assigned();
+            owned = assigned.toArray(new UUID[assigned.size()]);
+        }
+        switchboard.ringCast(new Message(self,
+                                         DiscoveryMessage.ADVERTISE_CONSUMER,
+                                         group, consumed, owned));
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#becomeInactive()
-     */
     @Override
     public void becomeInactive() {
-        // TODO Auto-generated method stub
+        // the consumer continues to consume its channels until the group is
+        // rebalanced
+    }
 
+    /**
+     * Release the channels of the receiver, committing the cursors of the
+     * channels
+     */
+    public synchronized void close() {
+        for (UUID channel : assigned()) {
+            release(channel, null);
+        }
+        for (UUID channel : new ArrayList<UUID>(handoffs.keySet())) {
+            clearHandoff(channel);
+        }
+        released.clear();
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#destabilize()
+    /**
+     * Consume the channel
+     * 
+     * @param channel
      */
+    public synchronized void consume(UUID channel) {
+        if (!channels.add(channel) || !self.equals(ownerOf(channel))) {
+            return;
+        }
+        open(channel, FetchHeader.CURSOR_OFFSET);
+    }
+
     @Override
     public void destabilize() {
-        // TODO Auto-generated method stub
-
+        destabilizePartition();
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#dispatch(com.salesforce.ouroboros.partition.messages.BootstrapMessage, com.salesforce.ouroboros.Node, java.io.Serializable[], long)
+    /**
+     * Clear the discovered members, in preparation for the next round of
+     * discovery
      */
+    public void destabilizePartition() {
+        members.clear();
+        owners.clear();
+        weavers.clear();
+    }
+
     @Override
     public void dispatch(BootstrapMessage type, Node sender,
                          Serializable[] arguments, long time) {
-        // TODO Auto-generated method stub
-
+        // consumers are not bootstrapped
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#dispatch(com.salesforce.ouroboros.partition.messages.ChannelMessage, com.salesforce.ouroboros.Node, java.io.Serializable[], long)
-     */
     @Override
-    public void dispatch(ChannelMessage type, Node sender,
-                         Serializable[] arguments, long time) {
-        // TODO Auto-generated method stub
+    public synchronized void dispatch(ChannelMessage type, Node sender,
+                                      Serializable[] arguments, long time) {
+        switch (type) {
+            case OPEN:
+                consume((UUID) arguments[0]);
+                break;
+            case CLOSE: {
+                UUID channel = (UUID) arguments[0];
+                channels.remove(channel);
+                clearHandoff(channel);
+                released.remove(channel);
+                if (isAssigned(channel)) {
+                    release(channel, null);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
 
+    public synchronized void dispatch(ConsumerGroupMessage type, Node sender,
+                                      Serializable[] arguments, long time) {
+        switch (type) {
+            case RELEASED: {
+                UUID channel = (UUID) arguments[0];
+                long offset = (Long) arguments[1];
+                if (isAssigned(channel)) {
+                    log.warn(String.format("%s released %s at %s, which is already consumed by %s",
+                                           sender, channel, offset, self));
+                    return;
+                }
+                if (!self.equals(ownerOf(channel))) {
+                    // the release precedes the rebalance of the receiver
+                    if (log.isInfoEnabled()) {
+                        log.info(String.format("%s released %s at %s before %s rebalanced",
+                                               sender, channel, offset, self));
+                    }
+                    released.put(channel, offset);
+                    return;
+                }
+                clearHandoff(channel);
+                open(channel, offset);
+                break;
+            }
+            default:
+                throw new IllegalStateException(
+                                                String.format("Invalid consumer group message: %s",
+                                                              type));
+        }
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#dispatch(com.salesforce.ouroboros.partition.messages.DiscoveryMessage, com.salesforce.ouroboros.Node, java.io.Serializable[], long)
-     */
     @Override
     public void dispatch(DiscoveryMessage type, Node sender,
                          Serializable[] arguments, long time) {
-        // TODO Auto-generated method stub
-
+        switch (type) {
+            case ADVERTISE_CHANNEL_BUFFER:
+                if ((Boolean) arguments[1]) {
+                    weavers.add(sender);
+                }
+                yellowPages.put(sender, (ContactInformation) arguments[0]);
+                break;
+            case ADVERTISE_CONSUMER:
+                if (!group.equals(arguments[0])) {
+                    break;
+                }
+                members.add(sender);
+                Collections.addAll(channels, (UUID[]) arguments[1]);
+                for (UUID channel : (UUID[]) arguments[2]) {
+                    owners.put(channel, sender);
+                }
+                break;
+            default:
+                break;
+        }
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#dispatch(com.salesforce.ouroboros.partition.messages.FailoverMessage, com.salesforce.ouroboros.Node, java.io.Serializable[], long)
-     */
     @Override
     public void dispatch(FailoverMessage type, Node sender,
                          Serializable[] arguments, long time) {
-        // TODO Auto-generated method stub
-
+        // the sessions follow the failed over channels when the group is
+        // rebalanced
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#dispatch(com.salesforce.ouroboros.partition.messages.WeaverRebalanceMessage, com.salesforce.ouroboros.Node, java.io.Serializable[], long)
-     */
     @Override
     public void dispatch(WeaverRebalanceMessage type, Node sender,
                          Serializable[] arguments, long time) {
-        // TODO Auto-generated method stub
+        // the sessions follow the rebalanced channels when the group is
+        // rebalanced
+    }
+
+    /**
+     * @return the channels assigned to the receiver
+     */
+    public synchronized Collection<UUID> getAssigned() {
+        return assigned();
+    }
+
+    /**
+     * @return the channels consumed by the group
+     */
+    public Collection<UUID> getChannels() {
+        return Collections.unmodifiableSet(channels);
+    }
+
+    public UUID getGroup() {
+        return group;
+    }
+
+    /**
+     * @param channel
+     * @return the weaver serving the channel to the receiver, or null if the
+     *         channel is not assigned to the receiver
+     */
+    public synchronized Node getHost(UUID channel) {
+        return hosts.get(channel);
+    }
 
+    /**
+     * @return the members of the group
+     */
+    public Collection<Node> getMembers() {
+        return Collections.unmodifiableSet(members);
     }
 
-    /* (non-Javadoc)
-     * @see com.salesforce.ouroboros.partition.Switchboard.Member#stabilized()
+    /**
+     * @return the channels waiting to be released to the receiver by their
+     *         previous owner
      */
+    public synchronized Collection<UUID> getPendingHandoffs() {
+        return new ArrayList<UUID>(handoffs.keySet());
+    }
+
     @Override
-    public void stabilized() {
-        // TODO Auto-generated method stub
+    public synchronized void stabilized() {
+        members.add(self);
+        ConsistentHashFunction<Node> nextRing = createRing();
+        for (Node member : members) {
+            nextRing.add(member, member.capacity);
+        }
+        groupRing = nextRing;
+        ConsistentHashFunction<Node> nextWeaverRing = createRing();
+        for (Node weaver : weavers) {
+            nextWeaverRing.add(weaver, weaver.capacity);
+        }
+        weaverRing = nextWeaverRing;
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Rebalancing %s, members: %s on %s",
+                                   group, members, self));
+        }
+        rebalance();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Consumer[%s, %s]", group, self);
+    }
+
+    /**
+     * @return the channels assigned to the receiver, whether their sessions
+     *         are open or being connected
+     */
+    private Collection<UUID> assigned() {
+        List<UUID> assigned = new ArrayList<UUID>(sessions.keySet());
+        assigned.addAll(openings.keySet());
+        return assigned;
+    }
+
+    /**
+     * Stop waiting for the release of the channel
+     * 
+     * @param channel
+     */
+    private void clearHandoff(UUID channel) {
+        handoffs.remove(channel);
+        Future<?> expiration = expirations.remove(channel);
+        if (expiration != null) {
+            expiration.cancel(false);
+        }
+    }
 
+    private ConsistentHashFunction<Node> createRing() {
+        return new ConsistentHashFunction<Node>(skipStrategy, numberOfReplicas);
     }
 
     /**
+     * The handoff of the channel has not been released by the previous owner
+     * within the handoff timeout. Consume the channel from the committed
+     * cursor of the group.
      * 
+     * @param channel
+     * @param previous
+     *            - the previous owner of the channel
      */
-    public void destabilizePartition() {
-        // TODO Auto-generated method stub
+    private synchronized void expire(UUID channel, Node previous) {
+        if (!previous.equals(handoffs.get(channel))) {
+            return;
+        }
+        clearHandoff(channel);
+        log.warn(String.format("%s did not release %s to %s, consuming from the committed cursor",
+                               previous, channel, self));
+        open(channel, FetchHeader.CURSOR_OFFSET);
+    }
 
+    private boolean isAssigned(UUID channel) {
+        return sessions.containsKey(channel) || openings.containsKey(channel);
     }
 
+    /**
+     * Open the session of the channel assigned to the receiver. The session is
+     * connected by the session openers, and is assigned to the listener once
+     * connected.
+     * 
+     * @param channel
+     * @param offset
+     *            - the offset of the first event to consume, or
+     *            FetchHeader.CURSOR_OFFSET to consume from the committed cursor
+     *            of the group
+     */
+    private void open(UUID channel, long offset) {
+        Node weaver = select(replicasOf(channel));
+        ContactInformation contact = weaver == null ? null
+                                                   : yellowPages.get(weaver);
+        if (contact == null || contact.flyer == null) {
+            log.warn(String.format("No weaver hosting %s is known to %s",
+                                   channel, self));
+            return;
+        }
+        Session session = new Session(group, channel, contact.flyer, maxBytes,
+                                      depth);
+        Opening opening = new Opening(channel, offset, session);
+        openings.put(channel, opening);
+        hosts.put(channel, weaver);
+        sessionOpeners.execute(opening);
+    }
+
+    /**
+     * The session of the channel has been connected, or has failed to connect
+     * 
+     * @param opening
+     * @param failure
+     *            - the failure connecting the session, or null if the session
+     *            is open
+     */
+    private synchronized void opened(Opening opening, IOException failure) {
+        if (openings.get(opening.channel) != opening) {
+            // the channel has been released while the session was connecting
+            opening.session.close();
+            return;
+        }
+        openings.remove(opening.channel);
+        if (failure != null) {
+            log.warn(String.format("Unable to open session of %s at %s on %s",
+                                   opening.channel, opening.offset, self),
+                     failure);
+            hosts.remove(opening.channel);
+            opening.session.close();
+            return;
+        }
+        sessions.put(opening.channel, opening.session);
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Assigned %s at %s to %s", opening.channel,
+                                   opening.offset, self));
+        }
+        listener.assigned(opening.session);
+    }
+
+    private Node ownerOf(UUID channel) {
+        return groupRing.size() == 0 ? null : groupRing.hash(point(channel));
+    }
+
+    /**
+     * Assign the channels of the group to the members of the group. Only the
+     * channels whose owner has changed are moved.
+     */
+    private void rebalance() {
+        for (UUID channel : assigned()) {
+            Node owner = ownerOf(channel);
+            if (!self.equals(owner)) {
+                release(channel, owner);
+            }
+        }
+        for (UUID channel : channels) {
+            if (!self.equals(ownerOf(channel))) {
+                clearHandoff(channel);
+                released.remove(channel);
+                continue;
+            }
+            if (isAssigned(channel)) {
+                Node host = hosts.get(channel);
+                List<Node> replicas = replicasOf(channel);
+                boolean moved = readPolicy == ReadPolicy.LEAST_LOADED ? !replicas.contains(host)
+                                                                     : !host.equals(select(replicas));
+                if (!replicas.isEmpty() && moved) {
+                    // follow the channel to its new weaver
+                    open(channel, release(channel, null));
+                }
+                continue;
+            }
+            Long offset = released.remove(channel);
+            if (offset != null) {
+                // the channel was released before the rebalance
+                clearHandoff(channel);
+                open(channel, offset);
+                continue;
+            }
+            final Node previous = owners.get(channel);
+            if (previous != null && !previous.equals(self)
+                && members.contains(previous)) {
+                if (previous.equals(handoffs.get(channel))) {
+                    continue;
+                }
+                clearHandoff(channel);
+                handoffs.put(channel, previous);
+                final UUID handoff = channel;
+                expirations.put(channel,
+                                handoffTimer.schedule(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        expire(handoff, previous);
+                                    }
+                                }, handoffTimeout, TimeUnit.MILLISECONDS));
+                if (log.isInfoEnabled()) {
+                    log.info(String.format("Waiting for %s to release %s to %s",
+                                           previous, channel, self));
+                }
+            } else {
+                clearHandoff(channel);
+                open(channel, FetchHeader.CURSOR_OFFSET);
+            }
+        }
+    }
+
+    /**
+     * Release the channel assigned to the receiver, committing the cursor of
+     * the channel
+     * 
+     * @param channel
+     * @param to
+     *            - the new owner of the channel, or null if the channel is not
+     *            handed off
+     * @return the offset following the events consumed by the receiver
+     */
+    private long release(UUID channel, Node to) {
+        hosts.remove(channel);
+        Opening opening = openings.remove(channel);
+        long offset;
+        if (opening != null) {
+            // the session is closed once connected, and nothing has been
+            // consumed
+            offset = opening.offset;
+        } else {
+            Session session = sessions.remove(channel);
+            listener.revoked(session);
+            offset = session.getNextOffset();
+            try {
+                session.commit();
+            } catch (IOException e) {
+                log.warn(String.format("Unable to commit the cursor of %s on %s",
+                                       channel, self), e);
+            }
+            session.close();
+        }
+        if (to != null) {
+            switchboard.send(new Message(self, ConsumerGroupMessage.RELEASED,
+                                         channel, offset), to);
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Released %s at %s to %s on %s", channel,
+                                   offset, to, self));
+        }
+        return offset;
+    }
+
+    /**
+     * @param channel
+     * @return the weavers of the channel, the primary followed by the mirror
+     *         and the additional replicas of the channel
+     */
+    private List<Node> replicasOf(UUID channel) {
+        return weaverRing.hash(point(channel), replicationFactor);
+    }
+
+    /**
+     * Select the weaver serving a channel, according to the read policy of the
+     * receiver
+     * 
+     * @param replicas
+     *            - the weavers of the channel
+     * @return the selected weaver, or null if the channel has no weavers
+     */
+    private Node select(List<Node> replicas) {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        switch (readPolicy) {
+            case MIRROR_PREFERRED:
+                if (replicas.size() == 1) {
+                    return replicas.get(0);
+                }
+                // spread the consumers across the replicas other than the primary
+                return replicas.get(1 + self.processId % (replicas.size() - 1));
+            case LEAST_LOADED: {
+                Node selected = null;
+                int least = Integer.MAX_VALUE;
+                for (Node replica : replicas) {
+                    int load = Collections.frequency(hosts.values(), replica);
+                    if (load < least) {
+                        least = load;
+                        selected = replica;
+                    }
+                }
+                return selected;
+            }
+            default:
+                return replicas.get(0);
+        }
+    }
 }
@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.consumer;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.salesforce.ouroboros.DefaultSkipStrategy;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.util.ConsistentHashFunction.SkipStrategy;
+import com.salesforce.ouroboros.util.LabeledThreadFactory;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ConsumerConfiguration {
+    public static final long         DEFAULT_HANDOFF_TIMEOUT      = 30;
+    public static final TimeUnit     DEFAULT_HANDOFF_TIMEOUT_UNIT = TimeUnit.SECONDS;
+
+    private int                      depth                        = Session.DEFAULT_DEPTH;
+    private UUID                     group;
+    private long                     handoffTimeout               = DEFAULT_HANDOFF_TIMEOUT;
+    private TimeUnit                 handoffTimeoutUnit           = DEFAULT_HANDOFF_TIMEOUT_UNIT;
+    private ScheduledExecutorService handoffTimer                 = Executors.newSingleThreadScheduledExecutor(new LabeledThreadFactory(
+                                                                                                                                 "Handoff timer"));
+    private int                      maxBytes                     = Session.DEFAULT_MAX_BYTES;
+    private int                      numberOfReplicas             = 200;
+    private ReadPolicy               readPolicy                   = ReadPolicy.PRIMARY;
+    private int                      replicationFactor            = 2;
+    private Executor                 sessionOpeners               = Executors.newCachedThreadPool(new LabeledThreadFactory(
+                                                                                                                          "Session opener"));
+    private SkipStrategy<Node>       skipStrategy                 = new DefaultSkipStrategy();
+
+    /**
+     * @return the number of fetches kept in flight by a session
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the id of the consumer group
+     */
+    public UUID getGroup() {
+        return group;
+    }
+
+    /**
+     * @return the time a member waits for the previous owner of a channel to
+     *         release the channel, before consuming the channel from the
+     *         committed cursor of the group
+     */
+    public long getHandoffTimeout() {
+        return handoffTimeout;
+    }
+
+    /**
+     * @return the handoffTimeoutUnit
+     */
+    public TimeUnit getHandoffTimeoutUnit() {
+        return handoffTimeoutUnit;
+    }
+
+    /**
+     * @return the timer expiring the handoffs of the channels
+     */
+    public ScheduledExecutorService getHandoffTimer() {
+        return handoffTimer;
+    }
+
+    /**
+     * @return the maximum bytes of a fetch
+     */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the numberOfReplicas
+     */
+    public int getNumberOfReplicas() {
+        return numberOfReplicas;
+    }
+
+    /**
+     * @return the policy selecting the weaver serving a channel
+     */
+    public ReadPolicy getReadPolicy() {
+        return readPolicy;
+    }
+
+    /**
+     * @return the number of weavers replicating a channel
+     */
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    /**
+     * @return the executor connecting the sessions of the assigned channels
+     */
+    public Executor getSessionOpeners() {
+        return sessionOpeners;
+    }
+
+    /**
+     * @return the skipStrategy
+     */
+    public SkipStrategy<Node> getSkipStrategy() {
+        return skipStrategy;
+    }
+
+    /**
+     * @param depth
+     *            the depth to set
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @param group
+     *            the group to set
+     */
+    public void setGroup(UUID group) {
+        this.group = group;
+    }
+
+    /**
+     * @param handoffTimeout
+     *            the handoffTimeout to set
+     */
+    public void setHandoffTimeout(long handoffTimeout) {
+        this.handoffTimeout = handoffTimeout;
+    }
+
+    /**
+     * @param handoffTimeoutUnit
+     *            the handoffTimeoutUnit to set
+     */
+    public void setHandoffTimeoutUnit(TimeUnit handoffTimeoutUnit) {
+        this.handoffTimeoutUnit = handoffTimeoutUnit;
+    }
+
+    /**
+     * @param handoffTimer
+     *            the handoffTimer to set
+     */
+    public void setHandoffTimer(ScheduledExecutorService handoffTimer) {
+        this.handoffTimer = handoffTimer;
+    }
+
+    /**
+     * @param maxBytes
+     *            the maxBytes to set
+     */
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param numberOfReplicas
+     *            the numberOfReplicas to set
+     */
+    public void setNumberOfReplicas(int numberOfReplicas) {
+        this.numberOfReplicas = numberOfReplicas;
+    }
+
+    /**
+     * @param readPolicy
+     *            the readPolicy to set
+     */
+    public void setReadPolicy(ReadPolicy readPolicy) {
+        this.readPolicy = readPolicy;
+    }
+
+    /**
+     * @param replicationFactor
+     *            the replicationFactor to set
+     */
+    public void setReplicationFactor(int replicationFactor) {
+        this.replicationFactor = replicationFactor;
+    }
+
+    /**
+     * @param sessionOpeners
+     *            the sessionOpeners to set
+     */
+    public void setSessionOpeners(Executor sessionOpeners) {
+        this.sessionOpeners = sessionOpeners;
+    }
+
+    /**
+     * @param skipStrategy
+     *            the skipStrategy to set
+     */
+    public void setSkipStrategy(SkipStrategy<Node> skipStrategy) {
+        this.skipStrategy = skipStrategy;
+    }
+
+    public void validate() {
+        assert group != null : "Group must not be null";
+        assert depth > 0 : "Depth must be positive";
+        assert handoffTimeout > 0 : "Handoff timeout must be positive";
+        assert handoffTimeoutUnit != null : "Handoff timeout unit must not be null";
+        assert handoffTimer != null : "Handoff timer must not be null";
+        assert numberOfReplicas > 0 : "Number of replicas must be positive";
+        assert readPolicy != null : "Read policy must not be null";
+        assert replicationFactor >= 2 : "Replication factor must be at least two";
+        assert sessionOpeners != null : "Session openers must not be null";
+        assert skipStrategy != null : "Skip strategy must not be null";
+    }
+}
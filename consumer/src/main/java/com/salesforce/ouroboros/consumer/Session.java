@@ -25,12 +25,369 @@
  */
 package com.salesforce.ouroboros.consumer;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.salesforce.ouroboros.ContactInformation;
+import com.salesforce.ouroboros.EventFilter;
+import com.salesforce.ouroboros.EventHeader;
+import com.salesforce.ouroboros.FetchHeader;
+import com.salesforce.ouroboros.SpanHeader;
+
 /**
- * The client state.
+ * The client state of the consumption of a channel. The session fetches the
+ * events of the channel from the weaver hosting the channel, keeping the depth
+ * of fetches in flight, so that the weaver is never waiting on the session for
+ * the next fetch. The weaver holds a fetch of events which have yet to be
+ * appended open, until the events are appended or the fetch expires.
+ * <p>
+ * The fetched events are read into a direct buffer which is reused for the
+ * life of the session, so the steady state consumption of events does not
+ * allocate. The buffer holds two fetches of events, so the maximum bytes of a
+ * fetch must be at least the size of the largest event of the channel.
+ * <p>
+ * The session of an identified consumer commits its cursor of the channel to
+ * the weaver, and may be opened at the committed cursor.
+ * <p>
+ * The session may filter the events of the channel on the weaver. The events
+ * which do not match the {@link EventFilter} of the session are skipped by the
+ * weaver, so the fetched events need not be contiguous in the channel.
  * 
  * @author hhildebrand
- *
+ * 
  */
 public class Session {
-    
+    public static final int         DEFAULT_DEPTH     = 4;
+    public static final int         DEFAULT_MAX_BYTES = 64 * 1024;
+    private static final Logger     log               = LoggerFactory.getLogger(Session.class.getCanonicalName());
+
+    private final ByteBuffer        buffer;
+    private final UUID              channel;
+    private int                     complete;
+    private final UUID              consumer;
+    private final int               depth;
+    private int                     end;
+    private final FetchHeader       fetch             = new FetchHeader();
+    private EventFilter             filter;
+    private int                     inFlight;
+    private final int               maxBytes;
+    private long                    offset;
+    private SocketChannel           socket;
+    private final SpanHeader        span              = new SpanHeader();
+    private final InetSocketAddress weaver;
+
+    public Session(UUID consumer, UUID channel, ContactInformation weaver) {
+        this(consumer, channel, weaver.flyer, DEFAULT_MAX_BYTES, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param consumer
+     *            - the id of the consumer, or null if the consumer does not
+     *            commit cursors
+     * @param channel
+     *            - the channel consumed by the session
+     * @param weaver
+     *            - the flyer endpoint of the weaver hosting the channel
+     * @param maxBytes
+     *            - the maximum bytes of a fetch
+     * @param depth
+     *            - the number of fetches kept in flight
+     */
+    public Session(UUID consumer, UUID channel, InetSocketAddress weaver,
+                   int maxBytes, int depth) {
+        assert maxBytes > EventHeader.HEADER_BYTE_SIZE : "Max bytes must hold an event";
+        assert depth > 0 : "Depth must be positive";
+        this.consumer = consumer;
+        this.channel = channel;
+        this.weaver = weaver;
+        this.maxBytes = maxBytes;
+        this.depth = depth;
+        buffer = ByteBuffer.allocateDirect(2 * maxBytes);
+    }
+
+    /**
+     * Close the session
+     */
+    public void close() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.trace(String.format("Error closing session of %s", channel), e);
+        }
+        socket = null;
+    }
+
+    /**
+     * Commit the offset following the events of the last fetch as the cursor
+     * of the consumer of the channel
+     * 
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (consumer == null) {
+            throw new IllegalStateException(
+                                            String.format("Session of %s does not identify a consumer",
+                                                          channel));
+        }
+        long next = getNextOffset();
+        if (next < 0) {
+            // the cursor has yet to be established by the weaver
+            return;
+        }
+        write(FetchHeader.COMMIT, next);
+    }
+
+    /**
+     * Answer the next events of the channel. The events of the previous fetch
+     * are considered consumed. The session blocks until events are fetched, or
+     * the fetch expires on the weaver, in which case the answered buffer is
+     * empty.
+     * 
+     * @return the buffer of complete events, positioned at the first event.
+     *         The buffer is reused for the next fetch.
+     * @throws IOException
+     *             - if the fetch fails or the channel is not hosted by the
+     *             weaver
+     */
+    public ByteBuffer fetch() throws IOException {
+        consumed();
+        while (true) {
+            span.clear();
+            readFully(span.getBytes());
+            inFlight--;
+            long length = span.getLength();
+            if (length == SpanHeader.NOT_HOSTED) {
+                throw new IOException(
+                                      String.format("Channel %s is not hosted by %s",
+                                                    channel, weaver));
+            }
+            if (!span.isOf(channel)) {
+                throw new IOException(String.format("Unexpected span %s for %s",
+                                                    span, channel));
+            }
+            if (end == 0) {
+                // the span may start in the next segment of the channel, at
+                // the committed cursor of the consumer, or following the
+                // events skipped by the filter of the session
+                offset = span.getOffset();
+            } else if (length > 0 && span.getOffset() != offset + end) {
+                throw new IOException(
+                                      String.format("Span %s does not follow offset %s of %s",
+                                                    span, offset + end, channel));
+            }
+            if (length > 0) {
+                if (end + length > buffer.capacity()) {
+                    throw new IOException(
+                                          String.format("Span %s exceeds the fetch buffer of %s",
+                                                        span, channel));
+                }
+                buffer.limit(end + (int) length);
+                buffer.position(end);
+                readFully(buffer);
+                end += (int) length;
+            }
+            send(FetchHeader.NEXT_OFFSET);
+            complete = completeEvents();
+            if (complete > 0 || length == 0) {
+                break;
+            }
+        }
+        buffer.limit(complete);
+        buffer.position(0);
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Fetched %s bytes at %s of %s", complete,
+                                    offset, channel));
+        }
+        return buffer;
+    }
+
+    public UUID getChannel() {
+        return channel;
+    }
+
+    public UUID getConsumer() {
+        return consumer;
+    }
+
+    /**
+     * @return the filter of the events of the channel, or null if the events
+     *         are not filtered
+     */
+    public EventFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the offset of the first event of the last fetch
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the offset following the last event of the last fetch, or
+     *         FetchHeader.CURSOR_OFFSET if the session has been opened at the
+     *         cursor of the consumer or at a time, and the offset has yet to be
+     *         established by the first fetch
+     */
+    public long getNextOffset() {
+        return offset < 0 ? offset : offset + complete;
+    }
+
+    /**
+     * Open the session, fetching the events of the channel at the offset
+     * 
+     * @param offset
+     *            - the offset of the first event to fetch, or
+     *            FetchHeader.CURSOR_OFFSET to fetch from the committed cursor
+     *            of the consumer
+     * @throws IOException
+     */
+    public void open(long offset) throws IOException {
+        connect(offset);
+        send(offset);
+        while (inFlight < depth) {
+            send(FetchHeader.NEXT_OFFSET);
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Opened session of %s at %s on %s", channel,
+                                   offset, weaver));
+        }
+    }
+
+    /**
+     * Open the session, fetching the events of the channel received by the
+     * weaver at or after the time. The first fetched events may precede the
+     * time by the interval of the time index of the weaver.
+     * 
+     * @param time
+     *            - the time in milliseconds since the epoch
+     * @throws IOException
+     */
+    public void openAt(long time) throws IOException {
+        connect(FetchHeader.CURSOR_OFFSET);
+        write(FetchHeader.SEEK, time);
+        while (inFlight < depth) {
+            send(FetchHeader.NEXT_OFFSET);
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Opened session of %s at time %s on %s",
+                                   channel, time, weaver));
+        }
+    }
+
+    /**
+     * Set the filter of the events of the channel. The filter takes effect
+     * when the session is opened.
+     * 
+     * @param filter
+     *            - the filter of the events, or null if the events are not
+     *            filtered
+     */
+    public void setFilter(EventFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Session[%s, offset=%s, weaver=%s]", channel,
+                             offset, weaver);
+    }
+
+    /**
+     * @return the byte length of the complete events in the buffer
+     */
+    private int completeEvents() {
+        int position = 0;
+        while (position + EventHeader.HEADER_BYTE_SIZE <= end) {
+            // the size of the payload leads the event header
+            int next = position + EventHeader.HEADER_BYTE_SIZE
+                       + buffer.getInt(position);
+            if (next > end) {
+                break;
+            }
+            position = next;
+        }
+        return position;
+    }
+
+    private void connect(long offset) throws IOException {
+        socket = SocketChannel.open(weaver);
+        socket.socket().setTcpNoDelay(true);
+        // the offset of a cursor is established by the first span
+        this.offset = offset;
+        complete = 0;
+        end = 0;
+        inFlight = 0;
+        if (consumer != null) {
+            write(FetchHeader.IDENTIFY, 0L);
+        }
+        if (filter != null) {
+            writeFilter();
+        }
+    }
+
+    /**
+     * Discard the events answered by the previous fetch, retaining the partial
+     * event following them
+     */
+    private void consumed() {
+        if (complete == 0) {
+            return;
+        }
+        buffer.limit(end);
+        buffer.position(complete);
+        buffer.compact();
+        offset += complete;
+        end -= complete;
+        complete = 0;
+    }
+
+    private void readFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (socket.read(bytes) < 0) {
+                throw new IOException(
+                                      String.format("Session of %s closed by %s",
+                                                    channel, weaver));
+            }
+        }
+    }
+
+    private void send(long fetchOffset) throws IOException {
+        fetch.set(channel, fetchOffset, maxBytes);
+        while (fetch.hasRemaining()) {
+            fetch.write(socket);
+        }
+        inFlight++;
+    }
+
+    private void write(int magic, long fetchOffset) throws IOException {
+        fetch.set(magic, magic == FetchHeader.IDENTIFY ? consumer : channel,
+                  fetchOffset, 0);
+        while (fetch.hasRemaining()) {
+            fetch.write(socket);
+        }
+    }
+
+    private void writeFilter() throws IOException {
+        fetch.set(FetchHeader.FILTER, channel, 0L, filter.byteSize());
+        ByteBuffer body = ByteBuffer.allocate(filter.byteSize());
+        filter.write(body);
+        body.flip();
+        while (fetch.hasRemaining()) {
+            fetch.write(socket);
+        }
+        while (body.hasRemaining()) {
+            socket.write(body);
+        }
+    }
 }
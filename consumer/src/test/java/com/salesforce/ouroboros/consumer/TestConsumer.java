@@ -0,0 +1,344 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.consumer;
+
+import static com.salesforce.ouroboros.util.Utils.point;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import com.salesforce.ouroboros.ContactInformation;
+import com.salesforce.ouroboros.FetchHeader;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.partition.Message;
+import com.salesforce.ouroboros.partition.Switchboard;
+import com.salesforce.ouroboros.partition.messages.DiscoveryMessage;
+import com.salesforce.ouroboros.util.ConsistentHashFunction;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestConsumer {
+    @Captor
+    ArgumentCaptor<Message>     messageCaptor;
+
+    private final UUID          group    = UUID.randomUUID();
+    private final Node          self     = new Node(0);
+    private final Node          other    = new Node(1);
+    private final Node          weaver   = new Node(2);
+    private final Node          mirror   = new Node(3);
+    private final UUID[]        channels = new UUID[32];
+    private ServerSocketChannel flyer;
+    private ContactInformation  contact;
+
+    @Before
+    public void init() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = UUID.randomUUID();
+        }
+        flyer = ServerSocketChannel.open();
+        flyer.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        contact = new ContactInformation(null, null, null,
+                                         (InetSocketAddress) flyer.socket().getLocalSocketAddress());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        flyer.close();
+    }
+
+    @Test
+    public void testAdvertise() throws Exception {
+        Switchboard switchboard = mock(Switchboard.class);
+        Consumer consumer = new Consumer(self, switchboard, configuration(),
+                                         mock(Consumer.Listener.class));
+        consumer.consume(channels[0]);
+        consumer.advertise();
+        verify(switchboard).ringCast(messageCaptor.capture());
+        Message message = messageCaptor.getValue();
+        assertEquals(DiscoveryMessage.ADVERTISE_CONSUMER, message.type);
+        assertEquals(group, message.arguments[0]);
+        assertTrue(Arrays.equals(new UUID[] { channels[0] },
+                                 (UUID[]) message.arguments[1]));
+        assertEquals(0, ((UUID[]) message.arguments[2]).length);
+    }
+
+    @Test
+    public void testRebalance() throws Exception {
+        Switchboard switchboard = mock(Switchboard.class);
+        Consumer.Listener listener = mock(Consumer.Listener.class);
+        Consumer consumer = new Consumer(self, switchboard, configuration(),
+                                         listener);
+
+        // the sole member of the group is assigned all the channels
+        discover(consumer, self, channels, new UUID[0]);
+        consumer.stabilized();
+        assertEquals(channels.length, consumer.getAssigned().size());
+        verify(listener, times(channels.length)).assigned(any(Session.class));
+
+        // only the channels hashed to the new member move
+        consumer.destabilize();
+        discover(consumer, self, channels, channels);
+        discover(consumer, other, new UUID[0], new UUID[0]);
+        consumer.stabilized();
+
+        List<UUID> moved = movedTo(other);
+        assertFalse(moved.isEmpty());
+        assertEquals(channels.length - moved.size(),
+                     consumer.getAssigned().size());
+        for (UUID channel : moved) {
+            assertFalse(consumer.getAssigned().contains(channel));
+        }
+        verify(listener, times(moved.size())).revoked(any(Session.class));
+        verify(switchboard, times(moved.size())).send(messageCaptor.capture(),
+                                                      eq(other));
+        for (Message message : messageCaptor.getAllValues()) {
+            assertEquals(ConsumerGroupMessage.RELEASED, message.type);
+            assertTrue(moved.contains(message.arguments[0]));
+        }
+        consumer.close();
+    }
+
+    @Test
+    public void testHandoff() throws Exception {
+        Switchboard switchboard = mock(Switchboard.class);
+        Consumer.Listener listener = mock(Consumer.Listener.class);
+        Consumer consumer = new Consumer(self, switchboard, configuration(),
+                                         listener);
+
+        // the channels hashed to the joining member are released by the
+        // previous owner
+        discover(consumer, self, new UUID[0], new UUID[0]);
+        discover(consumer, other, channels, channels);
+        consumer.stabilized();
+
+        List<UUID> moved = movedTo(self);
+        assertFalse(moved.isEmpty());
+        assertTrue(consumer.getAssigned().isEmpty());
+        assertEquals(moved.size(), consumer.getPendingHandoffs().size());
+        verify(listener, never()).assigned(any(Session.class));
+
+        UUID channel = moved.get(0);
+        consumer.dispatch(ConsumerGroupMessage.RELEASED, other,
+                          new Serializable[] { channel, 1024L }, 0);
+        assertTrue(consumer.getAssigned().contains(channel));
+        assertFalse(consumer.getPendingHandoffs().contains(channel));
+        ArgumentCaptor<Session> session = ArgumentCaptor.forClass(Session.class);
+        verify(listener).assigned(session.capture());
+        assertEquals(channel, session.getValue().getChannel());
+        assertEquals(1024L, session.getValue().getNextOffset());
+
+        // a channel not assigned to the member is not consumed
+        UUID stayed = null;
+        for (UUID c : channels) {
+            if (!moved.contains(c)) {
+                stayed = c;
+            }
+        }
+        consumer.dispatch(ConsumerGroupMessage.RELEASED, other,
+                          new Serializable[] { stayed, 1024L }, 0);
+        assertFalse(consumer.getAssigned().contains(stayed));
+        consumer.close();
+    }
+
+    @Test
+    public void testEarlyRelease() throws Exception {
+        Switchboard switchboard = mock(Switchboard.class);
+        Consumer.Listener listener = mock(Consumer.Listener.class);
+        Consumer consumer = new Consumer(self, switchboard, configuration(),
+                                         listener);
+        List<UUID> moved = movedTo(self);
+        assertFalse(moved.isEmpty());
+        UUID channel = moved.get(0);
+
+        // the previous owner releases the channel before the receiver has
+        // rebalanced
+        discover(consumer, self, new UUID[0], new UUID[0]);
+        discover(consumer, other, channels, channels);
+        consumer.dispatch(ConsumerGroupMessage.RELEASED, other,
+                          new Serializable[] { channel, 1024L }, 0);
+        assertFalse(consumer.getAssigned().contains(channel));
+
+        consumer.stabilized();
+        assertTrue(consumer.getAssigned().contains(channel));
+        assertFalse(consumer.getPendingHandoffs().contains(channel));
+        assertEquals(moved.size() - 1, consumer.getPendingHandoffs().size());
+        ArgumentCaptor<Session> session = ArgumentCaptor.forClass(Session.class);
+        verify(listener).assigned(session.capture());
+        assertEquals(channel, session.getValue().getChannel());
+        assertEquals(1024L, session.getValue().getNextOffset());
+        consumer.close();
+    }
+
+    @Test
+    public void testHandoffTimeout() throws Exception {
+        Switchboard switchboard = mock(Switchboard.class);
+        Consumer.Listener listener = mock(Consumer.Listener.class);
+        ConsumerConfiguration configuration = configuration();
+        configuration.setHandoffTimeout(100);
+        configuration.setHandoffTimeoutUnit(TimeUnit.MILLISECONDS);
+        Consumer consumer = new Consumer(self, switchboard, configuration,
+                                         listener);
+
+        discover(consumer, self, new UUID[0], new UUID[0]);
+        discover(consumer, other, channels, channels);
+        consumer.stabilized();
+        List<UUID> moved = movedTo(self);
+        assertEquals(moved.size(), consumer.getPendingHandoffs().size());
+
+        // the channels never released are consumed from the committed cursor
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!consumer.getPendingHandoffs().isEmpty()
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(consumer.getPendingHandoffs().isEmpty());
+        assertEquals(moved.size(), consumer.getAssigned().size());
+        ArgumentCaptor<Session> session = ArgumentCaptor.forClass(Session.class);
+        verify(listener, times(moved.size())).assigned(session.capture());
+        for (Session s : session.getAllValues()) {
+            assertEquals(FetchHeader.CURSOR_OFFSET, s.getNextOffset());
+        }
+        consumer.close();
+    }
+
+    @Test
+    public void testMirrorPreferred() throws Exception {
+        ConsumerConfiguration configuration = configuration();
+        configuration.setReadPolicy(ReadPolicy.MIRROR_PREFERRED);
+        Consumer consumer = new Consumer(self, mock(Switchboard.class),
+                                         configuration,
+                                         mock(Consumer.Listener.class));
+        discover(consumer, self, channels, new UUID[0]);
+        consumer.dispatch(DiscoveryMessage.ADVERTISE_CHANNEL_BUFFER, mirror,
+                          new Serializable[] { contact, true }, 0);
+        consumer.stabilized();
+
+        ConsistentHashFunction<Node> ring = weaverRing();
+        for (UUID channel : channels) {
+            assertEquals(ring.hash(point(channel), 2).get(1),
+                         consumer.getHost(channel));
+        }
+        consumer.close();
+    }
+
+    @Test
+    public void testLeastLoaded() throws Exception {
+        ConsumerConfiguration configuration = configuration();
+        configuration.setReadPolicy(ReadPolicy.LEAST_LOADED);
+        Consumer consumer = new Consumer(self, mock(Switchboard.class),
+                                         configuration,
+                                         mock(Consumer.Listener.class));
+        discover(consumer, self, channels, new UUID[0]);
+        consumer.dispatch(DiscoveryMessage.ADVERTISE_CHANNEL_BUFFER, mirror,
+                          new Serializable[] { contact, true }, 0);
+        consumer.stabilized();
+
+        int primary = 0;
+        int secondary = 0;
+        for (UUID channel : channels) {
+            if (weaver.equals(consumer.getHost(channel))) {
+                primary++;
+            } else if (mirror.equals(consumer.getHost(channel))) {
+                secondary++;
+            }
+        }
+        assertEquals(channels.length, primary + secondary);
+        assertTrue(Math.abs(primary - secondary) <= 1);
+        consumer.close();
+    }
+
+    private ConsumerConfiguration configuration() {
+        ConsumerConfiguration configuration = new ConsumerConfiguration();
+        configuration.setGroup(group);
+        // the sessions are connected synchronously
+        configuration.setSessionOpeners(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        return configuration;
+    }
+
+    private void discover(Consumer consumer, Node member, UUID[] consumed,
+                          UUID[] owned) {
+        consumer.dispatch(DiscoveryMessage.ADVERTISE_CHANNEL_BUFFER, weaver,
+                          new Serializable[] { contact, true }, 0);
+        consumer.dispatch(DiscoveryMessage.ADVERTISE_CONSUMER, member,
+                          new Serializable[] { group, consumed, owned }, 0);
+    }
+
+    private ConsistentHashFunction<Node> weaverRing() {
+        ConsistentHashFunction<Node> ring = new ConsistentHashFunction<Node>(
+                                                                             configuration().getSkipStrategy(),
+                                                                             configuration().getNumberOfReplicas());
+        ring.add(weaver, weaver.capacity);
+        ring.add(mirror, mirror.capacity);
+        return ring;
+    }
+
+    private List<UUID> movedTo(Node member) {
+        ConsistentHashFunction<Node> ring = new ConsistentHashFunction<Node>(
+                                                                             configuration().getSkipStrategy(),
+                                                                             configuration().getNumberOfReplicas());
+        ring.add(self, self.capacity);
+        ring.add(other, other.capacity);
+        List<UUID> moved = new ArrayList<UUID>();
+        for (UUID channel : channels) {
+            if (member.equals(ring.hash(point(channel)))) {
+                moved.add(channel);
+            }
+        }
+        return moved;
+    }
+}
@@ -274,6 +274,32 @@ public class Producer implements Comparable<Producer> {
         }
     }
 
+    /**
+     * The event batch has not been committed by the primary weaver of its
+     * channel. The batch is not retried, and the sequence number of the
+     * channel is not advanced
+     * 
+     * @param batch
+     *            - the rejected batch
+     */
+    public void nack(Batch batch) {
+        log.error(String.format("pNACK %s,%s,%s", batch.sequenceNumber,
+                                batch.channel, self));
+        free(batch);
+    }
+
+    /**
+     * The event batch has not been committed by the mirror weaver of its
+     * channel, where this node is the mirror event producer for the channel
+     * 
+     * @param nack
+     *            - the identity of the rejected batch
+     */
+    public void nack(BatchIdentity nack) {
+        log.error(String.format("mNACK %s,%s,%s", nack.sequenceNumber,
+                                nack.channel, self));
+    }
+
     public void activate() {
         openPublishingGate();
     }
@@ -1005,15 +1031,25 @@ public class Producer implements Comparable<Producer> {
                                        channelPair[0], channel, channelPair[1],
                                        this));
             }
-            spinner = spinners.get(channelPair[1]);
+            Node successor = channelPair[1];
+            spinner = spinners.get(successor);
+            if (spinner == null) {
+                // the first live additional replica succeeds the primary and mirror
+                List<Node> replicas = weaverRing.hash(point(channel),
+                                                      configuration.getReplicationFactor());
+                for (int i = 2; i < replicas.size() && spinner == null; i++) {
+                    successor = replicas.get(i);
+                    spinner = spinners.get(successor);
+                }
+            }
             if (spinner == null) {
-                log.error(String.format("Mirror %s for channel %s is down on %s",
-                                        channelPair[0], channel, this));
+                log.error(String.format("Replicas of channel %s are down on %s",
+                                        channel, this));
                 return null;
             } else {
                 if (log.isInfoEnabled()) {
-                    log.info(String.format("Mapping channel %s to mirror %s on %s",
-                                           channel, channelPair[1], this));
+                    log.info(String.format("Mapping channel %s to replica %s on %s",
+                                           channel, successor, this));
                 }
                 return channelState.putIfAbsent(channel,
                                                 new PrimaryState(
@@ -46,6 +46,7 @@ public class ProducerConfiguration {
     private double              minimumBandwidth             = 500.0;
     private int                 minimumTokenRegenerationTime = 1;
     private int                 numberOfReplicas             = 200;
+    private int                 replicationFactor            = 2;
     private int                 retryLimit                   = 10;
     private int                 sampleFrequency              = 10;
     private int                 sampleWindowSize             = 1000;
@@ -97,6 +98,13 @@ public class ProducerConfiguration {
         return numberOfReplicas;
     }
 
+    /**
+     * @return the number of weavers replicating a channel
+     */
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
     public int getRetryLimit() {
         return retryLimit;
     }
@@ -201,6 +209,14 @@ public class ProducerConfiguration {
         this.numberOfReplicas = numberOfReplicas;
     }
 
+    /**
+     * @param replicationFactor
+     *            the replicationFactor to set
+     */
+    public void setReplicationFactor(int replicationFactor) {
+        this.replicationFactor = replicationFactor;
+    }
+
     public void setRetryLimit(int resendLimit) {
         retryLimit = resendLimit;
     }
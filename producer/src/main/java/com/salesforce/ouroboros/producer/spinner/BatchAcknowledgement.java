@@ -131,7 +131,11 @@ public class BatchAcknowledgement {
             ackBuffer.flip();
             while (ackBuffer.remaining() >= BatchIdentity.BYTE_SIZE) {
                 BatchIdentity ack = new BatchIdentity(ackBuffer);
-                spinner.acknowledge(ack);
+                if (ack.isNack()) {
+                    spinner.nack(ack.getNacked());
+                } else {
+                    spinner.acknowledge(ack);
+                }
             }
             ackBuffer.compact();
         }
@@ -116,6 +116,22 @@ public class Spinner implements CommunicationsHandler {
         }
     }
 
+    /**
+     * Negatively acknowledge the event batch, which the weaver has not
+     * committed
+     * 
+     * @param nack
+     *            - the identity of the rejected event batch
+     */
+    public void nack(BatchIdentity nack) {
+        Batch batch = pending.remove(nack);
+        if (batch != null) {
+            producer.nack(batch);
+        } else {
+            producer.nack(nack);
+        }
+    }
+
     /**
      * Close the receiver
      */
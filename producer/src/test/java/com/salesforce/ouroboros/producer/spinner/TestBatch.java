@@ -13,6 +13,7 @@ import org.junit.Test;
 
 import com.salesforce.ouroboros.Batch;
 import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.EventChecksum;
 import com.salesforce.ouroboros.Node;
 
 /**
@@ -29,9 +30,10 @@ public class TestBatch {
                 ByteBuffer.wrap(events[0].getBytes()),
                 ByteBuffer.wrap(events[1].getBytes()),
                 ByteBuffer.wrap(events[2].getBytes()) };
-        final int[] crc32 = new int[] { Event.crc32(events[0].getBytes()),
-                Event.crc32(events[1].getBytes()),
-                Event.crc32(events[2].getBytes()) };
+        final int[] crc32 = new int[] {
+                EventChecksum.CRC32C.checksum(events[0].getBytes()),
+                EventChecksum.CRC32C.checksum(events[1].getBytes()),
+                EventChecksum.CRC32C.checksum(events[2].getBytes()) };
         Batch batch = new Batch(new Node(0), UUID.randomUUID(), 0L,
                                 Arrays.asList(payloads));
         ByteBuffer buffer = batch.batch;
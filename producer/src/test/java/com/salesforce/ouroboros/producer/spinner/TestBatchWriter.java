@@ -49,6 +49,7 @@ import com.salesforce.ouroboros.Batch;
 import com.salesforce.ouroboros.BatchHeader;
 import com.salesforce.ouroboros.BatchIdentity;
 import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.EventChecksum;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.producer.spinner.BatchWriterContext.BatchWriterFSM;
 import com.salesforce.ouroboros.testUtils.Util;
@@ -69,9 +70,10 @@ public class TestBatchWriter {
                 ByteBuffer.wrap(events[0].getBytes()),
                 ByteBuffer.wrap(events[1].getBytes()),
                 ByteBuffer.wrap(events[2].getBytes()) };
-        final int[] crc32 = new int[] { Event.crc32(events[0].getBytes()),
-                Event.crc32(events[1].getBytes()),
-                Event.crc32(events[2].getBytes()) };
+        final int[] crc32 = new int[] {
+                EventChecksum.CRC32C.checksum(events[0].getBytes()),
+                EventChecksum.CRC32C.checksum(events[1].getBytes()),
+                EventChecksum.CRC32C.checksum(events[2].getBytes()) };
         long sequenceNumber = System.currentTimeMillis();
         final UUID channel = UUID.randomUUID();
         SocketChannelHandler handler = mock(SocketChannelHandler.class);
@@ -62,6 +62,12 @@ public interface Bundle {
      */
     EventChannel eventChannelFor(UUID channelId);
 
+    /**
+     * @return the store of the cursors of the consumers of the bundle's
+     *         channels
+     */
+    CursorStore getCursorStore();
+
     /**
      * Answer the Acknowledger associated the node
      * 
@@ -75,6 +81,15 @@ public interface Bundle {
      */
     Node getId();
 
+    /**
+     * Answer the Replicator associated with the partner node
+     * 
+     * @param partner
+     * @return the Replicator associated with the partner, or null if no
+     *         replicator has been mapped to the partner
+     */
+    Replicator getReplicator(Node partner);
+
     /**
      * Map the producer node to the acknowledger
      * 
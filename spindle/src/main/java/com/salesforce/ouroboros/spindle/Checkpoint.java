@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import com.salesforce.ouroboros.Event;
+
+/**
+ * The checkpointed state of an event channel. The checkpoint records the next
+ * offset of the channel, as well as the sequence number of the last appended
+ * batch and the committed offset. All the channel's segments up to the next
+ * offset have been forced to storage before the checkpoint is written, thus
+ * recovery need only scan the channel's segments following the checkpointed
+ * offset.
+ * <p>
+ * The checkpoint is written to a temporary file, which then atomically
+ * replaces the previous checkpoint of the channel.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Checkpoint {
+    public static final String  CHECKPOINT_FILE = "checkpoint";
+    private static final int    BYTE_SIZE       = 4 + 8 + 8 + 8 + 4;
+    private static final int    MAGIC           = 0x0CEB;
+    private static final int    CRC_OFFSET      = BYTE_SIZE - 4;
+    private static final String TMP_SUFFIX      = ".tmp";
+
+    /**
+     * Read the checkpoint of the channel
+     * 
+     * @param channel
+     *            - the channel directory
+     * @return the checkpoint, or null if the channel does not have a valid
+     *         checkpoint
+     * @throws IOException
+     */
+    public static Checkpoint read(File channel) throws IOException {
+        File file = new File(channel, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BYTE_SIZE);
+        FileChannel fileChannel = FileChannel.open(file.toPath(), READ);
+        try {
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+        } finally {
+            fileChannel.close();
+        }
+        if (buffer.getInt(0) != MAGIC
+            || buffer.getInt(CRC_OFFSET) != crc32(buffer)) {
+            return null;
+        }
+        return new Checkpoint(buffer.getLong(4), buffer.getLong(12),
+                              buffer.getLong(20));
+    }
+
+    private static int crc32(ByteBuffer buffer) {
+        byte[] bytes = new byte[CRC_OFFSET];
+        for (int i = 0; i < CRC_OFFSET; i++) {
+            bytes[i] = buffer.get(i);
+        }
+        return Event.crc32(bytes);
+    }
+
+    public final long committed;
+    public final long lastTimestamp;
+    public final long nextOffset;
+
+    public Checkpoint(long nextOffset, long lastTimestamp, long committed) {
+        this.nextOffset = nextOffset;
+        this.lastTimestamp = lastTimestamp;
+        this.committed = committed;
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint [nextOffset=" + nextOffset + ", lastTimestamp="
+               + lastTimestamp + ", committed=" + committed + "]";
+    }
+
+    /**
+     * Durably write the checkpoint of the channel
+     * 
+     * @param channel
+     *            - the channel directory
+     * @throws IOException
+     */
+    public void write(File channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BYTE_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putLong(nextOffset);
+        buffer.putLong(lastTimestamp);
+        buffer.putLong(committed);
+        buffer.putInt(crc32(buffer));
+        buffer.flip();
+        File tmp = new File(channel, CHECKPOINT_FILE + TMP_SUFFIX);
+        FileChannel fileChannel = FileChannel.open(tmp.toPath(), CREATE,
+                                                   WRITE, TRUNCATE_EXISTING);
+        try {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            fileChannel.force(true);
+        } finally {
+            fileChannel.close();
+        }
+        Files.move(tmp.toPath(), new File(channel, CHECKPOINT_FILE).toPath(),
+                   ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compactor of the sealed segments of the weaver. Once a segment is no
+ * longer the append target of its channel, its contents never change.
+ * Periodically, the compactor rewrites the sealed, checkpointed segments of
+ * each event channel in the block compressed format of the
+ * {@link CompressedBlocks}. Compressed segments are transparently decompressed
+ * by the segments reading them.
+ * <p>
+ * Segments are compressed in increasing offset order. A pass over a channel
+ * skips the segments compressed by previous passes, and stops at the first
+ * segment which is not yet checkpointed. Each compaction pass compresses at
+ * most the throttle's number of segments, so a backlog of sealed segments is
+ * compressed over successive passes.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Compactor {
+    private static final Logger log = LoggerFactory.getLogger(Compactor.class.getCanonicalName());
+
+    private final int           blockSize;
+    private final int           level;
+    private final int           throttle;
+
+    /**
+     * @param blockSize
+     *            - the uncompressed size of the compressed blocks
+     * @param level
+     *            - the deflater compression level
+     * @param throttle
+     *            - the maximum number of segments compressed in a compaction
+     *            pass
+     */
+    public Compactor(int blockSize, int level, int throttle) {
+        this.blockSize = blockSize;
+        this.level = level;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Perform a compaction pass over the channels
+     * 
+     * @param channels
+     * @return the number of segments compressed
+     */
+    public int compact(Collection<EventChannel> channels) {
+        int budget = throttle;
+        for (EventChannel channel : channels) {
+            if (budget <= 0) {
+                break;
+            }
+            budget -= compact(channel, budget);
+        }
+        return throttle - budget;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Compactor [blockSize=%s, level=%s]", blockSize,
+                             level);
+    }
+
+    /**
+     * Compress the sealed segments of the channel, up to the budget
+     * 
+     * @return the number of segments compressed
+     */
+    private int compact(EventChannel channel, int budget) {
+        // Segment files are sorted in decreasing offset order
+        File[] segments = channel.getSegmentFiles();
+        int compressed = 0;
+        // never compress the current append segment
+        for (int i = segments.length - 1; i > 0 && compressed < budget; i--) {
+            File segment = segments[i];
+            try {
+                if (CompressedBlocks.isCompressed(segment)) {
+                    continue;
+                }
+                if (!channel.compress(segment, blockSize, level)) {
+                    // the newer segments are not yet checkpointed either
+                    break;
+                }
+                compressed++;
+            } catch (IOException e) {
+                log.warn(String.format("Unable to compress segment %s of channel %s",
+                                       segment, channel.getId()), e);
+                break;
+            }
+        }
+        return compressed;
+    }
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The block compressed representation of a sealed segment. The contents of the
+ * segment are divided into fixed size blocks, each of which is independently
+ * compressed. The file consists of a header, the compressed blocks and the
+ * block index, which records the file position of each compressed block:
+ * 
+ * <pre>
+ *   int    magic
+ *   int    block size
+ *   long   uncompressed size
+ *   long   index position
+ *   byte[] compressed blocks...
+ *   long[] block positions, followed by the index position
+ * </pre>
+ * 
+ * The magic is negative, and thus can never be confused with the payload size
+ * of the first event of an uncompressed segment. Reading a range of the segment
+ * only inflates the blocks covering the range.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CompressedBlocks {
+    public static final int   HEADER_SIZE  = 4 + 4 + 8 + 8;
+    public static final int   MAGIC        = 0xCEB0B10C;
+
+    private int               block        = -1;
+    private final ByteBuffer  blockBuffer;
+    private final int         blockSize;
+    private byte[]            compressed   = new byte[0];
+    private final FileChannel fileChannel;
+    private final long[]      index;
+    private final Inflater    inflater     = new Inflater();
+    private final long        size;
+
+    /**
+     * Compress the source segment into the target file
+     * 
+     * @param source
+     *            - the uncompressed segment
+     * @param target
+     *            - the file to receive the compressed segment
+     * @param blockSize
+     *            - the uncompressed size of the blocks
+     * @param level
+     *            - the deflater compression level
+     * @return the size of the compressed segment
+     * @throws IOException
+     */
+    public static long compress(File source, File target, int blockSize,
+                                int level) throws IOException {
+        FileChannel in = FileChannel.open(source.toPath(), READ);
+        try {
+            FileChannel out = FileChannel.open(target.toPath(), CREATE, WRITE,
+                                               TRUNCATE_EXISTING);
+            try {
+                long size = in.size();
+                int blocks = (int) ((size + blockSize - 1) / blockSize);
+                ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+                byte[] deflated = new byte[blockSize + (blockSize >> 3) + 64];
+                ByteBuffer positions = ByteBuffer.allocate((blocks + 1) * 8);
+                long position = HEADER_SIZE;
+                Deflater deflater = new Deflater(level);
+                try {
+                    for (long offset = 0; offset < size; offset += blockSize) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(blockSize, size - offset));
+                        while (buffer.hasRemaining()) {
+                            if (in.read(buffer, offset + buffer.position()) < 0) {
+                                throw new IOException(
+                                                      String.format("Unexpected end of segment %s",
+                                                                    source));
+                            }
+                        }
+                        positions.putLong(position);
+                        deflater.reset();
+                        deflater.setInput(buffer.array(), 0, buffer.limit());
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            int length = deflater.deflate(deflated);
+                            position += write(out,
+                                              ByteBuffer.wrap(deflated, 0,
+                                                              length), position);
+                        }
+                    }
+                } finally {
+                    deflater.end();
+                }
+                positions.putLong(position);
+                positions.flip();
+                long indexPosition = position;
+                position += write(out, positions, position);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(blockSize);
+                header.putLong(size);
+                header.putLong(indexPosition);
+                header.flip();
+                write(out, header, 0);
+                out.force(true);
+                return position;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Answer true if the file channel contains a compressed segment
+     * 
+     * @param fileChannel
+     * @throws IOException
+     */
+    public static boolean isCompressed(FileChannel fileChannel)
+                                                               throws IOException {
+        if (fileChannel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining()) {
+            if (fileChannel.read(magic, magic.position()) < 0) {
+                return false;
+            }
+        }
+        return magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Answer true if the file contains a compressed segment
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), READ);
+        try {
+            return isCompressed(fileChannel);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Answer the uncompressed size of the segment file, which may or may not be
+     * compressed
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public static long sizeOf(File file) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), READ);
+        try {
+            return sizeOf(fileChannel);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Answer the uncompressed size of the segment file channel, which may or
+     * may not be compressed
+     * 
+     * @param fileChannel
+     * @throws IOException
+     */
+    public static long sizeOf(FileChannel fileChannel) throws IOException {
+        if (!isCompressed(fileChannel)) {
+            return fileChannel.size();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (fileChannel.read(header, header.position()) < 0) {
+                throw new IOException("Unexpected end of compressed segment");
+            }
+        }
+        return header.getLong(8);
+    }
+
+    private static int write(FileChannel out, ByteBuffer buffer, long position)
+                                                                               throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * @param fileChannel
+     *            - the file channel of the compressed segment
+     * @throws IOException
+     */
+    public CompressedBlocks(FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a compressed segment");
+        }
+        blockSize = header.getInt();
+        size = header.getLong();
+        long indexPosition = header.getLong();
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        ByteBuffer positions = ByteBuffer.allocate((blocks + 1) * 8);
+        readFully(positions, indexPosition);
+        index = new long[blocks + 1];
+        for (int i = 0; i <= blocks; i++) {
+            index[i] = positions.getLong();
+        }
+        blockBuffer = ByteBuffer.allocate(blockSize);
+    }
+
+    /**
+     * Release the resources of the inflater
+     */
+    public synchronized void end() {
+        inflater.end();
+    }
+
+    /**
+     * Read the uncompressed bytes of the segment, starting at the position,
+     * into the destination
+     * 
+     * @param dst
+     * @param position
+     *            - the uncompressed position
+     * @return the number of bytes read, or -1 if the position is at the end of
+     *         the segment
+     * @throws IOException
+     */
+    public synchronized int read(ByteBuffer dst, long position)
+                                                               throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position + read < size) {
+            ByteBuffer source = blockAt(position + read);
+            if (source.remaining() > dst.remaining()) {
+                source.limit(source.position() + dst.remaining());
+            }
+            read += source.remaining();
+            dst.put(source);
+        }
+        return read;
+    }
+
+    /**
+     * @return the uncompressed size of the segment
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Transfer the uncompressed bytes of the segment, starting at the position,
+     * to the target
+     * 
+     * @param position
+     *            - the uncompressed position
+     * @param count
+     *            - the maximum number of bytes to transfer
+     * @param target
+     * @return the number of bytes transferred
+     * @throws IOException
+     */
+    public synchronized long transferTo(long position, long count,
+                                        WritableByteChannel target)
+                                                                   throws IOException {
+        long end = Math.min(size, position + count);
+        long transferred = 0;
+        while (position + transferred < end) {
+            ByteBuffer source = blockAt(position + transferred);
+            if (source.remaining() > end - position - transferred) {
+                source.limit((int) (source.position() + end - position - transferred));
+            }
+            int expected = source.remaining();
+            int written = target.write(source);
+            transferred += written;
+            if (written < expected) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Answer the uncompressed contents of the block containing the position,
+     * positioned at the position
+     */
+    private ByteBuffer blockAt(long position) throws IOException {
+        int target = (int) (position / blockSize);
+        if (target != block) {
+            inflate(target);
+        }
+        ByteBuffer source = blockBuffer.duplicate();
+        source.position((int) (position - (long) target * blockSize));
+        return source;
+    }
+
+    private void inflate(int target) throws IOException {
+        block = -1;
+        int length = (int) (index[target + 1] - index[target]);
+        if (compressed.length < length) {
+            compressed = new byte[length];
+        }
+        readFully(ByteBuffer.wrap(compressed, 0, length), index[target]);
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        blockBuffer.clear();
+        try {
+            while (!inflater.finished() && blockBuffer.hasRemaining()) {
+                int inflated = inflater.inflate(blockBuffer.array(),
+                                                blockBuffer.position(),
+                                                blockBuffer.remaining());
+                if (inflated == 0
+                    && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException(
+                                          String.format("Truncated block %s of compressed segment",
+                                                        target));
+                }
+                blockBuffer.position(blockBuffer.position() + inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(
+                                  String.format("Corrupt block %s of compressed segment",
+                                                target), e);
+        }
+        blockBuffer.flip();
+        block = target;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(
+                                      "Unexpected end of compressed segment");
+            }
+        }
+        buffer.flip();
+    }
+}
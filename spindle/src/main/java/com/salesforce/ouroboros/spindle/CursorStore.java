@@ -0,0 +1,436 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.salesforce.ouroboros.EventChecksum;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.replication.CursorEntry;
+import com.salesforce.ouroboros.spindle.replication.Replicator;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * The durable store of the cursors of the consumers of the weaver's channels,
+ * keyed by the consumer and the channel.
+ * <p>
+ * Commits of cursors are coalesced in memory, and periodically flushed as a
+ * single batch of records appended to a memory mapped log, followed by a
+ * single force of the log. Thus many consumers committing frequently cost one
+ * sequential write per flush. When the log is full, the live cursors are
+ * compacted into a new log, which atomically replaces the previous log.
+ * <p>
+ * A cursor record is comprised of:
+ * 
+ * <pre>
+ *      16 byte consumer
+ *      16 byte channel
+ *       8 byte offset
+ *       4 byte CRC32C of the preceding bytes
+ * </pre>
+ * 
+ * The flushed records of the channels are replicated as a batch of the
+ * reserved cursor {@link #CHANNEL}. As the mirror and the additional replicas
+ * of a channel serve consumers as well, the primary of the channel relays the
+ * cursors: the cursors committed on the primary, and the cursors applied from
+ * the other weavers of the channel, are replicated to the mirror and to all
+ * the additional replicas of the channel, while the cursors committed on the
+ * other weavers are replicated to the primary. Applied records are never
+ * replicated back to their origin.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CursorStore {
+    private static class Key {
+        final UUID channel;
+        final UUID consumer;
+
+        Key(UUID consumer, UUID channel) {
+            this.consumer = consumer;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return channel.equals(key.channel) && consumer.equals(key.consumer);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * channel.hashCode() + consumer.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%s", consumer, channel);
+        }
+    }
+
+    public static final UUID               CHANNEL           = new UUID(0L, 0x1638L);
+    public static final String             LOG_NAME          = "cursors.log";
+    private static final int               CONSUMER_OFFSET   = 0;
+    private static final int               CHANNEL_OFFSET    = CONSUMER_OFFSET + 16;
+    private static final int               OFFSET_OFFSET     = CHANNEL_OFFSET + 16;
+    private static final int               CRC_OFFSET        = OFFSET_OFFSET + 8;
+    public static final int                RECORD_SIZE       = CRC_OFFSET + 4;
+    private static final String            COMPACTING_SUFFIX = ".compacting";
+    private static final Logger            log               = LoggerFactory.getLogger(CursorStore.class.getCanonicalName());
+
+    // The origins of the cursors last applied from the other weavers
+    private final ConcurrentMap<Key, Node> applied           = new ConcurrentHashMap<Key, Node>();
+    private int                            capacity;
+    private final ConcurrentMap<Key, Long> cursors           = new ConcurrentHashMap<Key, Long>();
+    private final File                     directory;
+    private final ConcurrentMap<Key, Long> dirty             = new ConcurrentHashMap<Key, Long>();
+    private MappedByteBuffer               mapped;
+    private int                            position;
+    private long                           sequenceNumber;
+
+    /**
+     * @param directory
+     *            - the directory of the cursor log
+     * @param capacity
+     *            - the initial byte capacity of the cursor log
+     * @throws IOException
+     */
+    public CursorStore(File directory, int capacity) throws IOException {
+        assert capacity >= RECORD_SIZE : "Capacity must hold a cursor record";
+        this.directory = directory;
+        this.capacity = capacity;
+        directory.mkdirs();
+        recover();
+    }
+
+    /**
+     * Apply the cursor records replicated from another weaver of their
+     * channels
+     * 
+     * @param records
+     *            - the buffer of replicated records, between its position and
+     *            limit
+     * @param origin
+     *            - the weaver which replicated the records
+     */
+    public void apply(ByteBuffer records, Node origin) {
+        for (int i = records.position(); i + RECORD_SIZE <= records.limit(); i += RECORD_SIZE) {
+            if (!isValid(records, i)) {
+                log.warn(String.format("Invalid replicated cursor record at %s in %s",
+                                       i, directory));
+                return;
+            }
+            Key key = keyAt(records, i);
+            long offset = records.getLong(i + OFFSET_OFFSET);
+            applied.put(key, origin);
+            cursors.put(key, offset);
+            dirty.put(key, offset);
+        }
+    }
+
+    /**
+     * Close the store
+     */
+    public synchronized void close() {
+        if (mapped != null) {
+            Utils.unmap(mapped);
+            mapped = null;
+        }
+    }
+
+    /**
+     * Commit the cursor of the consumer of the channel. The cursor is durable
+     * after the next flush of the store.
+     * 
+     * @param consumer
+     * @param channel
+     * @param offset
+     *            - the offset of the next event to be consumed
+     */
+    public void commit(UUID consumer, UUID channel, long offset) {
+        Key key = new Key(consumer, channel);
+        applied.remove(key);
+        cursors.put(key, offset);
+        dirty.put(key, offset);
+    }
+
+    /**
+     * @param consumer
+     * @param channel
+     * @return the committed cursor of the consumer of the channel, or -1 if
+     *         the consumer has not committed a cursor
+     */
+    public long cursorFor(UUID consumer, UUID channel) {
+        Long offset = cursors.get(new Key(consumer, channel));
+        return offset == null ? -1L : offset;
+    }
+
+    /**
+     * Flush the cursors committed since the last flush
+     * 
+     * @return the buffer of the flushed records, or null if no cursors have
+     *         been committed
+     * @throws IOException
+     */
+    public synchronized ByteBuffer flush() throws IOException {
+        if (dirty.isEmpty()) {
+            return null;
+        }
+        ByteBuffer records = ByteBuffer.allocate(dirty.size() * RECORD_SIZE);
+        for (Map.Entry<Key, Long> entry : dirty.entrySet()) {
+            if (!records.hasRemaining()) {
+                break; // committed since the flush began
+            }
+            // a later commit of the cursor remains dirty
+            if (dirty.remove(entry.getKey(), entry.getValue())) {
+                put(records, records.position(), entry.getKey(),
+                    entry.getValue());
+                records.position(records.position() + RECORD_SIZE);
+            }
+        }
+        records.flip();
+        if (position + records.remaining() > capacity) {
+            compact(records.remaining());
+        }
+        mapped.position(position);
+        mapped.put(records);
+        mapped.force();
+        position += records.limit();
+        records.rewind();
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Flushed %s cursors in %s",
+                                    records.limit() / RECORD_SIZE, directory));
+        }
+        return records;
+    }
+
+    /**
+     * @return the byte capacity of the cursor log
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the byte length of the records appended to the cursor log
+     */
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    /**
+     * Replicate the flushed records of the channels. The primary of a channel
+     * replicates the records to the mirror and the additional replicas of the
+     * channel, other than the origin of an applied record; the other weavers
+     * of a channel replicate only the records committed locally, to the
+     * primary.
+     * 
+     * @param records
+     *            - the flushed records
+     * @param bundle
+     */
+    public void replicate(ByteBuffer records, Bundle bundle) {
+        Map<Replicator, ByteBuffer> batches = new HashMap<Replicator, ByteBuffer>();
+        for (int i = records.position(); i + RECORD_SIZE <= records.limit(); i += RECORD_SIZE) {
+            Key key = keyAt(records, i);
+            Node origin = applied.get(key);
+            EventChannel eventChannel = bundle.eventChannelFor(key.channel);
+            List<Replicator> replicators = new ArrayList<Replicator>();
+            if (eventChannel == null) {
+                continue;
+            } else if (eventChannel.isPrimary()) {
+                replicators.add(eventChannel.getReplicator());
+                replicators.addAll(eventChannel.getReplicas());
+            } else if (eventChannel.isMirror()) {
+                if (origin != null) {
+                    continue;
+                }
+                replicators.add(bundle.getReplicator(eventChannel.getPartnerId()));
+            } else {
+                continue;
+            }
+            for (Replicator replicator : replicators) {
+                if (replicator == null
+                    || (origin != null && origin.equals(replicator.getPartner()))) {
+                    continue;
+                }
+                ByteBuffer batch = batches.get(replicator);
+                if (batch == null) {
+                    batch = ByteBuffer.allocate(records.remaining());
+                    batches.put(replicator, batch);
+                }
+                ByteBuffer record = records.duplicate();
+                record.limit(i + RECORD_SIZE);
+                record.position(i);
+                batch.put(record);
+            }
+        }
+        for (Map.Entry<Replicator, ByteBuffer> entry : batches.entrySet()) {
+            ByteBuffer batch = entry.getValue();
+            batch.flip();
+            entry.getKey().replicate(new CursorEntry(batch, nextSequenceNumber()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CursorStore[%s]", directory);
+    }
+
+    /**
+     * Compact the live cursors into a new log, with room for the reserved
+     * bytes
+     * 
+     * @param reserve
+     * @throws IOException
+     */
+    private void compact(int reserve) throws IOException {
+        List<Map.Entry<Key, Long>> live = new ArrayList<Map.Entry<Key, Long>>(
+                                                                              cursors.entrySet());
+        int required = live.size() * RECORD_SIZE + reserve;
+        int newCapacity = capacity;
+        // leave room for the appends following the compaction
+        while (required > newCapacity / 2) {
+            newCapacity *= 2;
+        }
+        File logFile = new File(directory, LOG_NAME);
+        File compacting = new File(directory, LOG_NAME + COMPACTING_SUFFIX);
+        MappedByteBuffer compacted = map(compacting, newCapacity);
+        int compactedPosition = 0;
+        for (Map.Entry<Key, Long> entry : live) {
+            put(compacted, compactedPosition, entry.getKey(), entry.getValue());
+            compactedPosition += RECORD_SIZE;
+        }
+        compacted.force();
+        Files.move(compacting.toPath(), logFile.toPath(), ATOMIC_MOVE);
+        Utils.unmap(mapped);
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Compacted %s bytes of %s cursors in %s",
+                                   position, live.size(), directory));
+        }
+        mapped = compacted;
+        position = compactedPosition;
+        capacity = newCapacity;
+    }
+
+    private boolean isValid(ByteBuffer records, int position) {
+        ByteBuffer record = records.duplicate();
+        record.limit(position + CRC_OFFSET);
+        return EventChecksum.CRC32C.checksum(record, position) == records.getInt(position
+                                                                                  + CRC_OFFSET);
+    }
+
+    private Key keyAt(ByteBuffer records, int position) {
+        return new Key(
+                       new UUID(records.getLong(position + CONSUMER_OFFSET),
+                                records.getLong(position + CONSUMER_OFFSET + 8)),
+                       new UUID(records.getLong(position + CHANNEL_OFFSET),
+                                records.getLong(position + CHANNEL_OFFSET + 8)));
+    }
+
+    private MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private synchronized long nextSequenceNumber() {
+        return sequenceNumber++;
+    }
+
+    private void put(ByteBuffer records, int position, Key key, long offset) {
+        records.putLong(position + CONSUMER_OFFSET,
+                        key.consumer.getMostSignificantBits());
+        records.putLong(position + CONSUMER_OFFSET + 8,
+                        key.consumer.getLeastSignificantBits());
+        records.putLong(position + CHANNEL_OFFSET,
+                        key.channel.getMostSignificantBits());
+        records.putLong(position + CHANNEL_OFFSET + 8,
+                        key.channel.getLeastSignificantBits());
+        records.putLong(position + OFFSET_OFFSET, offset);
+        ByteBuffer record = records.duplicate();
+        record.limit(position + CRC_OFFSET);
+        records.putInt(position + CRC_OFFSET,
+                       EventChecksum.CRC32C.checksum(record, position));
+    }
+
+    /**
+     * Recover the cursors from the log, truncating the log at the first
+     * invalid record
+     */
+    private void recover() throws IOException {
+        File logFile = new File(directory, LOG_NAME);
+        File compacting = new File(directory, LOG_NAME + COMPACTING_SUFFIX);
+        if (compacting.exists()) {
+            // the compaction did not complete, the log remains authoritative
+            compacting.delete();
+        }
+        if (logFile.length() > capacity) {
+            capacity = (int) logFile.length();
+        }
+        mapped = map(logFile, capacity);
+        position = 0;
+        while (position + RECORD_SIZE <= capacity && isValid(mapped, position)) {
+            cursors.put(keyAt(mapped, position),
+                        mapped.getLong(position + OFFSET_OFFSET));
+            position += RECORD_SIZE;
+        }
+        // clear the torn tail, so that stale records are never recovered
+        for (int i = position; i < capacity; i++) {
+            if (mapped.get(i) != 0) {
+                mapped.put(i, (byte) 0);
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Recovered %s cursors from %s", cursors.size(),
+                                   directory));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.salesforce.ouroboros.util.LabeledThreadFactory;
+
+/**
+ * The I/O lane of a root directory of the weaver. Each root has its own
+ * bounded pool of workers, which perform the disk work of the channels
+ * residing on the root, so that a slow disk only stalls the channels on that
+ * disk. The work queue of the lane is bounded; work submitted to a full lane
+ * is rejected and counted, and the submitter decides whether to retry the work
+ * later or to perform it directly.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class DiskLane extends ThreadPoolExecutor {
+    private static class CountingAbortPolicy implements RejectedExecutionHandler {
+        private final AtomicLong rejected = new AtomicLong();
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(
+                                                 String.format("%s is saturated",
+                                                               executor));
+        }
+    }
+
+    private final File root;
+
+    /**
+     * @param root
+     *            - the root directory of the lane
+     * @param threads
+     *            - the number of workers of the lane
+     * @param queueDepth
+     *            - the maximum number of tasks queued on the lane
+     */
+    public DiskLane(File root, int threads, int queueDepth) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<Runnable>(queueDepth),
+              new LabeledThreadFactory(String.format("lane %s",
+                                                     root.getName())),
+              new CountingAbortPolicy());
+        this.root = root;
+    }
+
+    /**
+     * @return the number of tasks waiting in the lane's queue
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks rejected by the lane
+     */
+    public long getRejectedCount() {
+        return ((CountingAbortPolicy) getRejectedExecutionHandler()).rejected.get();
+    }
+
+    /**
+     * @return the root directory of the lane
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DiskLane [root=%s, active=%s, queued=%s, completed=%s, rejected=%s]",
+                             root, getActiveCount(), getQueueDepth(),
+                             getCompletedTaskCount(), getRejectedCount());
+    }
+}
@@ -25,25 +25,61 @@
  */
 package com.salesforce.ouroboros.spindle;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
 import com.salesforce.ouroboros.EventHeader;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.spindle.Segment.Mode;
+import com.salesforce.ouroboros.spindle.flyer.EventSpan;
+import com.salesforce.ouroboros.spindle.flyer.FanOut;
+import com.salesforce.ouroboros.spindle.flyer.Fetcher;
 import com.salesforce.ouroboros.spindle.flyer.Flyer;
+import com.salesforce.ouroboros.spindle.flyer.Replay;
+import com.salesforce.ouroboros.spindle.replication.AckMode;
 import com.salesforce.ouroboros.spindle.replication.EventEntry;
+import com.salesforce.ouroboros.spindle.replication.ReplicaEntry;
 import com.salesforce.ouroboros.spindle.replication.ReplicatedBatchHeader;
 import com.salesforce.ouroboros.spindle.replication.Replicator;
 import com.salesforce.ouroboros.spindle.source.Acknowledger;
@@ -57,6 +93,15 @@ import com.salesforce.ouroboros.spindle.source.Acknowledger;
  * number of that event. The channel is responsible for the logic of maintaining
  * the segments, as well as determining whether events are duplicating events
  * already in the channel.
+ * <p>
+ * When provided with a preallocator, the channel opens the next segment in the
+ * background once the fill of the current segment passes the preallocation
+ * threshold, so that rolling over to the next segment does not incur the cost
+ * of creating the segment file in the middle of an append.
+ * <p>
+ * The segments of an existing channel are reused by recovering the channel,
+ * validating the events appended since the last checkpoint of the channel and
+ * truncating any torn tail of the segments.
  * 
  * @author hhildebrand
  * 
@@ -122,15 +167,17 @@ public class EventChannel {
         }
     }
 
-    public static final String          SEGMENT_SUFFIX = ".segment";
-    private static final Logger         log            = LoggerFactory.getLogger(Weaver.class.getCanonicalName());
-    private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
-                                                           @Override
-                                                           public boolean accept(File dir,
-                                                                                 String name) {
-                                                               return name.endsWith(SEGMENT_SUFFIX);
-                                                           }
-                                                       };
+    public static final String          COMPRESSING_SUFFIX = ".compressing";
+    public static final String          MIGRATING_SUFFIX   = ".migrating";
+    public static final String          SEGMENT_SUFFIX     = ".segment";
+    private static final Logger         log                = LoggerFactory.getLogger(Weaver.class.getCanonicalName());
+    private static final FilenameFilter SEGMENT_FILTER     = new FilenameFilter() {
+                                                               @Override
+                                                               public boolean accept(File dir,
+                                                                                     String name) {
+                                                                   return name.endsWith(SEGMENT_SUFFIX);
+                                                               }
+                                                           };
 
     public static void deleteDirectory(File directory) {
         if (directory == null) {
@@ -155,6 +202,28 @@ public class EventChannel {
 
     }
 
+    /**
+     * Answer the index file name for the segment prefix
+     * 
+     * @param segmentPrefix
+     * @return
+     */
+    public static String indexName(long segmentPrefix) {
+        return Long.toHexString(segmentPrefix).toLowerCase()
+               + SegmentIndex.INDEX_SUFFIX;
+    }
+
+    /**
+     * Answer the time index file name for the segment prefix
+     * 
+     * @param segmentPrefix
+     * @return
+     */
+    public static String timeIndexName(long segmentPrefix) {
+        return Long.toHexString(segmentPrefix).toLowerCase()
+               + TimeIndex.INDEX_SUFFIX;
+    }
+
     /**
      * Answer the logical segment to which the segment belongs
      * 
@@ -192,7 +261,7 @@ public class EventChannel {
      * @return
      */
     public static long prefixFor(long offset, long maxSegmentSize) {
-        return (long) Math.floor(offset / maxSegmentSize) * maxSegmentSize;
+        return offset / maxSegmentSize * maxSegmentSize;
     }
 
     /**
@@ -205,49 +274,115 @@ public class EventChannel {
         return Long.toHexString(segmentPrefix).toLowerCase() + SEGMENT_SUFFIX;
     }
 
-    private final File                         channel;
-    private volatile long                      commited;
-    private boolean                            failedOver = false;
-    private final UUID                         id;
-    private volatile long                      lastTimestamp;
-    private final long                         maxSegmentSize;
-    private volatile long                      nextOffset;
-    private volatile Node                      partner;
-    private volatile Replicator                replicator;
-    private Role                               role;
-    private final ConcurrentMap<File, Segment> appendSegmentCache;
-    private final ConcurrentMap<File, Segment> readSegmentCache;
-    private final Node                         self;
+    private volatile AckMode                        ackMode        = AckMode.WRITTEN;
+    private final Mode                              appendMode;
+    private final File                              channel;
+    private volatile long                           checkpointed   = -1L;
+    private final File                              coldChannel;
+    private volatile long                           commited;
+    private final FanOut                            fanOut         = new FanOut(this);
+    private final Flusher                           flusher;
+    private boolean                                 failedOver     = false;
+    private final UUID                              id;
+    private final ConcurrentMap<Long, SegmentIndex> indexes        = new ConcurrentHashMap<Long, SegmentIndex>();
+    private volatile long                           lastTimestamp;
+    private final long                              maxSegmentSize;
+    private volatile long                           nextOffset;
+    private volatile Node                           partner;
+    private volatile long                           preallocated   = -1L;
+    private final long                              preallocationThreshold;
+    private final Executor                          preallocator;
+    private final Reclaimer                         reclaimer;
+    // The replicators of the additional replicas of the channel on the primary
+    private volatile List<Replicator>               replicas       = Collections.emptyList();
+    private volatile Replicator                     replicator;
+    private Role                                    role;
+    private final ConcurrentMap<File, Segment>      appendSegmentCache;
+    private final ConcurrentMap<File, Segment>      readSegmentCache;
+    private final SegmentTable                      appendSegments = new SegmentTable();
+    private final SegmentTable                      readSegments   = new SegmentTable();
+    private final Object                            segmentLock    = new Object();
+    private final Node                              self;
+    private final ConcurrentMap<Long, TimeIndex>    timeIndexes    = new ConcurrentHashMap<Long, TimeIndex>();
+    private final Queue<Fetcher>                    waiting        = new ConcurrentLinkedQueue<Fetcher>();
 
     public EventChannel(Node self, Role role, Node partnerId,
                         final UUID channelId, final File root,
                         final long maxSegmentSize, final Replicator replicator,
                         ConcurrentMap<File, Segment> appendSegmentCache,
                         ConcurrentMap<File, Segment> readSegmentCache) {
+        this(self, role, partnerId, channelId, root, maxSegmentSize,
+             replicator, appendSegmentCache, readSegmentCache, Mode.APPEND,
+             null, 1.0, null, null, null);
+    }
+
+    /**
+     * @param self
+     *            - the id of this node
+     * @param role
+     *            - the role of the channel on this node
+     * @param partnerId
+     *            - the id of the partner node of the channel
+     * @param channelId
+     *            - the id of the channel
+     * @param root
+     *            - the root directory of the channel
+     * @param maxSegmentSize
+     *            - the maximum size of the channel's segments
+     * @param replicator
+     *            - the replicator of the channel, if any
+     * @param appendSegmentCache
+     * @param readSegmentCache
+     * @param appendMode
+     *            - the mode of the segments appended to
+     * @param preallocator
+     *            - the executor used to preallocate segments, or null if the
+     *            segments are not preallocated
+     * @param preallocationThreshold
+     *            - the fraction of the current segment that must be filled
+     *            before the next segment is preallocated
+     * @param flusher
+     *            - the flusher of the channel's root directory, or null if the
+     *            segments are not explicitly flushed
+     * @param reclaimer
+     *            - the reclaimer of the weaver's storage, or null if the
+     *            channel's directory is synchronously deleted on close
+     * @param coldRoot
+     *            - the root directory of the channel's cold tier, to which
+     *            sealed segments are migrated, or null if the channel is not
+     *            tiered
+     */
+    public EventChannel(Node self, Role role, Node partnerId,
+                        final UUID channelId, final File root,
+                        final long maxSegmentSize, final Replicator replicator,
+                        ConcurrentMap<File, Segment> appendSegmentCache,
+                        ConcurrentMap<File, Segment> readSegmentCache,
+                        Mode appendMode, Executor preallocator,
+                        double preallocationThreshold, Flusher flusher,
+                        Reclaimer reclaimer, File coldRoot) {
         assert self != null : "this node must not be null";
         assert root != null : "Root directory must not be null";
         assert channelId != null : "Channel id must not be null";
+        assert appendMode != Mode.READ : "Append mode must not be READ";
+        assert preallocationThreshold >= 0.0 && preallocationThreshold <= 1.0 : "Preallocation threshold must be between 0 and 1";
 
         this.self = self;
         this.role = role;
         partner = partnerId;
         id = channelId;
         channel = new File(root, channelId.toString().replace('-', '/'));
+        coldChannel = coldRoot == null ? null
+                                      : new File(coldRoot,
+                                                 channelId.toString().replace('-',
+                                                                              '/'));
         this.maxSegmentSize = maxSegmentSize;
+        this.appendMode = appendMode;
+        this.preallocator = preallocator;
+        this.flusher = flusher;
+        this.reclaimer = reclaimer;
+        this.preallocationThreshold = (long) (maxSegmentSize * preallocationThreshold);
 
-        if (channel.exists() && channel.isDirectory()) {
-            log.info(String.format("Clearing channel %s, root directory: %s",
-                                   id, channel));
-            deleteDirectory(channel);
-        } else {
-            channel.mkdirs();
-            if (!channel.exists() && channel.isDirectory()) {
-                String msg = String.format("Unable to create channel directory for channel: %s",
-                                           channel);
-                log.error(msg);
-                throw new IllegalStateException(msg);
-            }
-        }
+        createDirectory();
         this.replicator = replicator;
         this.appendSegmentCache = appendSegmentCache;
         this.readSegmentCache = readSegmentCache;
@@ -270,6 +405,14 @@ public class EventChannel {
                                    batchHeader.getSequenceNumber(), offset, id,
                                    segment.getSegmentName(), self));
         }
+        if (flusher != null) {
+            flusher.dirty(segment, batchHeader.getBatchByteLength());
+        }
+        fanOut.publish(offset, batchHeader.getBatchByteLength(), segment);
+        if (!waiting.isEmpty()) {
+            wake();
+        }
+        preallocate();
     }
 
     /**
@@ -285,27 +428,61 @@ public class EventChannel {
                                                                          throws IOException {
         ReplicatedBatchHeader batchHeader = entry.getHeader();
         append(batchHeader, batchHeader.getOffset(), entry.getSegment());
-        if (replicator == null) {
-            entry.getAcknowledger().acknowledge(batchHeader.getChannel(),
-                                                batchHeader.getSequenceNumber());
+        Replicator mirror = replicator;
+        if (mirror != null) {
+            batchHeader.setAckMode(ackMode);
+        }
+        // the batch is copied to the additional replicas whether or not the
+        // channel is mirrored, before the entry is handed to the mirror
+        for (Replicator replica : replicas) {
+            replica.replicate(new ReplicaEntry(entry));
+        }
+        if (mirror == null) {
+            acknowledge(entry.getAcknowledger(),
+                        batchHeader.getSequenceNumber());
             if (mirrorAcknowledger != null) {
-                mirrorAcknowledger.acknowledge(batchHeader.getChannel(),
-                                               batchHeader.getSequenceNumber());
+                acknowledge(mirrorAcknowledger, batchHeader.getSequenceNumber());
             }
             entry.selectAndFree();
         } else {
-            replicator.replicate(entry);
+            if (ackMode == AckMode.PRIMARY) {
+                entry.acknowledge();
+            }
+            mirror.replicate(entry);
+        }
+    }
+
+    /**
+     * Acknowledge the appended batch, according to the durability policy of the
+     * channel's flusher
+     * 
+     * @param acknowledger
+     * @param sequenceNumber
+     */
+    public void acknowledge(Acknowledger acknowledger, long sequenceNumber) {
+        if (flusher == null) {
+            acknowledger.acknowledge(id, sequenceNumber);
+        } else {
+            flusher.acknowledge(acknowledger, id, sequenceNumber);
         }
     }
 
     public AppendSegment appendSegmentFor(BatchHeader batchHeader)
                                                                   throws IOException {
-        AppendSegmentName logicalSegment = mappedSegmentFor(nextOffset,
-                                                            batchHeader.getBatchByteLength(),
-                                                            maxSegmentSize);
-        File segmentFile = new File(channel, logicalSegment.segment);
-        return getAppendSegment(logicalSegment.offset, logicalSegment.position,
-                                segmentFile);
+        long offset = nextOffset;
+        long homeSegment = prefixFor(offset, maxSegmentSize);
+        long endSegment = prefixFor(offset + batchHeader.getBatchByteLength(),
+                                    maxSegmentSize);
+        if (homeSegment != endSegment) {
+            Segment next = getCachedAppendSegment(endSegment);
+            if (appendMode == Mode.MAPPED) {
+                // release the mapping of the sealed segment
+                seal(new File(channel, segmentName(homeSegment)));
+            }
+            return new AppendSegment(next, endSegment, 0);
+        }
+        return new AppendSegment(getCachedAppendSegment(homeSegment), offset,
+                                 (int) (offset - homeSegment));
     }
 
     /**
@@ -317,9 +494,7 @@ public class EventChannel {
      * @throws IOException
      */
     public Segment appendSegmentFor(long offset) throws IOException {
-        File segment = new File(channel, segmentName(prefixFor(offset,
-                                                               maxSegmentSize)));
-        return getCachedAppendSegment(segment);
+        return getCachedAppendSegment(prefixFor(offset, maxSegmentSize));
     }
 
     /**
@@ -332,9 +507,78 @@ public class EventChannel {
      */
     public AppendSegment appendSegmentFor(long offset, int position)
                                                                     throws IOException {
-        File segment = new File(channel, segmentName(prefixFor(offset,
-                                                               maxSegmentSize)));
-        return getAppendSegment(offset, position, segment);
+        long prefix = prefixFor(offset, maxSegmentSize);
+        Segment segment = getCachedAppendSegment(prefix);
+        if (appendMode == Mode.MAPPED && position == 0 && prefix > 0) {
+            // release the mapping of the sealed segment
+            seal(new File(channel, segmentName(prefix - maxSegmentSize)));
+        }
+        return new AppendSegment(segment, offset, position);
+    }
+
+    /**
+     * Wake the fetcher when the next batch is appended to the channel
+     * 
+     * @param fetcher
+     *            - the fetcher waiting on the events of the channel
+     */
+    public void await(Fetcher fetcher) {
+        waiting.add(fetcher);
+    }
+
+    /**
+     * Checkpoint the channel. The segments appended to since the last
+     * checkpoint are forced, and the tail entries of their indexes persisted,
+     * before the checkpoint is written
+     * 
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        // Read the sequence number before the offset, so that the checkpointed
+        // sequence number never runs ahead of the checkpointed offset
+        long timestamp = lastTimestamp;
+        long committed = commited;
+        long offset = nextOffset;
+        if (offset == checkpointed) {
+            return;
+        }
+        if (offset > 0) {
+            long last = prefixFor(offset - 1, maxSegmentSize);
+            for (long prefix = checkpointed <= 0 ? 0L
+                                                : prefixFor(checkpointed - 1,
+                                                            maxSegmentSize); prefix <= last; prefix += maxSegmentSize) {
+                force(prefix);
+                SegmentIndex index = indexes.get(prefix);
+                if (index != null) {
+                    index.checkpoint();
+                }
+            }
+        }
+        new Checkpoint(offset, timestamp, committed).write(channel);
+        checkpointed = offset;
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Checkpointed channel %s at %s on %s", id,
+                                    offset, self));
+        }
+    }
+
+    /**
+     * Clear the channel, deleting all the existing segments of the channel
+     */
+    public void clear() {
+        log.info(String.format("Clearing channel %s, root directory: %s", id,
+                               channel));
+        closeSegments();
+        deleteDirectory(channel);
+        if (coldChannel != null && coldChannel.exists()) {
+            deleteDirectory(coldChannel);
+        }
+        createDirectory();
+        nextOffset = 0L;
+        fanOut.clear();
+        lastTimestamp = 0L;
+        commited = 0L;
+        checkpointed = -1L;
     }
 
     /**
@@ -343,29 +587,114 @@ public class EventChannel {
     public void close(Node producerId) {
         log.info(String.format("Closing channel %s on %s, root directory: %s",
                                id, producerId, channel));
-        for (Segment segment : appendSegmentCache.values()) {
+        closeSegments();
+        delete(channel);
+        if (coldChannel != null && coldChannel.exists()) {
+            delete(coldChannel);
+        }
+    }
+
+    /**
+     * Compress the sealed segment, replacing the segment file with its block
+     * compressed representation. Only segments which have been completely
+     * checkpointed are compressed; the segment's readers are evicted from the
+     * segment caches, and subsequently reopen the compressed segment.
+     * 
+     * @param segmentFile
+     *            - the sealed segment
+     * @param blockSize
+     *            - the uncompressed size of the compressed blocks
+     * @param level
+     *            - the deflater compression level
+     * @return true if the segment was compressed, false if the segment is not
+     *         yet eligible for compression
+     * @throws IOException
+     */
+    public boolean compress(File segmentFile, int blockSize, int level)
+                                                                       throws IOException {
+        long prefix = prefixOf(segmentFile);
+        long durable = checkpointed;
+        if (durable < 0 || prefix >= prefixFor(durable, maxSegmentSize)) {
+            return false;
+        }
+        seal(segmentFile);
+        long lastModified = segmentFile.lastModified();
+        long size = segmentFile.length();
+        File compressed = new File(segmentFile.getParentFile(),
+                                   segmentFile.getName()
+                                            + COMPRESSING_SUFFIX);
+        long compressedSize = CompressedBlocks.compress(segmentFile,
+                                                        compressed, blockSize,
+                                                        level);
+        Files.move(compressed.toPath(), segmentFile.toPath(), ATOMIC_MOVE,
+                   REPLACE_EXISTING);
+        segmentFile.setLastModified(lastModified);
+        evict(segmentFile);
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Compressed segment %s from %s to %s bytes on %s",
+                                   segmentFile, size, compressedSize, self));
+        }
+        return true;
+    }
+
+    private void closeSegments() {
+        closeSegments(appendSegments, appendSegmentCache);
+        closeSegments(readSegments, readSegmentCache);
+        closeIndexes();
+    }
+
+    /**
+     * Close the channel's segments in the table, removing them from the
+     * weaver's segment cache
+     */
+    private void closeSegments(SegmentTable table,
+                               ConcurrentMap<File, Segment> cache) {
+        for (Segment segment : table.clear()) {
+            cache.remove(segment.getFile(), segment);
             try {
                 segment.close();
             } catch (IOException e) {
                 log.trace(String.format("Error closing %s", segment));
             }
         }
-        appendSegmentCache.clear();
+    }
 
-        for (Segment segment : readSegmentCache.values()) {
+    private void closeIndex(long prefix) {
+        SegmentIndex index = indexes.remove(prefix);
+        if (index != null) {
             try {
-                segment.close();
+                index.close();
             } catch (IOException e) {
-                log.trace(String.format("Error closing %s", segment));
+                log.trace(String.format("Error closing %s", index));
+            }
+        }
+        TimeIndex timeIndex = timeIndexes.remove(prefix);
+        if (timeIndex != null) {
+            try {
+                timeIndex.close();
+            } catch (IOException e) {
+                log.trace(String.format("Error closing %s", timeIndex));
             }
         }
-        readSegmentCache.clear();
+    }
 
-        deleteDirectory(channel);
-        if (log.isTraceEnabled()) {
-            log.trace(String.format("Deleted channel root directory: %s",
-                                    channel));
+    private void closeIndexes() {
+        for (SegmentIndex index : indexes.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.trace(String.format("Error closing %s", index));
+            }
         }
+        indexes.clear();
+        for (TimeIndex timeIndex : timeIndexes.values()) {
+            try {
+                timeIndex.close();
+            } catch (IOException e) {
+                log.trace(String.format("Error closing %s", timeIndex));
+            }
+        }
+        timeIndexes.clear();
     }
 
     /**
@@ -402,37 +731,137 @@ public class EventChannel {
         return new EventSegment(
                                 EventHeader.translateToPayload(eventId
                                                                - homeSegment),
-                                getCachedReadSegment(new File(
-                                                              channel,
-                                                              segmentName(homeSegment))));
+                                readSegmentFor(homeSegment));
+    }
+
+    /**
+     * Answer the span of the events at the offset, up to the maximum bytes.
+     * The span does not extend past the events of the offset's segment. An
+     * offset preceding the retained segments of the channel is advanced to the
+     * first retained event of the channel.
+     * 
+     * @param offset
+     *            - the offset of the first event of the span
+     * @param maxBytes
+     *            - the maximum byte length of the span
+     * @return the span of the events at the offset, or null if no events have
+     *         been appended at the offset
+     * @throws IOException
+     */
+    public EventSpan fetch(long offset, int maxBytes) throws IOException {
+        return fetch(offset, nextOffset, maxBytes);
+    }
+
+    /**
+     * Answer the span of the events at the offset, up to the maximum bytes,
+     * preceding the end offset
+     * 
+     * @param offset
+     *            - the offset of the first event of the span
+     * @param end
+     *            - the offset following the last event the span may include
+     * @param maxBytes
+     *            - the maximum byte length of the span
+     * @return the span of the events at the offset, or null if there are no
+     *         events between the offset and the end
+     * @throws IOException
+     */
+    public EventSpan fetch(long offset, long end, int maxBytes)
+                                                               throws IOException {
+        while (offset < end) {
+            long prefix = prefixFor(offset, maxSegmentSize);
+            Segment segment;
+            try {
+                segment = readSegmentFor(prefix);
+            } catch (FileNotFoundException e) {
+                File[] segmentFiles = getSegmentFiles();
+                if (segmentFiles.length == 0
+                    || prefixOf(segmentFiles[segmentFiles.length - 1]) <= offset) {
+                    throw e;
+                }
+                // the segment has been reclaimed
+                offset = prefixOf(segmentFiles[segmentFiles.length - 1]);
+                continue;
+            }
+            long limit = Math.min(end, prefix + segment.size());
+            if (offset < limit) {
+                return new EventSpan(segment, offset,
+                                     Math.min(limit, offset + maxBytes) - 1);
+            }
+            offset = prefix + maxSegmentSize;
+        }
+        return null;
     }
 
+    /**
+     * The mirror of the channel has failed. The first live additional replica
+     * of the channel is promoted to the mirror of the channel, if any
+     */
     public void failMirror() {
-        replicator = null;
+        promoteReplica();
+    }
+
+    /**
+     * Remove the replicators of the dead additional replicas of the channel
+     * 
+     * @param deadMembers
+     */
+    public void failReplicas(Collection<Node> deadMembers) {
+        List<Replicator> live = new ArrayList<Replicator>(replicas);
+        for (Replicator replica : replicas) {
+            if (deadMembers.contains(replica.getPartner())) {
+                live.remove(replica);
+            }
+        }
+        if (live.size() != replicas.size()) {
+            replicas = Collections.unmodifiableList(live);
+        }
     }
 
+    /**
+     * The primary of the channel has failed, and the receiver assumes the
+     * primary role. The first of the additional replicas of the channel is
+     * promoted to the mirror of the channel, if any
+     */
     public void failOver() {
         failedOver = true;
         role = Role.PRIMARY;
-        replicator = null;
+        promoteReplica();
     }
 
     public Segment getCachedReadSegment(File segment) throws IOException {
-        Segment newSegment = new Segment(this, segment, Mode.READ);
-        Segment currentSegment = readSegmentCache.putIfAbsent(segment,
-                                                              newSegment);
-        if (currentSegment == null) {
-            currentSegment = newSegment;
-        } else {
-            newSegment.close();
-        }
-        return currentSegment;
+        return readSegmentFor(prefixOf(segment));
+    }
+
+    /**
+     * @return the mode in which the batches appended to the channel are
+     *         acknowledged, when the channel is replicated
+     */
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    /**
+     * @return the flusher of the channel, or null if the channel's segments are
+     *         not explicitly flushed
+     */
+    public Flusher getFlusher() {
+        return flusher;
     }
 
     public UUID getId() {
         return id;
     }
 
+    /**
+     * @return the offset following the last event appended to the channel. On
+     *         the mirror of the channel, this is the high-water mark of the
+     *         replicated events, which bounds the events served by the mirror
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
     public Node[] getOriginalMapping(Node self) {
         switch (role) {
             case PRIMARY: {
@@ -453,6 +882,22 @@ public class EventChannel {
         return partner;
     }
 
+    /**
+     * @return the replicator of the channel, or null if the channel is not
+     *         replicated
+     */
+    public Replicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * @return the replicators of the additional replicas of the channel, beyond
+     *         the mirror, on the primary of the channel
+     */
+    public List<Replicator> getReplicas() {
+        return replicas;
+    }
+
     public Role getRole() {
         return role;
     }
@@ -497,6 +942,82 @@ public class EventChannel {
         return batchHeader.getSequenceNumber() < lastTimestamp;
     }
 
+    /**
+     * Index the appended batch in the segment's offset index, and in the
+     * segment's time index at the current time
+     * 
+     * @param batchHeader
+     *            - the header of the appended batch
+     * @param offset
+     *            - the logical offset of the batch in the channel
+     * @param segment
+     *            - the segment the batch was appended to
+     * @throws IOException
+     */
+    public void index(BatchHeader batchHeader, long offset, Segment segment)
+                                                                            throws IOException {
+        index(batchHeader, offset, segment, System.currentTimeMillis());
+    }
+
+    /**
+     * Index the appended batch in the segment's offset and time indexes
+     * 
+     * @param batchHeader
+     *            - the header of the appended batch
+     * @param offset
+     *            - the logical offset of the batch in the channel
+     * @param segment
+     *            - the segment the batch was appended to
+     * @param time
+     *            - the time the batch was received, in milliseconds since the
+     *            epoch
+     * @throws IOException
+     */
+    public void index(BatchHeader batchHeader, long offset, Segment segment,
+                      long time) throws IOException {
+        long prefix = segment.getPrefix();
+        getIndex(prefix).record(offset, batchHeader.getSequenceNumber(),
+                                (int) (offset - prefix));
+        getTimeIndex(prefix).record(time, offset);
+    }
+
+    /**
+     * Answer the closest indexed batch at or preceding the offset. If no batch
+     * of the offset's segment has been indexed, the start of the segment is
+     * answered
+     * 
+     * @param offset
+     *            - the logical offset in the channel
+     * @return the index entry from which to scan for the offset
+     * @throws IOException
+     */
+    public SegmentIndex.Entry indexFor(long offset) throws IOException {
+        long prefix = prefixFor(offset, maxSegmentSize);
+        SegmentIndex.Entry entry = getIndex(prefix).floorOffset(offset);
+        return entry == null ? new SegmentIndex.Entry(prefix, -1L, 0) : entry;
+    }
+
+    /**
+     * Answer the closest indexed batch at or preceding the sequence number
+     * 
+     * @param sequenceNumber
+     *            - the sequence number of the batch
+     * @return the index entry from which to scan for the batch, or null if the
+     *         sequence number precedes all indexed batches of the channel
+     * @throws IOException
+     */
+    public SegmentIndex.Entry indexForSequenceNumber(long sequenceNumber)
+                                                                        throws IOException {
+        // Segment files are sorted in decreasing offset order
+        for (File segmentFile : getSegmentFiles()) {
+            SegmentIndex.Entry entry = getIndex(prefixOf(segmentFile)).floorSequenceNumber(sequenceNumber);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
     public boolean isMirror() {
         return role == Role.MIRROR;
     }
@@ -505,10 +1026,356 @@ public class EventChannel {
         return role == Role.PRIMARY;
     }
 
-    public void rebalanceAsMirror() {
+    /**
+     * Migrate the sealed segment, along with its index, to the cold tier of the
+     * channel. The segment is copied to the cold tier before it is removed from
+     * the hot tier, so that the segment is resolvable in one of the tiers
+     * throughout the migration. Only segments which have been completely
+     * checkpointed are migrated.
+     * 
+     * @param segmentFile
+     *            - the sealed segment
+     * @return true if the segment was migrated, false if the channel is not
+     *         tiered, or the segment has already been migrated or is not yet
+     *         eligible for migration
+     * @throws IOException
+     */
+    public boolean migrate(File segmentFile) throws IOException {
+        if (coldChannel == null || !channel.equals(segmentFile.getParentFile())) {
+            return false;
+        }
+        long prefix = prefixOf(segmentFile);
+        long durable = checkpointed;
+        if (durable < 0 || prefix >= prefixFor(durable, maxSegmentSize)) {
+            return false;
+        }
+        if (!coldChannel.isDirectory() && !coldChannel.mkdirs()) {
+            throw new IOException(
+                                  String.format("Unable to create cold channel directory %s",
+                                                coldChannel));
+        }
+        seal(segmentFile);
+        File indexFile = new File(channel, indexName(prefix));
+        if (indexFile.exists()) {
+            copyTo(indexFile, coldChannel);
+        }
+        File timeIndexFile = new File(channel, timeIndexName(prefix));
+        if (timeIndexFile.exists()) {
+            copyTo(timeIndexFile, coldChannel);
+        }
+        copyTo(segmentFile, coldChannel);
+        evict(segmentFile);
+        closeIndex(prefix);
+        if (!segmentFile.delete()) {
+            log.warn(String.format("Unable to delete migrated segment %s",
+                                   segmentFile));
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            log.warn(String.format("Unable to delete migrated index %s",
+                                   indexFile));
+        }
+        if (timeIndexFile.exists() && !timeIndexFile.delete()) {
+            log.warn(String.format("Unable to delete migrated index %s",
+                                   timeIndexFile));
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Migrated segment %s to %s on %s",
+                                   segmentFile, coldChannel, self));
+        }
+        return true;
+    }
+
+    /**
+     * Answer the offset from which to read the events of the channel received
+     * at or after the time. The batches of the channel received at or after
+     * the time follow the answered offset, which precedes the first such batch
+     * by at most the interval of the time indexes of the channel.
+     * 
+     * @param time
+     *            - the time in milliseconds since the epoch
+     * @return the offset of the closest indexed batch received before the
+     *         time, or the offset of the first retained event of the channel
+     *         if no retained batch was received before the time
+     * @throws IOException
+     */
+    public long offsetFor(long time) throws IOException {
+        File[] segmentFiles = getSegmentFiles();
+        if (segmentFiles.length == 0) {
+            return nextOffset;
+        }
+        long tail = prefixFor(nextOffset, maxSegmentSize);
+        // Segment files are sorted in decreasing offset order, and the indexed
+        // times increase with the offsets of the segments. Search for the
+        // newest segment with a batch received before the time
+        TimeIndex.Entry found = null;
+        int low = 0;
+        int high = segmentFiles.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long prefix = prefixOf(segmentFiles[mid]);
+            TimeIndex index = lookupTimeIndex(prefix, tail);
+            try {
+                TimeIndex.Entry first = index == null ? null : index.first();
+                if (first != null && first.time < time) {
+                    found = index.lower(time);
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            } finally {
+                releaseTimeIndex(prefix, index);
+            }
+        }
+        return found == null ? prefixOf(segmentFiles[segmentFiles.length - 1])
+                            : found.offset;
+    }
+
+    /**
+     * Recover the state of the channel from the existing segments of the
+     * channel. The segments following the last checkpoint of the channel are
+     * scanned in parallel, validating the events within the segment. Any torn
+     * or corrupt tail of a segment is truncated. The newest segment with valid
+     * events determines the next offset of the channel; any newer segment
+     * without valid events, such as a preallocated segment, is deleted.
+     * 
+     * @param executor
+     *            - the executor used to scan the segments
+     * @throws IOException
+     */
+    public void recover(ExecutorService executor) throws IOException {
+        final Checkpoint checkpoint = Checkpoint.read(channel);
+        long checkpointPrefix = checkpoint == null ? -1L
+                                                  : prefixFor(checkpoint.nextOffset,
+                                                              maxSegmentSize);
+        List<File> scanned = new ArrayList<File>();
+        List<Future<Long>> scans = new ArrayList<Future<Long>>();
+        File sealed = null;
+        // Segment files are sorted in decreasing offset order
+        for (final File segmentFile : getSegmentFiles()) {
+            final long prefix = prefixOf(segmentFile);
+            if (segmentFile.length() == 0) {
+                // Preallocated, never appended
+                deleteEmpty(segmentFile);
+                continue;
+            }
+            if (prefix < checkpointPrefix) {
+                sealed = segmentFile;
+                break;
+            }
+            final long start = prefix == checkpointPrefix ? checkpoint.nextOffset
+                                                            - prefix : 0L;
+            Callable<Long> scan = new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return recover(segmentFile, prefix, start);
+                }
+            };
+            FutureTask<Long> task = new FutureTask<Long>(scan);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run(); // executor is saturated, scan the segment here
+            }
+            scanned.add(segmentFile);
+            scans.add(task);
+        }
+        File last = null;
+        long size = 0L;
+        for (int i = 0; i < scans.size(); i++) {
+            long valid;
+            try {
+                valid = scans.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(
+                                      String.format("Interrupted recovering channel %s",
+                                                    id), e);
+            } catch (ExecutionException e) {
+                throw new IOException(
+                                      String.format("Unable to recover channel %s",
+                                                    id), e.getCause());
+            }
+            if (last != null) {
+                continue;
+            }
+            if (valid > 0) {
+                last = scanned.get(i);
+                size = valid;
+            } else {
+                // The zero filled segment of a mapped channel, never appended
+                deleteEmpty(scanned.get(i));
+            }
+        }
+        if (last == null && sealed != null) {
+            last = sealed;
+            size = CompressedBlocks.sizeOf(sealed);
+        }
+
+        long timestamp = checkpoint == null ? 0L : checkpoint.lastTimestamp;
+        long offset = 0L;
+        if (last != null) {
+            long prefix = prefixOf(last);
+            offset = prefix + size;
+            SegmentIndex.Entry entry = getIndex(prefix).floorOffset(Long.MAX_VALUE);
+            if (entry != null) {
+                timestamp = Math.max(timestamp, entry.sequenceNumber);
+            }
+        }
+        nextOffset = offset;
+        lastTimestamp = timestamp;
+        commited = checkpoint == null ? 0L : Math.min(checkpoint.committed,
+                                                      offset);
+        checkpointed = checkpoint == null ? -1L : checkpoint.nextOffset;
+        log.info(String.format("Recovered channel %s, next offset: %s, last timestamp: %s, scanned segments: %s on %s",
+                               id, nextOffset, lastTimestamp, scans.size(),
+                               self));
+    }
+
+    /**
+     * Answer true if the segment may be reclaimed. Only the segments which lie
+     * entirely below the checkpointed offset of the channel, and below the
+     * committed offset if the channel is replicated, are reclaimable; the
+     * current append segment, the preallocated next segment and the segments
+     * of batches in flight to the mirror are retained.
+     * 
+     * @param segmentFile
+     *            - the segment file
+     */
+    public boolean isReclaimable(File segmentFile) {
+        long durable = checkpointed;
+        if (replicator != null) {
+            durable = Math.min(durable, commited);
+        }
+        return durable > 0
+               && prefixOf(segmentFile) < prefixFor(durable, maxSegmentSize);
+    }
+
+    /**
+     * Reclaim the segment, evicting the segment from the segment caches and
+     * deleting the segment's files
+     * 
+     * @param segmentFile
+     *            - the file of the reclaimed segment
+     * @return true if the segment was reclaimed, false if the segment is not
+     *         reclaimable
+     */
+    public boolean reclaim(File segmentFile) {
+        if (!isReclaimable(segmentFile)) {
+            return false;
+        }
+        evict(segmentFile);
+        long prefix = prefixOf(segmentFile);
+        closeIndex(prefix);
+        if (!segmentFile.delete()) {
+            log.warn(String.format("Unable to delete segment %s", segmentFile));
+        }
+        File indexFile = new File(segmentFile.getParentFile(),
+                                  indexName(prefix));
+        if (indexFile.exists() && !indexFile.delete()) {
+            log.warn(String.format("Unable to delete index %s", indexFile));
+        }
+        File timeIndexFile = new File(segmentFile.getParentFile(),
+                                      timeIndexName(prefix));
+        if (timeIndexFile.exists() && !timeIndexFile.delete()) {
+            log.warn(String.format("Unable to delete index %s", timeIndexFile));
+        }
+        return true;
+    }
+
+    /**
+     * Answer the segment for reading the segment with the prefix. The segment
+     * file is only opened if the channel does not already have the segment
+     * open for reading
+     * 
+     * @param prefix
+     *            - the segment prefix
+     * @return the segment for reading
+     * @throws IOException
+     */
+    public Segment readSegmentFor(long prefix) throws IOException {
+        if (appendMode == Mode.MAPPED) {
+            // Share the mapping of the segment with the readers
+            Segment appendSegment = appendSegments.get(prefix);
+            if (appendSegment != null) {
+                return appendSegment;
+            }
+        }
+        Segment currentSegment = readSegments.get(prefix);
+        if (currentSegment != null) {
+            return currentSegment;
+        }
+        File segment = fileFor(segmentName(prefix));
+        synchronized (readSegments) {
+            currentSegment = readSegments.get(prefix);
+            if (currentSegment == null) {
+                currentSegment = readSegmentCache.get(segment);
+                if (currentSegment == null || !currentSegment.isOpen()) {
+                    currentSegment = new Segment(this, segment, Mode.READ);
+                    readSegmentCache.put(segment, currentSegment);
+                }
+                readSegments.put(currentSegment);
+            }
+        }
+        return currentSegment;
+    }
+
+    /**
+     * Answer the segment for reading the events appended to the append segment
+     * 
+     * @param appendSegment
+     * @return the segment for reading
+     * @throws IOException
+     */
+    public Segment readSegmentFor(Segment appendSegment) throws IOException {
+        return readSegmentFor(appendSegment.getPrefix());
+    }
+
+    /**
+     * Answer the replay of the sealed segments of the channel, starting with
+     * the segment of the offset
+     * 
+     * @param offset
+     *            - the offset of the first event replayed
+     * @param readAhead
+     *            - the number of segments prefetched ahead of the replayed
+     *            segment
+     * @param prefetcher
+     *            - the executor prefetching the segments
+     * @return the replay of the sealed segments, or null if the offset does not
+     *         lie in a sealed segment of the channel
+     */
+    public Replay replay(long offset, int readAhead, ExecutorService prefetcher) {
+        long tail = prefixFor(nextOffset, maxSegmentSize);
+        if (offset < 0 || offset >= tail) {
+            return null;
+        }
+        Deque<File> files = new LinkedList<File>();
+        // the segment files are sorted in decreasing offset order
+        for (File segmentFile : getSegmentFiles()) {
+            long prefix = prefixOf(segmentFile);
+            if (prefix >= tail || prefix + maxSegmentSize <= offset) {
+                continue;
+            }
+            if (appendMode == Mode.MAPPED && appendSegments.get(prefix) != null) {
+                // the replay ends before the segments still mapped for append
+                files.clear();
+                continue;
+            }
+            files.push(segmentFile);
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        return new Replay(this, files, readAhead, prefetcher);
+    }
+
+    public void rebalanceAsMirror(Node primary) {
+        assert primary != null;
+        partner = primary;
         failedOver = false;
         role = Role.MIRROR;
         replicator = null;
+        replicas = Collections.emptyList();
     }
 
     public void rebalanceAsPrimary(Node partner, Replicator replicator,
@@ -522,44 +1389,478 @@ public class EventChannel {
         this.replicator = replicator;
     }
 
-    private AppendSegment getAppendSegment(long offset, int position,
-                                           File segment) throws IOException {
-        return new AppendSegment(getCachedAppendSegment(segment), offset,
-                                 position);
+    /**
+     * @param ackMode
+     *            - the mode in which the batches appended to the channel are
+     *            acknowledged, when the channel is replicated
+     */
+    public void setAckMode(AckMode ackMode) {
+        this.ackMode = ackMode;
+    }
+
+    /**
+     * @param replicas
+     *            - the replicators of the additional replicas of the channel,
+     *            beyond the mirror, to which the primary copies the appended
+     *            batches
+     */
+    public void setReplicas(List<Replicator> replicas) {
+        this.replicas = Collections.unmodifiableList(new ArrayList<Replicator>(
+                                                                               replicas));
+    }
+
+    /**
+     * Shut down the channel, retaining the segments of the channel for
+     * subsequent recovery
+     */
+    public void shutdown() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            log.warn(String.format("Unable to checkpoint channel %s on %s", id,
+                                   self), e);
+        }
+        closeSegments();
     }
 
-    private Segment getCachedAppendSegment(File segment) throws IOException {
-        Segment newSegment = new Segment(this, segment, Mode.APPEND);
-        Segment currentSegment = appendSegmentCache.putIfAbsent(segment,
-                                                                newSegment);
-        if (currentSegment == null) {
-            currentSegment = newSegment;
+    /**
+     * Subscribe the flyer to the events of the channel. The flyer is delivered
+     * the spans of the events following the last event, up to the end of the
+     * channel, and is subsequently delivered the span of each batch appended
+     * to the channel, shared with the other flyers at the tail of the channel.
+     * 
+     * @param flyer
+     *            - the subscribing flyer
+     * @param lastEventId
+     *            - the offset of the last event received by the flyer, or -1
+     *            if the flyer is to receive all the events of the channel
+     * @throws IOException
+     */
+    public void subscribe(Flyer flyer, long lastEventId) throws IOException {
+        long next;
+        if (lastEventId < 0) {
+            File[] segmentFiles = getSegmentFiles();
+            next = segmentFiles.length == 0 ? 0L
+                                           : prefixOf(segmentFiles[segmentFiles.length - 1]);
         } else {
-            newSegment.close();
+            EventSegment eventSegment = eventSegmentFor(lastEventId);
+            ByteBuffer size = ByteBuffer.allocate(4);
+            eventSegment.segment.read(size, eventSegment.offset
+                                            - EventHeader.HEADER_BYTE_SIZE);
+            next = EventHeader.translateToPayload(lastEventId) + size.getInt(0);
+        }
+        fanOut.subscribe(flyer, next);
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Subscribed %s to %s at %s on %s", flyer,
+                                   id, next, self));
+        }
+    }
+
+    /**
+     * Stop waking the fetcher when batches are appended to the channel
+     * 
+     * @param fetcher
+     *            - the fetcher no longer waiting on the events of the channel
+     */
+    public void unawait(Fetcher fetcher) {
+        waiting.remove(fetcher);
+    }
+
+    /**
+     * Unsubscribe the flyer from the events of the channel
+     * 
+     * @param flyer
+     */
+    public void unsubscribe(Flyer flyer) {
+        fanOut.unsubscribe(flyer);
+    }
+
+    /**
+     * Durably copy the file into the directory. The copy is written under a
+     * temporary name and atomically renamed, so that a partial copy is never
+     * visible
+     */
+    private void copyTo(File file, File directory) throws IOException {
+        File copy = new File(directory, file.getName() + MIGRATING_SUFFIX);
+        Files.copy(file.toPath(), copy.toPath(), REPLACE_EXISTING,
+                   COPY_ATTRIBUTES);
+        Segment.force(copy);
+        Files.move(copy.toPath(), new File(directory, file.getName()).toPath(),
+                   ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private void createDirectory() {
+        channel.mkdirs();
+        if (!channel.isDirectory()) {
+            String msg = String.format("Unable to create channel directory for channel: %s",
+                                       channel);
+            log.error(msg);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    /**
+     * Force the segment file
+     */
+    private void force(long prefix) throws IOException {
+        Segment segment = appendSegments.get(prefix);
+        if (segment != null) {
+            try {
+                segment.force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                // evicted from the cache
+            }
+        }
+        File segmentFile = new File(channel, segmentName(prefix));
+        if (segmentFile.exists()) {
+            Segment.force(segmentFile);
+        }
+    }
+
+    private Segment getCachedAppendSegment(long prefix) throws IOException {
+        Segment currentSegment = appendSegments.get(prefix);
+        if (currentSegment != null) {
+            return currentSegment;
+        }
+        File segment = new File(channel, segmentName(prefix));
+        // Serialize the creation of segments with the preallocator, as closing
+        // a redundant mapped segment would truncate the file out from under the
+        // winning mapping
+        synchronized (segmentLock) {
+            currentSegment = appendSegments.get(prefix);
+            if (currentSegment == null) {
+                currentSegment = appendSegmentCache.get(segment);
+                if (currentSegment == null || !currentSegment.isOpen()) {
+                    currentSegment = new Segment(this, segment, appendMode,
+                                                 maxSegmentSize);
+                    appendSegmentCache.put(segment, currentSegment);
+                }
+                appendSegments.put(currentSegment);
+            }
         }
         return currentSegment;
     }
 
-    private File[] getSegmentFiles() {
-        File[] segmentFiles = channel.listFiles(SEGMENT_FILTER);
-        if (segmentFiles == null) {
-            return new File[0];
+    /**
+     * Answer the time index of the segment for a lookup. The time index of a
+     * sealed segment which is not already open is opened read only for the
+     * lookup alone, rather than cached, and is closed when the index is
+     * released
+     * 
+     * @return the time index, or null if the sealed segment has no time index
+     */
+    private TimeIndex lookupTimeIndex(long prefix, long tail)
+                                                             throws IOException {
+        TimeIndex index = timeIndexes.get(prefix);
+        if (index != null || prefix >= tail) {
+            return getTimeIndex(prefix);
         }
-        Arrays.sort(segmentFiles, new Comparator<File>() {
-            @Override
-            public int compare(File o1, File o2) {
-                return o2.getName().compareTo(o1.getName());
+        return TimeIndex.read(fileFor(timeIndexName(prefix)),
+                              TimeIndex.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Release the time index of the segment used for a lookup, closing the
+     * index if it is not cached
+     */
+    private void releaseTimeIndex(long prefix, TimeIndex index) {
+        if (index == null || timeIndexes.get(prefix) == index) {
+            return;
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+            log.trace(String.format("Error closing %s", index));
+        }
+    }
+
+    /**
+     * Answer the file with the name in the channel, resolving the file in the
+     * hot tier before the cold tier
+     */
+    private File fileFor(String name) {
+        File file = new File(channel, name);
+        if (coldChannel != null && !file.exists()) {
+            File coldFile = new File(coldChannel, name);
+            if (coldFile.exists()) {
+                return coldFile;
             }
-        });
-        return segmentFiles;
+        }
+        return file;
+    }
+
+    private SegmentIndex getIndex(long prefix) throws IOException {
+        SegmentIndex index = indexes.get(prefix);
+        if (index != null) {
+            return index;
+        }
+        SegmentIndex newIndex = new SegmentIndex(fileFor(indexName(prefix)),
+                                                 SegmentIndex.DEFAULT_INTERVAL);
+        index = indexes.putIfAbsent(prefix, newIndex);
+        if (index == null) {
+            index = newIndex;
+        } else {
+            newIndex.close();
+        }
+        return index;
+    }
+
+    private TimeIndex getTimeIndex(long prefix) throws IOException {
+        TimeIndex index = timeIndexes.get(prefix);
+        if (index != null) {
+            return index;
+        }
+        TimeIndex newIndex = new TimeIndex(fileFor(timeIndexName(prefix)),
+                                           TimeIndex.DEFAULT_INTERVAL);
+        index = timeIndexes.putIfAbsent(prefix, newIndex);
+        if (index == null) {
+            index = newIndex;
+        } else {
+            newIndex.close();
+        }
+        return index;
     }
 
     /**
-     * @param flyer
-     * @param lastEventId
+     * Promote the first of the additional replicas of the channel to the mirror
+     * of the channel, leaving the channel unmirrored if there are no
+     * additional replicas
+     */
+    private void promoteReplica() {
+        List<Replicator> current = replicas;
+        if (current.isEmpty()) {
+            replicator = null;
+            return;
+        }
+        Replicator promoted = current.get(0);
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Promoting replica %s to mirror of %s on %s",
+                                   promoted.getPartner(), id, self));
+        }
+        partner = promoted.getPartner();
+        replicas = Collections.unmodifiableList(new ArrayList<Replicator>(
+                                                                          current.subList(1,
+                                                                                          current.size())));
+        replicator = promoted;
+    }
+
+    /**
+     * Preallocate the segment following the current append segment, if the
+     * current segment has been filled past the preallocation threshold
      */
-    public void subscribe(Flyer flyer, long lastEventId) {
-        // TODO Auto-generated method stub
+    private void preallocate() {
+        if (preallocator == null) {
+            return;
+        }
+        long prefix = prefixFor(nextOffset, maxSegmentSize);
+        final long next = prefix + maxSegmentSize;
+        if (next == preallocated
+            || nextOffset - prefix < preallocationThreshold) {
+            return;
+        }
+        preallocated = next;
+        try {
+            preallocator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!channel.isDirectory()) {
+                        return; // channel has been closed
+                    }
+                    try {
+                        Segment segment = getCachedAppendSegment(next);
+                        if (log.isTraceEnabled()) {
+                            log.trace(String.format("Preallocated segment %s on %s",
+                                                    segment, self));
+                        }
+                    } catch (IOException e) {
+                        log.warn(String.format("Unable to preallocate segment %s on %s",
+                                               segmentName(next), self), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            preallocated = -1L; // retry on a later append
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Preallocation of segment %s on %s rejected",
+                                        segmentName(next), self));
+            }
+        }
+    }
 
+    /**
+     * Recover the segment, validating the events appended to the segment
+     * following the start position and truncating the segment at the first
+     * invalid event
+     * 
+     * @return the recovered length of the segment
+     */
+    private long recover(File segmentFile, long prefix, long start)
+                                                                   throws IOException {
+        long valid;
+        FileChannel fileChannel = FileChannel.open(segmentFile.toPath(), READ,
+                                                   WRITE);
+        try {
+            if (CompressedBlocks.isCompressed(fileChannel)) {
+                // Compressed segments are sealed and checkpointed
+                return CompressedBlocks.sizeOf(fileChannel);
+            }
+            long size = fileChannel.size();
+            valid = Math.min(start, size)
+                    + scan(fileChannel.map(MapMode.READ_ONLY,
+                                           Math.min(start, size),
+                                           size - Math.min(start, size)));
+            if (valid < size) {
+                log.warn(String.format("Truncating segment %s from %s to %s bytes on %s",
+                                       segmentFile, size, valid, self));
+                fileChannel.truncate(valid);
+                fileChannel.force(true);
+            }
+        } finally {
+            fileChannel.close();
+        }
+        getIndex(prefix).truncate((int) valid);
+        getTimeIndex(prefix).truncate(prefix + valid);
+        return valid;
+    }
+
+    /**
+     * Answer the number of bytes of valid events in the buffer
+     */
+    private int scan(MappedByteBuffer buffer) {
+        int valid = 0;
+        while (buffer.remaining() >= EventHeader.HEADER_BYTE_SIZE) {
+            int size = buffer.getInt(buffer.position());
+            if (size < 0
+                || size > buffer.remaining() - EventHeader.HEADER_BYTE_SIZE) {
+                break;
+            }
+            Event event = Event.readFrom(buffer);
+            if (size == 0 && event.getMagic() == 0 && event.getCrc32() == 0) {
+                // zero filled tail of a mapped segment
+                break;
+            }
+            if (!event.validate()) {
+                break;
+            }
+            valid = buffer.position();
+        }
+        return valid;
+    }
+
+    /**
+     * Close the append segment of the sealed segment, if the segment is still
+     * open for appending. The file of a mapped segment retains the zero filled
+     * tail of the mapped region until the segment is closed, which truncates
+     * the file to the logical size of the segment.
+     */
+    private void seal(File segmentFile) throws IOException {
+        Segment segment = appendSegments.remove(prefixOf(segmentFile));
+        if (segment != null) {
+            segment.close();
+        }
+        Segment cached = appendSegmentCache.remove(segmentFile);
+        if (cached != null && cached != segment) {
+            cached.close();
+        }
+    }
+
+    /**
+     * Delete the empty segment and the segment's indexes
+     */
+    private void deleteEmpty(File segmentFile) {
+        long prefix = prefixOf(segmentFile);
+        closeIndex(prefix);
+        if (!segmentFile.delete()) {
+            log.warn(String.format("Cannot delete empty segment %s",
+                                   segmentFile));
+        }
+        new File(segmentFile.getParentFile(), indexName(prefix)).delete();
+        new File(segmentFile.getParentFile(), timeIndexName(prefix)).delete();
+    }
+
+    /**
+     * Delete the directory, asynchronously if the channel has a reclaimer
+     */
+    private void delete(File directory) {
+        if (reclaimer == null) {
+            deleteDirectory(directory);
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Deleted channel root directory: %s",
+                                        directory));
+            }
+        } else {
+            reclaimer.delete(directory);
+        }
+    }
+
+    /**
+     * Evict the segment from the segment caches, closing the cached segments
+     */
+    private void evict(File segmentFile) {
+        long prefix = prefixOf(segmentFile);
+        appendSegments.remove(prefix);
+        readSegments.remove(prefix);
+        for (ConcurrentMap<File, Segment> cache : Arrays.asList(appendSegmentCache,
+                                                                readSegmentCache)) {
+            Segment segment = cache.remove(segmentFile);
+            if (segment != null) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    log.trace(String.format("Error closing %s", segment));
+                }
+            }
+        }
+    }
+
+    private long prefixOf(File segmentFile) {
+        String name = segmentFile.getName();
+        return Long.parseLong(name.substring(0, name.length()
+                                                - SEGMENT_SUFFIX.length()), 16);
+    }
+
+    /**
+     * Wake the fetchers waiting on the events of the channel
+     */
+    private void wake() {
+        Fetcher fetcher;
+        while ((fetcher = waiting.poll()) != null) {
+            fetcher.appended(this);
+        }
+    }
+
+    /**
+     * @return the segment files of the channel, sorted in decreasing offset
+     *         order
+     */
+    File[] getSegmentFiles() {
+        Map<String, File> segmentFiles = new HashMap<String, File>();
+        if (coldChannel != null) {
+            File[] coldFiles = coldChannel.listFiles(SEGMENT_FILTER);
+            if (coldFiles != null) {
+                for (File segmentFile : coldFiles) {
+                    segmentFiles.put(segmentFile.getName(), segmentFile);
+                }
+            }
+        }
+        // Segments in the hot tier take precedence over a migrating copy
+        File[] hotFiles = channel.listFiles(SEGMENT_FILTER);
+        if (hotFiles != null) {
+            for (File segmentFile : hotFiles) {
+                segmentFiles.put(segmentFile.getName(), segmentFile);
+            }
+        }
+        File[] sorted = segmentFiles.values().toArray(new File[segmentFiles.size()]);
+        // Segment names are unpadded hex, so sort on the parsed prefix
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long p1 = prefixOf(o1);
+                long p2 = prefixOf(o2);
+                return p1 < p2 ? 1 : p1 == p2 ? 0 : -1;
+            }
+        });
+        return sorted;
     }
 }
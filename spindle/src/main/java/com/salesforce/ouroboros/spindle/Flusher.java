@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.salesforce.ouroboros.spindle.source.Acknowledger;
+
+/**
+ * The group committer of the segments stored in a root directory of the
+ * weaver. The flusher forces all the dirty segments of the root together, so
+ * that many appended batches share the cost of a single force of the
+ * underlying storage.
+ * <p>
+ * The flusher operates according to its policy:
+ * <ul>
+ * <li>NONE - segments are never explicitly forced</li>
+ * <li>INTERVAL - dirty segments are forced every interval</li>
+ * <li>BYTES - dirty segments are forced once the number of bytes appended
+ * since the last force reaches the threshold</li>
+ * <li>BEFORE_ACK - acknowledgements of appended batches are held until the
+ * dirty segments have been forced, and then released as a group</li>
+ * </ul>
+ * <p>
+ * The flusher thread is never interrupted, as an interrupt during the force
+ * of a segment closes the segment's file channel, which is shared by all the
+ * appenders and readers of the segment. The thread is stopped by waking it
+ * from its wait for the next flush.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Flusher {
+
+    public static enum Policy {
+        BEFORE_ACK, BYTES, INTERVAL, NONE;
+    }
+
+    private static class PendingAcknowledgement {
+        final Acknowledger acknowledger;
+        final UUID         channel;
+        final long         sequenceNumber;
+
+        PendingAcknowledgement(Acknowledger acknowledger, UUID channel,
+                               long sequenceNumber) {
+            this.acknowledger = acknowledger;
+            this.channel = channel;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    private static final Logger                         log        = LoggerFactory.getLogger(Flusher.class.getCanonicalName());
+    // Wakes the flusher thread of the BEFORE_ACK policy when terminated
+    private static final PendingAcknowledgement         POISON     = new PendingAcknowledgement(
+                                                                                                null,
+                                                                                                null,
+                                                                                                -1L);
+
+    private final Set<Segment>                          dirty      = Collections.newSetFromMap(new ConcurrentHashMap<Segment, Boolean>());
+    private final AtomicLong                            dirtyBytes = new AtomicLong();
+    private final Thread                                flusher;
+    private final long                                  interval;
+    private final BlockingQueue<PendingAcknowledgement> pending    = new LinkedBlockingQueue<PendingAcknowledgement>();
+    private final Policy                                policy;
+    private final File                                  root;
+    private final AtomicBoolean                         run        = new AtomicBoolean();
+    private final long                                  threshold;
+    private final Semaphore                             wakeup     = new Semaphore(0);
+
+    /**
+     * @param root
+     *            - the root directory of the flushed segments
+     * @param policy
+     *            - the flushing policy
+     * @param interval
+     *            - the flushing interval, used by the INTERVAL policy
+     * @param unit
+     *            - the unit of the flushing interval
+     * @param threshold
+     *            - the number of dirty bytes which trigger a flush, used by
+     *            the BYTES policy
+     */
+    public Flusher(File root, Policy policy, long interval, TimeUnit unit,
+                   long threshold) {
+        this.root = root;
+        this.policy = policy;
+        this.interval = unit.toMillis(interval);
+        this.threshold = threshold;
+        flusher = new Thread(flushAction(),
+                             String.format("Flusher[%s]", root));
+        flusher.setDaemon(true);
+    }
+
+    /**
+     * Acknowledge the appended batch. If the policy is BEFORE_ACK, the
+     * acknowledgement is deferred until the batch has been forced
+     * 
+     * @param acknowledger
+     * @param channel
+     * @param sequenceNumber
+     */
+    public void acknowledge(Acknowledger acknowledger, UUID channel,
+                            long sequenceNumber) {
+        if (policy != Policy.BEFORE_ACK || !run.get()) {
+            acknowledger.acknowledge(channel, sequenceNumber);
+            return;
+        }
+        PendingAcknowledgement ack = new PendingAcknowledgement(acknowledger,
+                                                                channel,
+                                                                sequenceNumber);
+        pending.add(ack);
+        if (!run.get() && pending.remove(ack)) {
+            // terminated after the acknowledgements were released
+            acknowledger.acknowledge(channel, sequenceNumber);
+        }
+    }
+
+    /**
+     * Note the append of bytes to the segment
+     * 
+     * @param segment
+     * @param bytes
+     */
+    public void dirty(Segment segment, long bytes) {
+        if (policy == Policy.NONE) {
+            return;
+        }
+        dirty.add(segment);
+        if (dirtyBytes.addAndGet(bytes) >= threshold
+            && policy == Policy.BYTES) {
+            wakeup.release();
+        }
+    }
+
+    /**
+     * Force all the dirty segments
+     * 
+     * @return true if all the dirty segments have been forced
+     */
+    public boolean flush() {
+        dirtyBytes.set(0);
+        boolean forced = true;
+        for (Segment segment : dirty) {
+            dirty.remove(segment);
+            try {
+                force(segment);
+            } catch (IOException e) {
+                log.error(String.format("Unable to force %s", segment), e);
+                forced = false;
+            }
+        }
+        return forced;
+    }
+
+    /**
+     * @return the policy
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the root directory of the flushed segments
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    public void start() {
+        if (policy != Policy.NONE && run.compareAndSet(false, true)) {
+            flusher.start();
+        }
+    }
+
+    /**
+     * Terminate the flusher, waiting for the flusher thread to complete its
+     * current flush, and then force the remaining dirty segments and release
+     * the remaining acknowledgements
+     */
+    public void terminate() {
+        if (run.compareAndSet(true, false)) {
+            wakeup.release();
+            pending.add(POISON);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<PendingAcknowledgement> group = new ArrayList<PendingAcknowledgement>();
+            pending.drainTo(group);
+            releaseAcknowledgements(group, flush());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Flusher [%s, %s]", root, policy);
+    }
+
+    private void awaitFlush(List<PendingAcknowledgement> group)
+                                                               throws InterruptedException {
+        switch (policy) {
+            case INTERVAL: {
+                wakeup.tryAcquire(interval, TimeUnit.MILLISECONDS);
+                break;
+            }
+            case BYTES: {
+                wakeup.acquire();
+                wakeup.drainPermits();
+                break;
+            }
+            case BEFORE_ACK: {
+                // wait for the first acknowledgement of the group
+                group.add(pending.take());
+                break;
+            }
+            default:
+                throw new IllegalStateException(
+                                                String.format("Invalid policy: %s",
+                                                              policy));
+        }
+    }
+
+    private Runnable flushAction() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                List<PendingAcknowledgement> group = new ArrayList<PendingAcknowledgement>();
+                while (run.get()) {
+                    try {
+                        awaitFlush(group);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!run.get()) {
+                        // the remaining acknowledgements are released on termination
+                        pending.addAll(group);
+                        return;
+                    }
+                    // Acknowledgements arriving after this point join the next group
+                    pending.drainTo(group);
+                    releaseAcknowledgements(group, flush());
+                }
+            }
+        };
+    }
+
+    /**
+     * Force the segment. If the segment has been closed, i.e. evicted from the
+     * segment cache, the segment file is reopened in order to force it
+     * 
+     * @param segment
+     * @throws IOException
+     */
+    private void force(Segment segment) throws IOException {
+        try {
+            segment.force(false);
+        } catch (ClosedChannelException e) {
+            Segment.force(segment.getFile());
+        }
+    }
+
+    /**
+     * Release the group of acknowledgements. If the dirty segments could not
+     * be forced, the batches of the group are negatively acknowledged, rather
+     * than leaving their producers waiting for acknowledgements which never
+     * arrive
+     * 
+     * @param group
+     * @param forced
+     */
+    private void releaseAcknowledgements(List<PendingAcknowledgement> group,
+                                         boolean forced) {
+        group.remove(POISON);
+        if (!forced && !group.isEmpty()) {
+            log.error(String.format("Rejecting %s acknowledgements of unforced batches in %s",
+                                    group.size(), root));
+        }
+        for (PendingAcknowledgement ack : group) {
+            if (forced) {
+                ack.acknowledger.acknowledge(ack.channel, ack.sequenceNumber);
+            } else {
+                ack.acknowledger.nack(ack.channel, ack.sequenceNumber);
+            }
+        }
+        group.clear();
+    }
+}
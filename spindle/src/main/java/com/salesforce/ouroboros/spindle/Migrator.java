@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The migrator of the cold segments of the weaver. Appends are served by the
+ * hot tier of the weaver's roots, while the sealed segments older than the
+ * migration age are periodically moved to the cold tier - a slower, larger
+ * root. Segments are resolved in either tier by their channel.
+ * <p>
+ * Segments are migrated in increasing offset order, and the current append
+ * segment of a channel is never migrated. Each migration pass moves at most the
+ * throttle's number of segments, so that the copying of large segments is
+ * spread over time.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Migrator {
+    private static final Logger log = LoggerFactory.getLogger(Migrator.class.getCanonicalName());
+
+    private final long          age;
+    private final int           throttle;
+
+    /**
+     * @param age
+     *            - the age after which sealed segments are migrated
+     * @param unit
+     *            - the unit of the age
+     * @param throttle
+     *            - the maximum number of segments migrated in a migration pass
+     */
+    public Migrator(long age, TimeUnit unit, int throttle) {
+        this.age = unit.toMillis(age);
+        this.throttle = throttle;
+    }
+
+    /**
+     * Perform a migration pass over the channels
+     * 
+     * @param channels
+     * @return the number of segments migrated
+     */
+    public int migrate(Collection<EventChannel> channels) {
+        int budget = throttle;
+        long now = System.currentTimeMillis();
+        for (EventChannel channel : channels) {
+            if (budget <= 0) {
+                break;
+            }
+            budget -= migrate(channel, now, budget);
+        }
+        return throttle - budget;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Migrator [age=%s]", age);
+    }
+
+    /**
+     * Migrate the cold segments of the channel, up to the budget
+     * 
+     * @return the number of segments migrated
+     */
+    private int migrate(EventChannel channel, long now, int budget) {
+        // Segment files are sorted in decreasing offset order
+        File[] segments = channel.getSegmentFiles();
+        int migrated = 0;
+        // never migrate the current append segment
+        for (int i = segments.length - 1; i > 0 && migrated < budget; i--) {
+            File segment = segments[i];
+            if (now - segment.lastModified() < age) {
+                break;
+            }
+            try {
+                if (channel.migrate(segment)) {
+                    migrated++;
+                }
+            } catch (IOException e) {
+                log.warn(String.format("Unable to migrate segment %s of channel %s",
+                                       segment, channel.getId()), e);
+                break;
+            }
+        }
+        return migrated;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The reclaimer of the storage of the weaver. Periodically, the reclaimer
+ * applies the retention limits to each event channel, reclaiming the oldest
+ * segments of the channel which exceed the maximum age, the maximum number of
+ * bytes or the maximum number of segments of the channel. Only the segments
+ * below the checkpointed offset of a channel are reclaimed, so that the current
+ * append segment and the preallocated next segment of a channel are never
+ * reclaimed.
+ * <p>
+ * The reclaimer also asynchronously deletes the directories of closed
+ * channels, which are renamed to tombstones in order to free up the channel's
+ * directory immediately.
+ * <p>
+ * Each reclamation pass unlinks at most the throttle's number of files, so
+ * that large deletions are spread over time rather than stalling the storage.
+ * A limit of 0 disables the corresponding retention check.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Reclaimer {
+    public static final String  TOMBSTONE_SUFFIX = ".reclaim";
+    private static final Logger log              = LoggerFactory.getLogger(Reclaimer.class.getCanonicalName());
+
+    private final long          maxAge;
+    private final long          maxBytes;
+    private final int           maxSegments;
+    private final int           throttle;
+    private final Deque<File>   tombstones       = new LinkedBlockingDeque<File>();
+
+    /**
+     * @param maxAge
+     *            - the maximum age of a segment
+     * @param unit
+     *            - the unit of the maximum age
+     * @param maxBytes
+     *            - the maximum number of bytes retained by a channel
+     * @param maxSegments
+     *            - the maximum number of segments retained by a channel
+     * @param throttle
+     *            - the maximum number of files unlinked in a reclamation pass
+     */
+    public Reclaimer(long maxAge, TimeUnit unit, long maxBytes,
+                     int maxSegments, int throttle) {
+        this.maxAge = unit.toMillis(maxAge);
+        this.maxBytes = maxBytes;
+        this.maxSegments = maxSegments;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Schedule the deletion of the directory. The directory is renamed to a
+     * tombstone and is deleted by subsequent reclamation passes
+     * 
+     * @param directory
+     */
+    public void delete(File directory) {
+        File tombstone = new File(directory.getParentFile(),
+                                  String.format("%s.%s%s", directory.getName(),
+                                                System.nanoTime(),
+                                                TOMBSTONE_SUFFIX));
+        if (directory.renameTo(tombstone)) {
+            tombstones.add(tombstone);
+        } else {
+            log.warn(String.format("Unable to rename %s to %s", directory,
+                                   tombstone));
+            tombstones.add(directory);
+        }
+    }
+
+    /**
+     * Perform a reclamation pass over the channels
+     * 
+     * @param channels
+     * @return the number of files unlinked
+     */
+    public int reclaim(Collection<EventChannel> channels) {
+        int budget = deleteTombstones(throttle);
+        long now = System.currentTimeMillis();
+        for (EventChannel channel : channels) {
+            if (budget <= 0) {
+                break;
+            }
+            budget -= reclaim(channel, now, budget);
+        }
+        return throttle - budget;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Reclaimer [maxAge=%s, maxBytes=%s, maxSegments=%s]",
+                             maxAge, maxBytes, maxSegments);
+    }
+
+    /**
+     * Delete the files of the queued tombstones, up to the budget
+     * 
+     * @return the remaining budget
+     */
+    private int deleteTombstones(int budget) {
+        while (budget > 0 && !tombstones.isEmpty()) {
+            File directory = tombstones.peek();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (budget <= 0) {
+                        return budget;
+                    }
+                    if (file.isDirectory()) {
+                        tombstones.push(file);
+                        return deleteTombstones(budget);
+                    }
+                    if (!file.delete()) {
+                        log.warn(String.format("Unable to delete %s", file));
+                    }
+                    budget--;
+                }
+            }
+            tombstones.remove(directory);
+            if (!directory.delete()) {
+                log.warn(String.format("Unable to delete %s", directory));
+            }
+        }
+        return budget;
+    }
+
+    private boolean expired(File segment, long now, long bytes, int segments) {
+        return (maxSegments > 0 && segments > maxSegments)
+               || (maxBytes > 0 && bytes > maxBytes)
+               || (maxAge > 0 && now - segment.lastModified() > maxAge);
+    }
+
+    /**
+     * Reclaim the oldest segments of the channel which exceed the retention
+     * limits, up to the budget
+     * 
+     * @return the number of segments reclaimed
+     */
+    private int reclaim(EventChannel channel, long now, int budget) {
+        // Segment files are sorted in decreasing offset order
+        File[] segments = channel.getSegmentFiles();
+        long bytes = 0;
+        for (File segment : segments) {
+            bytes += segment.length();
+        }
+        int count = segments.length;
+        int reclaimed = 0;
+        // never reclaim the newest segment
+        for (int i = segments.length - 1; i > 0 && reclaimed < budget; i--) {
+            File segment = segments[i];
+            if (!expired(segment, now, bytes, count)) {
+                break;
+            }
+            long length = segment.length();
+            if (!channel.reclaim(segment)) {
+                // the segment is not yet checkpointed, nor the newer segments
+                break;
+            }
+            bytes -= length;
+            count--;
+            reclaimed++;
+        }
+        if (reclaimed > 0 && log.isInfoEnabled()) {
+            log.info(String.format("Reclaimed %s segments of channel %s",
+                                   reclaimed, channel.getId()));
+        }
+        return reclaimed;
+    }
+}
@@ -36,6 +36,7 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
@@ -44,6 +45,11 @@ import java.nio.channels.InterruptibleChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.salesforce.ouroboros.util.MappedBufferCache;
+import com.salesforce.ouroboros.util.Utils;
 
 /**
  * Segments are the ultimate repository of events, corresponding to files within
@@ -53,6 +59,19 @@ import java.nio.channels.WritableByteChannel;
  * will close the file channel's handle, which isn't good. Thus, this class is
  * really nothing more than a huge delegator to the FileChannel member, keeping
  * around the random access file so it won't be GC'd.
+ * <p>
+ * Segments opened in the MAPPED mode keep a read/write mapping of the segment
+ * file, allowing appenders to read inbound batches directly into the mapped
+ * window. As the mapping extends the underlying file, mapped segments track
+ * their logical size separately and truncate the file to this size on close.
+ * Appending through the mapped window, or forcing the mapped region, requires
+ * a use of the segment: the region is only unmapped once the segment has been
+ * closed and the last use of the segment has been released, as access to an
+ * unmapped region crashes the VM.
+ * <p>
+ * Segments opened in the READ mode transparently decompress sealed segments
+ * which have been rewritten in the block compressed format; the positions and
+ * size of such a segment are those of the uncompressed contents.
  * 
  * @author hhildebrand
  * 
@@ -61,25 +80,129 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
         GatheringByteChannel, ScatteringByteChannel, Cloneable {
 
     public static enum Mode {
-        APPEND, READ;
+        APPEND, MAPPED, READ;
+    }
+
+    public static final int PREFETCH_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Force the segment file to storage, independent of any open segment
+     * 
+     * @param file
+     *            - the segment file
+     * @throws IOException
+     */
+    public static void force(File file) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), READ);
+        try {
+            fileChannel.force(false);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Prefetch the contents of the segment file into the page cache, by reading
+     * the file sequentially, independent of any open segment
+     * 
+     * @param file
+     *            - the segment file
+     * @return the number of bytes prefetched
+     * @throws IOException
+     */
+    public static long prefetch(File file) throws IOException {
+        MappedBufferCache bufferCache = Utils.BUFFER_CACHE.get();
+        MappedByteBuffer buffer = bufferCache.get(PREFETCH_BUFFER_SIZE);
+        FileChannel fileChannel = FileChannel.open(file.toPath(), READ);
+        try {
+            long prefetched = 0;
+            int read;
+            while ((read = fileChannel.read(buffer)) >= 0) {
+                prefetched += read;
+                buffer.clear();
+            }
+            return prefetched;
+        } finally {
+            fileChannel.close();
+            bufferCache.recycle(buffer);
+        }
+    }
+
+    private static long prefixOf(File file) {
+        String name = file.getName();
+        int index = name.indexOf(EventChannel.SEGMENT_SUFFIX);
+        if (index <= 0) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(0, index), 16);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
     }
 
-    private final EventChannel channel;
-    private final File         file;
-    private final FileChannel  fileChannel;
+    // The compressed blocks of a compressed segment
+    private final CompressedBlocks blocks;
+    private final EventChannel     channel;
+    private final AtomicBoolean    closed = new AtomicBoolean();
+    private final File             file;
+    private final FileChannel      fileChannel;
+    // The logical size of a mapped segment
+    private volatile long          limit;
+    private final MappedByteBuffer mapped;
+    // The prefix parsed from the segment file name, or -1 if the name is not
+    // that of a segment
+    private final long             prefix;
+    // The uncompressed read position of a compressed segment
+    private long                   readPosition;
+    // The uses of the segment, including the use of the segment's owner,
+    // which is released when the segment is closed
+    private final AtomicInteger    users  = new AtomicInteger(1);
 
     public Segment(EventChannel channel, File file, Mode mode)
                                                               throws IOException {
+        this(channel, file, mode, 0L);
+    }
+
+    /**
+     * @param channel
+     *            - the event channel of the segment
+     * @param file
+     *            - the segment file
+     * @param mode
+     *            - the mode of the segment
+     * @param mappedSize
+     *            - the size of the mapped window, if the mode is MAPPED
+     * @throws IOException
+     */
+    public Segment(EventChannel channel, File file, Mode mode, long mappedSize)
+                                                                               throws IOException {
         this.file = file;
         this.channel = channel;
+        prefix = prefixOf(file);
         switch (mode) {
             case APPEND: {
                 fileChannel = FileChannel.open(file.toPath(), CREATE, WRITE,
                                                APPEND);
+                mapped = null;
+                blocks = null;
+                break;
+            }
+            case MAPPED: {
+                fileChannel = FileChannel.open(file.toPath(), CREATE, READ,
+                                               WRITE);
+                limit = fileChannel.size();
+                mapped = fileChannel.map(MapMode.READ_WRITE, 0,
+                                         Math.max(mappedSize, limit));
+                blocks = null;
                 break;
             }
             case READ: {
                 fileChannel = FileChannel.open(file.toPath(), READ);
+                mapped = null;
+                blocks = CompressedBlocks.isCompressed(fileChannel) ? new CompressedBlocks(
+                                                                                           fileChannel)
+                                                                   : null;
                 break;
             }
             default: {
@@ -91,12 +214,72 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
     }
 
     /**
+     * Acquire a use of the segment, which defers the release of the segment's
+     * file and mapped region until the use is released
+     * 
+     * @return true if the use was acquired, false if the segment has been
+     *         closed
+     */
+    public boolean acquire() {
+        while (!closed.get()) {
+            int current = users.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (users.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Acquire a use of the segment for reading. If the segment has been closed,
+     * i.e. evicted from the segment cache or sealed, a use of the channel's
+     * reopened read segment of the same prefix is acquired instead
+     * 
+     * @return the segment whose use has been acquired, which must be released
+     *         by the reader
+     * @throws IOException
+     *             - if the segment cannot be reopened
+     */
+    public Segment acquireForRead() throws IOException {
+        Segment segment = this;
+        while (!segment.acquire()) {
+            Segment reopened = channel.readSegmentFor(prefix);
+            if (reopened == segment) {
+                throw new ClosedChannelException();
+            }
+            segment = reopened;
+        }
+        return segment;
+    }
+
+    /**
+     * Close the segment. The segment's file and mapped region are released
+     * once the outstanding uses of the segment have been released
+     * 
      * @throws IOException
      * @see java.nio.channels.spi.AbstractInterruptibleChannel#close()
      */
     @Override
     public final void close() throws IOException {
-        fileChannel.close();
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Note that the bytes up to the position have been appended to the mapped
+     * segment
+     * 
+     * @param position
+     *            - the position of the byte following the appended bytes
+     */
+    public void appended(long position) {
+        if (position > limit) {
+            limit = position;
+        }
     }
 
     /**
@@ -113,12 +296,24 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
     }
 
     /**
+     * Force the segment, including any mapped region, to storage
+     * 
      * @param paramBoolean
      * @throws IOException
      * @see java.nio.channels.FileChannel#force(boolean)
      */
     public void force(boolean paramBoolean) throws IOException {
-        fileChannel.force(paramBoolean);
+        if (!acquire()) {
+            throw new ClosedChannelException();
+        }
+        try {
+            if (mapped != null) {
+                mapped.force();
+            }
+            fileChannel.force(paramBoolean);
+        } finally {
+            release();
+        }
     }
 
     public EventChannel getEventChannel() {
@@ -133,14 +328,12 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
     }
 
     public long getPrefix() {
-        String name = file.getName();
-        int index = name.indexOf(EventChannel.SEGMENT_SUFFIX);
-        if (index == -1) {
+        if (prefix < 0) {
             throw new IllegalStateException(
-                                            String.format("Unable to find segment suffix in segment file name: %s",
+                                            String.format("Unable to find segment prefix in segment file name: %s",
                                                           file.getAbsolutePath()));
         }
-        return Long.parseLong(name.substring(0, index), 16);
+        return prefix;
     }
 
     /**
@@ -159,13 +352,27 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
         return file.hashCode();
     }
 
+    /**
+     * @return true if the segment is stored in the block compressed format
+     */
+    public boolean isCompressed() {
+        return blocks != null;
+    }
+
+    /**
+     * @return true if the segment has been opened in the MAPPED mode
+     */
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
     /**
      * @return
      * @see java.nio.channels.spi.AbstractInterruptibleChannel#isOpen()
      */
     @Override
     public final boolean isOpen() {
-        return fileChannel.isOpen();
+        return !closed.get() && fileChannel.isOpen();
     }
 
     /**
@@ -201,6 +408,11 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      */
     public MappedByteBuffer map(MapMode mode, long position, long size)
                                                                        throws IOException {
+        if (blocks != null) {
+            throw new IOException(
+                                  String.format("Cannot map compressed segment %s",
+                                                file));
+        }
         return fileChannel.map(mode, position, size);
     }
 
@@ -210,6 +422,9 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      * @see java.nio.channels.FileChannel#position()
      */
     public long position() throws IOException {
+        if (blocks != null) {
+            return readPosition;
+        }
         return fileChannel.position();
     }
 
@@ -220,6 +435,10 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      * @see java.nio.channels.FileChannel#position(long)
      */
     public FileChannel position(long newPosition) throws IOException {
+        if (blocks != null) {
+            readPosition = newPosition;
+            return fileChannel;
+        }
         return fileChannel.position(newPosition);
     }
 
@@ -231,6 +450,13 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      */
     @Override
     public int read(ByteBuffer dst) throws IOException {
+        if (blocks != null) {
+            int read = blocks.read(dst, readPosition);
+            if (read > 0) {
+                readPosition += read;
+            }
+            return read;
+        }
         return fileChannel.read(dst);
     }
 
@@ -242,6 +468,9 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      * @see java.nio.channels.FileChannel#read(java.nio.ByteBuffer, long)
      */
     public int read(ByteBuffer dst, long position) throws IOException {
+        if (blocks != null) {
+            return blocks.read(dst, position);
+        }
         return fileChannel.read(dst, position);
     }
 
@@ -253,7 +482,7 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      */
     @Override
     public final long read(ByteBuffer[] dsts) throws IOException {
-        return fileChannel.read(dsts);
+        return read(dsts, 0, dsts.length);
     }
 
     /**
@@ -267,15 +496,55 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
     @Override
     public long read(ByteBuffer[] dsts, int offset, int length)
                                                                throws IOException {
+        if (blocks != null) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int read = read(dsts[i]);
+                if (read < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                total += read;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
         return fileChannel.read(dsts, offset, length);
     }
 
+    /**
+     * Release a use of the segment. The segment's file and mapped region are
+     * released with the last use of a closed segment
+     * 
+     * @throws IOException
+     */
+    public void release() throws IOException {
+        if (users.decrementAndGet() != 0) {
+            return;
+        }
+        if (mapped != null) {
+            Utils.unmap(mapped);
+            fileChannel.truncate(limit);
+        }
+        if (blocks != null) {
+            blocks.end();
+        }
+        fileChannel.close();
+    }
+
     /**
      * @return
      * @throws IOException
      * @see java.nio.channels.FileChannel#size()
      */
     public long size() throws IOException {
+        if (mapped != null) {
+            return limit;
+        }
+        if (blocks != null) {
+            return blocks.size();
+        }
         return fileChannel.size();
     }
 
@@ -299,7 +568,11 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      */
     public long transferFrom(ReadableByteChannel src, long position, long count)
                                                                                 throws IOException {
-        return fileChannel.transferFrom(src, position, count);
+        long transferred = fileChannel.transferFrom(src, position, count);
+        if (mapped != null) {
+            appended(position + transferred);
+        }
+        return transferred;
     }
 
     /**
@@ -313,16 +586,28 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      */
     public long transferTo(long position, long count, WritableByteChannel target)
                                                                                  throws IOException {
+        if (blocks != null) {
+            return blocks.transferTo(position, count, target);
+        }
         return fileChannel.transferTo(position, count, target);
     }
 
     /**
+     * Truncate the segment. The file of a mapped segment retains the mapped
+     * region, and only the logical size of the segment is truncated
+     * 
      * @param size
      * @return
      * @throws IOException
      * @see java.nio.channels.FileChannel#truncate(long)
      */
     public FileChannel truncate(long size) throws IOException {
+        if (mapped != null) {
+            if (size < limit) {
+                limit = size;
+            }
+            return fileChannel;
+        }
         return fileChannel.truncate(size);
     }
 
@@ -367,7 +652,32 @@ public class Segment implements Channel, InterruptibleChannel, ByteChannel,
      * @see java.nio.channels.FileChannel#write(java.nio.ByteBuffer, long)
      */
     public int write(ByteBuffer src, long position) throws IOException {
-        return fileChannel.write(src, position);
+        int written = fileChannel.write(src, position);
+        if (mapped != null) {
+            appended(position + written);
+        }
+        return written;
+    }
+
+    /**
+     * Answer a window on the mapped segment. The window may only be accessed
+     * while the caller holds a use of the segment
+     * 
+     * @param position
+     *            - the position of the window within the segment
+     * @param length
+     *            - the length of the window
+     * @return the window on the mapped region, or null if the segment is not
+     *         mapped or the window extends beyond the mapped region
+     */
+    public ByteBuffer window(int position, int length) {
+        if (mapped == null || position + length > mapped.capacity()) {
+            return null;
+        }
+        ByteBuffer window = mapped.duplicate();
+        window.limit(position + length);
+        window.position(position);
+        return window;
     }
 
     /**
@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sparse index of the event batches appended to a segment. The index maps
+ * the logical offset of a batch within the channel and the sequence number of
+ * the batch to the position of the batch within the segment. Batches are
+ * indexed when the segment has grown by at least the index interval since the
+ * last indexed batch; the first batch of the segment is always indexed.
+ * <p>
+ * The last batch recorded in the index is held as the tail entry, and is
+ * persisted following the persisted entries when the index is checkpointed or
+ * closed, so that the sequence number of the last batch of the segment is
+ * recovered without writing the index for every appended batch. When the
+ * index is reloaded, the tail entry becomes an entry of the index.
+ * <p>
+ * Entries are persisted in a file kept alongside the segment file, as fixed
+ * size records of the offset, sequence number and position. Lookups find the
+ * closest indexed batch preceding the requested offset or sequence number using
+ * a binary search, from which the reader may scan forward event by event.
+ * <p>
+ * Only the single appending thread of the channel records entries, while
+ * lookups may occur concurrently from any thread.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SegmentIndex {
+
+    public static class Entry {
+        // The logical offset of the batch within the channel
+        public final long offset;
+        // The translated position of the batch within the segment
+        public final int  position;
+        // The sequence number of the batch
+        public final long sequenceNumber;
+
+        public Entry(long offset, long sequenceNumber, int position) {
+            this.offset = offset;
+            this.sequenceNumber = sequenceNumber;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [offset=" + offset + ", sequenceNumber="
+                   + sequenceNumber + ", position=" + position + "]";
+        }
+    }
+
+    public static final int     DEFAULT_INTERVAL = 4 * 1024;
+    public static final String  INDEX_SUFFIX     = ".index";
+    private static final int    ENTRY_SIZE       = 8 + 8 + 4;
+    private static final int    INITIAL_CAPACITY = 16;
+
+    private final FileChannel   channel;
+    private final ByteBuffer    entryBuffer      = ByteBuffer.allocate(ENTRY_SIZE);
+    private final File          file;
+    private final long          interval;
+    private long                lastIndexed      = -1L;
+    // The offset of the batch held in the tail entry
+    private long                lastTail         = -1L;
+    private long[]              offsets          = new long[INITIAL_CAPACITY];
+    private int[]               positions        = new int[INITIAL_CAPACITY];
+    private long[]              sequenceNumbers  = new long[INITIAL_CAPACITY];
+    private int                 size;
+    // True if the tail entry has not been persisted since it was recorded
+    private boolean             tailDirty;
+    private int                 tailPosition;
+    private long                tailSequenceNumber;
+
+    /**
+     * Open the index, loading any entries previously persisted in the index
+     * file
+     * 
+     * @param file
+     *            - the index file
+     * @param interval
+     *            - the minimum number of segment bytes between indexed batches
+     * @throws IOException
+     */
+    public SegmentIndex(File file, long interval) throws IOException {
+        this.file = file;
+        this.interval = interval;
+        channel = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+        load();
+    }
+
+    /**
+     * Persist the tail entry of the index
+     * 
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (!tailDirty) {
+            return;
+        }
+        write(lastTail, tailSequenceNumber, tailPosition);
+        tailDirty = false;
+    }
+
+    /**
+     * Close the index, persisting the tail entry
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Answer the indexed batch with the greatest offset less than or equal to
+     * the offset
+     * 
+     * @param offset
+     *            - the logical offset within the channel
+     * @return the floor entry, or null if no such batch has been indexed
+     */
+    public synchronized Entry floorOffset(long offset) {
+        int index = floor(offsets, offset);
+        return index < 0 ? null : entryAt(index);
+    }
+
+    /**
+     * Answer the indexed batch with the greatest sequence number less than or
+     * equal to the sequence number
+     * 
+     * @param sequenceNumber
+     *            - the sequence number of the batch
+     * @return the floor entry, or null if no such batch has been indexed
+     */
+    public synchronized Entry floorSequenceNumber(long sequenceNumber) {
+        int index = floor(sequenceNumbers, sequenceNumber);
+        return index < 0 ? null : entryAt(index);
+    }
+
+    /**
+     * @return the index file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Record the appended batch. The batch is indexed if it falls on the index
+     * interval, otherwise the batch is held as the tail entry of the index
+     * 
+     * @param offset
+     *            - the logical offset of the batch within the channel
+     * @param sequenceNumber
+     *            - the sequence number of the batch
+     * @param position
+     *            - the position of the batch within the segment
+     * @return true if the batch was indexed
+     * @throws IOException
+     */
+    public synchronized boolean record(long offset, long sequenceNumber,
+                                       int position) throws IOException {
+        if ((size > 0 && offset <= offsets[size - 1]) || offset <= lastTail) {
+            // Already indexed, i.e. a replayed batch
+            return false;
+        }
+        if (lastIndexed >= 0 && position - lastIndexed < interval) {
+            lastTail = offset;
+            tailSequenceNumber = sequenceNumber;
+            tailPosition = position;
+            tailDirty = true;
+            return false;
+        }
+        // The entry is written in the tail slot, following the entries
+        write(offset, sequenceNumber, position);
+        add(offset, sequenceNumber, position);
+        tailDirty = false;
+        return true;
+    }
+
+    /**
+     * @return the number of indexed batches
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Truncate the index, removing the entries of batches at or beyond the
+     * position within the segment
+     * 
+     * @param position
+     *            - the position within the segment
+     * @throws IOException
+     */
+    public synchronized void truncate(int position) throws IOException {
+        while (size > 0 && positions[size - 1] >= position) {
+            size--;
+        }
+        lastIndexed = size == 0 ? -1L : positions[size - 1];
+        lastTail = -1L;
+        tailDirty = false;
+        channel.truncate((long) size * ENTRY_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentIndex [file=" + file + ", size=" + size + "]";
+    }
+
+    private void add(long offset, long sequenceNumber, int position) {
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            sequenceNumbers = Arrays.copyOf(sequenceNumbers, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+        }
+        offsets[size] = offset;
+        sequenceNumbers[size] = sequenceNumber;
+        positions[size] = position;
+        size++;
+        lastIndexed = position;
+    }
+
+    private Entry entryAt(int index) {
+        return new Entry(offsets[index], sequenceNumbers[index],
+                         positions[index]);
+    }
+
+    /**
+     * Answer the index of the greatest value less than or equal to the key
+     */
+    private int floor(long[] values, long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Write the entry in the slot following the persisted entries
+     */
+    private void write(long offset, long sequenceNumber, int position)
+                                                                      throws IOException {
+        entryBuffer.clear();
+        entryBuffer.putLong(offset);
+        entryBuffer.putLong(sequenceNumber);
+        entryBuffer.putInt(position);
+        entryBuffer.flip();
+        long filePosition = (long) size * ENTRY_SIZE;
+        while (entryBuffer.hasRemaining()) {
+            filePosition += channel.write(entryBuffer, filePosition);
+        }
+    }
+
+    private void load() throws IOException {
+        // Ignore any torn entry at the end of the file
+        long entries = channel.size() / ENTRY_SIZE;
+        if (entries == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) entries * ENTRY_SIZE);
+        long filePosition = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, filePosition);
+            if (read < 0) {
+                break;
+            }
+            filePosition += read;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            add(buffer.getLong(), buffer.getLong(), buffer.getInt());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+/**
+ * The table of the open segments of an event channel, keyed by the primitive
+ * segment prefix. Lookups are lock free and allocation free: the table keeps
+ * the most recently used segment - for appends, the active append segment -
+ * directly, and otherwise binary searches a copy on write array of the
+ * segments, sorted by prefix. Segments are added only when the channel opens a
+ * segment file, which is rare compared to the lookups of every batch.
+ * <p>
+ * The segments in the table are also held by the weaver's segment caches,
+ * which bound the number of open segments across channels and close the
+ * segments they evict. Closed segments are therefore treated as misses.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SegmentTable {
+    private static final Segment[] EMPTY    = new Segment[0];
+
+    private volatile Segment       current;
+    private volatile Segment[]     segments = EMPTY;
+
+    /**
+     * Remove all the segments from the table
+     * 
+     * @return the segments which were in the table
+     */
+    public synchronized Segment[] clear() {
+        Segment[] cleared = segments;
+        segments = EMPTY;
+        current = null;
+        return cleared;
+    }
+
+    /**
+     * Answer the open segment with the prefix
+     * 
+     * @param prefix
+     *            - the segment prefix
+     * @return the open segment, or null if the table does not contain an open
+     *         segment with the prefix
+     */
+    public Segment get(long prefix) {
+        Segment segment = current;
+        if (segment != null && segment.getPrefix() == prefix
+            && segment.isOpen()) {
+            return segment;
+        }
+        Segment[] snapshot = segments;
+        int index = indexOf(snapshot, prefix);
+        if (index < 0) {
+            return null;
+        }
+        segment = snapshot[index];
+        if (!segment.isOpen()) {
+            return null;
+        }
+        current = segment;
+        return segment;
+    }
+
+    /**
+     * Add the segment to the table, replacing any segment with the same prefix
+     * 
+     * @param segment
+     */
+    public synchronized void put(Segment segment) {
+        Segment[] snapshot = segments;
+        int index = indexOf(snapshot, segment.getPrefix());
+        Segment[] updated;
+        if (index >= 0) {
+            updated = snapshot.clone();
+            updated[index] = segment;
+        } else {
+            int insertion = -(index + 1);
+            updated = new Segment[snapshot.length + 1];
+            System.arraycopy(snapshot, 0, updated, 0, insertion);
+            updated[insertion] = segment;
+            System.arraycopy(snapshot, insertion, updated, insertion + 1,
+                             snapshot.length - insertion);
+        }
+        segments = updated;
+        current = segment;
+    }
+
+    /**
+     * Remove the segment with the prefix from the table
+     * 
+     * @param prefix
+     * @return the removed segment, or null if the table did not contain a
+     *         segment with the prefix
+     */
+    public synchronized Segment remove(long prefix) {
+        Segment[] snapshot = segments;
+        int index = indexOf(snapshot, prefix);
+        if (index < 0) {
+            return null;
+        }
+        Segment removed = snapshot[index];
+        Segment[] updated = new Segment[snapshot.length - 1];
+        System.arraycopy(snapshot, 0, updated, 0, index);
+        System.arraycopy(snapshot, index + 1, updated, index,
+                         snapshot.length - index - 1);
+        segments = updated;
+        if (current == removed) {
+            current = null;
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of segments in the table
+     */
+    public int size() {
+        return segments.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SegmentTable [segments=%s]", segments.length);
+    }
+
+    /**
+     * Binary search the sorted segments for the prefix
+     * 
+     * @return the index of the segment, or (-(insertion point) - 1) if the
+     *         prefix is not present
+     */
+    private int indexOf(Segment[] snapshot, long prefix) {
+        int low = 0;
+        int high = snapshot.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midPrefix = snapshot[mid].getPrefix();
+            if (midPrefix < prefix) {
+                low = mid + 1;
+            } else if (midPrefix > prefix) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sparse index of the times the event batches of a segment were received by
+ * the weaver. The index maps the receive time of a batch to the logical offset
+ * of the batch within the channel. Batches are indexed when the time has
+ * advanced by at least the index interval since the last indexed batch; the
+ * first batch of the segment is always indexed. The indexed times never
+ * decrease, so a clock which steps backwards does not disorder the index.
+ * <p>
+ * Entries are persisted in a file kept alongside the segment file, as fixed
+ * size records of the time and offset. Lookups find the closest indexed batch
+ * received before the requested time using a binary search, so that the
+ * batches received at or after the time follow the answered offset, within
+ * the index interval of the time.
+ * <p>
+ * Only the single appending thread of the channel records entries, while
+ * lookups may occur concurrently from any thread.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TimeIndex {
+
+    public static class Entry {
+        // The logical offset of the batch within the channel
+        public final long offset;
+        // The time the batch was received, in milliseconds since the epoch
+        public final long time;
+
+        public Entry(long time, long offset) {
+            this.time = time;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [time=" + time + ", offset=" + offset + "]";
+        }
+    }
+
+    public static final long   DEFAULT_INTERVAL = 100L;
+    public static final String INDEX_SUFFIX     = ".time";
+    private static final int   ENTRY_SIZE       = 8 + 8;
+    private static final int   INITIAL_CAPACITY = 16;
+
+    private final FileChannel  channel;
+    private final ByteBuffer   entryBuffer      = ByteBuffer.allocate(ENTRY_SIZE);
+    private final File         file;
+    private final long         interval;
+    private long[]             offsets          = new long[INITIAL_CAPACITY];
+    private int                size;
+    private long[]             times            = new long[INITIAL_CAPACITY];
+
+    /**
+     * Open the index for lookups alone, without creating the index file. The
+     * returned index may not record entries.
+     * 
+     * @param file
+     *            - the index file
+     * @param interval
+     *            - the minimum number of milliseconds between indexed batches
+     * @return the index, or null if the index file does not exist
+     * @throws IOException
+     */
+    public static TimeIndex read(File file, long interval) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        return new TimeIndex(file, interval,
+                             FileChannel.open(file.toPath(), READ));
+    }
+
+    /**
+     * Open the index, loading any entries previously persisted in the index
+     * file
+     * 
+     * @param file
+     *            - the index file
+     * @param interval
+     *            - the minimum number of milliseconds between indexed batches
+     * @throws IOException
+     */
+    public TimeIndex(File file, long interval) throws IOException {
+        this(file, interval, FileChannel.open(file.toPath(), CREATE, READ,
+                                              WRITE));
+    }
+
+    private TimeIndex(File file, long interval, FileChannel channel)
+                                                                    throws IOException {
+        this.file = file;
+        this.interval = interval;
+        this.channel = channel;
+        load();
+    }
+
+    /**
+     * Close the index
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the first indexed batch, or null if no batch has been indexed
+     */
+    public synchronized Entry first() {
+        return size == 0 ? null : entryAt(0);
+    }
+
+    /**
+     * @return the index file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Answer the indexed batch with the greatest time less than the time
+     * 
+     * @param time
+     *            - the time in milliseconds since the epoch
+     * @return the lower entry, or null if no batch has been indexed before the
+     *         time
+     */
+    public synchronized Entry lower(long time) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high < 0 ? null : entryAt(high);
+    }
+
+    /**
+     * Record the received batch, if the time has advanced by the index
+     * interval since the last indexed batch
+     * 
+     * @param time
+     *            - the time the batch was received, in milliseconds since the
+     *            epoch
+     * @param offset
+     *            - the logical offset of the batch within the channel
+     * @return true if the batch was indexed
+     * @throws IOException
+     */
+    public synchronized boolean record(long time, long offset)
+                                                              throws IOException {
+        if (size > 0
+            && (time - times[size - 1] < interval || offset <= offsets[size - 1])) {
+            return false;
+        }
+        entryBuffer.clear();
+        entryBuffer.putLong(time);
+        entryBuffer.putLong(offset);
+        entryBuffer.flip();
+        long filePosition = (long) size * ENTRY_SIZE;
+        while (entryBuffer.hasRemaining()) {
+            filePosition += channel.write(entryBuffer, filePosition);
+        }
+        add(time, offset);
+        return true;
+    }
+
+    /**
+     * @return the number of indexed batches
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Truncate the index, removing the entries of batches at or beyond the
+     * offset
+     * 
+     * @param offset
+     *            - the logical offset within the channel
+     * @throws IOException
+     */
+    public synchronized void truncate(long offset) throws IOException {
+        while (size > 0 && offsets[size - 1] >= offset) {
+            size--;
+        }
+        channel.truncate((long) size * ENTRY_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return "TimeIndex [file=" + file + ", size=" + size + "]";
+    }
+
+    private void add(long time, long offset) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        times[size] = time;
+        offsets[size] = offset;
+        size++;
+    }
+
+    private Entry entryAt(int index) {
+        return new Entry(times[index], offsets[index]);
+    }
+
+    private void load() throws IOException {
+        // Ignore any torn entry at the end of the file
+        long entries = channel.size() / ENTRY_SIZE;
+        if (entries == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) entries * ENTRY_SIZE);
+        long filePosition = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, filePosition);
+            if (read < 0) {
+                break;
+            }
+            filePosition += read;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            add(buffer.getLong(), buffer.getLong());
+        }
+    }
+}
@@ -29,8 +29,12 @@ import static com.salesforce.ouroboros.util.Utils.point;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +42,14 @@ import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -50,9 +62,15 @@ import com.hellblazer.pinkie.ServerSocketChannelHandler;
 import com.salesforce.ouroboros.ContactInformation;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.spindle.Flusher.Policy;
+import com.salesforce.ouroboros.spindle.Segment.Mode;
 import com.salesforce.ouroboros.spindle.WeaverConfigation.RootDirectory;
+import com.salesforce.ouroboros.spindle.flyer.Fetcher;
+import com.salesforce.ouroboros.spindle.replication.AckMode;
+import com.salesforce.ouroboros.spindle.replication.ReplicationLatency;
 import com.salesforce.ouroboros.spindle.replication.Replicator;
 import com.salesforce.ouroboros.spindle.source.Acknowledger;
+import com.salesforce.ouroboros.spindle.source.BatchVerifier;
 import com.salesforce.ouroboros.spindle.source.Spindle;
 import com.salesforce.ouroboros.spindle.transfer.Sink;
 import com.salesforce.ouroboros.spindle.transfer.Xerox;
@@ -70,10 +88,27 @@ import com.salesforce.ouroboros.util.Rendezvous;
  * 
  */
 public class Weaver implements Bundle, Comparable<Weaver> {
+    /**
+     * A maintenance pass over the channels residing on a root directory
+     */
+    private static interface RootPass {
+        void run(Collection<EventChannel> channels);
+    }
+
+    private class FetcherFactory implements CommunicationsHandlerFactory {
+        @Override
+        public Fetcher createCommunicationsHandler(SocketChannel channel) {
+            return new Fetcher(Weaver.this, fetchTimer, fetchTimeout,
+                               fetchTimeoutUnit, replayReadAhead,
+                               replayPrefetchers);
+        }
+    }
+
     private class ReplicatorFactory implements CommunicationsHandlerFactory {
         @Override
         public Replicator createCommunicationsHandler(SocketChannel channel) {
-            return new Replicator(Weaver.this);
+            return new Replicator(Weaver.this, replicationWindow,
+                                  replicationCredit, latencies);
         }
     }
 
@@ -87,12 +122,14 @@ public class Weaver implements Bundle, Comparable<Weaver> {
     private class SpindleFactory implements CommunicationsHandlerFactory {
         @Override
         public Spindle createCommunicationsHandler(SocketChannel channel) {
-            return new Spindle(Weaver.this);
+            return new Spindle(Weaver.this, verifier);
         }
     }
 
     private static final Logger                     log               = LoggerFactory.getLogger(Weaver.class.getCanonicalName());
 
+    private static final String                     CURSORS           = "cursors";
+    private static final String                     WEAVER_FLYER      = "Weaver Flyer";
     private static final String                     WEAVER_REPLICATOR = "Weaver Replicator";
     private static final String                     WEAVER_SPINDLE    = "Weaver Spindle";
     private static final String                     WEAVER_XEROX      = "Weaver Xerox";
@@ -100,22 +137,72 @@ public class Weaver implements Bundle, Comparable<Weaver> {
     static final int                                MAGIC             = 0x1638;
     private final ConcurrentMap<Node, Acknowledger> acknowledgers     = new ConcurrentHashMap<Node, Acknowledger>();
 
+    private final AckMode                           ackMode;
+    // The ack modes of the channels overriding the ack mode of the weaver
+    private final ConcurrentMap<UUID, AckMode>      ackModes          = new ConcurrentHashMap<UUID, AckMode>();
+    private final Mode                              appendMode;
     private final ConcurrentMap<File, Segment>      appendSegmentCache;
+    private final ScheduledExecutorService          checkpointer;
+    private final long                              checkpointInterval;
+    private final TimeUnit                          checkpointIntervalUnit;
+    private ScheduledFuture<?>                      checkpointTask;
+    private final Compactor                         compactor;
+    private final long                              compactionInterval;
+    private final TimeUnit                          compactionIntervalUnit;
+    private ScheduledFuture<?>                      compactionTask;
     private final ConcurrentMap<UUID, EventChannel> channels          = new ConcurrentHashMap<UUID, EventChannel>();
+    private final ConsistentHashFunction<File>      coldRoots;
     private final ContactInformation                contactInfo;
+    private final long                              cursorFlushInterval;
+    private final TimeUnit                          cursorFlushIntervalUnit;
+    private ScheduledFuture<?>                      cursorFlushTask;
+    private final CursorStore                       cursors;
+    private final long                              fetchTimeout;
+    private final TimeUnit                          fetchTimeoutUnit;
+    private final ScheduledExecutorService          fetchTimer;
+    private final Map<File, Flusher>                flushers          = new HashMap<File, Flusher>();
+    private final ServerSocketChannelHandler        flyerHandler;
+    private final Map<File, DiskLane>               lanes             = new HashMap<File, DiskLane>();
+    private final ReplicationLatency                latencies         = new ReplicationLatency();
     private final long                              maxSegmentSize;
+    private final long                              migrationInterval;
+    private final TimeUnit                          migrationIntervalUnit;
+    private ScheduledFuture<?>                      migrationTask;
+    private final Migrator                          migrator;
     private ConsistentHashFunction<Node>            nextRing;
+    private final double                            preallocationThreshold;
+    private final Executor                          preallocators;
     private final ConcurrentMap<File, Segment>      readSegmentCache;
+    private final Reclaimer                         reclaimer;
+    private final ScheduledExecutorService          reclaimers;
+    private final long                              reclaimInterval;
+    private final TimeUnit                          reclaimIntervalUnit;
+    private ScheduledFuture<?>                      reclaimTask;
+    private final ExecutorService                   recoverers;
+    private final ExecutorService                   replayPrefetchers;
+    private final int                               replayReadAhead;
+    private final int                               replicationCredit;
+    private final int                               replicationFactor;
     private final ServerSocketChannelHandler        replicationHandler;
+    private final int                               replicationWindow;
     private final ConcurrentMap<Node, Replicator>   replicators       = new ConcurrentHashMap<Node, Replicator>();
     private final ConsistentHashFunction<File>      roots;
     private final Node                              self;
     private final ServerSocketChannelHandler        spindleHandler;
+    private final BatchVerifier                     verifier;
     private ConsistentHashFunction<Node>            weaverRing;
     private final ServerSocketChannelHandler        xeroxHandler;
 
     public Weaver(WeaverConfigation configuration) throws IOException {
         configuration.validate();
+        // the cursors of the weaver are stored in the first root
+        cursors = new CursorStore(
+                                  new File(
+                                           configuration.getRoots().get(0).directory,
+                                           CURSORS),
+                                  configuration.getCursorLogSize());
+        cursorFlushInterval = configuration.getCursorFlushInterval();
+        cursorFlushIntervalUnit = configuration.getCursorFlushIntervalUnit();
         Builder<File, Segment> builder = new Builder<File, Segment>();
         appendSegmentCache = createAppendSegmentCache(configuration, builder);
         readSegmentCache = createReadSegmentCache(configuration, builder);
@@ -125,20 +212,74 @@ public class Weaver implements Bundle, Comparable<Weaver> {
                                                  configuration.getNumberOfRootReplicas());
         for (RootDirectory root : configuration.getRoots()) {
             roots.add(root.directory, root.weight);
-            if (!root.directory.exists()) {
-                if (!root.directory.mkdirs()) {
-                    throw new IllegalStateException(
-                                                    String.format("Cannot create root directory: %s",
-                                                                  root.directory.getAbsolutePath()));
-                }
+            createRoot(root.directory);
+            if (configuration.getDurabilityPolicy() != Policy.NONE) {
+                flushers.put(root.directory,
+                             new Flusher(root.directory,
+                                         configuration.getDurabilityPolicy(),
+                                         configuration.getFlushInterval(),
+                                         configuration.getFlushIntervalUnit(),
+                                         configuration.getFlushThreshold()));
             }
-            if (!root.directory.isDirectory()) {
-                throw new IllegalStateException(
-                                                String.format("Root is not a directory: %s",
-                                                              root.directory.getAbsolutePath()));
+            if (configuration.getLaneThreads() > 0) {
+                lanes.put(root.directory,
+                          new DiskLane(root.directory,
+                                       configuration.getLaneThreads(),
+                                       configuration.getLaneQueueDepth()));
             }
         }
+        if (configuration.getColdRoots().isEmpty()) {
+            coldRoots = null;
+            migrator = null;
+        } else {
+            coldRoots = new ConsistentHashFunction<File>(
+                                                         configuration.getRootSkipStrategy(),
+                                                         configuration.getNumberOfRootReplicas());
+            for (RootDirectory root : configuration.getColdRoots()) {
+                coldRoots.add(root.directory, root.weight);
+                createRoot(root.directory);
+            }
+            migrator = new Migrator(configuration.getMigrationAge(),
+                                    configuration.getMigrationAgeUnit(),
+                                    configuration.getMigrationThrottle());
+        }
+        migrationInterval = configuration.getMigrationInterval();
+        migrationIntervalUnit = configuration.getMigrationIntervalUnit();
         maxSegmentSize = configuration.getMaxSegmentSize();
+        appendMode = configuration.getAppendMode();
+        preallocators = configuration.getPreallocators();
+        preallocationThreshold = configuration.getPreallocationThreshold();
+        recoverers = configuration.getRecoverers();
+        checkpointer = configuration.getCheckpointer();
+        checkpointInterval = configuration.getCheckpointInterval();
+        checkpointIntervalUnit = configuration.getCheckpointIntervalUnit();
+        reclaimer = new Reclaimer(configuration.getRetentionMaxAge(),
+                                  configuration.getRetentionMaxAgeUnit(),
+                                  configuration.getRetentionMaxBytes(),
+                                  configuration.getRetentionMaxSegments(),
+                                  configuration.getReclaimThrottle());
+        reclaimers = configuration.getReclaimers();
+        verifier = configuration.getVerificationRate() > 0 ? new BatchVerifier(
+                                                                               configuration.getVerificationRate())
+                                                          : null;
+        compactor = configuration.isCompressSealedSegments() ? new Compactor(
+                                                                             configuration.getCompressionBlockSize(),
+                                                                             configuration.getCompressionLevel(),
+                                                                             configuration.getCompactionThrottle())
+                                                            : null;
+        compactionInterval = configuration.getCompactionInterval();
+        compactionIntervalUnit = configuration.getCompactionIntervalUnit();
+        reclaimInterval = configuration.getReclaimInterval();
+        reclaimIntervalUnit = configuration.getReclaimIntervalUnit();
+        fetchTimer = configuration.getFetchTimer();
+        fetchTimeout = configuration.getFetchTimeout();
+        fetchTimeoutUnit = configuration.getFetchTimeoutUnit();
+        replayReadAhead = configuration.getReplayReadAhead();
+        replayPrefetchers = configuration.getReplayPrefetchers();
+        replicationWindow = configuration.getReplicationWindow();
+        replicationCredit = configuration.getReplicationCredit();
+        replicationFactor = configuration.getReplicationFactor();
+        ackMode = configuration.getAckMode();
         replicationHandler = new ServerSocketChannelHandler(
                                                             WEAVER_REPLICATOR,
                                                             configuration.getReplicationSocketOptions(),
@@ -157,10 +298,17 @@ public class Weaver implements Bundle, Comparable<Weaver> {
                                                       configuration.getXeroxAddress(),
                                                       configuration.getXeroxes(),
                                                       new SinkFactory());
+        flyerHandler = new ServerSocketChannelHandler(
+                                                      WEAVER_FLYER,
+                                                      configuration.getFlyerSocketOptions(),
+                                                      configuration.getFlyerAddress(),
+                                                      configuration.getFlyers(),
+                                                      new FetcherFactory());
         contactInfo = new ContactInformation(
                                              spindleHandler.getLocalAddress(),
                                              replicationHandler.getLocalAddress(),
-                                             xeroxHandler.getLocalAddress());
+                                             xeroxHandler.getLocalAddress(),
+                                             flyerHandler.getLocalAddress());
         weaverRing = new ConsistentHashFunction<Node>(
                                                       configuration.getSkipStrategy(),
                                                       configuration.getNumberOfReplicas());
@@ -202,10 +350,10 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         weaverRing = nextRing;
         for (Entry<UUID, EventChannel> entry : channels.entrySet()) {
             UUID channelId = entry.getKey();
-            Node[] pair = getReplicationPair(channelId);
+            Node[] replicas = getReplicas(channelId);
             EventChannel channel = entry.getValue();
             if (channel != null) {
-                if (!pair[0].equals(self) && !pair[1].equals(self)) {
+                if (!Arrays.asList(replicas).contains(self)) {
                     if (log.isInfoEnabled()) {
                         log.info(String.format("Rebalancing, closing channel %s on %s",
                                                channelId, self));
@@ -319,19 +467,34 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         for (Entry<UUID, EventChannel> entry : channels.entrySet()) {
             UUID channelId = entry.getKey();
             EventChannel channel = entry.getValue();
-            if (channel.isPrimary()
-                && deadMembers.contains(channel.getPartnerId())) {
-                channel.failMirror();
+            if (channel.isPrimary()) {
+                // dead replicas are removed before a live one is promoted
+                channel.failReplicas(deadMembers);
+                if (deadMembers.contains(channel.getPartnerId())) {
+                    channel.failMirror();
+                }
             } else if (deadMembers.contains(channel.getPartnerId())) {
                 assert channel.isMirror() : String.format("%s thinks it is the primary for % when it should be the mirror",
                                                           self, channel.getId());
-                // This node is now the primary for the channel, xerox state to the new mirror
-                if (log.isInfoEnabled()) {
-                    log.info(String.format("%s assuming primary role for: %s, old primary: %s",
-                                           self, channelId,
-                                           channel.getPartnerId()));
+                // The first surviving replica of the channel succeeds the primary
+                Node successor = successorOf(channelId, deadMembers);
+                if (successor == null || successor.equals(self)) {
+                    // This node is now the primary for the channel, xerox state to the new mirror
+                    if (log.isInfoEnabled()) {
+                        log.info(String.format("%s assuming primary role for: %s, old primary: %s",
+                                               self, channelId,
+                                               channel.getPartnerId()));
+                    }
+                    channel.setReplicas(survivorsOf(channelId));
+                    channel.failOver();
+                } else {
+                    if (log.isInfoEnabled()) {
+                        log.info(String.format("%s mirroring %s for: %s, old primary: %s",
+                                               self, successor, channelId,
+                                               channel.getPartnerId()));
+                    }
+                    channel.rebalanceAsMirror(successor);
                 }
-                channel.failOver();
             }
         }
 
@@ -351,6 +514,11 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return acknowledgers.get(node);
     }
 
+    @Override
+    public CursorStore getCursorStore() {
+        return cursors;
+    }
+
     public ContactInformation getContactInformation() {
         return contactInfo;
     }
@@ -363,6 +531,37 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return self;
     }
 
+    /**
+     * @return the verifier of the appended batches, or null if appended batches
+     *         are not verified
+     */
+    public BatchVerifier getBatchVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @return the I/O lanes of the root directories, empty if the channels
+     *         share the preallocators and recoverers
+     */
+    public Collection<DiskLane> getLanes() {
+        return Collections.unmodifiableCollection(lanes.values());
+    }
+
+    /**
+     * Answer the nodes that replicate the channel. The first node is the
+     * primary, the second the mirror of the channel, and the remaining nodes
+     * are the additional replicas that serve the reads of the channel
+     * 
+     * @param channel
+     *            - the id of the channel
+     * @return the replicas of the channel, as many as the replication factor
+     *         of the weaver
+     */
+    public Node[] getReplicas(UUID channel) {
+        List<Node> replicas = weaverRing.hash(point(channel), replicationFactor);
+        return replicas.toArray(new Node[replicas.size()]);
+    }
+
     /**
      * Answer the replication pair of nodes that provide the primary and mirror
      * for the channel
@@ -376,6 +575,15 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return new Node[] { pair.get(0), pair.get(1) };
     }
 
+    /**
+     * @return the latencies of the replication stages of the channels of the
+     *         weaver
+     */
+    public ReplicationLatency getReplicationLatency() {
+        return latencies;
+    }
+
+    @Override
     public Replicator getReplicator(Node node) {
         return replicators.get(node);
     }
@@ -385,10 +593,22 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return self.hashCode();
     }
 
+    /**
+     * Answer true if the receiver is an additional replica of the channel,
+     * neither the primary nor the mirror of the channel
+     * 
+     * @param channel
+     *            - the id of the channel
+     */
+    public boolean isReplica(UUID channel) {
+        return Arrays.asList(getReplicas(channel)).indexOf(self) > 1;
+    }
+
     public void inactivate() {
         spindleHandler.closeOpenHandlers();
         replicationHandler.closeOpenHandlers();
         xeroxHandler.closeOpenHandlers();
+        flyerHandler.closeOpenHandlers();
         for (EventChannel channel : channels.values()) {
             channel.close(self);
         }
@@ -415,11 +635,13 @@ public class Weaver implements Bundle, Comparable<Weaver> {
     }
 
     /**
-     * Add the subscription with the receiver as the mirror for this channel
+     * Add the subscription with the receiver as the mirror, or an additional
+     * replica, for this channel
      * 
      * @param channel
      *            - The new subscription
-     * @param pair
+     * @param primary
+     *            - the primary node for this subscription
      */
     public void openMirror(UUID channel, Node primary) {
         if (channels.get(channel) != null) {
@@ -430,10 +652,7 @@ public class Weaver implements Bundle, Comparable<Weaver> {
                                    self, channel));
         }
         channels.put(channel,
-                     new EventChannel(self, Role.MIRROR, primary, channel,
-                                      roots.hash(point(channel)),
-                                      maxSegmentSize, null, appendSegmentCache,
-                                      readSegmentCache));
+                     openEventChannel(Role.MIRROR, primary, channel, null));
     }
 
     /**
@@ -457,11 +676,10 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         if (mirror != null) {
             replicator = replicators.get(mirror);
         }
-        channels.put(channel,
-                     new EventChannel(self, Role.PRIMARY, mirror, channel,
-                                      roots.hash(point(channel)),
-                                      maxSegmentSize, replicator,
-                                      appendSegmentCache, readSegmentCache));
+        EventChannel eventChannel = openEventChannel(Role.PRIMARY, mirror,
+                                                     channel, replicator);
+        eventChannel.setReplicas(replicasOf(getReplicas(channel)));
+        channels.put(channel, eventChannel);
     }
 
     /**
@@ -477,7 +695,9 @@ public class Weaver implements Bundle, Comparable<Weaver> {
      */
     public Replicator openReplicator(Node node, ContactInformation info,
                                      Rendezvous rendezvous) {
-        Replicator replicator = new Replicator(this, node, rendezvous);
+        Replicator replicator = new Replicator(this, replicationWindow,
+                                               replicationCredit, latencies,
+                                               node, rendezvous);
         Replicator previous = replicators.putIfAbsent(node, replicator);
         assert previous == null : String.format("Replicator already opend on weaver %s to weaver %s",
                                                 self, node);
@@ -485,96 +705,82 @@ public class Weaver implements Bundle, Comparable<Weaver> {
     }
 
     /**
-     * Rebalance a channel that this node serves as either the primary or
-     * mirror. Add the list of channels to the Xerox machines that will perform
-     * the state transfer, if needed, between this node and other nodes also
-     * responsible for the channel
+     * Rebalance a channel that this node serves as a replica. Add the list of
+     * channels to the Xerox machines that will perform the state transfer, if
+     * needed, between this node and other nodes also responsible for the
+     * channel. Each new replica of the channel receives the state of the
+     * channel from exactly one of the surviving original replicas
      * 
      * @param xeroxes
      *            - the map of Nodes to Xeroxes
      * 
      * @param channel
      *            - the id of the channel to rebalance
-     * @param remappedPair
-     *            - the pair of nodes that are the new primary/mirror
-     *            responsible for the channel
+     * @param original
+     *            - the original replicas of the channel, primary and mirror
+     *            first
+     * @param remapped
+     *            - the replicas responsible for the channel in the next ring,
+     *            new primary and mirror first
      */
     public void rebalance(Map<Node, Xerox> xeroxes, UUID channel,
-                          Node originalPrimary, Node originalMirror,
-                          Node remappedPrimary, Node remappedMirror,
+                          Node[] original, Node[] remapped,
                           Collection<Node> activeMembers,
                           WeaverCoordinator coordinator) {
         EventChannel eventChannel = channels.get(channel);
         assert eventChannel != null : String.format("The event channel to rebalance does not exist: %s",
                                                     channel);
-        if (self.equals(originalPrimary)) {
-            // self is the primary
-            if (!activeMembers.contains(originalMirror)) {
-                // mirror is down
-                if (self.equals(remappedPrimary)) {
-                    // if self is still the primary
-                    // Xerox state to the new mirror
-                    infoLog("Rebalancing for %s from primary %s to new mirror %s",
-                            eventChannel.getId(), self, remappedMirror);
-                    xeroxTo(eventChannel, remappedMirror, xeroxes, coordinator);
-                } else if (self.equals(remappedMirror)) {
-                    // Self becomes the new mirror
-                    infoLog("Rebalancing for %s, %s becoming mirror from primary, new primary %s",
-                            eventChannel.getId(), self, remappedPrimary);
-                    eventChannel.rebalanceAsMirror();
-                    xeroxTo(eventChannel, remappedPrimary, xeroxes, coordinator);
-                } else {
-                    // Xerox state to new primary and mirror
-                    infoLog("Rebalancing for %s from old primary %s to new primary %s, new mirror %s",
-                            eventChannel.getId(), self, remappedPrimary,
-                            remappedMirror);
-                    xeroxTo(eventChannel, remappedPrimary, xeroxes, coordinator);
-                    xeroxTo(eventChannel, remappedMirror, xeroxes, coordinator);
-                }
-            } else if (!self.equals(remappedPrimary)) {
-                // mirror is up
-                // Xerox state to the new primary
-                infoLog("Rebalancing for %s from old primary %s to new primary %s",
-                        eventChannel.getId(), self, remappedPrimary);
-                xeroxTo(eventChannel, remappedPrimary, xeroxes, coordinator);
-                if (self.equals(remappedMirror)) {
-                    eventChannel.rebalanceAsMirror();
-                }
+        List<Node> holders = new ArrayList<Node>();
+        for (Node node : original) {
+            if (self.equals(node) || activeMembers.contains(node)) {
+                holders.add(node);
+            }
+        }
+        List<Node> targets = new ArrayList<Node>();
+        for (Node node : remapped) {
+            if (!holders.contains(node)) {
+                targets.add(node);
+            }
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            if (self.equals(holders.get(i % holders.size()))) {
+                infoLog("Rebalancing for %s from %s to new replica %s",
+                        eventChannel.getId(), self, targets.get(i));
+                xeroxTo(eventChannel, targets.get(i), xeroxes, coordinator);
             }
-        } else if (!activeMembers.contains(originalPrimary)) {
-            assert self.equals(originalMirror);
-            // self is the secondary
-            // primary is down
-            if (self.equals(remappedMirror)) {
-                // Self is still the mirror
-                // Xerox state to the new primary
-                infoLog("Rebalancing for %s from mirror %s to new primary %s",
-                        eventChannel.getId(), self, remappedPrimary);
-                xeroxTo(eventChannel, remappedPrimary, xeroxes, coordinator);
-            } else if (self.equals(remappedPrimary)) {
-                // Self becomes the new primary
-                infoLog("Rebalancing for %s, %s becoming primary from mirror, new mirror %s",
-                        eventChannel.getId(), self, remappedMirror);
-                eventChannel.rebalanceAsPrimary(remappedMirror,
-                                                replicators.get(remappedMirror),
+        }
+        int index = Arrays.asList(remapped).indexOf(self);
+        if (index == 0) {
+            if (remapped.length > 1
+                && (!eventChannel.isPrimary() || !remapped[1].equals(eventChannel.getPartnerId()))) {
+                infoLog("Rebalancing for %s, %s becoming primary, new mirror %s",
+                        eventChannel.getId(), self, remapped[1]);
+                eventChannel.rebalanceAsPrimary(remapped[1],
+                                                replicators.get(remapped[1]),
                                                 self);
-                xeroxTo(eventChannel, remappedMirror, xeroxes, coordinator);
-            } else {
-                // Xerox state to the new primary and mirror
-                infoLog("Rebalancing for %s from old mirror %s to new primary %s, new mirror %s",
-                        eventChannel.getId(), self, remappedPrimary,
-                        remappedMirror);
-                xeroxTo(eventChannel, remappedPrimary, xeroxes, coordinator);
-                xeroxTo(eventChannel, remappedMirror, xeroxes, coordinator);
             }
-        } else if (!self.equals(remappedMirror)
-                   && !remappedMirror.equals(originalPrimary)) {
-            assert self.equals(originalMirror);
-            // primary is up
-            // Xerox state to the new mirror
-            infoLog("Rebalancing for %s from old mirror %s to new mirror %s",
-                    eventChannel.getId(), self, remappedMirror);
-            xeroxTo(eventChannel, remappedMirror, xeroxes, coordinator);
+            eventChannel.setReplicas(replicasOf(remapped));
+        } else if (index > 0
+                   && (eventChannel.isPrimary() || !remapped[0].equals(eventChannel.getPartnerId()))) {
+            infoLog("Rebalancing for %s, %s becoming replica of new primary %s",
+                    eventChannel.getId(), self, remapped[0]);
+            eventChannel.rebalanceAsMirror(remapped[0]);
+        }
+    }
+
+    /**
+     * Set the ack mode of the channel, overriding the ack mode of the weaver.
+     * The ack mode applies to the batches appended while the weaver is the
+     * primary of the channel
+     * 
+     * @param channel
+     * @param mode
+     */
+    public void setAckMode(UUID channel, AckMode mode) {
+        ackModes.put(channel, mode);
+        EventChannel eventChannel = channels.get(channel);
+        if (eventChannel != null) {
+            eventChannel.setAckMode(mode);
         }
     }
 
@@ -597,9 +803,61 @@ public class Weaver implements Bundle, Comparable<Weaver> {
      */
     @PostConstruct
     public void start() {
+        for (Flusher flusher : flushers.values()) {
+            flusher.start();
+        }
+        checkpointTask = checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkpoint();
+            }
+        }, checkpointInterval, checkpointInterval, checkpointIntervalUnit);
+        cursorFlushTask = checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushCursors();
+            }
+        }, cursorFlushInterval, cursorFlushInterval, cursorFlushIntervalUnit);
+        reclaimTask = reclaimers.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reclaimer.reclaim(channels.values());
+            }
+        }, reclaimInterval, reclaimInterval, reclaimIntervalUnit);
+        if (compactor != null) {
+            // Compaction and migration share the reclaimers, so that a segment
+            // is never compressed, migrated and reclaimed concurrently. The
+            // copies of the segments are performed on the I/O lanes of the
+            // roots
+            compactionTask = reclaimers.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    onLanes(new RootPass() {
+                        @Override
+                        public void run(Collection<EventChannel> channels) {
+                            compactor.compact(channels);
+                        }
+                    });
+                }
+            }, compactionInterval, compactionInterval, compactionIntervalUnit);
+        }
+        if (migrator != null) {
+            migrationTask = reclaimers.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    onLanes(new RootPass() {
+                        @Override
+                        public void run(Collection<EventChannel> channels) {
+                            migrator.migrate(channels);
+                        }
+                    });
+                }
+            }, migrationInterval, migrationInterval, migrationIntervalUnit);
+        }
         spindleHandler.start();
         replicationHandler.start();
         xeroxHandler.start();
+        flyerHandler.start();
     }
 
     /**
@@ -610,8 +868,32 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         spindleHandler.terminate();
         replicationHandler.terminate();
         xeroxHandler.terminate();
+        flyerHandler.terminate();
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+        }
+        if (cursorFlushTask != null) {
+            cursorFlushTask.cancel(false);
+        }
+        if (reclaimTask != null) {
+            reclaimTask.cancel(false);
+        }
+        if (compactionTask != null) {
+            compactionTask.cancel(false);
+        }
+        if (migrationTask != null) {
+            migrationTask.cancel(false);
+        }
+        for (Flusher flusher : flushers.values()) {
+            flusher.terminate();
+        }
         for (EventChannel channel : channels.values()) {
-            channel.close(self);
+            channel.shutdown();
+        }
+        flushCursors();
+        cursors.close();
+        for (DiskLane lane : lanes.values()) {
+            lane.shutdown();
         }
     }
 
@@ -629,23 +911,23 @@ public class Weaver implements Bundle, Comparable<Weaver> {
                                     channel));
         }
 
-        List<Node> pair = nextRing.hash(point(channel), 2);
+        List<Node> mapping = nextRing.hash(point(channel), replicationFactor);
+        Node[] replicas = mapping.toArray(new Node[mapping.size()]);
         EventChannel ec;
-        if (self.equals(pair.get(0))) {
-            Replicator replicator = replicators.get(pair.get(0));
-            assert replicator == null : String.format("Replicator for %s is null on %s",
-                                                      channel, self);
-            ec = new EventChannel(self, Role.PRIMARY, pair.get(1), channel,
-                                  roots.hash(point(channel)), maxSegmentSize,
-                                  replicator, appendSegmentCache,
-                                  readSegmentCache);
-        } else if (self.equals(pair.get(1))) {
-            ec = new EventChannel(self, Role.MIRROR, pair.get(0), channel,
-                                  roots.hash(point(channel)), maxSegmentSize,
-                                  null, appendSegmentCache, readSegmentCache);
+        int index = mapping.indexOf(self);
+        if (index == 0) {
+            Node mirror = replicas.length > 1 ? replicas[1] : null;
+            ec = createEventChannel(Role.PRIMARY, mirror, channel,
+                                    mirror == null ? null
+                                                  : replicators.get(mirror));
+            ec.setReplicas(replicasOf(replicas));
+            ec.clear();
+        } else if (index > 0) {
+            ec = createEventChannel(Role.MIRROR, replicas[0], channel, null);
+            ec.clear();
         } else {
             throw new IllegalStateException(
-                                            String.format("%s is neither mirror nor primary for %, cannot xerox",
+                                            String.format("%s is not a replica of %s, cannot xerox",
                                                           self, channel));
         }
         EventChannel previous = channels.put(channel, ec);
@@ -654,6 +936,41 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return ec;
     }
 
+    /**
+     * Checkpoint all the event channels of the weaver, on the I/O lane of the
+     * channel's root if the weaver has lanes
+     */
+    private void checkpoint() {
+        for (final EventChannel channel : channels.values()) {
+            DiskLane lane = lanes.get(roots.hash(point(channel.getId())));
+            if (lane == null) {
+                checkpoint(channel);
+                continue;
+            }
+            try {
+                lane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkpoint(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the channel is checkpointed on the next round
+                log.warn(String.format("Unable to schedule checkpoint of channel %s on %s, %s",
+                                       channel.getId(), self, lane));
+            }
+        }
+    }
+
+    private void checkpoint(EventChannel channel) {
+        try {
+            channel.checkpoint();
+        } catch (IOException e) {
+            log.warn(String.format("Unable to checkpoint channel %s on %s",
+                                   channel.getId(), self), e);
+        }
+    }
+
     private ConcurrentMap<File, Segment> createAppendSegmentCache(WeaverConfigation configuration,
                                                                   Builder<File, Segment> builder) {
         builder.initialCapacity(configuration.getInitialAppendSegmentCapacity());
@@ -673,6 +990,29 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return builder.build();
     }
 
+    private EventChannel createEventChannel(Role role, Node partner,
+                                            UUID channel, Replicator replicator) {
+        File root = roots.hash(point(channel));
+        DiskLane lane = lanes.get(root);
+        EventChannel eventChannel = new EventChannel(self, role, partner,
+                                                     channel, root,
+                                                     maxSegmentSize,
+                                                     replicator,
+                                                     appendSegmentCache,
+                                                     readSegmentCache,
+                                                     appendMode,
+                                                     lane == null ? preallocators
+                                                                 : lane,
+                                                     preallocationThreshold,
+                                                     flushers.get(root),
+                                                     reclaimer,
+                                                     coldRoots == null ? null
+                                                                      : coldRoots.hash(point(channel)));
+        AckMode mode = ackModes.get(channel);
+        eventChannel.setAckMode(mode == null ? ackMode : mode);
+        return eventChannel;
+    }
+
     private ConcurrentMap<File, Segment> createReadSegmentCache(WeaverConfigation configuration,
                                                                 Builder<File, Segment> builder) {
         builder.initialCapacity(configuration.getInitialReadSegmentCapacity());
@@ -692,6 +1032,38 @@ public class Weaver implements Bundle, Comparable<Weaver> {
         return builder.build();
     }
 
+    private void createRoot(File directory) {
+        if (!directory.exists()) {
+            if (!directory.mkdirs()) {
+                throw new IllegalStateException(
+                                                String.format("Cannot create root directory: %s",
+                                                              directory.getAbsolutePath()));
+            }
+        }
+        if (!directory.isDirectory()) {
+            throw new IllegalStateException(
+                                            String.format("Root is not a directory: %s",
+                                                          directory.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Flush the committed cursors, replicating the flushed cursors to the
+     * replicas of their channels
+     */
+    private void flushCursors() {
+        ByteBuffer records;
+        try {
+            records = cursors.flush();
+        } catch (IOException e) {
+            log.error(String.format("Unable to flush cursors on %s", self), e);
+            return;
+        }
+        if (records != null) {
+            cursors.replicate(records, this);
+        }
+    }
+
     private void infoLog(String logString, Object... args) {
         if (log.isInfoEnabled()) {
             log.info(String.format(logString, args));
@@ -699,26 +1071,157 @@ public class Weaver implements Bundle, Comparable<Weaver> {
     }
 
     /**
-     * Answer the remapped primary/mirror pairs using the nextRing
+     * Perform the pass over the channels of each root on the I/O lane of the
+     * root, so that the copies of a slow disk do not hold back the copies of
+     * the other roots, and the throttle of the pass applies to each root. The
+     * passes of all the roots are awaited, so that the passes sharing the
+     * reclaimers remain serialized. Without lanes, the pass is performed over
+     * all the channels on the calling thread.
+     */
+    private void onLanes(final RootPass pass) {
+        if (lanes.isEmpty()) {
+            pass.run(channels.values());
+            return;
+        }
+        Map<File, List<EventChannel>> rootChannels = new HashMap<File, List<EventChannel>>();
+        for (EventChannel channel : channels.values()) {
+            File root = roots.hash(point(channel.getId()));
+            List<EventChannel> residing = rootChannels.get(root);
+            if (residing == null) {
+                residing = new ArrayList<EventChannel>();
+                rootChannels.put(root, residing);
+            }
+            residing.add(channel);
+        }
+        List<Future<?>> passes = new ArrayList<Future<?>>();
+        for (Entry<File, List<EventChannel>> entry : rootChannels.entrySet()) {
+            final List<EventChannel> residing = entry.getValue();
+            DiskLane lane = lanes.get(entry.getKey());
+            Runnable rootPass = new Runnable() {
+                @Override
+                public void run() {
+                    pass.run(residing);
+                }
+            };
+            if (lane == null) {
+                rootPass.run();
+                continue;
+            }
+            try {
+                passes.add(lane.submit(rootPass));
+            } catch (RejectedExecutionException e) {
+                // the channels of the root are visited on the next pass
+                log.warn(String.format("Unable to schedule pass over root %s on %s, %s",
+                                       entry.getKey(), self, lane));
+            }
+        }
+        for (Future<?> rootPass : passes) {
+            try {
+                rootPass.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.warn(String.format("Pass over root failed on %s", self),
+                         e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Create the event channel, recovering any existing segments of the
+     * channel
+     */
+    private EventChannel openEventChannel(Role role, Node partner,
+                                          UUID channel, Replicator replicator) {
+        EventChannel eventChannel = createEventChannel(role, partner, channel,
+                                                       replicator);
+        try {
+            DiskLane lane = lanes.get(roots.hash(point(channel)));
+            eventChannel.recover(lane == null ? recoverers : lane);
+        } catch (IOException e) {
+            log.error(String.format("Unable to recover channel %s on %s, clearing the channel",
+                                    channel, self), e);
+            eventChannel.clear();
+        }
+        return eventChannel;
+    }
+
+    /**
+     * Answer the replicas of the channels that reside on other nodes
+     * 
+     * @param replicas
+     *            - the replicas of a channel, primary and mirror first
+     * @return the replicators of the additional replicas of the channel
+     */
+    private List<Replicator> replicasOf(Node[] replicas) {
+        List<Replicator> additional = new ArrayList<Replicator>();
+        for (int i = 2; i < replicas.length; i++) {
+            Replicator replicator = replicators.get(replicas[i]);
+            if (replicator != null && !self.equals(replicas[i])) {
+                additional.add(replicator);
+            }
+        }
+        return additional;
+    }
+
+    /**
+     * Answer the surviving replica of the channel that succeeds the dead
+     * primary of the channel
+     * 
+     * @param channel
+     *            - the id of the channel
+     * @param deadMembers
+     *            - the weaver nodes that have died
+     * @return the first replica of the channel that is not dead, or null if
+     *         there is none
+     */
+    private Node successorOf(UUID channel, Collection<Node> deadMembers) {
+        for (Node node : getReplicas(channel)) {
+            if (!deadMembers.contains(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answer the replicators of the live replicas of the channel, other than
+     * the receiver, in the order of the channel's replicas
+     * 
+     * @param channel
+     *            - the id of the channel
+     */
+    private List<Replicator> survivorsOf(UUID channel) {
+        List<Replicator> survivors = new ArrayList<Replicator>();
+        for (Node node : getReplicas(channel)) {
+            Replicator replicator = replicators.get(node);
+            if (replicator != null && !self.equals(node)) {
+                survivors.add(replicator);
+            }
+        }
+        return survivors;
+    }
+
+    /**
+     * Answer the remapped replicas using the nextRing
      * 
-     * @param nextRing
-     *            - the new weaver hash ring
      * @return the remapping of channels hosted on this node that have changed
-     *         their primary or mirror in the new hash ring
+     *         their replicas in the new hash ring
      */
     protected Map<UUID, Node[][]> remap() {
         Map<UUID, Node[][]> remapped = new HashMap<UUID, Node[][]>();
         for (Entry<UUID, EventChannel> entry : channels.entrySet()) {
             long channelPoint = point(entry.getKey());
-            List<Node> newPair = nextRing.hash(channelPoint, 2);
-            Node[] oldPair = entry.getValue().getOriginalMapping(self);
-            if (oldPair[0].equals(self) || oldPair[1].equals(self)) {
-                if (!oldPair[0].equals(newPair.get(0))
-                    || !oldPair[1].equals(newPair.get(1))) {
-                    remapped.put(entry.getKey(), new Node[][] {
-                            entry.getValue().getOriginalMapping(self),
-                            new Node[] { newPair.get(0), newPair.get(1) } });
-                }
+            List<Node> newMapping = nextRing.hash(channelPoint,
+                                                  replicationFactor);
+            List<Node> oldMapping = weaverRing.hash(channelPoint,
+                                                    replicationFactor);
+            if (oldMapping.contains(self) && !oldMapping.equals(newMapping)) {
+                remapped.put(entry.getKey(),
+                             new Node[][] {
+                                     oldMapping.toArray(new Node[oldMapping.size()]),
+                                     newMapping.toArray(new Node[newMapping.size()]) });
             }
         }
         return remapped;
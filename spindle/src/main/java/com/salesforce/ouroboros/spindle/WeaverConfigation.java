@@ -31,12 +31,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import com.hellblazer.pinkie.SocketOptions;
 import com.salesforce.ouroboros.DefaultSkipStrategy;
 import com.salesforce.ouroboros.NoSkipStrategy;
 import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.Flusher.Policy;
+import com.salesforce.ouroboros.spindle.Segment.Mode;
+import com.salesforce.ouroboros.spindle.replication.AckMode;
 import com.salesforce.ouroboros.util.ConsistentHashFunction.SkipStrategy;
 import com.salesforce.ouroboros.util.LabeledThreadFactory;
 
@@ -58,35 +63,131 @@ public class WeaverConfigation {
         }
     }
 
+    public static final long          DEFAULT_CHECKPOINT_INTERVAL    = 30;
+    public static final TimeUnit      DEFAULT_CHECKPOINT_UNIT        = TimeUnit.SECONDS;
+    public static final long          DEFAULT_COMPACTION_INTERVAL    = 30;
+    public static final int           DEFAULT_COMPACTION_THROTTLE    = 4;
+    public static final TimeUnit      DEFAULT_COMPACTION_UNIT        = TimeUnit.SECONDS;
+    public static final int           DEFAULT_COMPRESSION_BLOCK      = 64 * 1024;
+    public static final long          DEFAULT_CURSOR_FLUSH_INTERVAL  = 200;
+    public static final TimeUnit      DEFAULT_CURSOR_FLUSH_UNIT      = TimeUnit.MILLISECONDS;
+    public static final int           DEFAULT_CURSOR_LOG_SIZE        = 1024 * 1024;
+    public static final long          DEFAULT_FETCH_TIMEOUT          = 30;
+    public static final TimeUnit      DEFAULT_FETCH_TIMEOUT_UNIT     = TimeUnit.SECONDS;
+    public static final long          DEFAULT_FLUSH_INTERVAL         = 100;
+    public static final TimeUnit      DEFAULT_FLUSH_INTERVAL_UNIT    = TimeUnit.MILLISECONDS;
+    public static final long          DEFAULT_FLUSH_THRESHOLD        = 1024 * 1024;
+    public static final int           DEFAULT_LANE_QUEUE_DEPTH       = 1024;
+    public static final int           DEFAULT_LANE_THREADS           = 2;
     public static final long          DEFAULT_MAX_SEGMENTSIZE        = 1000 * 1024;
+    public static final long          DEFAULT_MIGRATION_AGE          = 1;
+    public static final TimeUnit      DEFAULT_MIGRATION_AGE_UNIT     = TimeUnit.HOURS;
+    public static final long          DEFAULT_MIGRATION_INTERVAL     = 60;
+    public static final int           DEFAULT_MIGRATION_THROTTLE     = 4;
+    public static final TimeUnit      DEFAULT_MIGRATION_UNIT         = TimeUnit.SECONDS;
     public static final long          DEFAULT_PARTITION_TIMEOUT      = 60;
     public static final TimeUnit      DEFAULT_PARTITION_TIMEOUT_UNIT = TimeUnit.SECONDS;
+    public static final double        DEFAULT_PREALLOC_THRESHOLD     = 0.75;
+    public static final long          DEFAULT_RECLAIM_INTERVAL       = 10;
+    public static final int           DEFAULT_RECLAIM_THROTTLE       = 64;
+    public static final TimeUnit      DEFAULT_RECLAIM_UNIT           = TimeUnit.SECONDS;
+    public static final int           DEFAULT_REPLAY_READ_AHEAD      = 2;
+    public static final int           DEFAULT_REPLICATION_CREDIT     = 4 * 1024 * 1024;
+    public static final int           DEFAULT_REPLICATION_FACTOR     = 2;
     public static final int           DEFAULT_REPLICATION_QUEUE_SIZE = 100;
+    public static final int           DEFAULT_REPLICATION_WINDOW     = 256 * 1024;
     public static final String        DEFAULT_STATE_NAME             = "weavers";
+    private static final String       CHECKPOINTER                   = "checkpointer";
+    private static final String       FETCH_TIMER                    = "fetch timer";
+    private static final String       FLYER                          = "flyer";
+    private static final String       PREALLOCATOR                   = "preallocator";
+    private static final String       RECLAIMER                      = "reclaimer";
+    private static final String       RECOVERER                      = "recoverer";
+    private static final String       REPLAY_PREFETCHER              = "replay prefetcher";
     private static final String       REPLICATOR                     = "replicator";
     private static final String       SPINDLE                        = "spindle";
     private static final String       XEROX                          = "xerox";
 
+    private AckMode                   ackMode                        = AckMode.WRITTEN;
+    private Mode                      appendMode                     = Mode.APPEND;
     private int                       appendSegmentConcurrencyLevel  = 16;
+    private ScheduledExecutorService  checkpointer                   = Executors.newSingleThreadScheduledExecutor(new LabeledThreadFactory(
+                                                                                                                                           CHECKPOINTER));
+    private long                      checkpointInterval             = DEFAULT_CHECKPOINT_INTERVAL;
+    private TimeUnit                  checkpointIntervalUnit         = DEFAULT_CHECKPOINT_UNIT;
+    private final List<RootDirectory> coldRoots                      = new ArrayList<RootDirectory>();
+    private long                      compactionInterval             = DEFAULT_COMPACTION_INTERVAL;
+    private TimeUnit                  compactionIntervalUnit         = DEFAULT_COMPACTION_UNIT;
+    private int                       compactionThrottle             = DEFAULT_COMPACTION_THROTTLE;
+    private int                       compressionBlockSize           = DEFAULT_COMPRESSION_BLOCK;
+    private int                       compressionLevel               = Deflater.DEFAULT_COMPRESSION;
+    private boolean                   compressSealedSegments         = false;
+    private long                      cursorFlushInterval            = DEFAULT_CURSOR_FLUSH_INTERVAL;
+    private TimeUnit                  cursorFlushIntervalUnit        = DEFAULT_CURSOR_FLUSH_UNIT;
+    private int                       cursorLogSize                  = DEFAULT_CURSOR_LOG_SIZE;
+    private Policy                    durabilityPolicy               = Policy.NONE;
+    private long                      fetchTimeout                   = DEFAULT_FETCH_TIMEOUT;
+    private TimeUnit                  fetchTimeoutUnit               = DEFAULT_FETCH_TIMEOUT_UNIT;
+    private ScheduledExecutorService  fetchTimer                     = Executors.newSingleThreadScheduledExecutor(new LabeledThreadFactory(
+                                                                                                                                           FETCH_TIMER));
+    private long                      flushInterval                  = DEFAULT_FLUSH_INTERVAL;
+    private TimeUnit                  flushIntervalUnit              = DEFAULT_FLUSH_INTERVAL_UNIT;
+    private long                      flushThreshold                 = DEFAULT_FLUSH_THRESHOLD;
+    private InetSocketAddress         flyerAddress                   = new InetSocketAddress(
+                                                                                             "127.0.0.1",
+                                                                                             0);
+    private ExecutorService           flyers                         = Executors.newFixedThreadPool(10,
+                                                                                                    new LabeledThreadFactory(
+                                                                                                                             FLYER));
+    private final SocketOptions       flyerSocketOptions             = new SocketOptions();
     private Node                      id;
     private int                       initialAppendSegmentCapacity   = 16;
     private int                       initialReadSegmentCapacity     = 16;
+    private int                       laneQueueDepth                 = DEFAULT_LANE_QUEUE_DEPTH;
+    private int                       laneThreads                    = DEFAULT_LANE_THREADS;
     private int                       maximumAppendSegmentCapacity   = 4096;
     private int                       maximumReadSegmentCapacity     = 4096;
     private long                      maxSegmentSize                 = DEFAULT_MAX_SEGMENTSIZE;
+    private long                      migrationAge                   = DEFAULT_MIGRATION_AGE;
+    private TimeUnit                  migrationAgeUnit               = DEFAULT_MIGRATION_AGE_UNIT;
+    private long                      migrationInterval              = DEFAULT_MIGRATION_INTERVAL;
+    private TimeUnit                  migrationIntervalUnit          = DEFAULT_MIGRATION_UNIT;
+    private int                       migrationThrottle              = DEFAULT_MIGRATION_THROTTLE;
     private int                       numberOfReplicas               = 200;
     private int                       numberOfRootReplicas           = 200;
     private long                      partitionTimeout               = DEFAULT_PARTITION_TIMEOUT;
     private TimeUnit                  partitionTimeoutUnit           = DEFAULT_PARTITION_TIMEOUT_UNIT;
+    private double                    preallocationThreshold         = DEFAULT_PREALLOC_THRESHOLD;
+    private ExecutorService           preallocators                  = Executors.newSingleThreadExecutor(new LabeledThreadFactory(
+                                                                                                                                  PREALLOCATOR));
     private int                       readSegmentConcurrencyLevel    = 16;
+    private ScheduledExecutorService  reclaimers                     = Executors.newSingleThreadScheduledExecutor(new LabeledThreadFactory(
+                                                                                                                                           RECLAIMER));
+    private long                      reclaimInterval                = DEFAULT_RECLAIM_INTERVAL;
+    private TimeUnit                  reclaimIntervalUnit            = DEFAULT_RECLAIM_UNIT;
+    private int                       reclaimThrottle                = DEFAULT_RECLAIM_THROTTLE;
+    private ExecutorService           recoverers                     = Executors.newFixedThreadPool(4,
+                                                                                                    new LabeledThreadFactory(
+                                                                                                                             RECOVERER));
+    private ExecutorService           replayPrefetchers              = Executors.newFixedThreadPool(2,
+                                                                                                    new LabeledThreadFactory(
+                                                                                                                             REPLAY_PREFETCHER));
+    private int                       replayReadAhead                = DEFAULT_REPLAY_READ_AHEAD;
     private InetSocketAddress         replicationAddress             = new InetSocketAddress(
                                                                                              "127.0.0.1",
                                                                                              0);
+    private int                       replicationCredit              = DEFAULT_REPLICATION_CREDIT;
+    private int                       replicationFactor              = DEFAULT_REPLICATION_FACTOR;
     private int                       replicationQueueSize           = DEFAULT_REPLICATION_QUEUE_SIZE;
     private final SocketOptions       replicationSocketOptions       = new SocketOptions();
+    private int                       replicationWindow              = DEFAULT_REPLICATION_WINDOW;
     private ExecutorService           replicators                    = Executors.newFixedThreadPool(10,
                                                                                                     new LabeledThreadFactory(
                                                                                                                              REPLICATOR));
+    private long                      retentionMaxAge                = 0;
+    private TimeUnit                  retentionMaxAgeUnit            = TimeUnit.HOURS;
+    private long                      retentionMaxBytes              = 0;
+    private int                       retentionMaxSegments           = 0;
     private final List<RootDirectory> roots                          = new ArrayList<RootDirectory>();
     private SkipStrategy<File>        rootSkipStrategy               = new NoSkipStrategy<File>();
     private SkipStrategy<Node>        skipStrategy                   = new DefaultSkipStrategy();
@@ -99,6 +200,7 @@ public class WeaverConfigation {
                                                                                                                              SPINDLE));
     private final SocketOptions       spindleSocketOptions           = new SocketOptions();
     private String                    stateName                      = DEFAULT_STATE_NAME;
+    private int                       verificationRate;
     private InetSocketAddress         xeroxAddress                   = new InetSocketAddress(
                                                                                              "127.0.0.1",
                                                                                              0);
@@ -107,6 +209,25 @@ public class WeaverConfigation {
                                                                                                                              XEROX));
     private final SocketOptions       xeroxSocketOptions             = new SocketOptions();
 
+    /**
+     * Add a root of the cold tier, to which sealed segments are migrated
+     * 
+     * @param directory
+     */
+    public void addColdRoot(File directory) {
+        addColdRoot(directory, 1);
+    }
+
+    /**
+     * Add a root of the cold tier, to which sealed segments are migrated
+     * 
+     * @param directory
+     * @param weight
+     */
+    public void addColdRoot(File directory, int weight) {
+        coldRoots.add(new RootDirectory(directory, weight));
+    }
+
     public void addRoot(File directory) {
         addRoot(directory, 1);
     }
@@ -115,6 +236,20 @@ public class WeaverConfigation {
         roots.add(new RootDirectory(directory, weight));
     }
 
+    /**
+     * @return the ackMode
+     */
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    /**
+     * @return the appendMode
+     */
+    public Mode getAppendMode() {
+        return appendMode;
+    }
+
     /**
      * @return the appendSegmentConcurrencyLevel
      */
@@ -122,6 +257,167 @@ public class WeaverConfigation {
         return appendSegmentConcurrencyLevel;
     }
 
+    /**
+     * @return the checkpointer
+     */
+    public ScheduledExecutorService getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * @return the checkpointInterval
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @return the checkpointIntervalUnit
+     */
+    public TimeUnit getCheckpointIntervalUnit() {
+        return checkpointIntervalUnit;
+    }
+
+    /**
+     * @return the coldRoots
+     */
+    public List<RootDirectory> getColdRoots() {
+        return coldRoots;
+    }
+
+    /**
+     * @return the compactionInterval
+     */
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * @return the compactionIntervalUnit
+     */
+    public TimeUnit getCompactionIntervalUnit() {
+        return compactionIntervalUnit;
+    }
+
+    /**
+     * @return the compactionThrottle
+     */
+    public int getCompactionThrottle() {
+        return compactionThrottle;
+    }
+
+    /**
+     * @return the compressionBlockSize
+     */
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    /**
+     * @return the compressionLevel
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return the compressSealedSegments
+     */
+    public boolean isCompressSealedSegments() {
+        return compressSealedSegments;
+    }
+
+    /**
+     * @return the cursorFlushInterval
+     */
+    public long getCursorFlushInterval() {
+        return cursorFlushInterval;
+    }
+
+    /**
+     * @return the cursorFlushIntervalUnit
+     */
+    public TimeUnit getCursorFlushIntervalUnit() {
+        return cursorFlushIntervalUnit;
+    }
+
+    /**
+     * @return the cursorLogSize
+     */
+    public int getCursorLogSize() {
+        return cursorLogSize;
+    }
+
+    /**
+     * @return the durabilityPolicy
+     */
+    public Policy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    /**
+     * @return the fetchTimeout
+     */
+    public long getFetchTimeout() {
+        return fetchTimeout;
+    }
+
+    /**
+     * @return the fetchTimeoutUnit
+     */
+    public TimeUnit getFetchTimeoutUnit() {
+        return fetchTimeoutUnit;
+    }
+
+    /**
+     * @return the fetchTimer
+     */
+    public ScheduledExecutorService getFetchTimer() {
+        return fetchTimer;
+    }
+
+    /**
+     * @return the flushInterval
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * @return the flushIntervalUnit
+     */
+    public TimeUnit getFlushIntervalUnit() {
+        return flushIntervalUnit;
+    }
+
+    /**
+     * @return the flushThreshold
+     */
+    public long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * @return the flyerAddress
+     */
+    public InetSocketAddress getFlyerAddress() {
+        return flyerAddress;
+    }
+
+    /**
+     * @return the flyers
+     */
+    public ExecutorService getFlyers() {
+        return flyers;
+    }
+
+    /**
+     * @return the flyerSocketOptions
+     */
+    public SocketOptions getFlyerSocketOptions() {
+        return flyerSocketOptions;
+    }
+
     /**
      * @return the id
      */
@@ -143,6 +439,20 @@ public class WeaverConfigation {
         return initialReadSegmentCapacity;
     }
 
+    /**
+     * @return the laneQueueDepth
+     */
+    public int getLaneQueueDepth() {
+        return laneQueueDepth;
+    }
+
+    /**
+     * @return the laneThreads
+     */
+    public int getLaneThreads() {
+        return laneThreads;
+    }
+
     /**
      * @return the maximumAppendSegmentCapacity
      */
@@ -164,6 +474,41 @@ public class WeaverConfigation {
         return maxSegmentSize;
     }
 
+    /**
+     * @return the migrationAge
+     */
+    public long getMigrationAge() {
+        return migrationAge;
+    }
+
+    /**
+     * @return the migrationAgeUnit
+     */
+    public TimeUnit getMigrationAgeUnit() {
+        return migrationAgeUnit;
+    }
+
+    /**
+     * @return the migrationInterval
+     */
+    public long getMigrationInterval() {
+        return migrationInterval;
+    }
+
+    /**
+     * @return the migrationIntervalUnit
+     */
+    public TimeUnit getMigrationIntervalUnit() {
+        return migrationIntervalUnit;
+    }
+
+    /**
+     * @return the migrationThrottle
+     */
+    public int getMigrationThrottle() {
+        return migrationThrottle;
+    }
+
     /**
      * @return the numberOfReplicas
      */
@@ -192,6 +537,20 @@ public class WeaverConfigation {
         return partitionTimeoutUnit;
     }
 
+    /**
+     * @return the preallocationThreshold
+     */
+    public double getPreallocationThreshold() {
+        return preallocationThreshold;
+    }
+
+    /**
+     * @return the preallocators
+     */
+    public ExecutorService getPreallocators() {
+        return preallocators;
+    }
+
     /**
      * @return the readSegmentConcurrencyLevel
      */
@@ -199,6 +558,55 @@ public class WeaverConfigation {
         return readSegmentConcurrencyLevel;
     }
 
+    /**
+     * @return the reclaimers
+     */
+    public ScheduledExecutorService getReclaimers() {
+        return reclaimers;
+    }
+
+    /**
+     * @return the reclaimInterval
+     */
+    public long getReclaimInterval() {
+        return reclaimInterval;
+    }
+
+    /**
+     * @return the reclaimIntervalUnit
+     */
+    public TimeUnit getReclaimIntervalUnit() {
+        return reclaimIntervalUnit;
+    }
+
+    /**
+     * @return the reclaimThrottle
+     */
+    public int getReclaimThrottle() {
+        return reclaimThrottle;
+    }
+
+    /**
+     * @return the recoverers
+     */
+    public ExecutorService getRecoverers() {
+        return recoverers;
+    }
+
+    /**
+     * @return the replayPrefetchers
+     */
+    public ExecutorService getReplayPrefetchers() {
+        return replayPrefetchers;
+    }
+
+    /**
+     * @return the replayReadAhead
+     */
+    public int getReplayReadAhead() {
+        return replayReadAhead;
+    }
+
     /**
      * @return the replicationAddress
      */
@@ -206,6 +614,20 @@ public class WeaverConfigation {
         return replicationAddress;
     }
 
+    /**
+     * @return the replicationCredit
+     */
+    public int getReplicationCredit() {
+        return replicationCredit;
+    }
+
+    /**
+     * @return the replicationFactor
+     */
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
     /**
      * @return the replicationQueueSize
      */
@@ -220,6 +642,13 @@ public class WeaverConfigation {
         return replicationSocketOptions;
     }
 
+    /**
+     * @return the replicationWindow
+     */
+    public int getReplicationWindow() {
+        return replicationWindow;
+    }
+
     /**
      * @return the replicators
      */
@@ -227,6 +656,34 @@ public class WeaverConfigation {
         return replicators;
     }
 
+    /**
+     * @return the retentionMaxAge
+     */
+    public long getRetentionMaxAge() {
+        return retentionMaxAge;
+    }
+
+    /**
+     * @return the retentionMaxAgeUnit
+     */
+    public TimeUnit getRetentionMaxAgeUnit() {
+        return retentionMaxAgeUnit;
+    }
+
+    /**
+     * @return the retentionMaxBytes
+     */
+    public long getRetentionMaxBytes() {
+        return retentionMaxBytes;
+    }
+
+    /**
+     * @return the retentionMaxSegments
+     */
+    public int getRetentionMaxSegments() {
+        return retentionMaxSegments;
+    }
+
     /**
      * @return the roots
      */
@@ -276,6 +733,13 @@ public class WeaverConfigation {
         return stateName;
     }
 
+    /**
+     * @return the verificationRate
+     */
+    public int getVerificationRate() {
+        return verificationRate;
+    }
+
     /**
      * @return the xeroxAddress
      */
@@ -297,6 +761,22 @@ public class WeaverConfigation {
         return xeroxSocketOptions;
     }
 
+    /**
+     * @param ackMode
+     *            the ackMode to set
+     */
+    public void setAckMode(AckMode ackMode) {
+        this.ackMode = ackMode;
+    }
+
+    /**
+     * @param appendMode
+     *            the appendMode to set
+     */
+    public void setAppendMode(Mode appendMode) {
+        this.appendMode = appendMode;
+    }
+
     /**
      * @param segmentConcurrencyLevel
      *            the segmentConcurrencyLevel to set
@@ -305,6 +785,174 @@ public class WeaverConfigation {
         appendSegmentConcurrencyLevel = segmentConcurrencyLevel;
     }
 
+    /**
+     * @param checkpointer
+     *            the checkpointer to set
+     */
+    public void setCheckpointer(ScheduledExecutorService checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * @param checkpointInterval
+     *            the checkpointInterval to set
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param checkpointIntervalUnit
+     *            the checkpointIntervalUnit to set
+     */
+    public void setCheckpointIntervalUnit(TimeUnit checkpointIntervalUnit) {
+        this.checkpointIntervalUnit = checkpointIntervalUnit;
+    }
+
+    /**
+     * @param compactionInterval
+     *            the compactionInterval to set
+     */
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    /**
+     * @param compactionIntervalUnit
+     *            the compactionIntervalUnit to set
+     */
+    public void setCompactionIntervalUnit(TimeUnit compactionIntervalUnit) {
+        this.compactionIntervalUnit = compactionIntervalUnit;
+    }
+
+    /**
+     * @param compactionThrottle
+     *            the compactionThrottle to set
+     */
+    public void setCompactionThrottle(int compactionThrottle) {
+        this.compactionThrottle = compactionThrottle;
+    }
+
+    /**
+     * @param compressionBlockSize
+     *            the compressionBlockSize to set
+     */
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    /**
+     * @param compressionLevel
+     *            the compressionLevel to set
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param compressSealedSegments
+     *            the compressSealedSegments to set
+     */
+    public void setCompressSealedSegments(boolean compressSealedSegments) {
+        this.compressSealedSegments = compressSealedSegments;
+    }
+
+    /**
+     * @param cursorFlushInterval
+     *            the cursorFlushInterval to set
+     */
+    public void setCursorFlushInterval(long cursorFlushInterval) {
+        this.cursorFlushInterval = cursorFlushInterval;
+    }
+
+    /**
+     * @param cursorFlushIntervalUnit
+     *            the cursorFlushIntervalUnit to set
+     */
+    public void setCursorFlushIntervalUnit(TimeUnit cursorFlushIntervalUnit) {
+        this.cursorFlushIntervalUnit = cursorFlushIntervalUnit;
+    }
+
+    /**
+     * @param cursorLogSize
+     *            the cursorLogSize to set
+     */
+    public void setCursorLogSize(int cursorLogSize) {
+        this.cursorLogSize = cursorLogSize;
+    }
+
+    /**
+     * @param durabilityPolicy
+     *            the durabilityPolicy to set
+     */
+    public void setDurabilityPolicy(Policy durabilityPolicy) {
+        this.durabilityPolicy = durabilityPolicy;
+    }
+
+    /**
+     * @param fetchTimeout
+     *            the fetchTimeout to set
+     */
+    public void setFetchTimeout(long fetchTimeout) {
+        this.fetchTimeout = fetchTimeout;
+    }
+
+    /**
+     * @param fetchTimeoutUnit
+     *            the fetchTimeoutUnit to set
+     */
+    public void setFetchTimeoutUnit(TimeUnit fetchTimeoutUnit) {
+        this.fetchTimeoutUnit = fetchTimeoutUnit;
+    }
+
+    /**
+     * @param fetchTimer
+     *            the fetchTimer to set
+     */
+    public void setFetchTimer(ScheduledExecutorService fetchTimer) {
+        this.fetchTimer = fetchTimer;
+    }
+
+    /**
+     * @param flushInterval
+     *            the flushInterval to set
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param flushIntervalUnit
+     *            the flushIntervalUnit to set
+     */
+    public void setFlushIntervalUnit(TimeUnit flushIntervalUnit) {
+        this.flushIntervalUnit = flushIntervalUnit;
+    }
+
+    /**
+     * @param flushThreshold
+     *            the flushThreshold to set
+     */
+    public void setFlushThreshold(long flushThreshold) {
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * @param flyerAddress
+     *            the flyerAddress to set
+     */
+    public void setFlyerAddress(InetSocketAddress flyerAddress) {
+        this.flyerAddress = flyerAddress;
+    }
+
+    /**
+     * @param flyers
+     *            the flyers to set
+     */
+    public void setFlyers(ExecutorService flyers) {
+        this.flyers = flyers;
+    }
+
     /**
      * @param id
      *            the id to set
@@ -329,6 +977,23 @@ public class WeaverConfigation {
         this.initialReadSegmentCapacity = initialReadSegmentCapacity;
     }
 
+    /**
+     * @param laneQueueDepth
+     *            the laneQueueDepth to set
+     */
+    public void setLaneQueueDepth(int laneQueueDepth) {
+        this.laneQueueDepth = laneQueueDepth;
+    }
+
+    /**
+     * @param laneThreads
+     *            the number of I/O threads of each root directory, 0 if the
+     *            channels share the preallocators and recoverers
+     */
+    public void setLaneThreads(int laneThreads) {
+        this.laneThreads = laneThreads;
+    }
+
     /**
      * @param maximumSegmentCapacity
      *            the maximumSegmentCapacity to set
@@ -353,6 +1018,46 @@ public class WeaverConfigation {
         this.maxSegmentSize = maxSegmentSize;
     }
 
+    /**
+     * @param migrationAge
+     *            the migrationAge to set
+     */
+    public void setMigrationAge(long migrationAge) {
+        this.migrationAge = migrationAge;
+    }
+
+    /**
+     * @param migrationAgeUnit
+     *            the migrationAgeUnit to set
+     */
+    public void setMigrationAgeUnit(TimeUnit migrationAgeUnit) {
+        this.migrationAgeUnit = migrationAgeUnit;
+    }
+
+    /**
+     * @param migrationInterval
+     *            the migrationInterval to set
+     */
+    public void setMigrationInterval(long migrationInterval) {
+        this.migrationInterval = migrationInterval;
+    }
+
+    /**
+     * @param migrationIntervalUnit
+     *            the migrationIntervalUnit to set
+     */
+    public void setMigrationIntervalUnit(TimeUnit migrationIntervalUnit) {
+        this.migrationIntervalUnit = migrationIntervalUnit;
+    }
+
+    /**
+     * @param migrationThrottle
+     *            the migrationThrottle to set
+     */
+    public void setMigrationThrottle(int migrationThrottle) {
+        this.migrationThrottle = migrationThrottle;
+    }
+
     /**
      * @param numberOfReplicas
      *            the numberOfReplicas to set
@@ -385,6 +1090,22 @@ public class WeaverConfigation {
         this.partitionTimeoutUnit = partitionTimeoutUnit;
     }
 
+    /**
+     * @param preallocationThreshold
+     *            the preallocationThreshold to set
+     */
+    public void setPreallocationThreshold(double preallocationThreshold) {
+        this.preallocationThreshold = preallocationThreshold;
+    }
+
+    /**
+     * @param preallocators
+     *            the preallocators to set
+     */
+    public void setPreallocators(ExecutorService preallocators) {
+        this.preallocators = preallocators;
+    }
+
     /**
      * @param readSegmentConcurrencyLevel
      *            the readSegmentConcurrencyLevel to set
@@ -393,6 +1114,62 @@ public class WeaverConfigation {
         this.readSegmentConcurrencyLevel = readSegmentConcurrencyLevel;
     }
 
+    /**
+     * @param reclaimers
+     *            the reclaimers to set
+     */
+    public void setReclaimers(ScheduledExecutorService reclaimers) {
+        this.reclaimers = reclaimers;
+    }
+
+    /**
+     * @param reclaimInterval
+     *            the reclaimInterval to set
+     */
+    public void setReclaimInterval(long reclaimInterval) {
+        this.reclaimInterval = reclaimInterval;
+    }
+
+    /**
+     * @param reclaimIntervalUnit
+     *            the reclaimIntervalUnit to set
+     */
+    public void setReclaimIntervalUnit(TimeUnit reclaimIntervalUnit) {
+        this.reclaimIntervalUnit = reclaimIntervalUnit;
+    }
+
+    /**
+     * @param reclaimThrottle
+     *            the reclaimThrottle to set
+     */
+    public void setReclaimThrottle(int reclaimThrottle) {
+        this.reclaimThrottle = reclaimThrottle;
+    }
+
+    /**
+     * @param recoverers
+     *            the recoverers to set
+     */
+    public void setRecoverers(ExecutorService recoverers) {
+        this.recoverers = recoverers;
+    }
+
+    /**
+     * @param replayPrefetchers
+     *            the replayPrefetchers to set
+     */
+    public void setReplayPrefetchers(ExecutorService replayPrefetchers) {
+        this.replayPrefetchers = replayPrefetchers;
+    }
+
+    /**
+     * @param replayReadAhead
+     *            the replayReadAhead to set
+     */
+    public void setReplayReadAhead(int replayReadAhead) {
+        this.replayReadAhead = replayReadAhead;
+    }
+
     /**
      * @param replicationAddress
      *            the replicationAddress to set
@@ -401,6 +1178,22 @@ public class WeaverConfigation {
         this.replicationAddress = replicationAddress;
     }
 
+    /**
+     * @param replicationCredit
+     *            the replicationCredit to set
+     */
+    public void setReplicationCredit(int replicationCredit) {
+        this.replicationCredit = replicationCredit;
+    }
+
+    /**
+     * @param replicationFactor
+     *            the replicationFactor to set
+     */
+    public void setReplicationFactor(int replicationFactor) {
+        this.replicationFactor = replicationFactor;
+    }
+
     /**
      * @param replicationQueueSize
      *            the replicationQueueSize to set
@@ -409,6 +1202,14 @@ public class WeaverConfigation {
         this.replicationQueueSize = replicationQueueSize;
     }
 
+    /**
+     * @param replicationWindow
+     *            the replicationWindow to set
+     */
+    public void setReplicationWindow(int replicationWindow) {
+        this.replicationWindow = replicationWindow;
+    }
+
     /**
      * @param replicators
      *            the replicators to set
@@ -417,6 +1218,38 @@ public class WeaverConfigation {
         this.replicators = replicators;
     }
 
+    /**
+     * @param retentionMaxAge
+     *            the retentionMaxAge to set
+     */
+    public void setRetentionMaxAge(long retentionMaxAge) {
+        this.retentionMaxAge = retentionMaxAge;
+    }
+
+    /**
+     * @param retentionMaxAgeUnit
+     *            the retentionMaxAgeUnit to set
+     */
+    public void setRetentionMaxAgeUnit(TimeUnit retentionMaxAgeUnit) {
+        this.retentionMaxAgeUnit = retentionMaxAgeUnit;
+    }
+
+    /**
+     * @param retentionMaxBytes
+     *            the retentionMaxBytes to set
+     */
+    public void setRetentionMaxBytes(long retentionMaxBytes) {
+        this.retentionMaxBytes = retentionMaxBytes;
+    }
+
+    /**
+     * @param retentionMaxSegments
+     *            the retentionMaxSegments to set
+     */
+    public void setRetentionMaxSegments(int retentionMaxSegments) {
+        this.retentionMaxSegments = retentionMaxSegments;
+    }
+
     /**
      * @param rootSkipStrategy
      *            the rootSkipStrategy to set
@@ -457,6 +1290,15 @@ public class WeaverConfigation {
         this.stateName = stateName;
     }
 
+    /**
+     * @param verificationRate
+     *            verify the events of 1 in verificationRate appended batches,
+     *            0 if appended batches are not verified
+     */
+    public void setVerificationRate(int verificationRate) {
+        this.verificationRate = verificationRate;
+    }
+
     /**
      * @param xeroxAddress
      *            the xeroxAddress to set
@@ -475,6 +1317,37 @@ public class WeaverConfigation {
 
     public void validate() {
         assert id != null : "Id must not be null";
+        assert ackMode != null : "Ack mode must not be null";
         assert !roots.isEmpty() : "List of roots must not be empty";
+        assert appendMode != Mode.READ : "Append mode must not be READ";
+        assert checkpointInterval > 0 : "Checkpoint interval must be positive";
+        assert !compressSealedSegments || compactionInterval > 0 : "Compaction interval must be positive";
+        assert !compressSealedSegments || compactionThrottle > 0 : "Compaction throttle must be positive";
+        assert !compressSealedSegments || compressionBlockSize > 0 : "Compression block size must be positive";
+        assert compressionLevel >= Deflater.DEFAULT_COMPRESSION
+               && compressionLevel <= Deflater.BEST_COMPRESSION : "Invalid compression level";
+        assert verificationRate >= 0 : "Verification rate must not be negative";
+        assert fetchTimeout > 0 : "Fetch timeout must be positive";
+        assert cursorFlushInterval > 0 : "Cursor flush interval must be positive";
+        assert cursorLogSize >= CursorStore.RECORD_SIZE : "Cursor log size must hold a cursor record";
+        assert laneThreads >= 0 : "Lane threads must not be negative";
+        assert laneThreads == 0 || laneQueueDepth > 0 : "Lane queue depth must be positive";
+        assert coldRoots.isEmpty() || migrationAge >= 0 : "Migration age must not be negative";
+        assert coldRoots.isEmpty() || migrationInterval > 0 : "Migration interval must be positive";
+        assert coldRoots.isEmpty() || migrationThrottle > 0 : "Migration throttle must be positive";
+        assert reclaimInterval > 0 : "Reclaim interval must be positive";
+        assert reclaimThrottle > 0 : "Reclaim throttle must be positive";
+        assert replayReadAhead >= 0 : "Replay read ahead must not be negative";
+        assert replicationCredit > 0 : "Replication credit must be positive";
+        assert replicationFactor >= 2 : "Replication factor must be at least two";
+        assert replicationWindow > 0 : "Replication window must be positive";
+        assert retentionMaxAge >= 0 : "Retention age must not be negative";
+        assert retentionMaxBytes >= 0 : "Retention bytes must not be negative";
+        assert retentionMaxSegments >= 0 : "Retention segments must not be negative";
+        assert durabilityPolicy != null : "Durability policy must not be null";
+        assert durabilityPolicy != Policy.INTERVAL || flushInterval > 0 : "Flush interval must be positive";
+        assert durabilityPolicy != Policy.BYTES || flushThreshold > 0 : "Flush threshold must be positive";
+        assert preallocationThreshold >= 0.0 && preallocationThreshold <= 1.0 : "Preallocation threshold must be between 0 and 1";
+        assert appendMode != Mode.MAPPED || maxSegmentSize <= Integer.MAX_VALUE : "Mapped segments must not exceed Integer.MAX_VALUE bytes";
     }
 }
\ No newline at end of file
@@ -419,8 +419,8 @@ public class WeaverCoordinator implements Member {
     }
 
     /**
-     * Open the new channel if this node is a primary or mirror of the new
-     * channel.
+     * Open the new channel if this node is a primary, mirror or additional
+     * replica of the new channel.
      * 
      * @param channel
      *            - the id of the channel to open
@@ -457,6 +457,11 @@ public class WeaverCoordinator implements Member {
             switchboard.ringCast(new Message(self,
                                              ChannelMessage.MIRROR_OPENED,
                                              channel));
+        } else if (weaver.isReplica(channel)) {
+            // This node is an additional replica, fed by the active primary
+            weaver.openMirror(channel,
+                              activeMembers.contains(pair[0]) ? pair[0]
+                                                             : pair[1]);
         }
     }
 
@@ -753,7 +758,7 @@ public class WeaverCoordinator implements Member {
      * Rebalance the channels which this node has responsibility for
      * 
      * @param remapped
-     *            - the mapping of channels to their new primary/mirror pairs
+     *            - the mapping of channels to their original and new replicas
      */
     protected void rebalance(Map<UUID, Node[][]> remapped) {
         final Map<Node, Xerox> xeroxes = new HashMap<Node, Xerox>();
@@ -796,9 +801,8 @@ public class WeaverCoordinator implements Member {
         ArrayList<UUID> paused = new ArrayList<UUID>(remapped.size());
 
         for (Entry<UUID, Node[][]> entry : remapped.entrySet()) {
-            weaver.rebalance(xeroxes, entry.getKey(), entry.getValue()[0][0],
-                             entry.getValue()[0][1], entry.getValue()[1][0],
-                             entry.getValue()[1][1], activeMembers, this);
+            weaver.rebalance(xeroxes, entry.getKey(), entry.getValue()[0],
+                             entry.getValue()[1], activeMembers, this);
             paused.add(entry.getKey());
         }
 
@@ -58,6 +58,13 @@ public class EventSpan {
         return endpoint;
     }
 
+    /**
+     * @return the number of bytes in the span
+     */
+    public long getLength() {
+        return endpoint - offset + 1;
+    }
+
     /**
      * @return the offset
      */
@@ -65,10 +72,23 @@ public class EventSpan {
         return offset;
     }
 
+    /**
+     * @return the position of the first event of the span within the segment
+     */
+    public long getPosition() {
+        return offset - segment.getPrefix();
+    }
+
     /**
      * @return the segment
      */
     public Segment getSegment() {
         return segment;
     }
-}
\ No newline at end of file
+
+    @Override
+    public String toString() {
+        return String.format("EventSpan [%s, offset=%s, endpoint=%s]", segment,
+                             offset, endpoint);
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.Segment;
+
+/**
+ * Fans out the events of a channel to the subscribed flyers. The flyers at the
+ * tail of the channel share a single cursor: the span of each appended batch
+ * is read once and the same span is delivered to every flyer at the tail,
+ * each of which transfers the span from the segment to its socket.
+ * <p>
+ * A flyer which falls behind the tail - one with the maximum lag of spans
+ * waiting to be written - is not delivered further spans of appended batches.
+ * Instead, the flyer is given its own cursor, and catches up from its cursor
+ * whenever it has written its pending spans, in spans which extend to the end
+ * of each segment. A flyer which catches up with the tail rejoins the tail.
+ * <p>
+ * The spans of a catch up are read from the channel outside the monitor of
+ * the fan out, so that a slow catch up does not stall the publishing of the
+ * appended batches.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class FanOut {
+    public static final int        DEFAULT_MAX_LAG = 32;
+    private static final Logger    log             = LoggerFactory.getLogger(FanOut.class.getCanonicalName());
+
+    private final EventChannel     channel;
+    private final Map<Flyer, Long> laggards        = new HashMap<>();
+    private final int              maxLag;
+    // The offset following the last batch delivered to the tail
+    private long                   next            = -1L;
+    private final Set<Flyer>       tail            = new LinkedHashSet<>();
+
+    public FanOut(EventChannel channel) {
+        this(channel, DEFAULT_MAX_LAG);
+    }
+
+    /**
+     * @param channel
+     *            - the channel of the fan out
+     * @param maxLag
+     *            - the number of spans waiting to be written by a flyer at
+     *            which the flyer has fallen behind the tail
+     */
+    public FanOut(EventChannel channel, int maxLag) {
+        assert maxLag > 0 : "Maximum lag must be greater than 0";
+        this.channel = channel;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * Catch the lagging flyer up with the tail, delivering the spans following
+     * the flyer's cursor until the flyer has the maximum lag of spans waiting
+     * to be written, or the flyer has caught up with the tail
+     * 
+     * @param flyer
+     * @return true if the flyer has caught up with the tail, false if the flyer
+     *         is still lagging
+     * @throws IOException
+     */
+    public boolean catchUp(Flyer flyer) throws IOException {
+        long cursor;
+        synchronized (this) {
+            Long lagging = laggards.get(flyer);
+            if (lagging == null) {
+                return true; // unsubscribed, or already at the tail
+            }
+            cursor = lagging;
+        }
+        while (true) {
+            long end;
+            synchronized (this) {
+                if (!isLagging(flyer, cursor)) {
+                    return true; // unsubscribed during the catch up
+                }
+                if (cursor >= next) {
+                    laggards.remove(flyer);
+                    tail.add(flyer);
+                    return true;
+                }
+                if (flyer.getPending() >= maxLag) {
+                    return false;
+                }
+                end = next;
+            }
+            EventSpan span = channel.fetch(cursor, end, Integer.MAX_VALUE);
+            synchronized (this) {
+                if (!isLagging(flyer, cursor)) {
+                    return true; // unsubscribed during the catch up
+                }
+                if (span == null) {
+                    cursor = end;
+                } else {
+                    flyer.deliver(span);
+                    cursor = span.getEndpoint() + 1;
+                }
+                laggards.put(flyer, cursor);
+            }
+        }
+    }
+
+    /**
+     * Reset the cursor of the tail, as the channel has been cleared
+     */
+    public synchronized void clear() {
+        next = -1L;
+    }
+
+    /**
+     * @return the number of flyers with their own cursor
+     */
+    public synchronized int getLaggards() {
+        return laggards.size();
+    }
+
+    /**
+     * @return the number of flyers sharing the cursor of the tail
+     */
+    public synchronized int getTail() {
+        return tail.size();
+    }
+
+    /**
+     * Deliver the span of the appended batch to the flyers at the tail. The
+     * batch has been appended whether or not it can be delivered, so a failure
+     * to read the batch's segment is not raised to the appender. Instead, the
+     * flyers at the tail are given their own cursor at the batch, and read the
+     * batch from the channel as they catch up.
+     * 
+     * @param offset
+     *            - the offset of the batch
+     * @param length
+     *            - the byte length of the batch
+     * @param segment
+     *            - the segment the batch was appended to
+     */
+    public synchronized void publish(long offset, int length, Segment segment) {
+        if (offset < next) {
+            return; // the batch was delivered when the flyers subscribed
+        }
+        next = offset + length;
+        if (tail.isEmpty()) {
+            return;
+        }
+        EventSpan span;
+        try {
+            span = new EventSpan(channel.readSegmentFor(segment), offset,
+                                 next - 1);
+        } catch (IOException e) {
+            log.error(String.format("Unable to read %s for the flyers of %s at %s",
+                                    segment, channel.getId(), offset), e);
+            for (Flyer flyer : tail) {
+                laggards.put(flyer, offset);
+                flyer.lagging(this);
+            }
+            tail.clear();
+            return;
+        }
+        for (Iterator<Flyer> flyers = tail.iterator(); flyers.hasNext();) {
+            Flyer flyer = flyers.next();
+            if (flyer.getPending() >= maxLag) {
+                flyers.remove();
+                laggards.put(flyer, offset);
+                flyer.lagging(this);
+                if (log.isInfoEnabled()) {
+                    log.info(String.format("%s lagging on %s at %s", flyer,
+                                           channel.getId(), offset));
+                }
+            } else {
+                flyer.deliver(span);
+            }
+        }
+    }
+
+    /**
+     * Subscribe the flyer to the events of the channel. The flyer is delivered
+     * the spans of the events following the start, and joins the tail when it
+     * has caught up with the tail.
+     * 
+     * @param flyer
+     * @param start
+     *            - the offset of the first event to deliver to the flyer
+     * @throws IOException
+     */
+    public void subscribe(Flyer flyer, long start) throws IOException {
+        synchronized (this) {
+            if (next < 0) {
+                next = channel.getNextOffset();
+            }
+            tail.remove(flyer);
+            laggards.put(flyer, start);
+        }
+        if (!catchUp(flyer)) {
+            flyer.lagging(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FanOut[%s]", channel.getId());
+    }
+
+    /**
+     * Unsubscribe the flyer from the events of the channel
+     * 
+     * @param flyer
+     */
+    public synchronized void unsubscribe(Flyer flyer) {
+        tail.remove(flyer);
+        laggards.remove(flyer);
+    }
+
+    /**
+     * @return true if the flyer is still lagging at the cursor
+     */
+    private boolean isLagging(Flyer flyer, long cursor) {
+        Long lagging = laggards.get(flyer);
+        return lagging != null && lagging == cursor;
+    }
+}
@@ -0,0 +1,685 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.salesforce.ouroboros.EventFilter;
+import com.salesforce.ouroboros.EventHeader;
+import com.salesforce.ouroboros.FetchHeader;
+import com.salesforce.ouroboros.SpanHeader;
+import com.salesforce.ouroboros.spindle.Bundle;
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * The fetcher answers the fetches of a consumer. The consumer may pipeline its
+ * fetches, which are answered in order. Each fetch is answered with the
+ * {@link SpanHeader} of the span of fetched events, followed by the events of
+ * the span, which are transferred directly from the segment to the socket.
+ * <p>
+ * A fetch of events which have yet to be appended to the channel is held open
+ * until a batch is appended to the channel, or the fetch expires, in which
+ * case the fetch is answered with an empty span.
+ * <p>
+ * The consumer identified on the connection commits its cursors of the
+ * fetched channels in the cursor store of the weaver, and may resume fetching
+ * a channel from its committed cursor.
+ * <p>
+ * Fetches of the events of the sealed segments of a channel are answered from
+ * a {@link Replay} of the channel, which prefetches the segments following the
+ * fetched segment.
+ * <p>
+ * The consumer may set an {@link EventFilter} on a channel. The fetcher walks
+ * the headers of the fetched events of a filtered channel, skipping the events
+ * which do not match the filter, and answers the fetch with the span of the
+ * contiguous run of matching events, so that the span is still transferred
+ * directly from the segment. A fetch which scans {@link #MAX_FILTER_SCAN}
+ * spans without a match is answered with an empty span following the scanned
+ * events.
+ * <p>
+ * The consumer may seek a channel to a time, positioning the following fetches
+ * of the next offset of the channel at the events received by the weaver at or
+ * after the time, as resolved by the time index of the channel.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Fetcher implements CommunicationsHandler {
+    private static class Fetch {
+        UUID channel;
+        int  maxBytes;
+        long offset;
+    }
+
+    public static final int                MAX_FILTER_SCAN = 16;
+    public static final int                MAX_PENDING = 16;
+    private static final Logger            log         = LoggerFactory.getLogger(Fetcher.class.getCanonicalName());
+
+    // The channels on which the receiver awaits an append
+    private final Set<EventChannel>        awaited     = Collections.newSetFromMap(new ConcurrentHashMap<EventChannel, Boolean>());
+    private final Bundle                   bundle;
+    private UUID                           consumer;
+    // The offset following the events walked by the current fetch
+    private long                           cursor;
+    private final Map<UUID, Long>          cursors     = new HashMap<>();
+    private boolean                        expired;
+    private ScheduledFuture<?>             expiry;
+    // The body of the filter being read
+    private ByteBuffer                     filterBytes;
+    private final Map<UUID, EventFilter>   filters     = new HashMap<>();
+    private final Deque<Fetch>             free        = new ArrayDeque<>();
+    private SocketChannelHandler           handler;
+    private final SpanHeader               header      = new SpanHeader();
+    private ByteBuffer                     probe       = ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE);
+    private final Deque<Fetch>             pending     = new ArrayDeque<>();
+    private long                           position;
+    private final ExecutorService          prefetcher;
+    private final int                      readAhead;
+    private boolean                        reading;
+    private long                           remaining;
+    private final Map<UUID, Replay>        replays     = new HashMap<>();
+    private final FetchHeader              request     = new FetchHeader();
+    private long                           served;
+    private EventSpan                      span;
+    // The end offsets of the matching events split by the previous span
+    private final Map<UUID, Long>          splits      = new HashMap<>();
+    private final long                     timeout;
+    private final ScheduledExecutorService timer;
+    private final TimeUnit                 timeoutUnit;
+    private boolean                        writing;
+
+    /**
+     * @param bundle
+     * @param timer
+     *            - the timer expiring the fetches held open
+     * @param timeout
+     *            - the time a fetch is held open
+     * @param timeoutUnit
+     */
+    public Fetcher(Bundle bundle, ScheduledExecutorService timer,
+                   long timeout, TimeUnit timeoutUnit) {
+        this(bundle, timer, timeout, timeoutUnit, 0, null);
+    }
+
+    /**
+     * @param bundle
+     * @param timer
+     *            - the timer expiring the fetches held open
+     * @param timeout
+     *            - the time a fetch is held open
+     * @param timeoutUnit
+     * @param readAhead
+     *            - the number of segments prefetched ahead of a replayed
+     *            segment, or 0 if sealed segments are not replayed
+     * @param prefetcher
+     *            - the executor prefetching the replayed segments
+     */
+    public Fetcher(Bundle bundle, ScheduledExecutorService timer,
+                   long timeout, TimeUnit timeoutUnit, int readAhead,
+                   ExecutorService prefetcher) {
+        this.bundle = bundle;
+        this.timer = timer;
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+        this.readAhead = readAhead;
+        this.prefetcher = prefetcher;
+    }
+
+    @Override
+    public synchronized void accept(SocketChannelHandler handler) {
+        this.handler = handler;
+        reading = true;
+        handler.selectForRead();
+    }
+
+    /**
+     * Wake the receiver, as a batch has been appended to the channel
+     * 
+     * @param channel
+     */
+    public void appended(EventChannel channel) {
+        awaited.remove(channel);
+        SocketChannelHandler h = handler;
+        if (h != null) {
+            h.selectForWrite();
+        }
+    }
+
+    @Override
+    public synchronized void closing() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        pending.clear();
+        span = null;
+        filterBytes = null;
+        for (Replay replay : replays.values()) {
+            replay.close();
+        }
+        replays.clear();
+        for (EventChannel channel : awaited) {
+            channel.unawait(this);
+        }
+        awaited.clear();
+    }
+
+    @Override
+    public void connect(SocketChannelHandler handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the number of fetches waiting to be answered
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized void readReady() {
+        try {
+            while (pending.size() < MAX_PENDING) {
+                if (filterBytes != null) {
+                    if (handler.getChannel().read(filterBytes) < 0) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("Closing channel");
+                        }
+                        handler.close();
+                        return;
+                    }
+                    if (filterBytes.hasRemaining()) {
+                        break;
+                    }
+                    filterBytes.flip();
+                    filter(request.getChannel(), new EventFilter(filterBytes));
+                    filterBytes = null;
+                    request.clear();
+                    continue;
+                }
+                if (request.read(handler.getChannel()) < 0) {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Closing channel");
+                    }
+                    handler.close();
+                    return;
+                }
+                if (request.hasRemaining()) {
+                    break;
+                }
+                int magic = request.getMagic();
+                if (magic == FetchHeader.IDENTIFY) {
+                    consumer = request.getChannel();
+                    request.clear();
+                    continue;
+                }
+                if (magic == FetchHeader.COMMIT && consumer != null) {
+                    bundle.getCursorStore().commit(consumer,
+                                                   request.getChannel(),
+                                                   request.getOffset());
+                    request.clear();
+                    continue;
+                }
+                if (magic == FetchHeader.FILTER) {
+                    int length = request.getMaxBytes();
+                    if (length < EventFilter.MIN_BYTE_SIZE
+                        || length > EventFilter.MAX_BYTE_SIZE) {
+                        log.warn(String.format("Invalid filter %s on %s",
+                                               request, bundle.getId()));
+                        handler.close();
+                        return;
+                    }
+                    filterBytes = ByteBuffer.allocate(length);
+                    continue;
+                }
+                if (magic == FetchHeader.SEEK) {
+                    seek(request.getChannel(), request.getOffset());
+                    request.clear();
+                    continue;
+                }
+                if (magic != FetchHeader.MAGIC || request.getMaxBytes() <= 0) {
+                    log.warn(String.format("Invalid fetch %s on %s", request,
+                                           bundle.getId()));
+                    handler.close();
+                    return;
+                }
+                Fetch fetch = free.isEmpty() ? new Fetch() : free.pop();
+                fetch.channel = request.getChannel();
+                fetch.offset = request.getOffset();
+                fetch.maxBytes = request.getMaxBytes();
+                pending.add(fetch);
+                request.clear();
+            }
+        } catch (IOException e) {
+            if (Utils.isClose(e)) {
+                log.info(String.format("closing fetcher on %s", bundle.getId()));
+            } else {
+                log.warn(String.format("Unable to read fetch on %s",
+                                       bundle.getId()), e);
+            }
+            handler.close();
+            return;
+        } catch (IllegalArgumentException e) {
+            log.warn(String.format("Invalid filter on %s", bundle.getId()), e);
+            handler.close();
+            return;
+        }
+        // stop reading fetches until the pending fetches are answered
+        reading = pending.size() < MAX_PENDING;
+        if (reading) {
+            handler.selectForRead();
+        }
+        if (!writing) {
+            serve();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Fetcher[%s, pending=%s]", bundle.getId(),
+                             pending.size());
+    }
+
+    @Override
+    public synchronized void writeReady() {
+        serve();
+    }
+
+    private void complete() {
+        free.push(pending.poll());
+        span = null;
+        writing = false;
+        served++;
+        if (!reading) {
+            reading = true;
+            handler.selectForRead();
+        }
+    }
+
+    private synchronized void expire(long fetch) {
+        if (served != fetch || expiry == null) {
+            return; // the fetch has been answered
+        }
+        expiry = null;
+        expired = true;
+        handler.selectForWrite();
+    }
+
+    /**
+     * Set the filter of the events of the channel
+     * 
+     * @param channel
+     * @param eventFilter
+     */
+    private void filter(UUID channel, EventFilter eventFilter) {
+        splits.remove(channel);
+        if (eventFilter.matchesAll()) {
+            filters.remove(channel);
+        } else {
+            filters.put(channel, eventFilter);
+            int capacity = EventHeader.HEADER_BYTE_SIZE
+                           + eventFilter.getPrefixLength();
+            if (probe.capacity() < capacity) {
+                probe = ByteBuffer.allocate(capacity);
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Filtering %s with %s on %s", channel,
+                                   eventFilter, bundle.getId()));
+        }
+    }
+
+    /**
+     * Answer the leading run of the events of the span which match the filter,
+     * skipping the events preceding the run. The cursor is advanced past the
+     * walked events. A matching event split by the end of the span is
+     * continued by the next span of the channel.
+     * 
+     * @return the span of the run of matching events, or null if no event of
+     *         the span matches the filter
+     * @throws IOException
+     */
+    private EventSpan match(UUID channel, EventFilter eventFilter,
+                            EventSpan fetched) throws IOException {
+        Segment segment = fetched.getSegment().acquireForRead();
+        try {
+            return match(channel, eventFilter, fetched, segment);
+        } finally {
+            segment.release();
+        }
+    }
+
+    /**
+     * Answer the leading run of the matching events of the span, read from the
+     * acquired segment of the span
+     */
+    private EventSpan match(UUID channel, EventFilter eventFilter,
+                            EventSpan fetched, Segment segment)
+                                                               throws IOException {
+        long end = fetched.getEndpoint() + 1;
+        long offset = fetched.getOffset();
+        long start = -1L;
+        Long split = splits.remove(channel);
+        if (split != null && split > offset) {
+            start = offset;
+            offset = split;
+        }
+        EventHeader event = new EventHeader(probe);
+        ByteBuffer payload = probe.duplicate();
+        while (offset < end) {
+            probe.clear();
+            probe.limit(EventHeader.HEADER_BYTE_SIZE
+                        + eventFilter.getPrefixLength());
+            long position = offset - segment.getPrefix();
+            while (probe.hasRemaining()) {
+                int read = segment.read(probe, position + probe.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            payload.limit(probe.position());
+            payload.position(Math.min(EventHeader.HEADER_BYTE_SIZE,
+                                      probe.position()));
+            if (eventFilter.matches(event, payload)) {
+                if (start < 0) {
+                    start = offset;
+                }
+            } else if (start >= 0) {
+                break;
+            }
+            offset += event.totalSize();
+        }
+        if (start < 0) {
+            cursor = offset;
+            return null;
+        }
+        if (offset > end) {
+            splits.put(channel, offset);
+            offset = end;
+        }
+        cursor = offset;
+        return new EventSpan(segment, start, offset - 1);
+    }
+
+    /**
+     * Answer the next span of the channel at the cursor, matching the filter
+     * 
+     * @return the next span of the channel, or null if no events have been
+     *         appended at the cursor
+     * @throws IOException
+     */
+    private EventSpan next(EventChannel channel, EventFilter eventFilter,
+                           int maxBytes) throws IOException {
+        EventSpan fetched = null;
+        for (int scanned = 0; scanned < MAX_FILTER_SCAN; scanned++) {
+            fetched = replay(channel, cursor, maxBytes);
+            if (fetched == null) {
+                return null;
+            }
+            if (eventFilter == null) {
+                cursor = fetched.getEndpoint() + 1;
+                return fetched;
+            }
+            EventSpan run = match(channel.getId(), eventFilter, fetched);
+            if (run != null) {
+                return run;
+            }
+        }
+        // answer the scanned events with an empty span
+        return new EventSpan(fetched.getSegment(), cursor, cursor - 1);
+    }
+
+    /**
+     * Prepare the answer to the fetch
+     * 
+     * @return true if the fetch is ready to be answered, false if the fetch is
+     *         held open
+     * @throws IOException
+     */
+    private boolean prepare(Fetch fetch) throws IOException {
+        long offset = fetch.offset;
+        if (offset == FetchHeader.NEXT_OFFSET) {
+            Long cursor = cursors.get(fetch.channel);
+            offset = cursor == null ? 0L : cursor;
+        } else if (offset == FetchHeader.CURSOR_OFFSET) {
+            long committed = consumer == null ? -1L
+                                             : bundle.getCursorStore().cursorFor(consumer,
+                                                                                 fetch.channel);
+            offset = committed < 0 ? 0L : committed;
+            splits.remove(fetch.channel);
+        } else {
+            splits.remove(fetch.channel);
+        }
+        EventChannel channel = bundle.eventChannelFor(fetch.channel);
+        if (channel == null) {
+            header.set(fetch.channel, offset, SpanHeader.NOT_HOSTED);
+            remaining = 0;
+            return true;
+        }
+        EventFilter eventFilter = filters.get(fetch.channel);
+        cursor = offset;
+        span = next(channel, eventFilter, fetch.maxBytes);
+        if (span == null && !expired) {
+            if (awaited.add(channel)) {
+                channel.await(this);
+            }
+            // recheck, the batch may have been appended before awaiting
+            span = next(channel, eventFilter, fetch.maxBytes);
+            if (span == null) {
+                // the skipped events are not walked again
+                cursors.put(fetch.channel, cursor);
+                if (expiry == null) {
+                    final long current = served;
+                    expiry = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire(current);
+                        }
+                    }, timeout, timeoutUnit);
+                }
+                return false;
+            }
+        }
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        expired = false;
+        if (span == null) {
+            header.set(fetch.channel, cursor, 0L);
+            remaining = 0;
+        } else {
+            header.set(fetch.channel, span.getOffset(), span.getLength());
+            position = span.getPosition();
+            remaining = span.getLength();
+        }
+        cursors.put(fetch.channel, cursor);
+        return true;
+    }
+
+    /**
+     * Answer the span of the events at the offset, replaying the sealed
+     * segments of the channel
+     * 
+     * @return the span of the events at the offset, or null if no events have
+     *         been appended at the offset
+     * @throws IOException
+     */
+    private EventSpan replay(EventChannel channel, long offset, int maxBytes)
+                                                                             throws IOException {
+        if (readAhead > 0) {
+            Replay replay = replays.get(channel.getId());
+            if (replay == null) {
+                replay = channel.replay(offset, readAhead, prefetcher);
+                if (replay != null) {
+                    replays.put(channel.getId(), replay);
+                }
+            }
+            if (replay != null) {
+                EventSpan replayed = replay.fetch(offset, maxBytes);
+                if (replayed != null) {
+                    return replayed;
+                }
+                // the replay has reached the tail of the channel
+                replay.close();
+                replays.remove(channel.getId());
+            }
+        }
+        return channel.fetch(offset, maxBytes);
+    }
+
+    /**
+     * Seek the channel to the time, positioning the following fetches of the
+     * next offset of the channel at the events received at or after the time
+     * 
+     * @param channel
+     * @param time
+     *            - the time in milliseconds since the epoch
+     * @throws IOException
+     */
+    private void seek(UUID channel, long time) throws IOException {
+        EventChannel eventChannel = bundle.eventChannelFor(channel);
+        if (eventChannel == null) {
+            log.warn(String.format("Unable to seek %s, the channel is not hosted on %s",
+                                   channel, bundle.getId()));
+            return;
+        }
+        long offset = eventChannel.offsetFor(time);
+        cursors.put(channel, offset);
+        splits.remove(channel);
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Seeking %s to %s at %s on %s", channel,
+                                   offset, time, bundle.getId()));
+        }
+    }
+
+    /**
+     * Answer the pending fetches, until the fetches are exhausted, a fetch is
+     * held open or the socket cannot accept more bytes
+     */
+    private void serve() {
+        while (true) {
+            if (!writing) {
+                Fetch fetch = pending.peek();
+                if (fetch == null) {
+                    return;
+                }
+                try {
+                    if (!prepare(fetch)) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    log.warn(String.format("Unable to fetch %s from %s on %s",
+                                           fetch.offset, fetch.channel,
+                                           bundle.getId()), e);
+                    handler.close();
+                    return;
+                }
+                writing = true;
+            }
+            try {
+                if (!writeSpan()) {
+                    handler.selectForWrite();
+                    return;
+                }
+            } catch (IOException e) {
+                if (Utils.isClose(e)) {
+                    log.info(String.format("closing fetcher on %s",
+                                           bundle.getId()));
+                } else {
+                    log.warn(String.format("Unable to write %s on %s", span,
+                                           bundle.getId()), e);
+                }
+                handler.close();
+                return;
+            }
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Answered %s on %s", header,
+                                        bundle.getId()));
+            }
+            complete();
+        }
+    }
+
+    /**
+     * @return true if the span has been completely written
+     * @throws IOException
+     */
+    private boolean writeSpan() throws IOException {
+        if (header.hasRemaining()) {
+            if (header.write(handler.getChannel()) < 0) {
+                throw new IOException("Socket closed");
+            }
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        if (remaining == 0) {
+            return true;
+        }
+        // The use of the segment defers its release by a concurrent eviction
+        Segment segment = span.getSegment().acquireForRead();
+        try {
+            if (segment != span.getSegment()) {
+                // The segment has been evicted from the segment cache
+                span = new EventSpan(segment, span.getOffset(),
+                                     span.getEndpoint());
+            }
+            while (remaining > 0) {
+                long written = segment.transferTo(position, remaining,
+                                                  handler.getChannel());
+                if (written <= 0) {
+                    return false;
+                }
+                position += written;
+                remaining -= written;
+            }
+        } finally {
+            segment.release();
+        }
+        return true;
+    }
+}
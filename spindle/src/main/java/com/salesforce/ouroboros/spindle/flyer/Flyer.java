@@ -25,14 +25,33 @@
  */
 package com.salesforce.ouroboros.spindle.flyer;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.HashSet;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.salesforce.ouroboros.SpanHeader;
 import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.util.Utils;
 
 /**
+ * The flyer delivers the events of the subscribed channels to a consumer. The
+ * channels deliver the spans of their appended events to the flyer, which
+ * writes each span on the socket, preceded by the {@link SpanHeader}. The
+ * events of the span are transferred directly from the segment to the socket.
+ * <p>
+ * A flyer which falls behind the tail of a channel catches up with the
+ * channel's {@link FanOut} whenever it has written its pending spans.
  * 
  * “For Fate has wove the thread of life with pain And twins even from the birth
  * are Misery and Man”
@@ -41,15 +60,202 @@ import com.salesforce.ouroboros.spindle.EventChannel;
  * 
  */
 public class Flyer {
-    private final Set<EventChannel> subscriptions = new HashSet<>();
-    private final Deque<EventSpan>  thread        = new LinkedBlockingDeque<>();
+    public static final int               SPAN_HEADER_SIZE = SpanHeader.HEADER_BYTE_SIZE;
+    static final Logger                   log              = LoggerFactory.getLogger(Flyer.class.getCanonicalName());
 
-    public void subscribe(EventChannel channel, long lastEventId) {
-        subscriptions.add(channel);
-        channel.subscribe(this, lastEventId);
+    private EventSpan                     current;
+    private volatile SocketChannelHandler handler;
+    private final SpanHeader              header           = new SpanHeader();
+    private final Queue<FanOut>           lagging          = new ConcurrentLinkedQueue<>();
+    private long                          position;
+    private long                          remaining;
+    private final Set<EventChannel>       subscriptions    = Collections.newSetFromMap(new ConcurrentHashMap<EventChannel, Boolean>());
+    private final Deque<EventSpan>        thread           = new LinkedBlockingDeque<>();
+    private final AtomicBoolean           writing          = new AtomicBoolean();
+
+    public void closing() {
+        for (EventChannel channel : subscriptions) {
+            channel.unsubscribe(this);
+        }
+        subscriptions.clear();
+        lagging.clear();
+        thread.clear();
+        current = null;
+    }
+
+    public void connect(SocketChannelHandler handler) {
+        this.handler = handler;
+        if (!thread.isEmpty()) {
+            selectForWrite();
+        }
     }
 
+    /**
+     * Deliver the span of events to the consumer
+     * 
+     * @param span
+     */
     public void deliver(EventSpan span) {
         thread.add(span);
+        if (handler != null) {
+            selectForWrite();
+        }
+    }
+
+    /**
+     * @return the number of spans waiting to be written
+     */
+    public int getPending() {
+        return thread.size();
+    }
+
+    /**
+     * Mark the receiver as lagging behind the tail of the fan out. The receiver
+     * catches up with the fan out when the pending spans have been written
+     * 
+     * @param fanOut
+     */
+    public void lagging(FanOut fanOut) {
+        lagging.add(fanOut);
+        if (handler != null) {
+            selectForWrite();
+        }
+    }
+
+    /**
+     * Subscribe to the events of the channel following the last event
+     * 
+     * @param channel
+     * @param lastEventId
+     *            - the offset of the last event received, or -1 to receive all
+     *            the events of the channel
+     * @throws IOException
+     */
+    public void subscribe(EventChannel channel, long lastEventId)
+                                                                 throws IOException {
+        subscriptions.add(channel);
+        channel.subscribe(this, lastEventId);
+    }
+
+    /**
+     * Unsubscribe from the events of the channel
+     * 
+     * @param channel
+     */
+    public void unsubscribe(EventChannel channel) {
+        subscriptions.remove(channel);
+        channel.unsubscribe(this);
+    }
+
+    /**
+     * Write the pending spans, until the spans are exhausted or the socket
+     * cannot accept more bytes
+     */
+    public void writeReady() {
+        while (true) {
+            if (current == null) {
+                current = thread.poll();
+                if (current == null && !lagging.isEmpty()) {
+                    catchUp();
+                    current = thread.poll();
+                }
+                if (current == null) {
+                    writing.set(false);
+                    // recheck, a span may have been delivered after the poll
+                    if (thread.isEmpty() || !writing.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                header.set(current.getSegment().getEventChannel().getId(),
+                           current.getOffset(), current.getLength());
+                position = current.getPosition();
+                remaining = current.getLength();
+            }
+            try {
+                if (!writeSpan()) {
+                    handler.selectForWrite();
+                    return;
+                }
+            } catch (IOException e) {
+                if (Utils.isClose(e)) {
+                    log.info(String.format("closing flyer %s", this));
+                } else {
+                    log.warn(String.format("Unable to write %s on %s", current,
+                                           this), e);
+                }
+                handler.close();
+                return;
+            }
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Delivered %s on %s", current, this));
+            }
+            current = null;
+        }
+    }
+
+    /**
+     * Catch up with the fan outs the receiver is lagging behind
+     */
+    private void catchUp() {
+        for (int i = lagging.size(); i > 0; i--) {
+            FanOut fanOut = lagging.poll();
+            if (fanOut == null) {
+                return;
+            }
+            try {
+                if (!fanOut.catchUp(this)) {
+                    lagging.add(fanOut);
+                }
+            } catch (IOException e) {
+                log.warn(String.format("Unable to catch up with %s on %s",
+                                       fanOut, this), e);
+            }
+        }
+    }
+
+    private void selectForWrite() {
+        if (writing.compareAndSet(false, true)) {
+            handler.selectForWrite();
+        }
+    }
+
+    /**
+     * @return true if the span has been completely written
+     * @throws IOException
+     */
+    private boolean writeSpan() throws IOException {
+        if (header.hasRemaining()) {
+            if (header.write(handler.getChannel()) < 0) {
+                throw new IOException("Socket closed");
+            }
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        if (remaining == 0) {
+            return true;
+        }
+        // The use of the segment defers its release by a concurrent eviction
+        Segment segment = current.getSegment().acquireForRead();
+        try {
+            if (segment != current.getSegment()) {
+                // The segment has been evicted from the segment cache
+                current = new EventSpan(segment, current.getOffset(),
+                                        current.getEndpoint());
+            }
+            while (remaining > 0) {
+                long written = segment.transferTo(position, remaining,
+                                                  handler.getChannel());
+                if (written <= 0) {
+                    return false;
+                }
+                position += written;
+                remaining -= written;
+            }
+        } finally {
+            segment.release();
+        }
+        return true;
     }
 }
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.spindle.Segment.Mode;
+
+/**
+ * Replays the sealed segments of a channel in order. While the events of the
+ * current segment are streamed, the following segments are prefetched in the
+ * background, up to the read ahead. A segment is opened when the replay
+ * reaches it, and the replay never waits on an unfinished prefetch, as the
+ * replay is driven from the selector thread of the fetcher. The replay opens
+ * its own segments rather than the cached read segments of the channel, so
+ * that a replay of the history of the channel does not displace the segments
+ * of the readers at the tail from the read segment cache. Each segment is
+ * closed when the replay moves past it.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Replay {
+    private static final Logger          log        = LoggerFactory.getLogger(Replay.class.getCanonicalName());
+
+    // The files being prefetched, in increasing offset order
+    private final Deque<File>            ahead      = new ArrayDeque<>();
+    private final EventChannel           channel;
+    private Segment                      current;
+    private final Deque<File>            files;
+    // The offset following the last span of the replay
+    private long                         next       = -1L;
+    private final ExecutorService        prefetcher;
+    // The prefetches of the files ahead
+    private final Deque<Future<Long>>    prefetches = new ArrayDeque<>();
+    private final int                    readAhead;
+
+    /**
+     * @param channel
+     *            - the channel replayed
+     * @param files
+     *            - the sealed segment files to replay, in increasing offset
+     *            order
+     * @param readAhead
+     *            - the number of segments prefetched ahead of the current
+     *            segment
+     * @param prefetcher
+     *            - the executor prefetching the segments
+     */
+    public Replay(EventChannel channel, Deque<File> files, int readAhead,
+                  ExecutorService prefetcher) {
+        assert readAhead >= 0 : "Read ahead must not be negative";
+        assert readAhead == 0 || prefetcher != null : "Prefetcher must not be null";
+        this.channel = channel;
+        this.files = files;
+        this.readAhead = readAhead;
+        this.prefetcher = prefetcher;
+        readAhead();
+    }
+
+    /**
+     * Close the replay, closing the open segments
+     */
+    public void close() {
+        close(current);
+        current = null;
+        for (Future<Long> prefetch : prefetches) {
+            prefetch.cancel(false);
+        }
+        prefetches.clear();
+        ahead.clear();
+        files.clear();
+    }
+
+    /**
+     * Answer the span of the events at the offset, up to the maximum bytes.
+     * The span does not extend past the events of the offset's segment. The
+     * segments preceding the offset's segment are closed, and the replay only
+     * moves forward. An offset following the events of a segment is advanced
+     * to the first event of the next segment.
+     * 
+     * @param offset
+     *            - the offset of the first event of the span
+     * @param maxBytes
+     *            - the maximum byte length of the span
+     * @return the span of the events at the offset, or null if the offset
+     *         precedes the replay, or follows the segments of the replay
+     * @throws IOException
+     */
+    public EventSpan fetch(long offset, int maxBytes) throws IOException {
+        if (offset < next) {
+            return null;
+        }
+        while (current == null || offset >= current.getPrefix() + current.size()) {
+            close(current);
+            current = next();
+            if (current == null) {
+                return null;
+            }
+        }
+        offset = Math.max(offset, current.getPrefix());
+        next = Math.min(current.getPrefix() + current.size(), offset + maxBytes);
+        return new EventSpan(current, offset, next - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Replay[%s, %s]", channel.getId(), current);
+    }
+
+    private void close(Segment segment) {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            log.trace(String.format("Error closing %s", segment));
+        }
+    }
+
+    /**
+     * Open the next segment of the replay. The segment is opened whether or
+     * not its prefetch has completed; an unfinished prefetch continues to warm
+     * the page cache ahead of the reads of the replay.
+     * 
+     * @return the next segment of the replay, or null if the replay is
+     *         exhausted or the next segment cannot be opened
+     */
+    private Segment next() throws IOException {
+        File file = ahead.poll();
+        if (file == null) {
+            file = files.poll();
+        } else {
+            prefetches.poll();
+        }
+        if (file == null) {
+            return null;
+        }
+        readAhead();
+        try {
+            return new Segment(channel, file, Mode.READ);
+        } catch (IOException e) {
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Unable to open segment %s of %s", file,
+                                       channel.getId()), e);
+            }
+            close();
+            return null;
+        }
+    }
+
+    /**
+     * Prefetch the following segments, up to the read ahead
+     */
+    private void readAhead() {
+        while (ahead.size() < readAhead && !files.isEmpty()) {
+            final File file = files.poll();
+            ahead.add(file);
+            prefetches.add(prefetcher.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long prefetched = Segment.prefetch(file);
+                    if (log.isTraceEnabled()) {
+                        log.trace(String.format("Prefetched %s bytes of %s",
+                                                prefetched, file));
+                    }
+                    return prefetched;
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.NullNode;
+
+/**
+ * The entry acknowledging the append of a replicated batch to the primary of
+ * the batch's channel. The acknowledgement is addressed to the reserved
+ * acknowledgement channel, and is written as a record of the channel and
+ * sequence number of the appended batch. The negative acknowledgement of a
+ * batch which the mirror could not append carries the complement of the
+ * sequence number.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class AckEntry extends EventEntry {
+    public static final UUID CHANNEL     = new UUID(0L, 0x1639L);
+    public static final int  RECORD_SIZE = 16 + 8;
+
+    private final ByteBuffer record      = ByteBuffer.allocate(RECORD_SIZE);
+
+    /**
+     * @param channel
+     *            - the channel of the appended batch
+     * @param sequenceNumber
+     *            - the sequence number of the appended batch
+     */
+    public AckEntry(UUID channel, long sequenceNumber) {
+        super(null);
+        record.putLong(channel.getMostSignificantBits());
+        record.putLong(channel.getLeastSignificantBits());
+        record.putLong(sequenceNumber);
+        record.flip();
+        getHeader().set(new BatchHeader(NullNode.INSTANCE, RECORD_SIZE,
+                                        BatchHeader.MAGIC, CHANNEL,
+                                        sequenceNumber), 0L, 0);
+    }
+
+    @Override
+    public void acknowledge() {
+        // acknowledgements are not acknowledged
+    }
+
+    @Override
+    public void nack() {
+        // acknowledgements are not acknowledged
+    }
+
+    @Override
+    public void replicated() {
+        // acknowledgements are not committed to an event channel
+    }
+
+    @Override
+    public void select() {
+        // acknowledgements are not read from a producer
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AckEntry[%s:%s]",
+                             new UUID(record.getLong(0), record.getLong(8)),
+                             record.getLong(16));
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target)
+                                                                               throws IOException {
+        record.limit((int) (position + count));
+        record.position((int) position);
+        return target.write(record);
+    }
+}
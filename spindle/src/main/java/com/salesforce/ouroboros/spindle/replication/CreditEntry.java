@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.NullNode;
+
+/**
+ * The entry granting the byte credits of the appended batches to the primary.
+ * The grant is addressed to the reserved credit channel, and is written as a
+ * record of the credits granted. The credits accumulated while the entry awaits
+ * replication are coalesced into the entry's grant, which is taken when the
+ * entry is first written.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CreditEntry extends EventEntry {
+    public static final UUID CHANNEL     = new UUID(0L, 0x163AL);
+    public static final int  RECORD_SIZE = 8;
+
+    private final AtomicLong granted;
+    private final ByteBuffer record      = ByteBuffer.allocate(RECORD_SIZE);
+    private boolean          taken;
+
+    /**
+     * @param granted
+     *            - the credits accumulated for the grant
+     */
+    public CreditEntry(AtomicLong granted) {
+        super(null);
+        this.granted = granted;
+        getHeader().set(new BatchHeader(NullNode.INSTANCE, RECORD_SIZE,
+                                        BatchHeader.MAGIC, CHANNEL, 0L), 0L,
+                        0);
+    }
+
+    @Override
+    public void acknowledge() {
+        // grants are not acknowledged
+    }
+
+    @Override
+    public void nack() {
+        // grants are not acknowledged
+    }
+
+    @Override
+    public void replicated() {
+        // grants are not committed to an event channel
+    }
+
+    @Override
+    public void select() {
+        // grants are not read from a producer
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CreditEntry[%s]",
+                             taken ? record.getLong(0) : granted.get());
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target)
+                                                                               throws IOException {
+        if (!taken) {
+            taken = true;
+            record.putLong(0, granted.getAndSet(0L));
+        }
+        record.limit((int) (position + count));
+        record.position((int) position);
+        return target.write(record);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.NullNode;
+import com.salesforce.ouroboros.spindle.CursorStore;
+
+/**
+ * The entry replicating a batch of consumer cursor records to the mirror. The
+ * batch is addressed to the reserved cursor channel, and is written from the
+ * records buffer rather than a segment.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CursorEntry extends EventEntry {
+    private final ByteBuffer records;
+
+    /**
+     * @param records
+     *            - the cursor records to replicate
+     * @param sequenceNumber
+     */
+    public CursorEntry(ByteBuffer records, long sequenceNumber) {
+        super(null);
+        this.records = records;
+        getHeader().set(new BatchHeader(NullNode.INSTANCE,
+                                        records.remaining(), BatchHeader.MAGIC,
+                                        CursorStore.CHANNEL, sequenceNumber),
+                        0L, 0);
+    }
+
+    @Override
+    public void acknowledge() {
+        // cursor batches are not acknowledged
+    }
+
+    @Override
+    public void nack() {
+        // cursor batches are not acknowledged
+    }
+
+    @Override
+    public void replicated() {
+        // cursor batches are not committed to an event channel
+    }
+
+    @Override
+    public void select() {
+        // cursor batches are not read from a producer
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CursorEntry[%s bytes]", records.limit());
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target)
+                                                                               throws IOException {
+        records.limit((int) (position + count));
+        records.position((int) position);
+        return target.write(records);
+    }
+}
@@ -27,7 +27,12 @@ package com.salesforce.ouroboros.spindle.replication;
 
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -39,34 +44,129 @@ import org.slf4j.LoggerFactory;
 import com.hellblazer.pinkie.SocketChannelHandler;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.spindle.replication.DuplicatorContext.DuplicatorState;
+import com.salesforce.ouroboros.spindle.replication.ReplicationLatency.Stage;
 import com.salesforce.ouroboros.util.Utils;
 
 /**
  * A duplicator of event streams. The duplicator provides outbound replication
  * of events sourced in the host process for a channel.
+ * <p>
+ * The duplicator replicates a window of the pending batches per quantum. The
+ * consumer thread drains the pending batches into the window, up to the byte
+ * size of the window, and the batches of the window are then written back to
+ * back, each header followed by the transfer of the batch from its segment,
+ * without waiting for the next quantum between the batches. Each batch is
+ * acknowledged as soon as it has been written, so the acknowledgement of the
+ * leading batches of the window is not held back by the batches which follow.
+ * <p>
+ * The written batch is committed and acknowledged according to the
+ * {@link AckMode} of its header. The batches of the {@link AckMode#MIRROR} mode
+ * are held until the mirror acknowledges their append on the replication
+ * connection.
+ * <p>
+ * The replicated batches consume the byte credits of the duplicator's
+ * {@link MeteringGate}, which the mirror grants back as it appends the batches.
+ * The producer of a batch is only selected for read while the gate has credits,
+ * so a slow mirror bounds the batches pending on the primary rather than
+ * queuing the batches without limit.
  * 
  * @author hhildebrand
  * 
  */
 public final class Duplicator {
+    private static class Key {
+        final UUID channel;
+        final long sequenceNumber;
 
-    static final Logger                     log     = LoggerFactory.getLogger(Duplicator.class.getCanonicalName());
-
-    private AtomicBoolean                   closed  = new AtomicBoolean();
-    private final Thread                    consumer;
-    private EventEntry                      current;
-    private final DuplicatorContext         fsm     = new DuplicatorContext(
-                                                                            this);
-    private SocketChannelHandler            handler;
-    private boolean                         inError;
-    private final BlockingDeque<EventEntry> pending = new LinkedBlockingDeque<EventEntry>();
-    private long                            position;
-    private final Semaphore                 quantum = new Semaphore(1);
-    private int                             remaining;
-    private final Node                      thisNode;
+        Key(UUID channel, long sequenceNumber) {
+            this.channel = channel;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sequenceNumber == key.sequenceNumber
+                   && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return channel.hashCode() * 31
+                   + (int) (sequenceNumber ^ (sequenceNumber >>> 32));
+        }
+    }
+
+    public static final int                      DEFAULT_CREDIT = 4 * 1024 * 1024;
+    public static final int                      DEFAULT_WINDOW = 256 * 1024;
+    static final Logger                          log            = LoggerFactory.getLogger(Duplicator.class.getCanonicalName());
+
+    private AtomicBoolean                        closed         = new AtomicBoolean();
+    private final Thread                         consumer;
+    private EventEntry                           current;
+    private final DuplicatorContext              fsm            = new DuplicatorContext(
+                                                                                        this);
+    private final MeteringGate                   gate;
+    private SocketChannelHandler                 handler;
+    private boolean                              inError;
+    private final ReplicationLatency             latency;
+    private final BlockingDeque<EventEntry>      pending        = new LinkedBlockingDeque<EventEntry>();
+    private long                                 position;
+    private final Semaphore                      quantum        = new Semaphore(1);
+    private int                                  remaining;
+    private final Node                           thisNode;
+    // The written batches awaiting the acknowledgement of the mirror
+    private final ConcurrentMap<Key, EventEntry> unacknowledged = new ConcurrentHashMap<Key, EventEntry>();
+    private final Deque<EventEntry>              window         = new ArrayDeque<EventEntry>();
+    private final int                            windowSize;
 
     public Duplicator(Node node) {
+        this(node, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param node
+     * @param windowSize
+     *            - the maximum number of bytes of the batches replicated per
+     *            quantum. A window always holds at least one batch
+     */
+    public Duplicator(Node node, int windowSize) {
+        this(node, windowSize, new ReplicationLatency());
+    }
+
+    /**
+     * @param node
+     * @param windowSize
+     *            - the maximum number of bytes of the batches replicated per
+     *            quantum
+     * @param latency
+     *            - the latencies of the replication stages
+     */
+    public Duplicator(Node node, int windowSize, ReplicationLatency latency) {
+        this(node, windowSize, DEFAULT_CREDIT, latency);
+    }
+
+    /**
+     * @param node
+     * @param windowSize
+     *            - the maximum number of bytes of the batches replicated per
+     *            quantum
+     * @param credit
+     *            - the number of bytes of the replicated batches which may be
+     *            outstanding before the mirror grants their credits back
+     * @param latency
+     *            - the latencies of the replication stages
+     */
+    public Duplicator(Node node, int windowSize, int credit,
+                      ReplicationLatency latency) {
+        assert windowSize > 0 : "Window size must be positive";
         thisNode = node;
+        this.windowSize = windowSize;
+        this.latency = latency;
+        gate = new MeteringGate(credit);
         consumer = new Thread(
                               consumerAction(),
                               String.format("Consumer thread for Duplicator[%s>?]",
@@ -81,11 +181,61 @@ public final class Duplicator {
         consumer.start();
     }
 
+    /**
+     * The mirror has appended the batch. Commit and acknowledge the batch
+     * 
+     * @param channel
+     * @param sequenceNumber
+     */
+    public void acknowledged(UUID channel, long sequenceNumber) {
+        EventEntry entry = unacknowledged.remove(new Key(channel,
+                                                         sequenceNumber));
+        if (entry == null) {
+            log.warn(String.format("No batch %s:%s awaiting acknowledgement on %s",
+                                   channel, sequenceNumber, fsm.getName()));
+            return;
+        }
+        long now = System.nanoTime();
+        latency.record(Stage.MIRRORED, now - entry.getWritten());
+        entry.replicated();
+        latency.record(Stage.ACKNOWLEDGED, now - entry.getAppended());
+        entry.free();
+    }
+
+    /**
+     * The mirror could not append the batch. The batch is not committed, and
+     * is negatively acknowledged to its producer
+     * 
+     * @param channel
+     * @param sequenceNumber
+     */
+    public void nacked(UUID channel, long sequenceNumber) {
+        EventEntry entry = unacknowledged.remove(new Key(channel,
+                                                         sequenceNumber));
+        if (entry == null) {
+            log.warn(String.format("No batch %s:%s awaiting acknowledgement on %s",
+                                   channel, sequenceNumber, fsm.getName()));
+            return;
+        }
+        log.warn(String.format("Mirror could not append %s:%s on %s",
+                               channel, sequenceNumber, fsm.getName()));
+        entry.nack();
+        entry.free();
+    }
+
     public void closing() {
         closed.set(true);
-        if (current != null) {
-            current.selectAndFree();
+        gate.close();
+        for (EventEntry entry : window) {
+            entry.selectAndFree();
         }
+        window.clear();
+        current = null;
+        // the batches awaiting the mirror are not acknowledged
+        for (EventEntry entry : unacknowledged.values()) {
+            entry.free();
+        }
+        unacknowledged.clear();
         for (EventEntry entry : pending) {
             entry.selectAndFree();
         }
@@ -96,6 +246,13 @@ public final class Duplicator {
         this.handler = handler;
     }
 
+    /**
+     * @return the gate metering the byte credits of the replicated batches
+     */
+    public MeteringGate getGate() {
+        return gate;
+    }
+
     /**
      * @return the state of the outbound replicator
      */
@@ -103,6 +260,36 @@ public final class Duplicator {
         return fsm.getState();
     }
 
+    /**
+     * @return the number of written batches awaiting the acknowledgement of
+     *         the mirror
+     */
+    public int getUnacknowledged() {
+        return unacknowledged.size();
+    }
+
+    /**
+     * @return the maximum number of bytes of the batches replicated per
+     *         quantum
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * The mirror has granted the credits of the appended batches
+     * 
+     * @param credits
+     *            - the number of bytes granted
+     */
+    public void granted(long credits) {
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Granted %s credits, %s blocked on %s",
+                                    credits, gate.getBlocked(), fsm.getName()));
+        }
+        gate.grant(credits);
+    }
+
     /**
      * Replicate the event to the mirror
      */
@@ -114,6 +301,9 @@ public final class Duplicator {
                 log.trace(String.format("Replicating event %s on %s", event,
                                         fsm.getName()));
             }
+            if (event.getEventChannel() != null) {
+                gate.consume(sizeOf(event));
+            }
             pending.add(event);
         }
     }
@@ -131,10 +321,78 @@ public final class Duplicator {
         fsm.writeReady();
     }
 
+    /**
+     * Drain the pending batches into the window, following the first batch of
+     * the window, until the byte size of the window is reached
+     * 
+     * @param first
+     *            - the first batch of the window
+     */
+    private void fill(EventEntry first) {
+        window.add(first);
+        int bytes = sizeOf(first);
+        while (bytes < windowSize) {
+            EventEntry entry = pending.poll();
+            if (entry == null) {
+                break;
+            }
+            window.add(entry);
+            bytes += sizeOf(entry);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Filled window of %s batches, %s bytes on %s",
+                                    window.size(), bytes, fsm.getName()));
+        }
+    }
+
+    /**
+     * Start the replication of the next batch of the window
+     */
+    private void next() {
+        current = window.peek();
+        if (current == null) {
+            return;
+        }
+        remaining = current.getHeader().getBatchByteLength();
+        position = current.getHeader().getPosition();
+        current.getHeader().rewind();
+        if (current.getEventChannel() != null) {
+            latency.record(Stage.QUEUED,
+                           System.nanoTime() - current.getAppended());
+        }
+    }
+
+    /**
+     * Select the producer of the batch for read, once the gate has the credits.
+     * The producer of a batch copied to the additional replicas of the channel
+     * is blocked on the first exhausted gate of the replicas
+     * 
+     * @param entry
+     */
+    private void select(EventEntry entry) {
+        if (entry.getHandler() == null) {
+            // cursor records, acknowledgements, grants and replica copies
+            entry.select();
+            return;
+        }
+        MeteringGate blocking = gate;
+        for (Replicator replica : entry.getEventChannel().getReplicas()) {
+            if (replica.getGate().getCredits() <= 0) {
+                blocking = replica.getGate();
+                break;
+            }
+        }
+        blocking.select(entry.getHandler());
+    }
+
+    private int sizeOf(EventEntry entry) {
+        return ReplicatedBatchHeader.HEADER_SIZE
+               + entry.getHeader().getBatchByteLength();
+    }
+
     private boolean transferTo() throws IOException {
-        int written = (int) current.getSegment().transferTo(position,
-                                                            remaining,
-                                                            handler.getChannel());
+        int written = (int) current.transferTo(position, remaining,
+                                               handler.getChannel());
         if (written < 0) {
             close();
             return false;
@@ -143,9 +401,8 @@ public final class Duplicator {
         position += written;
         if (remaining > 0) {
             // extra attempt at a write
-            written = (int) current.getSegment().transferTo(position,
-                                                            remaining,
-                                                            handler.getChannel());
+            written = (int) current.transferTo(position, remaining,
+                                           handler.getChannel());
             if (written < 0) {
                 close();
                 return false;
@@ -163,6 +420,39 @@ public final class Duplicator {
         return remaining == 0;
     }
 
+    /**
+     * Commit and acknowledge the written batch according to its ack mode
+     * 
+     * @param entry
+     */
+    private void written(EventEntry entry) {
+        if (entry.getAcknowledger() == null) {
+            // cursor records, acknowledgements, grants and replica copies
+            entry.replicated();
+            entry.free();
+            return;
+        }
+        long now = System.nanoTime();
+        latency.record(Stage.WRITTEN, now - entry.getAppended());
+        ReplicatedBatchHeader header = entry.getHeader();
+        switch (header.getAckMode()) {
+            case PRIMARY:
+                // acknowledged when appended
+                entry.commit();
+                entry.free();
+                break;
+            case MIRROR:
+                entry.setWritten(now);
+                unacknowledged.put(new Key(header.getChannel(),
+                                           header.getSequenceNumber()), entry);
+                break;
+            default:
+                entry.replicated();
+                latency.record(Stage.ACKNOWLEDGED, now - entry.getAppended());
+                entry.free();
+        }
+    }
+
     protected void close() {
         handler.close();
     }
@@ -173,19 +463,21 @@ public final class Duplicator {
             @Override
             public void run() {
                 while (!closed.get()) {
+                    EventEntry first;
                     try {
                         quantum.acquire();
                         do {
-                            current = pending.poll(4, TimeUnit.SECONDS);
+                            first = pending.poll(4, TimeUnit.SECONDS);
                             if (closed.get()) {
                                 return;
                             }
-                        } while (current == null);
+                        } while (first == null);
                     } catch (InterruptedException e) {
                         return;
                     }
+                    fill(first);
                     if (log.isTraceEnabled()) {
-                        log.trace(String.format("pushing batch %s", current));
+                        log.trace(String.format("pushing window %s", window));
                     }
                     fsm.replicate();
                 }
@@ -206,44 +498,44 @@ public final class Duplicator {
     }
 
     protected void batchReplicate() {
-        if (current == null) {
+        if (window.isEmpty()) {
             return;
         }
-        current.select();
+        for (EventEntry entry : window) {
+            select(entry);
+        }
         if (log.isTraceEnabled()) {
-            log.trace(String.format("Processing %s:%s on %s",
-                                    current.getHeader().getChannel(),
-                                    current.getHeader().getSequenceNumber(),
-                                    fsm.getName()));
+            log.trace(String.format("Processing window of %s batches on %s",
+                                    window.size(), fsm.getName()));
         }
-        remaining = current.getHeader().getBatchByteLength();
-        position = current.getHeader().getPosition();
-        current.getHeader().rewind();
+        next();
         if (!replicate()) {
             if (inError) {
                 fsm.close();
+            } else {
+                fsm.writeWindow();
             }
             return;
         }
         fsm.quantumProcessed();
     }
 
+    /**
+     * Write the remaining batches of the window, resuming the partially
+     * written header or batch of the current entry
+     * 
+     * @return true if the window has been completely written
+     */
     protected boolean replicate() {
-        if (writeHeader()) {
-            if (writeBatch()) {
-                return true;
-            } else {
-                if (inError) {
-                    fsm.close();
-                }
+        while (current != null) {
+            if (current.getHeader().hasRemaining() && !writeHeader()) {
                 return false;
             }
-        } else {
-            if (inError) {
-                fsm.close();
+            if (!writeBatch()) {
+                return false;
             }
-            return false;
         }
+        return true;
     }
 
     protected void selectForWrite() {
@@ -253,17 +545,15 @@ public final class Duplicator {
     protected boolean writeBatch() {
         try {
             if (transferTo()) {
-                current.getEventChannel().commit(current.getHeader().getOffset());
                 if (log.isTraceEnabled()) {
                     log.trace(String.format("Acknowledging replication of %s:%s, on %s",
                                             current.getHeader().getChannel(),
                                             current.getHeader().getSequenceNumber(),
                                             fsm.getName()));
                 }
-                current.getAcknowledger().acknowledge(current.getHeader().getChannel(),
-                                                      current.getHeader().getSequenceNumber());
-                current.free();
-                current = null;
+                window.poll();
+                written(current);
+                next();
                 return true;
             }
         } catch (IOException e) {
@@ -277,7 +567,6 @@ public final class Duplicator {
                                        current.getSegment()), e);
             }
         }
-        fsm.writeBatch();
         return false;
     }
 
@@ -313,9 +602,7 @@ public final class Duplicator {
                                         fsm.getName()));
             }
             return true;
-        } else {
-            fsm.writeHeader();
-            return false;
         }
+        return false;
     }
 }
@@ -25,9 +25,13 @@
  */
 package com.salesforce.ouroboros.spindle.replication;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
 import com.hellblazer.pinkie.SocketChannelHandler;
 import com.salesforce.ouroboros.BatchHeader;
 import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.Flusher;
 import com.salesforce.ouroboros.spindle.Segment;
 import com.salesforce.ouroboros.spindle.source.Acknowledger;
 import com.salesforce.ouroboros.util.Pool;
@@ -42,27 +46,55 @@ import com.salesforce.ouroboros.util.Pool.Clearable;
 public class EventEntry implements Clearable {
     private final Pool<EventEntry>        pool;
     private volatile Acknowledger         acknowledger;
+    // The time the batch was appended, in nanoseconds
+    private volatile long                 appended;
     private volatile EventChannel         eventChannel;
     private volatile SocketChannelHandler handler;
     private final ReplicatedBatchHeader   header = new ReplicatedBatchHeader();
     private volatile Segment              segment;
+    // The time the batch was written to the mirror, in nanoseconds
+    private volatile long                 written;
 
     public EventEntry(Pool<EventEntry> pool) {
         this.pool = pool;
     }
 
+    /**
+     * Acknowledge the batch of the entry, according to the durability policy
+     * of the event channel
+     */
+    public void acknowledge() {
+        Flusher flusher = eventChannel.getFlusher();
+        if (flusher == null) {
+            acknowledger.acknowledge(header.getChannel(),
+                                     header.getSequenceNumber());
+        } else {
+            flusher.acknowledge(acknowledger, header.getChannel(),
+                                header.getSequenceNumber());
+        }
+    }
+
     /* (non-Javadoc)
      * @see com.salesforce.ouroboros.util.Pool.Clearable.clear()
      */
     @Override
     public void clear() {
         acknowledger = null;
+        appended = 0L;
+        written = 0L;
         eventChannel = null;
         handler = null;
         segment = null;
         header.clear();
     }
 
+    /**
+     * Commit the batch of the entry in the event channel
+     */
+    public void commit() {
+        eventChannel.commit(header.getOffset());
+    }
+
     public void free() {
         if (pool != null) {
             pool.free(this);
@@ -76,6 +108,13 @@ public class EventEntry implements Clearable {
         return acknowledger;
     }
 
+    /**
+     * @return the time the batch was appended, in nanoseconds
+     */
+    public long getAppended() {
+        return appended;
+    }
+
     /**
      * @return the eventChannel
      */
@@ -90,6 +129,13 @@ public class EventEntry implements Clearable {
         return header;
     }
 
+    /**
+     * @return the handler of the producer of the batch
+     */
+    public SocketChannelHandler getHandler() {
+        return handler;
+    }
+
     /**
      * @return the segment
      */
@@ -97,6 +143,30 @@ public class EventEntry implements Clearable {
         return segment;
     }
 
+    /**
+     * @return the time the batch was written to the mirror, in nanoseconds
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Negatively acknowledge the batch of the entry, which has not been
+     * committed
+     */
+    public void nack() {
+        acknowledger.nack(header.getChannel(), header.getSequenceNumber());
+    }
+
+    /**
+     * The batch of the entry has been replicated to the mirror. Commit the
+     * batch in the event channel and acknowledge the batch.
+     */
+    public void replicated() {
+        commit();
+        acknowledge();
+    }
+
     public void select() {
         handler.selectForRead();
     }
@@ -120,5 +190,55 @@ public class EventEntry implements Clearable {
         this.segment = segment;
         this.acknowledger = acknowledger;
         this.handler = handler;
+        appended = System.nanoTime();
+    }
+
+    /**
+     * @param written
+     *            - the time the batch was written to the mirror, in
+     *            nanoseconds
+     */
+    public void setWritten(long written) {
+        this.written = written;
+    }
+
+    /**
+     * Transfer the bytes of the batch to the target
+     * 
+     * @param position
+     *            - the position of the bytes within the segment
+     * @param count
+     *            - the maximum number of bytes to transfer
+     * @param target
+     * @return the number of bytes transferred
+     * @throws IOException
+     */
+    public long transferTo(long position, long count, WritableByteChannel target)
+                                                                               throws IOException {
+        // The use of the segment defers its release by a concurrent eviction
+        Segment acquired = segment.acquireForRead();
+        try {
+            // The segment may have been evicted from the segment cache, or sealed
+            segment = acquired;
+            return acquired.transferTo(position, count, target);
+        } finally {
+            acquired.release();
+        }
+    }
+
+    /**
+     * Copy the batch of the entry into the receiver, without the acknowledger
+     * or the handler of the producer of the batch
+     * 
+     * @param entry
+     *            - the entry to copy
+     */
+    protected void copy(EventEntry entry) {
+        ReplicatedBatchHeader batchHeader = entry.getHeader();
+        header.set(batchHeader, batchHeader.getOffset(),
+                   batchHeader.getPosition());
+        eventChannel = entry.eventChannel;
+        segment = entry.segment;
+        appended = entry.appended;
     }
 }
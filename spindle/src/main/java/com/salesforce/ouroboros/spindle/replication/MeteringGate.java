@@ -25,35 +25,105 @@
  */
 package com.salesforce.ouroboros.spindle.replication;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.hellblazer.pinkie.SocketChannelHandler;
 
 /**
+ * The gate metering the byte credits of a replication connection. The bytes of
+ * the replicated batches consume the credits, and the mirror grants the credits
+ * back as it appends the batches. While the credits are exhausted, the
+ * producers of the replicated batches are not selected for read, pushing the
+ * overload back onto their connections rather than queuing the batches on the
+ * primary.
+ * 
  * @author hhildebrand
  * 
  */
 public class MeteringGate {
-    private final AtomicInteger        count;
-    private final SocketChannelHandler handler;
+    private final Queue<SocketChannelHandler> blocked = new ConcurrentLinkedQueue<SocketChannelHandler>();
+    private final AtomicLong                  credits;
+
+    /**
+     * @param credits
+     *            - the initial byte credits of the gate
+     */
+    public MeteringGate(long credits) {
+        assert credits > 0 : "Credits must be positive";
+        this.credits = new AtomicLong(credits);
+    }
+
+    /**
+     * Release the blocked producers, regardless of the credits of the gate
+     */
+    public void close() {
+        SocketChannelHandler handler;
+        while ((handler = blocked.poll()) != null) {
+            handler.selectForRead();
+        }
+    }
 
-    public MeteringGate(int initialCount, SocketChannelHandler appendHandler) {
-        this.handler = appendHandler;
-        count = new AtomicInteger(initialCount);
+    /**
+     * Consume the credits of the replicated bytes
+     * 
+     * @param bytes
+     */
+    public void consume(int bytes) {
+        credits.addAndGet(-bytes);
     }
 
-    public void select() {
-        select(1);
+    /**
+     * @return the number of producers blocked on the credits of the gate
+     */
+    public int getBlocked() {
+        return blocked.size();
     }
 
     /**
-     * @param i
+     * @return the byte credits of the gate, which are negative when the
+     *         replicated bytes overrun the credits
      */
-    public void select(int c) {
-        for (int i = 0; i < c; i++) {
-            if (count.decrementAndGet() == 0) {
-                handler.selectForRead();
-            }
+    public long getCredits() {
+        return credits.get();
+    }
+
+    /**
+     * Grant the credits of the bytes appended by the mirror, releasing the
+     * blocked producers
+     * 
+     * @param bytes
+     */
+    public void grant(long bytes) {
+        if (credits.addAndGet(bytes) > 0) {
+            release();
+        }
+    }
+
+    /**
+     * Select the producer for read if the gate has credits, otherwise block the
+     * producer until the credits are granted
+     * 
+     * @param handler
+     *            - the handler of the producer
+     */
+    public void select(SocketChannelHandler handler) {
+        if (credits.get() > 0) {
+            handler.selectForRead();
+            return;
+        }
+        blocked.add(handler);
+        // the credits may have been granted before the producer was blocked
+        if (credits.get() > 0) {
+            release();
+        }
+    }
+
+    private void release() {
+        SocketChannelHandler handler;
+        while (credits.get() > 0 && (handler = blocked.poll()) != null) {
+            handler.selectForRead();
         }
     }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.replication;
+
+import com.salesforce.ouroboros.NullNode;
+
+/**
+ * The copy of an appended batch, replicated by the primary to an additional
+ * replica of the batch's channel. The additional replicas serve the reads of
+ * the channel alongside the primary and the mirror. The copy is replicated in
+ * the {@link AckMode#WRITTEN} mode, and is neither committed nor acknowledged
+ * when written, as the batch is committed and acknowledged on its replication
+ * to the mirror. The producer of the batch is selected for read by the
+ * duplicator of the mirror, once each replica has the credits for the batch.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ReplicaEntry extends EventEntry {
+
+    /**
+     * @param entry
+     *            - the entry of the appended batch
+     */
+    public ReplicaEntry(EventEntry entry) {
+        super(null);
+        copy(entry);
+        getHeader().resetMirror(NullNode.INSTANCE);
+    }
+
+    @Override
+    public void acknowledge() {
+        // the batch is acknowledged by the mirror
+    }
+
+    @Override
+    public void commit() {
+        // the batch is committed by the mirror
+    }
+
+    @Override
+    public void nack() {
+        // the batch is acknowledged by the mirror
+    }
+
+    @Override
+    public void replicated() {
+        // the batch is committed and acknowledged by the mirror
+    }
+
+    @Override
+    public void select() {
+        // the producer is selected by the duplicator of the mirror
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReplicaEntry[%s:%s]",
+                             getHeader().getChannel(),
+                             getHeader().getSequenceNumber());
+    }
+}
@@ -37,9 +37,11 @@ import com.salesforce.ouroboros.Node;
  * 
  */
 public class ReplicatedBatchHeader extends BatchHeader {
-    private static final int BATCH_OFFSET_OFFSET   = BatchHeader.HEADER_BYTE_SIZE;
-    public static final int  BATCH_POSITION_OFFSET = BATCH_OFFSET_OFFSET + 8;
-    public static final int  HEADER_SIZE           = BATCH_POSITION_OFFSET + 4;
+    private static final AckMode[] ACK_MODES             = AckMode.values();
+    private static final int       BATCH_OFFSET_OFFSET   = BatchHeader.HEADER_BYTE_SIZE;
+    public static final int        BATCH_POSITION_OFFSET = BATCH_OFFSET_OFFSET + 8;
+    private static final int       ACK_MODE_OFFSET       = BATCH_POSITION_OFFSET + 4;
+    public static final int        HEADER_SIZE           = ACK_MODE_OFFSET + 4;
 
     private static void set(ByteBuffer headerBytes, long offset, int position,
                             ByteBuffer replicatedHeader) {
@@ -48,6 +50,7 @@ public class ReplicatedBatchHeader extends BatchHeader {
         replicatedHeader.put(headerBytes);
         replicatedHeader.putLong(BATCH_OFFSET_OFFSET, offset);
         replicatedHeader.putInt(BATCH_POSITION_OFFSET, position);
+        replicatedHeader.putInt(ACK_MODE_OFFSET, AckMode.WRITTEN.ordinal());
         replicatedHeader.rewind();
     }
 
@@ -65,6 +68,7 @@ public class ReplicatedBatchHeader extends BatchHeader {
         super(mirror, batchByteLength, magic, channel, sequenceNumber);
         getBytes().putLong(BATCH_OFFSET_OFFSET, batchOffset);
         getBytes().putInt(BATCH_OFFSET_OFFSET, batchPosition);
+        setAckMode(AckMode.WRITTEN);
     }
 
     /* (non-Javadoc)
@@ -83,6 +87,29 @@ public class ReplicatedBatchHeader extends BatchHeader {
         return false;
     }
 
+    /**
+     * @return the point of replication at which the batch is acknowledged
+     * @throws IllegalStateException
+     *             - if the header does not carry a valid ack mode
+     */
+    public AckMode getAckMode() {
+        int ackMode = getBytes().getInt(ACK_MODE_OFFSET);
+        if (ackMode < 0 || ackMode >= ACK_MODES.length) {
+            throw new IllegalStateException(
+                                            String.format("Invalid ack mode %s",
+                                                          ackMode));
+        }
+        return ACK_MODES[ackMode];
+    }
+
+    /**
+     * @return true if the header carries a valid ack mode
+     */
+    public boolean hasValidAckMode() {
+        int ackMode = getBytes().getInt(ACK_MODE_OFFSET);
+        return ackMode >= 0 && ackMode < ACK_MODES.length;
+    }
+
     public long getOffset() {
         return getBytes().getLong(BATCH_OFFSET_OFFSET);
     }
@@ -91,12 +118,23 @@ public class ReplicatedBatchHeader extends BatchHeader {
         return getBytes().getInt(BATCH_POSITION_OFFSET);
     }
 
+    /**
+     * @param ackMode
+     *            - the point of replication at which the batch is
+     *            acknowledged
+     */
+    public void setAckMode(AckMode ackMode) {
+        getBytes().putInt(ACK_MODE_OFFSET, ackMode.ordinal());
+    }
+
     @Override
     public String toString() {
-        return String.format("ReplicatedBatchHeader[magic=%s, sequenceNumber=%s, length=%s, channel=%s offset=%s position=%s]",
+        return String.format("ReplicatedBatchHeader[magic=%s, sequenceNumber=%s, length=%s, channel=%s offset=%s position=%s ack=%s]",
                              getMagic(), getSequenceNumber(),
                              getBatchByteLength(), getChannel(), getOffset(),
-                             getPosition());
+                             getPosition(),
+                             hasValidAckMode() ? getAckMode()
+                                              : getBytes().getInt(ACK_MODE_OFFSET));
     }
 
     /* (non-Javadoc)
@@ -26,6 +26,7 @@
 package com.salesforce.ouroboros.spindle.replication;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,12 +35,19 @@ import com.salesforce.ouroboros.BatchHeader;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.NullNode;
 import com.salesforce.ouroboros.spindle.Bundle;
+import com.salesforce.ouroboros.spindle.CursorStore;
 import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.Flusher;
 import com.salesforce.ouroboros.spindle.source.AbstractAppender;
 import com.salesforce.ouroboros.spindle.source.Acknowledger;
 
 /**
- * The appender for receiving duplicated events from the primary.
+ * The appender for receiving duplicated events from the primary. The append of
+ * a batch replicated in the {@link AckMode#MIRROR} mode is acknowledged to the
+ * primary on the replication connection, and the acknowledgements of the
+ * partner are applied to the batches it awaits. The credits of each received
+ * batch are granted back to the primary, and the credits granted by the
+ * partner are applied to its duplicator.
  * 
  * @author hhildebrand
  * 
@@ -48,8 +56,25 @@ public class ReplicatingAppender extends AbstractAppender {
 
     private static final Logger log = LoggerFactory.getLogger(ReplicatingAppender.class.getCanonicalName());
 
+    // The acknowledgement records replicated from the partner
+    private ByteBuffer          acknowledgements;
+    private ByteBuffer          credits;
+    private ByteBuffer          cursors;
+    private final Replicator    replicator;
+
     public ReplicatingAppender(Bundle bundle) {
+        this(bundle, null);
+    }
+
+    /**
+     * @param bundle
+     * @param replicator
+     *            - the replicator of the connection, acknowledging the appended
+     *            batches to the partner
+     */
+    public ReplicatingAppender(Bundle bundle, Replicator replicator) {
         super(bundle);
+        this.replicator = replicator;
     }
 
     /* (non-Javadoc)
@@ -57,6 +82,7 @@ public class ReplicatingAppender extends AbstractAppender {
      */
     @Override
     protected void commit() {
+        super.commit();
         try {
             eventChannel.append(batchHeader, offset, segment);
         } catch (IOException e) {
@@ -65,6 +91,8 @@ public class ReplicatingAppender extends AbstractAppender {
             close();
             return;
         }
+        acknowledgePrimary();
+        grantPrimary();
         Node node = batchHeader.getProducerMirror();
         Acknowledger acknowledger = bundle.getAcknowledger(node);
         if (acknowledger == null) {
@@ -78,8 +106,63 @@ public class ReplicatingAppender extends AbstractAppender {
             log.trace(String.format("Acknowledging replication of %s on %s",
                                     batchHeader, bundle.getId()));
         }
-        acknowledger.acknowledge(batchHeader.getChannel(),
-                                 batchHeader.getSequenceNumber());
+        Flusher flusher = eventChannel.getFlusher();
+        if (flusher == null) {
+            acknowledger.acknowledge(batchHeader.getChannel(),
+                                     batchHeader.getSequenceNumber());
+        } else {
+            flusher.acknowledge(acknowledger, batchHeader.getChannel(),
+                                batchHeader.getSequenceNumber());
+        }
+    }
+
+    /**
+     * Acknowledge the append of the batch to the primary, if the primary awaits
+     * the acknowledgement
+     */
+    private void acknowledgePrimary() {
+        if (!awaitedByPrimary()) {
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Acknowledging append of %s to the primary on %s",
+                                    batchHeader, bundle.getId()));
+        }
+        replicator.acknowledge(batchHeader.getChannel(),
+                               batchHeader.getSequenceNumber());
+    }
+
+    /**
+     * @return true if the primary awaits the acknowledgement of the batch
+     */
+    private boolean awaitedByPrimary() {
+        ReplicatedBatchHeader replicated = (ReplicatedBatchHeader) batchHeader;
+        return replicator != null && replicated.getAckMode() == AckMode.MIRROR;
+    }
+
+    /**
+     * Negatively acknowledge the batch to the primary, if the primary awaits
+     * the acknowledgement, as the batch could not be appended
+     */
+    private void nackPrimary() {
+        if (!awaitedByPrimary()) {
+            return;
+        }
+        log.warn(String.format("Unable to append %s, no event channel on %s",
+                               batchHeader, bundle.getId()));
+        replicator.nack(batchHeader.getChannel(),
+                        batchHeader.getSequenceNumber());
+    }
+
+    /**
+     * Grant the credits of the received batch back to the primary
+     */
+    private void grantPrimary() {
+        if (replicator == null) {
+            return;
+        }
+        replicator.grant(ReplicatedBatchHeader.HEADER_SIZE
+                         + batchHeader.getBatchByteLength());
     }
 
     @Override
@@ -90,8 +173,70 @@ public class ReplicatingAppender extends AbstractAppender {
     /* (non-Javadoc)
      * @see com.salesforce.ouroboros.spindle.source.AbstractAppender#duplicatedBatch()
      */
+    @Override
+    protected boolean devNull() {
+        if (!super.devNull()) {
+            return false;
+        }
+        if (cursors != null) {
+            cursors.flip();
+            Node origin = replicator == null ? null : replicator.getPartner();
+            bundle.getCursorStore().apply(cursors,
+                                          origin == null ? NullNode.INSTANCE
+                                                        : origin);
+            cursors = null;
+        }
+        if (acknowledgements != null) {
+            acknowledgements.flip();
+            if (replicator != null) {
+                replicator.acknowledged(acknowledgements);
+            }
+            acknowledgements = null;
+        }
+        if (credits != null) {
+            credits.flip();
+            if (replicator != null) {
+                replicator.granted(credits);
+            }
+            credits = null;
+        }
+        return true;
+    }
+
     @Override
     protected void drain() {
+        if (CursorStore.CHANNEL.equals(batchHeader.getChannel())) {
+            // the cursor records replicated from the primary
+            remaining = batchHeader.getBatchByteLength();
+            cursors = ByteBuffer.allocate((int) remaining);
+            drain(cursors);
+            return;
+        }
+        if (AckEntry.CHANNEL.equals(batchHeader.getChannel())) {
+            // the acknowledgements of the batches appended by the partner
+            remaining = batchHeader.getBatchByteLength();
+            acknowledgements = ByteBuffer.allocate((int) remaining);
+            drain(acknowledgements);
+            return;
+        }
+        if (CreditEntry.CHANNEL.equals(batchHeader.getChannel())) {
+            // the credits granted by the partner
+            remaining = batchHeader.getBatchByteLength();
+            credits = ByteBuffer.allocate((int) remaining);
+            drain(credits);
+            return;
+        }
+        // The payload of the batch is always drained from the connection,
+        // whether or not the batch is acknowledged to its producer
+        remaining = batchHeader.getBatchByteLength();
+        if (eventChannel == null) {
+            // the batch of a channel which has not been opened on this node
+            nackPrimary();
+        } else {
+            // the duplicate of an appended batch
+            acknowledgePrimary();
+        }
+        grantPrimary();
         Node node = batchHeader.getProducerMirror();
         Acknowledger acknowledger = bundle.getAcknowledger(node);
         if (acknowledger == null) {
@@ -99,16 +244,16 @@ public class ReplicatingAppender extends AbstractAppender {
                 log.warn(String.format("Could not find an acknowledger for %s",
                                        node));
             }
-            return;
-        }
-        if (log.isInfoEnabled()) {
-            log.info(String.format("Acknowledging replication of duplicate %s:%s on %s",
-                                   batchHeader.getChannel(),
-                                   batchHeader.getSequenceNumber(),
-                                   bundle.getId()));
+        } else {
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Acknowledging replication of duplicate %s:%s on %s",
+                                       batchHeader.getChannel(),
+                                       batchHeader.getSequenceNumber(),
+                                       bundle.getId()));
+            }
+            acknowledger.acknowledge(batchHeader.getChannel(),
+                                     batchHeader.getSequenceNumber());
         }
-        acknowledger.acknowledge(batchHeader.getChannel(),
-                                 batchHeader.getSequenceNumber());
         super.drain();
     }
 
@@ -124,6 +269,24 @@ public class ReplicatingAppender extends AbstractAppender {
                                              replicated.getPosition());
     }
 
+    /**
+     * Reject the replicated batch header which does not carry a valid ack
+     * mode, rather than guessing the acknowledgement the primary awaits
+     */
+    @Override
+    protected boolean readBatchHeader() {
+        if (!super.readBatchHeader()) {
+            return false;
+        }
+        if (!((ReplicatedBatchHeader) batchHeader).hasValidAckMode()) {
+            log.error(String.format("Received invalid ack mode in header %s on %s",
+                                    batchHeader, bundle.getId()));
+            error();
+            return false;
+        }
+        return true;
+    }
+
     @Override
     protected void ready() {
         handler.selectForRead();
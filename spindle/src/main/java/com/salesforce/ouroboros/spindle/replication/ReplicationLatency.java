@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.replication;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.salesforce.ouroboros.util.LatencyHistogram;
+
+/**
+ * The latencies of the stages of the replication of the batches of the event
+ * channels hosted by a weaver, in microseconds.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ReplicationLatency {
+    public static enum Stage {
+        /**
+         * From the append of the batch on the primary, until the duplicator
+         * begins writing the batch to the mirror
+         */
+        QUEUED,
+        /**
+         * From the append of the batch on the primary, until the batch has been
+         * written to the mirror
+         */
+        WRITTEN,
+        /**
+         * From the write of the batch to the mirror, until the mirror
+         * acknowledges the append of the batch
+         */
+        MIRRORED,
+        /**
+         * From the append of the batch on the primary, until the acknowledgement
+         * of the batch held for its replication
+         */
+        ACKNOWLEDGED;
+    }
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+    public ReplicationLatency() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @param stage
+     * @return the histogram of the latencies of the stage, in microseconds
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    /**
+     * Record the latency of the stage
+     * 
+     * @param stage
+     * @param nanos
+     *            - the latency of the stage, in nanoseconds
+     */
+    public void record(Stage stage, long nanos) {
+        histograms.get(stage).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Reset the histograms of the stages
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ReplicationLatency[");
+        for (Stage stage : Stage.values()) {
+            builder.append(String.format("%s: {%s} ", stage,
+                                         histograms.get(stage)));
+        }
+        builder.setLength(builder.length() - 1);
+        return builder.append(']').toString();
+    }
+}
@@ -28,7 +28,9 @@ package com.salesforce.ouroboros.spindle.replication;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,6 +79,8 @@ public class Replicator implements CommunicationsHandler {
     private final Bundle            bundle;
     private final Duplicator        duplicator;
     private final ReplicatorContext fsm            = new ReplicatorContext(this);
+    // The credits of the appended batches, awaiting their grant to the partner
+    private final AtomicLong        granted        = new AtomicLong();
     private SocketChannelHandler    handler;
     private ByteBuffer              handshake      = ByteBuffer.allocate(HANDSHAKE_SIZE);
     private boolean                 inError;
@@ -84,29 +88,94 @@ public class Replicator implements CommunicationsHandler {
     private Rendezvous              rendezvous;
 
     public Replicator(Bundle bundle) {
+        this(bundle, Duplicator.DEFAULT_WINDOW, Duplicator.DEFAULT_CREDIT,
+             new ReplicationLatency());
+    }
+
+    /**
+     * @param bundle
+     * @param window
+     *            - the maximum number of bytes of the batches duplicated per
+     *            quantum
+     * @param credit
+     *            - the number of bytes of the duplicated batches which may be
+     *            outstanding before the partner grants their credits back
+     * @param latency
+     *            - the latencies of the replication stages
+     */
+    public Replicator(Bundle bundle, int window, int credit,
+                      ReplicationLatency latency) {
         fsm.setName(Integer.toString(bundle.getId().processId));
-        duplicator = new Duplicator(bundle.getId());
+        duplicator = new Duplicator(bundle.getId(), window, credit, latency);
         this.bundle = bundle;
     }
 
-    public Replicator(Bundle bundle, Node partner, Rendezvous rendezvous) {
-        this(bundle);
-        appender = new ReplicatingAppender(bundle);
+    public Replicator(Bundle bundle, int window, int credit,
+                      ReplicationLatency latency, Node partner,
+                      Rendezvous rendezvous) {
+        this(bundle, window, credit, latency);
+        appender = new ReplicatingAppender(bundle, this);
         this.partner = partner;
         this.rendezvous = rendezvous;
         duplicator.setFsmName(String.format("%s>%s", bundle.getId().processId,
                                             partner.processId));
     }
 
+    public Replicator(Bundle bundle, Node partner, Rendezvous rendezvous) {
+        this(bundle, Duplicator.DEFAULT_WINDOW, Duplicator.DEFAULT_CREDIT,
+             new ReplicationLatency(), partner, rendezvous);
+    }
+
     @Override
     public void accept(SocketChannelHandler handler) {
         assert this.handler == null : "This replicator has already been established";
         assert appender == null : "This replicator does not accept handshakes";
-        appender = new ReplicatingAppender(bundle);
+        appender = new ReplicatingAppender(bundle, this);
         this.handler = handler;
         fsm.acceptHandshake();
     }
 
+    /**
+     * Acknowledge the append of the replicated batch to the partner
+     * 
+     * @param channel
+     * @param sequenceNumber
+     */
+    public void acknowledge(UUID channel, long sequenceNumber) {
+        duplicator.replicate(new AckEntry(channel, sequenceNumber));
+    }
+
+    /**
+     * Negatively acknowledge the batch to the partner, as the batch could not
+     * be appended
+     * 
+     * @param channel
+     * @param sequenceNumber
+     */
+    public void nack(UUID channel, long sequenceNumber) {
+        duplicator.replicate(new AckEntry(channel, ~sequenceNumber));
+    }
+
+    /**
+     * Apply the acknowledgements of the appended batches from the partner
+     * 
+     * @param acknowledgements
+     *            - the buffer of acknowledgement records, between its position
+     *            and limit
+     */
+    public void acknowledged(ByteBuffer acknowledgements) {
+        while (acknowledgements.remaining() >= AckEntry.RECORD_SIZE) {
+            UUID channel = new UUID(acknowledgements.getLong(),
+                                    acknowledgements.getLong());
+            long sequenceNumber = acknowledgements.getLong();
+            if (sequenceNumber < 0) {
+                duplicator.nacked(channel, ~sequenceNumber);
+            } else {
+                duplicator.acknowledged(channel, sequenceNumber);
+            }
+        }
+    }
+
     public void close() {
         handler.close();
     }
@@ -142,6 +211,13 @@ public class Replicator implements CommunicationsHandler {
         fsm.initiateHandshake();
     }
 
+    /**
+     * @return the gate metering the byte credits of the duplicated batches
+     */
+    public MeteringGate getGate() {
+        return duplicator.getGate();
+    }
+
     public Node getPartner() {
         return partner;
     }
@@ -153,6 +229,33 @@ public class Replicator implements CommunicationsHandler {
         return fsm.getState();
     }
 
+    /**
+     * Grant the credits of the appended batch to the partner. The credits are
+     * accumulated while a grant awaits replication, and are coalesced into the
+     * pending grant
+     * 
+     * @param credits
+     *            - the number of bytes of the appended batch
+     */
+    public void grant(int credits) {
+        if (granted.getAndAdd(credits) == 0L) {
+            duplicator.replicate(new CreditEntry(granted));
+        }
+    }
+
+    /**
+     * Apply the credits granted by the partner
+     * 
+     * @param grants
+     *            - the buffer of credit records, between its position and
+     *            limit
+     */
+    public void granted(ByteBuffer grants) {
+        while (grants.remaining() >= CreditEntry.RECORD_SIZE) {
+            duplicator.granted(grants.getLong());
+        }
+    }
+
     @Override
     public void readReady() {
         if (fsm.getState() == ReplicatorFSM.Established) {
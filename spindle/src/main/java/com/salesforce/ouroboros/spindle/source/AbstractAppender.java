@@ -76,6 +76,7 @@ abstract public class AbstractAppender {
     }
 
     public void closing() {
+        releaseSegment();
     }
 
     public AbstractAppenderState getState() {
@@ -112,8 +113,7 @@ abstract public class AbstractAppender {
     protected boolean appendSegment() {
         long written;
         try {
-            written = segment.transferFrom(handler.getChannel(), position,
-                                           remaining);
+            written = transferFrom();
         } catch (IOException e) {
             if (Utils.isClose(e)) {
                 getLogger().info(String.format("closing appender %s ",
@@ -125,13 +125,16 @@ abstract public class AbstractAppender {
             error();
             return false;
         }
+        if (written < 0) {
+            error();
+            return false;
+        }
         position += written;
         remaining -= written;
         if (remaining > 0) {
             // try an extra read
             try {
-                written = segment.transferFrom(handler.getChannel(), position,
-                                               remaining);
+                written = transferFrom();
             } catch (IOException e) {
                 if (Utils.isClose(e)) {
                     getLogger().info(String.format("closing appender %s ",
@@ -143,6 +146,10 @@ abstract public class AbstractAppender {
                 error();
                 return false;
             }
+            if (written < 0) {
+                error();
+                return false;
+            }
             position += written;
             remaining -= written;
         }
@@ -163,7 +170,7 @@ abstract public class AbstractAppender {
             }
             commit();
             eventChannel = null;
-            segment = null;
+            releaseSegment();
             return true;
         }
         return false;
@@ -189,6 +196,14 @@ abstract public class AbstractAppender {
             error();
             return false;
         }
+        if (!logicalSegment.segment.acquire()) {
+            getLogger().warn(String.format("Segment %s has been closed, shutting down appender %s",
+                                           logicalSegment.segment,
+                                           fsm.getName()));
+            error();
+            return false;
+        }
+        // The use of the segment is held until the batch is committed
         segment = logicalSegment.segment;
         offset = logicalSegment.offset;
         position = logicalSegment.position;
@@ -214,11 +229,31 @@ abstract public class AbstractAppender {
         }
     }
 
-    abstract protected void commit();
+    /**
+     * Commit the appended batch. Subclasses must call this method before
+     * committing the batch to the event channel, in order to maintain the
+     * segment's offset index
+     */
+    protected void commit() {
+        try {
+            eventChannel.index(batchHeader, offset, segment);
+        } catch (IOException e) {
+            getLogger().warn(String.format("Unable to index %s at %s in %s on %s",
+                                           batchHeader, offset, segment,
+                                           fsm.getName()), e);
+        }
+    }
 
     abstract protected BatchHeader createBatchHeader();
 
     protected boolean devNull() {
+        if (!devNull.hasRemaining()) {
+            devNull.clear();
+        }
+        // Never read past the end of the batch
+        if (devNull.remaining() > remaining) {
+            devNull.limit(devNull.position() + (int) remaining);
+        }
         long read;
         try {
             if ((read = handler.getChannel().read(devNull)) < 0) {
@@ -249,8 +284,17 @@ abstract public class AbstractAppender {
     }
 
     protected void drain() {
-        segment = null;
-        devNull = ByteBuffer.allocateDirect(3 * 1024);
+        drain(ByteBuffer.allocateDirect(3 * 1024));
+    }
+
+    /**
+     * Drain the remaining bytes of the batch into the buffer
+     * 
+     * @param buffer
+     */
+    protected void drain(ByteBuffer buffer) {
+        releaseSegment();
+        devNull = buffer;
         if (devNull()) {
             fsm.ready();
         } else {
@@ -264,7 +308,7 @@ abstract public class AbstractAppender {
 
     protected void error() {
         inError = true;
-        segment = null;
+        releaseSegment();
         eventChannel = null;
         devNull = null;
     }
@@ -334,6 +378,24 @@ abstract public class AbstractAppender {
         }
     }
 
+    /**
+     * Release the use of the segment of the batch, acquired when the append of
+     * the batch began
+     */
+    protected void releaseSegment() {
+        Segment released = segment;
+        segment = null;
+        if (released == null) {
+            return;
+        }
+        try {
+            released.release();
+        } catch (IOException e) {
+            getLogger().warn(String.format("Unable to release %s on %s",
+                                           released, fsm.getName()), e);
+        }
+    }
+
     protected void selectForRead() {
         handler.selectForRead();
     }
@@ -341,4 +403,26 @@ abstract public class AbstractAppender {
     protected void ready() {
         // default is to do nothing
     }
+
+    /**
+     * Transfer the inbound bytes of the batch into the segment. Mapped segments
+     * are read into directly, otherwise the bytes are transferred through the
+     * segment's file channel.
+     * 
+     * @return the number of bytes transferred, or -1 if the inbound channel has
+     *         reached end of stream
+     * @throws IOException
+     */
+    private long transferFrom() throws IOException {
+        ByteBuffer window = segment.window(position, (int) remaining);
+        if (window == null) {
+            return segment.transferFrom(handler.getChannel(), position,
+                                        remaining);
+        }
+        int read = handler.getChannel().read(window);
+        if (read > 0) {
+            segment.appended(position + read);
+        }
+        return read;
+    }
 }
\ No newline at end of file
@@ -131,6 +131,18 @@ public class Acknowledger {
         pending.add(new BatchIdentity(channel, sequenceNumber));
     }
 
+    /**
+     * Negatively acknowledge the batch, which has not been committed
+     * 
+     * @param channel
+     *            - the channel of the batch
+     * @param sequenceNumber
+     *            - the sequence number of the batch
+     */
+    public void nack(UUID channel, long sequenceNumber) {
+        pending.add(BatchIdentity.nack(channel, sequenceNumber));
+    }
+
     protected boolean hasNext() {
         return !pending.isEmpty();
     }
@@ -51,10 +51,24 @@ public class Appender extends AbstractAppender {
     private final Acknowledger     acknowledger;
     private volatile int           startPosition;
     private final Pool<EventEntry> eventEntryPool;
+    private final BatchVerifier    verifier;
 
     public Appender(Bundle bundle, Acknowledger acknowledger) {
+        this(bundle, acknowledger, null);
+    }
+
+    /**
+     * @param bundle
+     * @param acknowledger
+     * @param verifier
+     *            - the verifier of the appended batches, or null if batches
+     *            are not verified
+     */
+    public Appender(Bundle bundle, Acknowledger acknowledger,
+                    BatchVerifier verifier) {
         super(bundle);
         this.acknowledger = acknowledger;
+        this.verifier = verifier;
         eventEntryPool = new Pool<EventEntry>("EventEntry",
                                               new Factory<EventEntry>() {
                                                   @Override
@@ -78,10 +92,29 @@ public class Appender extends AbstractAppender {
 
     @Override
     protected void commit() {
+        if (verifier != null && verifier.sample() && !verify()) {
+            // The rejected batch is negatively acknowledged, and is neither
+            // indexed nor replicated. The segment is truncated to the start of
+            // the batch, as appends always land at the end of the segment file
+            nack();
+            try {
+                segment.truncate(startPosition);
+            } catch (IOException e) {
+                log.error(String.format("Unable to truncate rejected %s in %s at %s on %s",
+                                        batchHeader, segment, startPosition,
+                                        bundle.getId()), e);
+                close();
+            } finally {
+                releaseSegment();
+                eventChannel = null;
+            }
+            return;
+        }
+        super.commit();
         try {
             EventEntry entry = allocate();
             entry.set(batchHeader, offset, startPosition, eventChannel,
-                      eventChannel.getCachedReadSegment(segment.getFile()),
+                      eventChannel.readSegmentFor(segment),
                       acknowledger, handler);
             Node producerMirror = batchHeader.getProducerMirror();
             Acknowledger mirrorAcknowledger = null;
@@ -100,7 +133,7 @@ public class Appender extends AbstractAppender {
                                     bundle.getId()));
             close();
         } finally {
-            segment = null;
+            releaseSegment();
             eventChannel = null;
         }
         if (log.isTraceEnabled()) {
@@ -160,4 +193,37 @@ public class Appender extends AbstractAppender {
     protected void markPosition() {
         startPosition = position;
     }
+
+    /**
+     * Negatively acknowledge the rejected batch to the producer and its
+     * mirror, so that the producer does not wait for the batch to time out
+     */
+    private void nack() {
+        acknowledger.nack(batchHeader.getChannel(),
+                          batchHeader.getSequenceNumber());
+        Node producerMirror = batchHeader.getProducerMirror();
+        if (producerMirror.processId == NullNode.INSTANCE.processId) {
+            return;
+        }
+        Acknowledger mirrorAcknowledger = bundle.getAcknowledger(producerMirror);
+        if (mirrorAcknowledger == null) {
+            log.warn(String.format("Could not find an acknowledger for %s",
+                                   producerMirror));
+        } else {
+            mirrorAcknowledger.nack(batchHeader.getChannel(),
+                                    batchHeader.getSequenceNumber());
+        }
+    }
+
+    private boolean verify() {
+        try {
+            return verifier.verify(batchHeader,
+                                   eventChannel.readSegmentFor(segment),
+                                   startPosition);
+        } catch (IOException e) {
+            log.error(String.format("Unable to verify %s in %s on %s",
+                                    batchHeader, segment, bundle.getId()), e);
+            return false;
+        }
+    }
 }
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.EventHeader;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.util.MappedBufferCache;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * Verifies the events of the batches appended by producers, so that corrupt
+ * batches are rejected before they are acknowledged or replicated. The size
+ * and checksum of each event of the batch is verified against the bytes
+ * appended to the segment. Verification is sampled, so that the cost of
+ * verification is bounded under load.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class BatchVerifier {
+    private final static Logger log      = LoggerFactory.getLogger(BatchVerifier.class.getCanonicalName());
+
+    private final AtomicLong    batches  = new AtomicLong();
+    private final AtomicLong    rejected = new AtomicLong();
+    private final int           sampleRate;
+    private final AtomicLong    verified = new AtomicLong();
+
+    /**
+     * @param sampleRate
+     *            - verify 1 in sampleRate batches
+     */
+    public BatchVerifier(int sampleRate) {
+        assert sampleRate > 0 : "Sample rate must be positive";
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return the number of batches rejected
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the sampling rate of the verifier
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the number of batches verified
+     */
+    public long getVerified() {
+        return verified.get();
+    }
+
+    /**
+     * @return true if the next batch is to be verified
+     */
+    public boolean sample() {
+        return sampleRate == 1 || batches.incrementAndGet() % sampleRate == 0;
+    }
+
+    /**
+     * Verify the events of the batch appended to the segment. Mapped segments
+     * are verified in place, otherwise the batch is read from the segment.
+     * 
+     * @param batchHeader
+     *            - the header of the appended batch
+     * @param segment
+     *            - the segment for reading the appended batch
+     * @param position
+     *            - the position of the batch within the segment
+     * @return true if the events of the batch are valid
+     * @throws IOException
+     */
+    public boolean verify(BatchHeader batchHeader, Segment segment, int position)
+                                                                                 throws IOException {
+        int length = batchHeader.getBatchByteLength();
+        int invalid;
+        ByteBuffer window = segment.window(position, length);
+        if (window != null) {
+            invalid = EventHeader.verify(window);
+            if (invalid >= 0) {
+                invalid -= position;
+            }
+        } else {
+            MappedBufferCache bufferCache = Utils.BUFFER_CACHE.get();
+            MappedByteBuffer buffer = bufferCache.get(length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (segment.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                invalid = EventHeader.verify(buffer);
+                if (invalid < 0 && buffer.limit() < length) {
+                    invalid = buffer.limit();
+                }
+            } finally {
+                bufferCache.recycle(buffer);
+            }
+        }
+        verified.incrementAndGet();
+        if (invalid < 0) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        log.error(String.format("Rejecting %s, invalid event at batch position %s in %s",
+                                batchHeader, invalid, segment));
+        return false;
+    }
+}
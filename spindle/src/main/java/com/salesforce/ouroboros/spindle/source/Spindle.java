@@ -61,9 +61,19 @@ public class Spindle implements CommunicationsHandler {
     final Appender               appender;
 
     public Spindle(Bundle bundle) {
+        this(bundle, null);
+    }
+
+    /**
+     * @param bundle
+     * @param verifier
+     *            - the verifier of the appended batches, or null if batches
+     *            are not verified
+     */
+    public Spindle(Bundle bundle, BatchVerifier verifier) {
         fsm.setName(String.format("?>%s", bundle.getId().processId));
         acknowledger = new Acknowledger(bundle);
-        appender = new Appender(bundle, acknowledger);
+        appender = new Appender(bundle, acknowledger, verifier);
         this.bundle = bundle;
     }
 
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestCompactor {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestCompactor", ".root");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void teardown() {
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testThrottledPasses() throws Exception {
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root,
+                                                     4 * eventSize + eventSize
+                                                             / 2, null,
+                                                     segmentCache,
+                                                     segmentCache);
+        // five sealed segments and the append segment
+        for (int i = 0; i < 21; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, i);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            event.rewind();
+            event.write(logicalSegment.segment);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+        }
+        eventChannel.checkpoint();
+        File[] segments = eventChannel.getSegmentFiles();
+        assertEquals(6, segments.length);
+
+        // the backlog is compressed over successive passes
+        Compactor compactor = new Compactor(1024, Deflater.BEST_SPEED, 2);
+        assertEquals(2, compactor.compact(Arrays.asList(eventChannel)));
+        assertEquals(2, compactor.compact(Arrays.asList(eventChannel)));
+        assertEquals(1, compactor.compact(Arrays.asList(eventChannel)));
+        assertEquals(0, compactor.compact(Arrays.asList(eventChannel)));
+        for (int i = 1; i < segments.length; i++) {
+            assertTrue(CompressedBlocks.isCompressed(segments[i]));
+        }
+        assertFalse(CompressedBlocks.isCompressed(segments[0]));
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.replication.CursorEntry;
+import com.salesforce.ouroboros.spindle.replication.Replicator;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestCursorStore {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestCursorStore", ".root");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void teardown() {
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testCoalescedCommits() throws Exception {
+        CursorStore store = new CursorStore(root, 1024);
+        UUID consumer = UUID.randomUUID();
+        UUID channel = UUID.randomUUID();
+        for (long offset = 0; offset < 100; offset++) {
+            store.commit(consumer, channel, offset);
+        }
+        store.commit(UUID.randomUUID(), channel, 7L);
+        assertEquals(99L, store.cursorFor(consumer, channel));
+        assertEquals(-1L, store.cursorFor(consumer, UUID.randomUUID()));
+
+        ByteBuffer records = store.flush();
+        assertEquals(2 * CursorStore.RECORD_SIZE, records.remaining());
+        assertEquals(2 * CursorStore.RECORD_SIZE, store.getPosition());
+        assertNull(store.flush());
+        store.close();
+
+        store = new CursorStore(root, 1024);
+        assertEquals(99L, store.cursorFor(consumer, channel));
+        assertEquals(2 * CursorStore.RECORD_SIZE, store.getPosition());
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        int capacity = 4 * CursorStore.RECORD_SIZE;
+        CursorStore store = new CursorStore(root, capacity);
+        UUID consumer = UUID.randomUUID();
+        UUID channel = UUID.randomUUID();
+        for (long offset = 0; offset < 10; offset++) {
+            store.commit(consumer, channel, offset);
+            store.flush();
+        }
+        assertEquals(capacity, store.getCapacity());
+        assertTrue(store.getPosition() <= capacity);
+        store.close();
+
+        store = new CursorStore(root, capacity);
+        assertEquals(9L, store.cursorFor(consumer, channel));
+        store.close();
+        assertTrue(!new File(root, CursorStore.LOG_NAME + ".compacting").exists());
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        CursorStore store = new CursorStore(root, 1024);
+        UUID consumer = UUID.randomUUID();
+        UUID channel = UUID.randomUUID();
+        store.commit(consumer, channel, 1L);
+        store.flush();
+        store.commit(consumer, channel, 2L);
+        store.flush();
+        store.close();
+
+        // tear the last record
+        RandomAccessFile log = new RandomAccessFile(
+                                                    new File(
+                                                             root,
+                                                             CursorStore.LOG_NAME),
+                                                    "rw");
+        try {
+            log.seek(CursorStore.RECORD_SIZE + 33);
+            log.write(0xFF);
+        } finally {
+            log.close();
+        }
+
+        store = new CursorStore(root, 1024);
+        assertEquals(1L, store.cursorFor(consumer, channel));
+        assertEquals(CursorStore.RECORD_SIZE, store.getPosition());
+        store.close();
+    }
+
+    @Test
+    public void testReplication() throws Exception {
+        CursorStore primary = new CursorStore(new File(root, "primary"), 1024);
+        CursorStore mirror = new CursorStore(new File(root, "mirror"), 1024);
+        UUID consumer = UUID.randomUUID();
+        UUID replicated = UUID.randomUUID();
+        UUID mirrored = UUID.randomUUID();
+        Replicator replicator = mock(Replicator.class);
+        EventChannel primaryChannel = mock(EventChannel.class);
+        when(primaryChannel.isPrimary()).thenReturn(true);
+        when(primaryChannel.getReplicator()).thenReturn(replicator);
+        EventChannel mirrorChannel = mock(EventChannel.class);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(replicated)).thenReturn(primaryChannel);
+        when(bundle.eventChannelFor(mirrored)).thenReturn(mirrorChannel);
+
+        primary.commit(consumer, replicated, 42L);
+        primary.commit(consumer, mirrored, 13L);
+        ByteBuffer records = primary.flush();
+        primary.replicate(records, bundle);
+        verify(replicator).replicate(isA(CursorEntry.class));
+
+        records.rewind();
+        mirror.apply(records, new Node(0));
+        assertEquals(42L, mirror.cursorFor(consumer, replicated));
+        assertEquals(13L, mirror.cursorFor(consumer, mirrored));
+        primary.close();
+        mirror.close();
+    }
+
+    @Test
+    public void testMirrorReplication() throws Exception {
+        CursorStore primary = new CursorStore(new File(root, "primary"), 1024);
+        CursorStore mirror = new CursorStore(new File(root, "mirror"), 1024);
+        UUID consumer = UUID.randomUUID();
+        UUID channel = UUID.randomUUID();
+        Node primaryNode = new Node(0);
+        Node mirrorNode = new Node(1);
+        Replicator toPrimary = mock(Replicator.class);
+        Replicator toMirror = mock(Replicator.class);
+        when(toMirror.getPartner()).thenReturn(mirrorNode);
+        EventChannel mirrorChannel = mock(EventChannel.class);
+        when(mirrorChannel.isMirror()).thenReturn(true);
+        when(mirrorChannel.getPartnerId()).thenReturn(primaryNode);
+        Bundle mirrorBundle = mock(Bundle.class);
+        when(mirrorBundle.eventChannelFor(channel)).thenReturn(mirrorChannel);
+        when(mirrorBundle.getReplicator(primaryNode)).thenReturn(toPrimary);
+        EventChannel primaryChannel = mock(EventChannel.class);
+        when(primaryChannel.isPrimary()).thenReturn(true);
+        when(primaryChannel.getReplicator()).thenReturn(toMirror);
+        Bundle primaryBundle = mock(Bundle.class);
+        when(primaryBundle.eventChannelFor(channel)).thenReturn(primaryChannel);
+
+        // the cursors committed on the mirror are replicated to the primary
+        mirror.commit(consumer, channel, 42L);
+        ByteBuffer records = mirror.flush();
+        mirror.replicate(records, mirrorBundle);
+        verify(toPrimary).replicate(isA(CursorEntry.class));
+
+        // the applied cursors are durable, but not replicated back
+        records.rewind();
+        primary.apply(records, mirrorNode);
+        assertEquals(42L, primary.cursorFor(consumer, channel));
+        ByteBuffer applied = primary.flush();
+        assertNotNull(applied);
+        primary.replicate(applied, primaryBundle);
+        verify(toMirror, never()).replicate(isA(CursorEntry.class));
+
+        // until the cursor is committed on the primary
+        primary.commit(consumer, channel, 64L);
+        primary.replicate(primary.flush(), primaryBundle);
+        verify(toMirror).replicate(isA(CursorEntry.class));
+        primary.close();
+        mirror.close();
+    }
+
+    @Test
+    public void testReplicaReplication() throws Exception {
+        CursorStore primary = new CursorStore(new File(root, "primary"), 1024);
+        CursorStore replica = new CursorStore(new File(root, "replica"), 1024);
+        CursorStore mirror = new CursorStore(new File(root, "mirror"), 1024);
+        UUID consumer = UUID.randomUUID();
+        UUID channel = UUID.randomUUID();
+        Node primaryNode = new Node(0);
+        Node mirrorNode = new Node(1);
+        Node replicaNode = new Node(2);
+        Node otherNode = new Node(3);
+        Replicator toPrimary = mock(Replicator.class);
+        when(toPrimary.getPartner()).thenReturn(primaryNode);
+        Replicator toMirror = mock(Replicator.class);
+        when(toMirror.getPartner()).thenReturn(mirrorNode);
+        Replicator toReplica = mock(Replicator.class);
+        when(toReplica.getPartner()).thenReturn(replicaNode);
+        Replicator toOther = mock(Replicator.class);
+        when(toOther.getPartner()).thenReturn(otherNode);
+        EventChannel replicaChannel = mock(EventChannel.class);
+        when(replicaChannel.isMirror()).thenReturn(true);
+        when(replicaChannel.getPartnerId()).thenReturn(primaryNode);
+        Bundle replicaBundle = mock(Bundle.class);
+        when(replicaBundle.eventChannelFor(channel)).thenReturn(replicaChannel);
+        when(replicaBundle.getReplicator(primaryNode)).thenReturn(toPrimary);
+        EventChannel primaryChannel = mock(EventChannel.class);
+        when(primaryChannel.isPrimary()).thenReturn(true);
+        when(primaryChannel.getReplicator()).thenReturn(toMirror);
+        when(primaryChannel.getReplicas()).thenReturn(Arrays.asList(toReplica,
+                                                                    toOther));
+        Bundle primaryBundle = mock(Bundle.class);
+        when(primaryBundle.eventChannelFor(channel)).thenReturn(primaryChannel);
+
+        // the cursors committed on the primary are replicated to all replicas
+        primary.commit(consumer, channel, 13L);
+        primary.replicate(primary.flush(), primaryBundle);
+        verify(toMirror).replicate(isA(CursorEntry.class));
+        verify(toReplica).replicate(isA(CursorEntry.class));
+        verify(toOther).replicate(isA(CursorEntry.class));
+
+        // the cursors committed on a replica are replicated to the primary
+        replica.commit(consumer, channel, 42L);
+        ByteBuffer records = replica.flush();
+        replica.replicate(records, replicaBundle);
+        verify(toPrimary).replicate(isA(CursorEntry.class));
+
+        // which relays the applied cursors to the other replicas, but not back
+        records.rewind();
+        primary.apply(records, replicaNode);
+        primary.replicate(primary.flush(), primaryBundle);
+        verify(toMirror, times(2)).replicate(isA(CursorEntry.class));
+        verify(toOther, times(2)).replicate(isA(CursorEntry.class));
+        verify(toReplica, times(1)).replicate(isA(CursorEntry.class));
+
+        // the relayed cursors are applied, and not replicated back
+        records.rewind();
+        mirror.apply(records, primaryNode);
+        assertEquals(42L, mirror.cursorFor(consumer, channel));
+        mirror.replicate(mirror.flush(), replicaBundle);
+        verify(toPrimary, times(1)).replicate(isA(CursorEntry.class));
+        primary.close();
+        replica.close();
+        mirror.close();
+    }
+}
@@ -26,22 +26,46 @@
 package com.salesforce.ouroboros.spindle;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.hellblazer.pinkie.SocketChannelHandler;
 import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.EventHeader;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
 import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.spindle.Segment.Mode;
+import com.salesforce.ouroboros.spindle.replication.EventEntry;
+import com.salesforce.ouroboros.spindle.replication.ReplicaEntry;
+import com.salesforce.ouroboros.spindle.replication.Replicator;
+import com.salesforce.ouroboros.spindle.source.Acknowledger;
+import com.salesforce.ouroboros.util.Pool;
 import com.salesforce.ouroboros.util.Utils;
 
 /**
@@ -67,6 +91,177 @@ public class TestEventChannel {
         }
     }
 
+    @Test
+    public void testFailMirror() throws Exception {
+        long maxSegmentSize = 16 * 1024;
+        int eventSize = 256;
+        Node node = new Node(0);
+        Node mirrorNode = new Node(1);
+        Node replicaNode = new Node(2);
+        UUID channel = UUID.randomUUID();
+        Replicator mirror = mock(Replicator.class);
+        Replicator replica = mock(Replicator.class);
+        Replicator otherReplica = mock(Replicator.class);
+        when(mirror.getPartner()).thenReturn(mirrorNode);
+        when(replica.getPartner()).thenReturn(replicaNode);
+        when(otherReplica.getPartner()).thenReturn(new Node(3));
+        Acknowledger acknowledger = mock(Acknowledger.class);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     mirrorNode, channel,
+                                                     root, maxSegmentSize,
+                                                     mirror, segmentCache,
+                                                     segmentCache);
+        eventChannel.setReplicas(Arrays.asList(replica, otherReplica));
+
+        EventEntry[] entries = new EventEntry[3];
+        for (int i = 0; i < entries.length; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, i);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            @SuppressWarnings("unchecked")
+            EventEntry entry = new EventEntry(mock(Pool.class));
+            entry.set(batchHeader, logicalSegment.offset,
+                      logicalSegment.position, eventChannel,
+                      logicalSegment.segment, acknowledger, handler);
+            entries[i] = entry;
+        }
+
+        eventChannel.append(entries[0], null);
+        verify(mirror).replicate(entries[0]);
+        verify(replica).replicate(isA(ReplicaEntry.class));
+        verify(otherReplica).replicate(isA(ReplicaEntry.class));
+
+        // the first replica is promoted to the mirror
+        eventChannel.failMirror();
+        assertSame(replica, eventChannel.getReplicator());
+        assertEquals(replicaNode, eventChannel.getPartnerId());
+        assertEquals(Arrays.asList(otherReplica), eventChannel.getReplicas());
+        eventChannel.append(entries[1], null);
+        verify(replica).replicate(entries[1]);
+        verify(otherReplica, times(2)).replicate(isA(ReplicaEntry.class));
+        verify(mirror, never()).replicate(entries[1]);
+
+        // the promoted mirror fails in turn
+        eventChannel.failMirror();
+        assertSame(otherReplica, eventChannel.getReplicator());
+        assertTrue(eventChannel.getReplicas().isEmpty());
+        eventChannel.append(entries[2], null);
+        verify(otherReplica).replicate(entries[2]);
+
+        // the last replica fails, and the channel is no longer mirrored
+        eventChannel.failMirror();
+        assertNull(eventChannel.getReplicator());
+        eventChannel.close(node);
+    }
+
+    @Test
+    public void testOffsetFor() throws Exception {
+        long maxSegmentSize = 16 * 1024;
+        int eventSize = 256;
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache);
+        assertEquals(0L, eventChannel.offsetFor(1000L));
+
+        // a batch every 50 milliseconds, rolling over the segments
+        long time = 1000000L;
+        long[] offsets = new long[128];
+        for (int i = 0; i < offsets.length; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, i);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            offsets[i] = logicalSegment.offset;
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+            eventChannel.index(batchHeader, logicalSegment.offset,
+                               logicalSegment.segment, time + i * 50);
+        }
+        assertEquals(maxSegmentSize, offsets[63]);
+
+        assertEquals(0L, eventChannel.offsetFor(time - 1));
+        assertEquals(0L, eventChannel.offsetFor(time));
+        assertEquals(0L, eventChannel.offsetFor(time + 100));
+        assertEquals(offsets[2], eventChannel.offsetFor(time + 101));
+        assertEquals(offsets[62], eventChannel.offsetFor(time + 63 * 50));
+        assertEquals(offsets[63], eventChannel.offsetFor(time + 63 * 50 + 1));
+        assertEquals(offsets[126], eventChannel.offsetFor(Long.MAX_VALUE));
+        eventChannel.close(node);
+    }
+
+    @Test
+    public void testOffsetForRecovered() throws Exception {
+        long maxSegmentSize = 1024;
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache);
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+
+        // a batch every 50 milliseconds, rolling over many segments
+        long time = 1000000L;
+        long[] offsets = new long[128];
+        for (int i = 0; i < offsets.length; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, i);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            offsets[i] = logicalSegment.offset;
+            event.rewind();
+            event.write(logicalSegment.segment);
+            eventChannel.index(batchHeader, logicalSegment.offset,
+                               logicalSegment.segment, time + i * 50);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+        }
+        assertTrue(offsets[offsets.length - 1] > 4 * maxSegmentSize);
+        for (Segment segment : segmentCache.values()) {
+            segment.close();
+        }
+        segmentCache.clear();
+
+        // the sealed segments' time indexes are opened for each lookup alone
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            EventChannel recovered = new EventChannel(node, Role.PRIMARY,
+                                                      new Node(1), channel,
+                                                      root, maxSegmentSize,
+                                                      null, segmentCache,
+                                                      segmentCache);
+            recovered.recover(executor);
+            assertEquals(0L, recovered.offsetFor(time));
+            for (long t = time + 1; t < time + offsets.length * 50; t += 25) {
+                assertEquals(eventChannel.offsetFor(t), recovered.offsetFor(t));
+            }
+            assertEquals(offsets[offsets.length - 1],
+                         recovered.offsetFor(Long.MAX_VALUE));
+
+            // a sealed segment without a time index is not given one by lookups
+            File timeIndex = new File(
+                                      new File(root,
+                                               channel.toString().replace('-',
+                                                                          '/')),
+                                      EventChannel.timeIndexName(0L));
+            assertTrue(timeIndex.delete());
+            assertEquals(0L, recovered.offsetFor(time + 1));
+            assertFalse(timeIndex.exists());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testPrefix() {
         assertEquals(0L, EventChannel.prefixFor(666L, 1024L));
@@ -78,6 +273,283 @@ public class TestEventChannel {
         assertEquals(1024 * 11, EventChannel.prefixFor(1024 * 11 + 15, 1024L));
     }
 
+    @Test
+    public void testPreallocation() throws Exception {
+        long maxSegmentSize = 16 * 1024;
+        int eventSize = 256;
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        int sequenceNumber = 0;
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        Executor preallocator = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache,
+                                                     Mode.APPEND,
+                                                     preallocator, 0.5, null,
+                                                     null, null);
+        File next = null;
+        long offset = 0;
+        BatchHeader batchHeader;
+        AppendSegment logicalSegment;
+        for (; offset + eventSize < maxSegmentSize; offset += eventSize) {
+            batchHeader = new BatchHeader(node, eventSize, 666, channel,
+                                          sequenceNumber++);
+            logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            if (next == null) {
+                next = new File(logicalSegment.segment.getFile().getParentFile(),
+                                EventChannel.segmentName(maxSegmentSize));
+            }
+            assertEquals(offset >= maxSegmentSize / 2,
+                         segmentCache.containsKey(next));
+            eventChannel.append(batchHeader, offset, logicalSegment.segment);
+        }
+        Segment preallocated = segmentCache.get(next);
+        assertNotNull(preallocated);
+
+        // the rollover should use the preallocated segment
+        batchHeader = new BatchHeader(node, eventSize, 666, channel,
+                                      sequenceNumber++);
+        logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+        assertEquals(0, logicalSegment.position);
+        assertSame(preallocated, logicalSegment.segment);
+        eventChannel.close(node);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        long maxSegmentSize = 16 * 1024;
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache);
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        long sequenceNumber = 100;
+        for (int i = 0; i < 10; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel,
+                                                      sequenceNumber++);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            event.rewind();
+            event.write(logicalSegment.segment);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+            if (i == 4) {
+                eventChannel.checkpoint();
+            }
+        }
+        // a torn event
+        BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                  channel, sequenceNumber);
+        Segment segment = eventChannel.appendSegmentFor(batchHeader).segment;
+        event.rewind();
+        ByteBuffer torn = event.getBytes();
+        torn.limit(eventSize - 5);
+        segment.write(torn);
+        segment.close();
+        segmentCache.clear();
+        assertEquals(11 * eventSize - 5, segment.getFile().length());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            EventChannel recovered = new EventChannel(node, Role.PRIMARY,
+                                                      new Node(1), channel,
+                                                      root, maxSegmentSize,
+                                                      null, segmentCache,
+                                                      segmentCache);
+            recovered.recover(executor);
+            assertEquals(10 * eventSize, segment.getFile().length());
+            assertEquals(10 * eventSize,
+                         recovered.appendSegmentFor(batchHeader).offset);
+            assertTrue(recovered.isDuplicate(new BatchHeader(node, eventSize,
+                                                             666, channel, 101)));
+            assertFalse(recovered.isDuplicate(batchHeader));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRecoverRetransmission() throws Exception {
+        long maxSegmentSize = 16 * 1024;
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache);
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        long sequenceNumber = 100;
+        long checkpointed = -1L;
+        // All batches fall within the first index interval of the segment
+        for (int i = 0; i < 10; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel,
+                                                      sequenceNumber++);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            event.rewind();
+            event.write(logicalSegment.segment);
+            eventChannel.index(batchHeader, logicalSegment.offset,
+                               logicalSegment.segment);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+            if (i == 4) {
+                eventChannel.checkpoint();
+                checkpointed = sequenceNumber - 1;
+            }
+        }
+        for (Segment segment : segmentCache.values()) {
+            segment.close();
+        }
+        segmentCache.clear();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            EventChannel recovered = new EventChannel(node, Role.PRIMARY,
+                                                      new Node(1), channel,
+                                                      root, maxSegmentSize,
+                                                      null, segmentCache,
+                                                      segmentCache);
+            recovered.recover(executor);
+            // the retransmitted batches up to the checkpoint are treated as
+            // they were before the crash, as the tail of the index is
+            // persisted with the checkpoint
+            for (long i = 100; i < checkpointed; i++) {
+                BatchHeader retransmitted = new BatchHeader(node, eventSize,
+                                                            666, channel, i);
+                assertEquals(eventChannel.isDuplicate(retransmitted),
+                             recovered.isDuplicate(retransmitted));
+            }
+            assertTrue(recovered.isDuplicate(new BatchHeader(node, eventSize,
+                                                             666, channel,
+                                                             checkpointed - 1)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRecoverPreallocated() throws Exception {
+        long maxSegmentSize = 16 * 1024;
+        int eventSize = 256;
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        int sequenceNumber = 0;
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        Executor preallocator = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache,
+                                                     Mode.MAPPED,
+                                                     preallocator, 0.5, null,
+                                                     null, null);
+        byte[] payload = new byte[eventSize - EventHeader.HEADER_BYTE_SIZE];
+        Arrays.fill(payload, (byte) 7);
+        Event event = new Event(666, ByteBuffer.wrap(payload));
+        long offset = 0;
+        for (; offset < maxSegmentSize * 3 / 4; offset += eventSize) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel,
+                                                      sequenceNumber++);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            event.rewind();
+            event.write(logicalSegment.segment);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+        }
+        // the segments are not closed, as in a crash
+        File preallocated = new File(
+                                     new File(root, channel.toString().replace('-',
+                                                                               '/')),
+                                     EventChannel.segmentName(maxSegmentSize));
+        assertEquals(maxSegmentSize, preallocated.length());
+        segmentCache.clear();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            EventChannel recovered = new EventChannel(node, Role.PRIMARY,
+                                                      new Node(1), channel,
+                                                      root, maxSegmentSize,
+                                                      null, segmentCache,
+                                                      segmentCache);
+            recovered.recover(executor);
+            assertFalse(preallocated.exists());
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, sequenceNumber);
+            assertEquals(offset,
+                         recovered.appendSegmentFor(batchHeader).offset);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompressMapped() throws Exception {
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        // the sealed segments have a zero filled tail in the mapped region
+        long maxSegmentSize = 4 * eventSize + eventSize / 2;
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, maxSegmentSize,
+                                                     null, segmentCache,
+                                                     segmentCache,
+                                                     Mode.MAPPED, null, 1.0,
+                                                     null, null, null);
+        for (int i = 0; i < 6; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, i);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            event.rewind();
+            logicalSegment.segment.write(event.getBytes(),
+                                         logicalSegment.position);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+        }
+        eventChannel.checkpoint();
+        File[] segments = eventChannel.getSegmentFiles();
+        File sealed = segments[segments.length - 1];
+        assertTrue(eventChannel.compress(sealed, 1024,
+                                         Deflater.DEFAULT_COMPRESSION));
+
+        Segment segment = new Segment(eventChannel, sealed, Mode.READ);
+        assertTrue(segment.isCompressed());
+        assertEquals(4 * eventSize, segment.size());
+        segment.close();
+        eventChannel.close(node);
+    }
+
     @Test
     public void testSegmentGeneration() throws Exception {
         long maxSegmentSize = 16 * 1024;
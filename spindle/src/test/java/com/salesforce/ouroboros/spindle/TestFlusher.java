@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import com.salesforce.ouroboros.spindle.Flusher.Policy;
+import com.salesforce.ouroboros.spindle.source.Acknowledger;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFlusher {
+
+    @Test
+    public void testBeforeAck() throws Exception {
+        Segment segment = mock(Segment.class);
+        Acknowledger acknowledger = mock(Acknowledger.class);
+        UUID channel = UUID.randomUUID();
+        Flusher flusher = new Flusher(new File("root"), Policy.BEFORE_ACK, 0,
+                                      TimeUnit.MILLISECONDS, 0);
+        flusher.start();
+        try {
+            flusher.dirty(segment, 100);
+            flusher.acknowledge(acknowledger, channel, 1L);
+            flusher.acknowledge(acknowledger, channel, 2L);
+            verify(acknowledger, timeout(1000)).acknowledge(channel, 2L);
+            InOrder order = Mockito.inOrder(segment, acknowledger);
+            order.verify(segment).force(false);
+            order.verify(acknowledger).acknowledge(channel, 1L);
+            order.verify(acknowledger).acknowledge(channel, 2L);
+        } finally {
+            flusher.terminate();
+        }
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        Segment segment = mock(Segment.class);
+        Acknowledger acknowledger = mock(Acknowledger.class);
+        UUID channel = UUID.randomUUID();
+        Flusher flusher = new Flusher(new File("root"), Policy.BYTES, 0,
+                                      TimeUnit.MILLISECONDS, 1000);
+        flusher.start();
+        try {
+            flusher.acknowledge(acknowledger, channel, 1L);
+            verify(acknowledger).acknowledge(channel, 1L);
+
+            flusher.dirty(segment, 999);
+            Thread.sleep(100);
+            verify(segment, never()).force(false);
+            flusher.dirty(segment, 1);
+            verify(segment, timeout(1000)).force(false);
+        } finally {
+            flusher.terminate();
+        }
+    }
+
+    @Test
+    public void testUnforced() throws Exception {
+        Segment segment = mock(Segment.class);
+        doThrow(new IOException("Unable to force")).when(segment).force(false);
+        Acknowledger acknowledger = mock(Acknowledger.class);
+        UUID channel = UUID.randomUUID();
+        Flusher flusher = new Flusher(new File("root"), Policy.BEFORE_ACK, 0,
+                                      TimeUnit.MILLISECONDS, 0);
+        flusher.start();
+        try {
+            flusher.dirty(segment, 100);
+            flusher.acknowledge(acknowledger, channel, 1L);
+            verify(acknowledger, timeout(1000)).nack(channel, 1L);
+            verify(acknowledger, never()).acknowledge(channel, 1L);
+        } finally {
+            flusher.terminate();
+        }
+    }
+
+    @Test
+    public void testTerminate() throws Exception {
+        Segment segment = mock(Segment.class);
+        Acknowledger acknowledger = mock(Acknowledger.class);
+        UUID channel = UUID.randomUUID();
+        Flusher flusher = new Flusher(new File("root"), Policy.INTERVAL,
+                                      1000, TimeUnit.SECONDS, 0);
+        flusher.start();
+        flusher.dirty(segment, 100);
+        // the flusher is woken, rather than interrupted, and the dirty
+        // segments are forced on termination
+        flusher.terminate();
+        verify(segment).force(false);
+        flusher.acknowledge(acknowledger, channel, 1L);
+        verify(acknowledger).acknowledge(channel, 1L);
+    }
+}
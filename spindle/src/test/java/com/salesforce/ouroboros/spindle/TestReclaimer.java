@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestReclaimer {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestReclaimer", ".root");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void teardown() {
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        ConcurrentMap<File, Segment> segmentCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(node, Role.PRIMARY,
+                                                     new Node(1), channel,
+                                                     root, 4 * eventSize, null,
+                                                     segmentCache, segmentCache);
+        for (int i = 0; i < 12; i++) {
+            BatchHeader batchHeader = new BatchHeader(node, eventSize, 666,
+                                                      channel, i);
+            AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+            event.rewind();
+            event.write(logicalSegment.segment);
+            eventChannel.append(batchHeader, logicalSegment.offset,
+                                logicalSegment.segment);
+        }
+        File[] segments = eventChannel.getSegmentFiles();
+        assertTrue(segments.length > 2);
+
+        Reclaimer reclaimer = new Reclaimer(0, TimeUnit.SECONDS, 0, 2, 64);
+        // segments are not reclaimed until checkpointed
+        assertEquals(0, reclaimer.reclaim(Arrays.asList(eventChannel)));
+        assertEquals(segments.length, eventChannel.getSegmentFiles().length);
+
+        eventChannel.checkpoint();
+        assertEquals(segments.length - 2,
+                     reclaimer.reclaim(Arrays.asList(eventChannel)));
+        File[] retained = eventChannel.getSegmentFiles();
+        assertEquals(2, retained.length);
+        assertEquals(segments[0], retained[0]);
+        assertEquals(segments[1], retained[1]);
+        for (int i = 2; i < segments.length; i++) {
+            assertFalse(segments[i].exists());
+            assertFalse(segmentCache.containsKey(segments[i]));
+        }
+
+        // the current append segment is never reclaimed
+        reclaimer = new Reclaimer(0, TimeUnit.SECONDS, 1, 0, 64);
+        assertEquals(1, reclaimer.reclaim(Arrays.asList(eventChannel)));
+        retained = eventChannel.getSegmentFiles();
+        assertEquals(1, retained.length);
+        assertEquals(segments[0], retained[0]);
+    }
+
+    @Test
+    public void testTombstones() throws Exception {
+        File channel = new File(root, UUID.randomUUID().toString());
+        assertTrue(channel.mkdirs());
+        for (int i = 0; i < 4; i++) {
+            FileOutputStream out = new FileOutputStream(new File(channel,
+                                                                 i + ".segment"));
+            out.write(new byte[] { 1, 2, 3 });
+            out.close();
+        }
+        Reclaimer reclaimer = new Reclaimer(0, TimeUnit.SECONDS, 0, 0, 2);
+        reclaimer.delete(channel);
+        assertFalse(channel.exists());
+        assertEquals(1, root.list().length);
+        assertTrue(root.list()[0].endsWith(Reclaimer.TOMBSTONE_SUFFIX));
+
+        // throttled to 2 files per pass
+        assertEquals(2, reclaimer.reclaim(Arrays.<EventChannel> asList()));
+        assertEquals(1, root.list().length);
+        assertEquals(2, reclaimer.reclaim(Arrays.<EventChannel> asList()));
+        assertEquals(0, reclaimer.reclaim(Arrays.<EventChannel> asList()));
+        assertEquals(0, root.list().length);
+    }
+}
@@ -26,10 +26,24 @@
 package com.salesforce.ouroboros.spindle;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.zip.Deflater;
 
 import org.junit.Test;
 
@@ -58,4 +72,133 @@ public class TestSegment {
                                       Mode.APPEND);
         assertEquals(prefix, segment.getPrefix());
     }
+
+    @Test
+    public void testMappedAppend() throws Exception {
+        File file = File.createTempFile("mapped", EventChannel.SEGMENT_SUFFIX);
+        file.delete();
+        file.deleteOnExit();
+
+        Segment segment = new Segment(mock(EventChannel.class), file,
+                                      Mode.MAPPED, 1024);
+        assertEquals(0L, segment.size());
+        assertNull(segment.window(1000, 100));
+
+        byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        ByteBuffer window = segment.window(0, payload.length);
+        assertNotNull(window);
+        window.put(payload);
+        segment.appended(payload.length);
+        assertEquals(payload.length, segment.size());
+
+        ByteBuffer read = ByteBuffer.allocate(payload.length);
+        segment.read(read, 0);
+        assertEquals(ByteBuffer.wrap(payload), read.flip());
+
+        segment.close();
+        assertEquals(payload.length, file.length());
+    }
+
+    @Test
+    public void testDeferredUnmap() throws Exception {
+        File file = File.createTempFile("unmap", EventChannel.SEGMENT_SUFFIX);
+        file.delete();
+        file.deleteOnExit();
+
+        Segment segment = new Segment(mock(EventChannel.class), file,
+                                      Mode.MAPPED, 1024);
+        byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        assertTrue(segment.acquire());
+        segment.close();
+        assertFalse(segment.isOpen());
+        assertFalse(segment.acquire());
+
+        // the mapped region outlives the close while the segment is in use
+        ByteBuffer window = segment.window(0, payload.length);
+        window.put(payload);
+        segment.appended(payload.length);
+        assertEquals(1024, file.length());
+
+        segment.release();
+        assertEquals(payload.length, file.length());
+        segment.close();
+        assertEquals(payload.length, file.length());
+    }
+
+    @Test
+    public void testAcquireForRead() throws Exception {
+        File file = File.createTempFile("acquire", EventChannel.SEGMENT_SUFFIX);
+        file.deleteOnExit();
+        EventChannel channel = mock(EventChannel.class);
+        Segment segment = new Segment(channel, file, Mode.READ);
+        assertSame(segment, segment.acquireForRead());
+        segment.release();
+
+        // the evicted segment is replaced by the reopened read segment
+        Segment reopened = new Segment(channel, file, Mode.READ);
+        when(channel.readSegmentFor(segment.getPrefix())).thenReturn(reopened);
+        segment.close();
+        assertSame(reopened, segment.acquireForRead());
+        reopened.close();
+        assertTrue(reopened.isOpen());
+        reopened.release();
+        assertFalse(reopened.isOpen());
+
+        // a segment which cannot be reopened is not read
+        when(channel.readSegmentFor(segment.getPrefix())).thenReturn(reopened);
+        try {
+            segment.acquireForRead();
+            fail("Closed segment acquired");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompressedRead() throws Exception {
+        File file = File.createTempFile("compressed",
+                                        EventChannel.SEGMENT_SUFFIX);
+        file.deleteOnExit();
+        File compressed = File.createTempFile("compressed", ".compressing");
+        compressed.deleteOnExit();
+
+        byte[] contents = new byte[10000];
+        byte[] payload = "{\"give me\": [\"Slack\", \"Food\", \"Kill me\"]}".getBytes();
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = payload[i % payload.length];
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents);
+        out.close();
+
+        long compressedSize = CompressedBlocks.compress(file, compressed,
+                                                        1024,
+                                                        Deflater.DEFAULT_COMPRESSION);
+        assertEquals(compressedSize, compressed.length());
+        assertTrue(compressedSize < contents.length / 4);
+
+        Segment segment = new Segment(mock(EventChannel.class), compressed,
+                                      Mode.READ);
+        assertTrue(segment.isCompressed());
+        assertEquals(contents.length, segment.size());
+
+        // spans a block boundary
+        ByteBuffer read = ByteBuffer.allocate(100);
+        assertEquals(100, segment.read(read, 1000));
+        assertEquals(ByteBuffer.wrap(contents, 1000, 100), read.flip());
+
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        assertEquals(contents.length,
+                     segment.transferTo(0, contents.length + 100,
+                                        Channels.newChannel(transferred)));
+        assertTrue(Arrays.equals(contents, transferred.toByteArray()));
+
+        assertEquals(-1, segment.read(ByteBuffer.allocate(10), contents.length));
+        segment.close();
+
+        Segment uncompressed = new Segment(mock(EventChannel.class), file,
+                                           Mode.READ);
+        assertFalse(uncompressed.isCompressed());
+        uncompressed.close();
+    }
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestSegmentIndex {
+
+    @Test
+    public void testLookup() throws Exception {
+        File file = File.createTempFile("lookup", SegmentIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        long prefix = 0x1000;
+        SegmentIndex index = new SegmentIndex(file, 100);
+        assertNull(index.floorOffset(prefix));
+
+        assertTrue(index.record(prefix, 10, 0));
+        assertFalse(index.record(prefix + 50, 11, 50));
+        assertTrue(index.record(prefix + 100, 12, 100));
+        assertTrue(index.record(prefix + 250, 13, 250));
+        assertEquals(3, index.size());
+
+        assertNull(index.floorOffset(prefix - 1));
+        assertEquals(0, index.floorOffset(prefix + 99).position);
+        assertEquals(100, index.floorOffset(prefix + 100).position);
+        assertEquals(100, index.floorOffset(prefix + 249).position);
+        assertEquals(250, index.floorOffset(Long.MAX_VALUE).position);
+
+        assertNull(index.floorSequenceNumber(9));
+        assertEquals(prefix, index.floorSequenceNumber(11).offset);
+        assertEquals(prefix + 250, index.floorSequenceNumber(13).offset);
+        index.close();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File file = File.createTempFile("reload", SegmentIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        SegmentIndex index = new SegmentIndex(file, 1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(index.record(i * 10, i, i * 10));
+        }
+        index.close();
+
+        index = new SegmentIndex(file, 1);
+        assertEquals(100, index.size());
+        SegmentIndex.Entry entry = index.floorOffset(555);
+        assertEquals(550, entry.offset);
+        assertEquals(55, entry.sequenceNumber);
+        assertEquals(550, entry.position);
+        assertFalse(index.record(990, 99, 990));
+        assertTrue(index.record(1000, 100, 1000));
+        index.close();
+    }
+
+    @Test
+    public void testTail() throws Exception {
+        File file = File.createTempFile("tail", SegmentIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        SegmentIndex index = new SegmentIndex(file, 100);
+        assertTrue(index.record(0, 10, 0));
+        assertFalse(index.record(30, 11, 30));
+        assertFalse(index.record(60, 12, 60));
+        assertEquals(1, index.size());
+        assertFalse(index.record(60, 12, 60));
+        index.close();
+
+        index = new SegmentIndex(file, 100);
+        assertEquals(2, index.size());
+        SegmentIndex.Entry entry = index.floorOffset(Long.MAX_VALUE);
+        assertEquals(60, entry.offset);
+        assertEquals(12, entry.sequenceNumber);
+        assertEquals(60, entry.position);
+
+        index.truncate(60);
+        assertEquals(1, index.size());
+        assertEquals(20, file.length());
+        index.close();
+    }
+
+    @Test
+    public void testTailCheckpoint() throws Exception {
+        File file = File.createTempFile("tail-checkpoint",
+                                        SegmentIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        SegmentIndex index = new SegmentIndex(file, 100);
+        assertTrue(index.record(0, 10, 0));
+        assertFalse(index.record(30, 11, 30));
+        assertFalse(index.record(60, 12, 60));
+        // the batches which are not indexed are not written per batch
+        assertEquals(20, file.length());
+
+        index.checkpoint();
+        assertEquals(40, file.length());
+        assertTrue(index.record(100, 13, 100));
+        assertEquals(40, file.length());
+        index.close();
+
+        index = new SegmentIndex(file, 100);
+        assertEquals(2, index.size());
+        SegmentIndex.Entry entry = index.floorOffset(Long.MAX_VALUE);
+        assertEquals(100, entry.offset);
+        assertEquals(13, entry.sequenceNumber);
+        index.close();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestSegmentTable {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestSegmentTable", ".root");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void teardown() {
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        SegmentTable table = new SegmentTable();
+        Segment[] segments = new Segment[5];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = mock(Segment.class);
+            when(segments[i].getPrefix()).thenReturn(i * 1024L);
+            when(segments[i].isOpen()).thenReturn(true);
+        }
+        table.put(segments[3]);
+        table.put(segments[0]);
+        table.put(segments[4]);
+        table.put(segments[1]);
+        assertEquals(4, table.size());
+        assertSame(segments[0], table.get(0L));
+        assertSame(segments[3], table.get(3 * 1024L));
+        assertSame(segments[4], table.get(4 * 1024L));
+        assertNull(table.get(2 * 1024L));
+
+        // closed segments are misses
+        when(segments[1].isOpen()).thenReturn(false);
+        assertNull(table.get(1024L));
+
+        assertSame(segments[3], table.remove(3 * 1024L));
+        assertNull(table.get(3 * 1024L));
+        assertNull(table.remove(3 * 1024L));
+        assertEquals(3, table.clear().length);
+        assertEquals(0, table.size());
+        assertNull(table.get(0L));
+    }
+
+    @Test
+    public void testChannelSegments() throws Exception {
+        ConcurrentMap<File, Segment> appendCache = new ConcurrentHashMap<File, Segment>();
+        ConcurrentMap<File, Segment> readCache = new ConcurrentHashMap<File, Segment>();
+        EventChannel eventChannel = new EventChannel(new Node(0),
+                                                     Role.PRIMARY, new Node(1),
+                                                     UUID.randomUUID(), root,
+                                                     1024, null, appendCache,
+                                                     readCache);
+        Segment append = eventChannel.appendSegmentFor(0L);
+        assertSame(append, eventChannel.appendSegmentFor(100L));
+        assertEquals(1, appendCache.size());
+
+        Segment read = eventChannel.readSegmentFor(append);
+        assertSame(read, eventChannel.readSegmentFor(0L));
+        assertSame(read, eventChannel.eventSegmentFor(100L).segment);
+        assertEquals(1, readCache.size());
+
+        // a segment evicted from the weaver's cache is reopened
+        readCache.remove(read.getFile()).close();
+        Segment reopened = eventChannel.readSegmentFor(0L);
+        assertNotSame(read, reopened);
+        assertSame(reopened, readCache.get(read.getFile()));
+
+        Segment next = eventChannel.appendSegmentFor(1024L);
+        assertEquals(1024L, next.getPrefix());
+        assertSame(append, eventChannel.appendSegmentFor(0L));
+        assertEquals(2, appendCache.size());
+
+        eventChannel.shutdown();
+        assertEquals(0, appendCache.size());
+        assertEquals(0, readCache.size());
+    }
+}
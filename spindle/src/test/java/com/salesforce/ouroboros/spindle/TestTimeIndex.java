@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestTimeIndex {
+
+    @Test
+    public void testLower() throws Exception {
+        File file = File.createTempFile("lower", TimeIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        long time = 1000000L;
+        TimeIndex index = new TimeIndex(file, 100);
+        assertNull(index.first());
+        assertNull(index.lower(time));
+
+        assertTrue(index.record(time, 0));
+        assertFalse(index.record(time + 50, 64));
+        assertTrue(index.record(time + 100, 128));
+        assertFalse(index.record(time + 200, 128));
+        assertTrue(index.record(time + 250, 256));
+        // a clock stepping backwards is not indexed
+        assertFalse(index.record(time - 1000, 512));
+        assertEquals(3, index.size());
+
+        assertEquals(0, index.first().offset);
+        assertNull(index.lower(time));
+        assertEquals(0, index.lower(time + 1).offset);
+        assertEquals(0, index.lower(time + 100).offset);
+        assertEquals(128, index.lower(time + 101).offset);
+        assertEquals(128, index.lower(time + 250).offset);
+        assertEquals(256, index.lower(Long.MAX_VALUE).offset);
+        index.close();
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        File file = File.createTempFile("read", TimeIndex.INDEX_SUFFIX);
+        file.delete();
+        file.deleteOnExit();
+        assertNull(TimeIndex.read(file, 1));
+        assertFalse(file.exists());
+
+        TimeIndex index = new TimeIndex(file, 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(index.record(i * 10, i * 100));
+        }
+        index.close();
+
+        index = TimeIndex.read(file, 1);
+        assertEquals(10, index.size());
+        assertEquals(400, index.lower(45).offset);
+        index.close();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File file = File.createTempFile("reload", TimeIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        TimeIndex index = new TimeIndex(file, 1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(index.record(i * 10, i * 100));
+        }
+        index.close();
+
+        index = new TimeIndex(file, 1);
+        assertEquals(100, index.size());
+        TimeIndex.Entry entry = index.lower(555);
+        assertEquals(550, entry.time);
+        assertEquals(5500, entry.offset);
+        assertFalse(index.record(990, 9900));
+        assertTrue(index.record(1000, 10000));
+        index.close();
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        File file = File.createTempFile("truncate", TimeIndex.INDEX_SUFFIX);
+        file.deleteOnExit();
+        TimeIndex index = new TimeIndex(file, 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(index.record(i * 10, i * 100));
+        }
+        index.truncate(550);
+        assertEquals(6, index.size());
+        assertEquals(500, index.lower(Long.MAX_VALUE).offset);
+        assertTrue(index.record(60, 550));
+        index.close();
+
+        index = new TimeIndex(file, 1);
+        assertEquals(7, index.size());
+        assertEquals(550, index.lower(Long.MAX_VALUE).offset);
+        index.close();
+    }
+}
@@ -242,4 +242,55 @@ public class TestWeaver {
         assertNotNull(remapped.get(primary));
         assertNotNull(remapped.get(mirror));
     }
+
+    @Test
+    public void testReplicas() throws Exception {
+        Node localNode = new Node(0, 0, 0);
+        WeaverConfigation configuration = new WeaverConfigation();
+        configuration.setId(localNode);
+        configuration.addRoot(root);
+        configuration.setReplicationFactor(3);
+        Weaver weaver = new Weaver(configuration);
+        Node node1 = new Node(1, 1, 1);
+        Node node2 = new Node(2, 1, 1);
+        Node node3 = new Node(3, 1, 1);
+        ConsistentHashFunction<Node> ring = new ConsistentHashFunction<Node>();
+        ring.add(localNode, 1);
+        ring.add(node1, 1);
+        ring.add(node2, 1);
+        ring.add(node3, 1);
+        weaver.setRing(ring);
+        UUID replica = null;
+        Node primaryNode = null;
+        while (replica == null) {
+            UUID test = UUID.randomUUID();
+            List<Node> mapping = ring.hash(Utils.point(test), 3);
+            if (mapping.get(2).equals(localNode)) {
+                replica = test;
+                primaryNode = mapping.get(0);
+            }
+        }
+
+        Node[] replicas = weaver.getReplicas(replica);
+        assertEquals(3, replicas.length);
+        assertEquals(primaryNode, replicas[0]);
+        assertEquals(localNode, replicas[2]);
+        assertTrue(weaver.isReplica(replica));
+
+        weaver.openMirror(replica, primaryNode);
+
+        ConsistentHashFunction<Node> newRing = ring.clone();
+        newRing.remove(primaryNode);
+        weaver.setNextRing(newRing);
+        Map<UUID, Node[][]> remapped = weaver.remap();
+        assertNotNull(remapped);
+        assertEquals(1, remapped.size());
+        Node[][] mapping = remapped.get(replica);
+        assertNotNull(mapping);
+        assertEquals(3, mapping[0].length);
+        assertEquals(3, mapping[1].length);
+        assertEquals(primaryNode, mapping[0][0]);
+        assertFalse(Arrays.asList(mapping[1]).contains(primaryNode));
+        assertTrue(Arrays.asList(mapping[1]).contains(localNode));
+    }
 }
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.spindle.Segment.Mode;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFanOut {
+    private static class TestFlyer extends Flyer {
+        int                   lagging;
+        int                   pending;
+        final List<EventSpan> spans = new ArrayList<EventSpan>();
+
+        @Override
+        public void deliver(EventSpan span) {
+            spans.add(span);
+            pending++;
+        }
+
+        @Override
+        public int getPending() {
+            return pending;
+        }
+
+        @Override
+        public void lagging(FanOut fanOut) {
+            lagging++;
+        }
+    }
+
+    private EventChannel eventChannel;
+    private Event        event;
+    private FanOut       fanOut;
+    private Node         node;
+    private File         root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestFanOut", ".root");
+        root.delete();
+        root.mkdirs();
+        node = new Node(0);
+        eventChannel = new EventChannel(node, Role.PRIMARY, new Node(1),
+                                        UUID.randomUUID(), root, 1024, null,
+                                        new ConcurrentHashMap<File, Segment>(),
+                                        new ConcurrentHashMap<File, Segment>());
+        event = new Event(
+                          666,
+                          ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        fanOut = new FanOut(eventChannel, 2);
+    }
+
+    @After
+    public void teardown() {
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testSharedSpan() throws Exception {
+        fanOut = new FanOut(eventChannel);
+        TestFlyer a = new TestFlyer();
+        TestFlyer b = new TestFlyer();
+        fanOut.subscribe(a, 0L);
+        fanOut.subscribe(b, 0L);
+        assertEquals(2, fanOut.getTail());
+
+        for (int i = 0; i < 3; i++) {
+            append(i);
+        }
+        assertEquals(3, a.spans.size());
+        assertEquals(3, b.spans.size());
+        for (int i = 0; i < 3; i++) {
+            assertSame(a.spans.get(i), b.spans.get(i));
+            assertEquals((long) i * event.totalSize(),
+                         a.spans.get(i).getOffset());
+        }
+
+        fanOut.unsubscribe(a);
+        append(3);
+        assertEquals(3, a.spans.size());
+        assertEquals(4, b.spans.size());
+    }
+
+    @Test
+    public void testLaggard() throws Exception {
+        int eventSize = event.totalSize();
+        TestFlyer fast = new TestFlyer();
+        TestFlyer slow = new TestFlyer();
+        fanOut.subscribe(fast, 0L);
+        fanOut.subscribe(slow, 0L);
+
+        for (int i = 0; i < 4; i++) {
+            append(i);
+            fast.pending = 0;
+        }
+        assertEquals(4, fast.spans.size());
+        assertEquals(2, slow.spans.size());
+        assertEquals(1, slow.lagging);
+        assertEquals(1, fanOut.getTail());
+        assertEquals(1, fanOut.getLaggards());
+
+        // still behind
+        assertTrue(!fanOut.catchUp(slow));
+        assertEquals(2, slow.spans.size());
+
+        // the laggard catches up in a single span
+        slow.pending = 0;
+        assertTrue(fanOut.catchUp(slow));
+        assertEquals(3, slow.spans.size());
+        EventSpan span = slow.spans.get(2);
+        assertEquals(2L * eventSize, span.getOffset());
+        assertEquals(2L * eventSize, span.getLength());
+        assertEquals(2, fanOut.getTail());
+        assertEquals(0, fanOut.getLaggards());
+
+        append(4);
+        assertEquals(4, slow.spans.size());
+        assertSame(fast.spans.get(4), slow.spans.get(3));
+    }
+
+    @Test
+    public void testSubscribeBehind() throws Exception {
+        int eventSize = event.totalSize();
+        int eventsPerSegment = 1024 / eventSize;
+        for (int i = 0; i < 2 * eventsPerSegment + 1; i++) {
+            append(i);
+        }
+        TestFlyer flyer = new TestFlyer();
+        flyer.pending = 1;
+        fanOut.subscribe(flyer, 0L);
+        assertEquals(1, flyer.spans.size());
+        assertEquals(1, flyer.lagging);
+        assertEquals(1, fanOut.getLaggards());
+
+        flyer.pending = 0;
+        assertTrue(fanOut.catchUp(flyer));
+        assertEquals(3, flyer.spans.size());
+        assertEquals(1024L, flyer.spans.get(1).getOffset());
+        assertEquals(2048L, flyer.spans.get(2).getOffset());
+        assertEquals((long) eventSize, flyer.spans.get(2).getLength());
+        assertEquals(1, fanOut.getTail());
+    }
+
+    @Test
+    public void testUnreadableSegment() throws Exception {
+        TestFlyer flyer = new TestFlyer();
+        fanOut.subscribe(flyer, 0L);
+        assertEquals(1, fanOut.getTail());
+
+        // a segment which is not a segment of the channel cannot be read for
+        // the flyers, which is not an error of the append
+        File elsewhere = File.createTempFile("TestFanOut", ".elsewhere");
+        elsewhere.delete();
+        elsewhere.mkdirs();
+        try {
+            Segment segment = new Segment(
+                                          eventChannel,
+                                          new File(
+                                                   elsewhere,
+                                                   EventChannel.segmentName(0L)),
+                                          Mode.APPEND);
+            fanOut.publish(0L, event.totalSize(), segment);
+            segment.close();
+        } finally {
+            Utils.deleteDirectory(elsewhere);
+        }
+        assertEquals(0, flyer.spans.size());
+        assertEquals(1, flyer.lagging);
+        assertEquals(0, fanOut.getTail());
+        assertEquals(1, fanOut.getLaggards());
+
+        // the flyer reads the batch from the channel once it is appended
+        append(0);
+        assertTrue(fanOut.catchUp(flyer));
+        assertEquals(1, flyer.spans.size());
+        assertEquals(0L, flyer.spans.get(0).getOffset());
+        assertEquals(1, fanOut.getTail());
+    }
+
+    private void append(long sequenceNumber) throws Exception {
+        BatchHeader batchHeader = new BatchHeader(node, event.totalSize(), 666,
+                                                  eventChannel.getId(),
+                                                  sequenceNumber);
+        AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+        event.rewind();
+        event.write(logicalSegment.segment);
+        eventChannel.append(batchHeader, logicalSegment.offset,
+                            logicalSegment.segment);
+        fanOut.publish(logicalSegment.offset, batchHeader.getBatchByteLength(),
+                       logicalSegment.segment);
+    }
+}
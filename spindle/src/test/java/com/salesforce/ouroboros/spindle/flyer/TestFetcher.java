@@ -0,0 +1,373 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.EventFilter;
+import com.salesforce.ouroboros.FetchHeader;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.SpanHeader;
+import com.salesforce.ouroboros.spindle.Bundle;
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFetcher {
+
+    private final Event              event = new Event(
+                                                       666,
+                                                       ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+    private SocketChannel            inbound;
+    private Node                     node;
+    private SocketChannel            outbound;
+    private File                     root;
+    private ServerSocketChannel      server;
+    private ScheduledExecutorService timer;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestFetcher", ".root");
+        root.delete();
+        root.mkdirs();
+        node = new Node(0);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        outbound = SocketChannel.open(server.socket().getLocalSocketAddress());
+        outbound.configureBlocking(false);
+        inbound = server.accept();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (outbound != null) {
+            outbound.close();
+        }
+        if (inbound != null) {
+            inbound.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testFetch() throws Exception {
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = createChannel(channel);
+        int eventSize = event.totalSize();
+        for (int i = 0; i < 3; i++) {
+            append(eventChannel, channel, i);
+        }
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        Fetcher fetcher = createFetcher(bundle, 1, TimeUnit.MINUTES);
+
+        // pipeline the fetches
+        fetch(channel, 0L, 2 * eventSize);
+        fetch(channel, FetchHeader.NEXT_OFFSET, 1024);
+        fetcher.readReady();
+        assertEquals(0, fetcher.getPending());
+
+        SpanHeader span = readSpan();
+        assertEquals(channel, span.getChannel());
+        assertEquals(0L, span.getOffset());
+        assertEquals(2L * eventSize, span.getLength());
+        ByteBuffer events = read(2 * eventSize);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(Event.readFrom(events).validate());
+        }
+        span = readSpan();
+        assertEquals(2L * eventSize, span.getOffset());
+        assertEquals((long) eventSize, span.getLength());
+        assertTrue(Event.readFrom(read(eventSize)).validate());
+
+        // a channel not hosted on the weaver
+        UUID unknown = UUID.randomUUID();
+        fetch(unknown, 0L, 1024);
+        fetcher.readReady();
+        span = readSpan();
+        assertEquals(unknown, span.getChannel());
+        assertEquals(SpanHeader.NOT_HOSTED, span.getLength());
+    }
+
+    @Test
+    public void testLongPoll() throws Exception {
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = createChannel(channel);
+        int eventSize = event.totalSize();
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        Fetcher fetcher = createFetcher(bundle, 1, TimeUnit.MINUTES);
+
+        fetch(channel, 0L, 1024);
+        fetcher.readReady();
+        assertEquals(1, fetcher.getPending());
+
+        // the append answers the held fetch
+        append(eventChannel, channel, 0);
+        fetcher.writeReady();
+        assertEquals(0, fetcher.getPending());
+        SpanHeader span = readSpan();
+        assertEquals(0L, span.getOffset());
+        assertEquals((long) eventSize, span.getLength());
+        assertTrue(Event.readFrom(read(eventSize)).validate());
+    }
+
+    @Test
+    public void testClosing() throws Exception {
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = createChannel(channel);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        when(handler.getChannel()).thenReturn(outbound);
+        Fetcher fetcher = new Fetcher(bundle, timer, 1, TimeUnit.MINUTES);
+        fetcher.accept(handler);
+
+        // the fetch of events yet to be appended is held open
+        fetch(channel, 0L, 1024);
+        fetcher.readReady();
+        assertEquals(1, fetcher.getPending());
+
+        // the closed fetcher is no longer woken by appends
+        fetcher.closing();
+        append(eventChannel, channel, 0);
+        verify(handler, never()).selectForWrite();
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = createChannel(channel);
+        int eventSize = event.totalSize();
+        append(eventChannel, channel, 0);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        Fetcher fetcher = createFetcher(bundle, 10, TimeUnit.MILLISECONDS);
+
+        fetch(channel, 0L, 1024);
+        fetch(channel, FetchHeader.NEXT_OFFSET, 1024);
+        fetcher.readReady();
+        assertEquals(1, fetcher.getPending());
+        SpanHeader span = readSpan();
+        assertEquals((long) eventSize, span.getLength());
+        read(eventSize);
+
+        Thread.sleep(100);
+        fetcher.writeReady();
+        assertEquals(0, fetcher.getPending());
+        span = readSpan();
+        assertEquals((long) eventSize, span.getOffset());
+        assertEquals(0L, span.getLength());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = createChannel(channel);
+        Event other = new Event(777, ByteBuffer.wrap("Bob".getBytes()));
+        int eventSize = event.totalSize();
+        int otherSize = other.totalSize();
+        append(eventChannel, channel, 0, other);
+        append(eventChannel, channel, 1, event);
+        append(eventChannel, channel, 2, event);
+        append(eventChannel, channel, 3, other);
+        append(eventChannel, channel, 4, event);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        Fetcher fetcher = createFetcher(bundle, 1, TimeUnit.MINUTES);
+
+        filter(channel, EventFilter.forMagic(666));
+        fetch(channel, 0L, 1024);
+        fetch(channel, FetchHeader.NEXT_OFFSET, 1024);
+        fetch(channel, FetchHeader.NEXT_OFFSET, 1024);
+        fetcher.readReady();
+        assertEquals(1, fetcher.getPending());
+
+        // the runs of matching events are answered, skipping the others
+        SpanHeader span = readSpan();
+        assertEquals((long) otherSize, span.getOffset());
+        assertEquals(2L * eventSize, span.getLength());
+        ByteBuffer events = read(2 * eventSize);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(666, Event.readFrom(events).getMagic());
+        }
+        span = readSpan();
+        assertEquals(2L * otherSize + 2L * eventSize, span.getOffset());
+        assertEquals((long) eventSize, span.getLength());
+        read(eventSize);
+
+        // the held fetch skips the appended events which do not match
+        append(eventChannel, channel, 5, other);
+        fetcher.writeReady();
+        assertEquals(1, fetcher.getPending());
+        append(eventChannel, channel, 6, event);
+        fetcher.writeReady();
+        assertEquals(0, fetcher.getPending());
+        span = readSpan();
+        assertEquals(3L * otherSize + 3L * eventSize, span.getOffset());
+        assertEquals((long) eventSize, span.getLength());
+        assertTrue(Event.readFrom(read(eventSize)).validate());
+    }
+
+    @Test
+    public void testFilterSplit() throws Exception {
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = createChannel(channel);
+        Event other = new Event(777, ByteBuffer.wrap("Bob".getBytes()));
+        int eventSize = event.totalSize();
+        int otherSize = other.totalSize();
+        append(eventChannel, channel, 0, other);
+        append(eventChannel, channel, 1, event);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        Fetcher fetcher = createFetcher(bundle, 1, TimeUnit.MINUTES);
+
+        // the matching event is continued by the following fetches
+        filter(channel, EventFilter.forMagic(666));
+        int maxBytes = eventSize / 2;
+        fetch(channel, 0L, maxBytes);
+        fetch(channel, FetchHeader.NEXT_OFFSET, maxBytes);
+        fetch(channel, FetchHeader.NEXT_OFFSET, maxBytes);
+        fetcher.readReady();
+        ByteBuffer events = ByteBuffer.allocate(eventSize);
+        long offset = otherSize;
+        while (events.hasRemaining()) {
+            SpanHeader span = readSpan();
+            assertEquals(offset, span.getOffset());
+            events.put(read((int) span.getLength()));
+            offset += span.getLength();
+        }
+        events.flip();
+        assertTrue(Event.readFrom(events).validate());
+    }
+
+    private void append(EventChannel eventChannel, UUID channel,
+                        long sequenceNumber) throws Exception {
+        append(eventChannel, channel, sequenceNumber, event);
+    }
+
+    private void append(EventChannel eventChannel, UUID channel,
+                        long sequenceNumber, Event event) throws Exception {
+        BatchHeader batchHeader = new BatchHeader(node, event.totalSize(), 666,
+                                                  channel, sequenceNumber);
+        AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+        event.rewind();
+        event.write(logicalSegment.segment);
+        eventChannel.append(batchHeader, logicalSegment.offset,
+                            logicalSegment.segment);
+    }
+
+    private EventChannel createChannel(UUID channel) {
+        return new EventChannel(node, Role.PRIMARY, new Node(1), channel, root,
+                                1024, null,
+                                new ConcurrentHashMap<File, Segment>(),
+                                new ConcurrentHashMap<File, Segment>());
+    }
+
+    private Fetcher createFetcher(Bundle bundle, long timeout, TimeUnit unit) {
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        when(handler.getChannel()).thenReturn(outbound);
+        Fetcher fetcher = new Fetcher(bundle, timer, timeout, unit);
+        fetcher.accept(handler);
+        return fetcher;
+    }
+
+    private void fetch(UUID channel, long offset, int maxBytes)
+                                                                throws Exception {
+        FetchHeader header = new FetchHeader(channel, offset, maxBytes);
+        while (header.hasRemaining()) {
+            header.write(inbound);
+        }
+    }
+
+    private void filter(UUID channel, EventFilter filter) throws Exception {
+        FetchHeader header = new FetchHeader();
+        header.set(FetchHeader.FILTER, channel, 0L, filter.byteSize());
+        while (header.hasRemaining()) {
+            header.write(inbound);
+        }
+        ByteBuffer body = ByteBuffer.allocate(filter.byteSize());
+        filter.write(body);
+        body.flip();
+        while (body.hasRemaining()) {
+            inbound.write(body);
+        }
+    }
+
+    private ByteBuffer read(int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (inbound.read(buffer) < 0) {
+                throw new IllegalStateException("Unexpected end of stream");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private SpanHeader readSpan() throws Exception {
+        return new SpanHeader(read(SpanHeader.HEADER_BYTE_SIZE));
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFlyer {
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestFlyer", ".root");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void teardown() {
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testDelivery() throws Exception {
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = new EventChannel(
+                                                     node,
+                                                     Role.PRIMARY,
+                                                     new Node(1),
+                                                     channel,
+                                                     root,
+                                                     1024,
+                                                     null,
+                                                     new ConcurrentHashMap<File, Segment>(),
+                                                     new ConcurrentHashMap<File, Segment>());
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        for (int i = 0; i < 3; i++) {
+            append(eventChannel, event, node, channel, i);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel outbound = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel inbound = server.accept();
+        try {
+            SocketChannelHandler handler = mock(SocketChannelHandler.class);
+            when(handler.getChannel()).thenReturn(outbound);
+            Flyer flyer = new Flyer();
+            flyer.connect(handler);
+            flyer.subscribe(eventChannel, -1L);
+            flyer.writeReady();
+
+            ByteBuffer span = read(inbound, Flyer.SPAN_HEADER_SIZE);
+            assertEquals(channel, new UUID(span.getLong(), span.getLong()));
+            assertEquals(0L, span.getLong());
+            assertEquals(3L * eventSize, span.getLong());
+            ByteBuffer events = read(inbound, 3 * eventSize);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(Event.readFrom(events).validate());
+            }
+
+            // tail the channel
+            append(eventChannel, event, node, channel, 3);
+            assertEquals(1, flyer.getPending());
+            flyer.writeReady();
+            span = read(inbound, Flyer.SPAN_HEADER_SIZE);
+            span.position(16);
+            assertEquals(3L * eventSize, span.getLong());
+            assertEquals((long) eventSize, span.getLong());
+            assertTrue(Event.readFrom(read(inbound, eventSize)).validate());
+
+            flyer.closing();
+            append(eventChannel, event, node, channel, 4);
+            assertEquals(0, flyer.getPending());
+        } finally {
+            outbound.close();
+            inbound.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        Node node = new Node(0);
+        UUID channel = UUID.randomUUID();
+        EventChannel eventChannel = new EventChannel(
+                                                     node,
+                                                     Role.PRIMARY,
+                                                     new Node(1),
+                                                     channel,
+                                                     root,
+                                                     1024,
+                                                     null,
+                                                     new ConcurrentHashMap<File, Segment>(),
+                                                     new ConcurrentHashMap<File, Segment>());
+        Event event = new Event(
+                                666,
+                                ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        int eventSize = event.totalSize();
+        int eventsPerSegment = 1024 / eventSize;
+        int count = 2 * eventsPerSegment + 1;
+        for (int i = 0; i < count; i++) {
+            append(eventChannel, event, node, channel, i);
+        }
+        final List<EventSpan> spans = new ArrayList<EventSpan>();
+        Flyer flyer = new Flyer() {
+            @Override
+            public void deliver(EventSpan span) {
+                spans.add(span);
+            }
+        };
+        // resume following the first event of the channel, spanning 3 segments
+        flyer.subscribe(eventChannel, 0L);
+        assertEquals(3, spans.size());
+        assertEquals((long) eventSize, spans.get(0).getOffset());
+        assertEquals((long) (eventsPerSegment - 1) * eventSize,
+                     spans.get(0).getLength());
+        assertEquals(1024L, spans.get(1).getOffset());
+        assertEquals(2048L, spans.get(2).getOffset());
+        assertEquals((long) eventSize, spans.get(2).getLength());
+    }
+
+    private void append(EventChannel eventChannel, Event event, Node node,
+                        UUID channel, long sequenceNumber) throws Exception {
+        BatchHeader batchHeader = new BatchHeader(node, event.totalSize(), 666,
+                                                  channel, sequenceNumber);
+        AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+        event.rewind();
+        event.write(logicalSegment.segment);
+        eventChannel.append(batchHeader, logicalSegment.offset,
+                            logicalSegment.segment);
+    }
+
+    private ByteBuffer read(SocketChannel channel, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IllegalStateException("Unexpected end of stream");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.flyer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.ouroboros.BatchHeader;
+import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
+import com.salesforce.ouroboros.spindle.EventChannel.Role;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.util.Utils;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestReplay {
+
+    private EventChannel                 eventChannel;
+    private Event                        event;
+    private Node                         node;
+    private ExecutorService              prefetcher;
+    private ConcurrentMap<File, Segment> readSegmentCache;
+    private File                         root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("TestReplay", ".root");
+        root.delete();
+        root.mkdirs();
+        node = new Node(0);
+        readSegmentCache = new ConcurrentHashMap<File, Segment>();
+        eventChannel = new EventChannel(node, Role.PRIMARY, new Node(1),
+                                        UUID.randomUUID(), root, 1024, null,
+                                        new ConcurrentHashMap<File, Segment>(),
+                                        readSegmentCache);
+        event = new Event(
+                          666,
+                          ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        prefetcher = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void teardown() {
+        prefetcher.shutdownNow();
+        if (root != null) {
+            Utils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        int eventSize = event.totalSize();
+        int eventsPerSegment = 1024 / eventSize;
+        for (int i = 0; i < 3 * eventsPerSegment + 1; i++) {
+            append(i);
+        }
+        assertNull(eventChannel.replay(3072L, 2, prefetcher));
+
+        Replay replay = eventChannel.replay(eventSize, 2, prefetcher);
+        assertNotNull(replay);
+        long offset = eventSize;
+        for (long prefix = 0; prefix < 3072; prefix += 1024) {
+            EventSpan span = replay.fetch(offset, Integer.MAX_VALUE);
+            assertNotNull(span);
+            assertEquals(Math.max(offset, prefix), span.getOffset());
+            assertEquals(prefix + eventsPerSegment * eventSize - 1,
+                         span.getEndpoint());
+            offset = span.getEndpoint() + 1;
+        }
+        // the tail of the channel is not replayed
+        assertNull(replay.fetch(offset, Integer.MAX_VALUE));
+        replay.close();
+        assertTrue(readSegmentCache.isEmpty());
+    }
+
+    @Test
+    public void testBoundedSpans() throws Exception {
+        int eventSize = event.totalSize();
+        int eventsPerSegment = 1024 / eventSize;
+        for (int i = 0; i < 2 * eventsPerSegment + 1; i++) {
+            append(i);
+        }
+        Replay replay = eventChannel.replay(0L, 1, prefetcher);
+        EventSpan span = replay.fetch(0L, eventSize);
+        assertEquals(0L, span.getOffset());
+        assertEquals((long) eventSize, span.getLength());
+        Segment first = span.getSegment();
+
+        span = replay.fetch(1024L, eventSize);
+        assertEquals(1024L, span.getOffset());
+        assertFalse(first.isOpen());
+
+        // the replay only moves forward
+        assertNull(replay.fetch(0L, eventSize));
+        Segment second = span.getSegment();
+        replay.close();
+        assertFalse(second.isOpen());
+    }
+
+    @Test
+    public void testUnfinishedPrefetch() throws Exception {
+        int eventSize = event.totalSize();
+        int eventsPerSegment = 1024 / eventSize;
+        for (int i = 0; i < 3 * eventsPerSegment + 1; i++) {
+            append(i);
+        }
+        // the prefetches never complete while the replay proceeds
+        ExecutorService stalled = Executors.newSingleThreadExecutor();
+        final CountDownLatch stall = new CountDownLatch(1);
+        stalled.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        try {
+            Replay replay = eventChannel.replay(0L, 2, stalled);
+            long offset = 0L;
+            for (long prefix = 0; prefix < 3072; prefix += 1024) {
+                EventSpan span = replay.fetch(offset, Integer.MAX_VALUE);
+                assertNotNull(span);
+                assertEquals(prefix, span.getOffset());
+                offset = span.getEndpoint() + 1;
+            }
+            replay.close();
+        } finally {
+            stall.countDown();
+            stalled.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            append(i);
+        }
+        Segment segment = eventChannel.readSegmentFor(0L);
+        assertEquals(segment.size(), Segment.prefetch(segment.getFile()));
+    }
+
+    private void append(long sequenceNumber) throws Exception {
+        BatchHeader batchHeader = new BatchHeader(node, event.totalSize(), 666,
+                                                  eventChannel.getId(),
+                                                  sequenceNumber);
+        AppendSegment logicalSegment = eventChannel.appendSegmentFor(batchHeader);
+        event.rewind();
+        event.write(logicalSegment.segment);
+        eventChannel.append(batchHeader, logicalSegment.offset,
+                            logicalSegment.segment);
+    }
+}
@@ -28,6 +28,7 @@ package com.salesforce.ouroboros.spindle.replication;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -53,6 +54,7 @@ import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
 import com.salesforce.ouroboros.spindle.Segment;
 import com.salesforce.ouroboros.spindle.Segment.Mode;
 import com.salesforce.ouroboros.spindle.replication.DuplicatorContext.DuplicatorFSM;
+import com.salesforce.ouroboros.spindle.replication.ReplicationLatency.Stage;
 import com.salesforce.ouroboros.spindle.source.AbstractAppenderContext.AbstractAppenderFSM;
 import com.salesforce.ouroboros.spindle.source.Acknowledger;
 import com.salesforce.ouroboros.testUtils.Util;
@@ -315,4 +317,200 @@ public class TestDuplicator {
         verify(outboundAcknowledger).acknowledge(channel, sequenceNumber);
         verify(inboundAcknowledger).acknowledge(channel, sequenceNumber);
     }
+
+    @Test
+    public void testWindow() throws Exception {
+        EventChannel eventChannel = mock(EventChannel.class);
+        File tmpFile = File.createTempFile("window-replication", ".tst");
+        tmpFile.deleteOnExit();
+        Segment segment = new Segment(eventChannel, tmpFile, Mode.APPEND);
+        Acknowledger acknowledger = mock(Acknowledger.class);
+
+        int magic = 666;
+        int batches = 8;
+        UUID channel = UUID.randomUUID();
+        Event[] events = new Event[batches];
+        for (int i = 0; i < batches; i++) {
+            byte[] payload = String.format("Give me Slack, or give me Food, or Kill me: %s",
+                                           i).getBytes();
+            events[i] = new Event(magic, ByteBuffer.wrap(payload));
+            events[i].rewind();
+            events[i].write(segment);
+        }
+        segment.force(false);
+        segment.close();
+        segment = new Segment(eventChannel, tmpFile, Mode.READ);
+        final int eventSize = events[0].totalSize();
+        final int payloadLength = events[0].size();
+
+        // a window of two batches
+        final Duplicator replicator = new Duplicator(
+                                                     new Node(0),
+                                                     2 * (ReplicatedBatchHeader.HEADER_SIZE + eventSize));
+        SocketOptions options = new SocketOptions();
+        options.setSend_buffer_size(4);
+        options.setReceive_buffer_size(4);
+        options.setTimeout(100);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel outbound = SocketChannel.open();
+        options.configure(outbound.socket());
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        options.configure(inbound.socket());
+        inbound.configureBlocking(true);
+
+        assertTrue(inbound.isConnected());
+        outbound.configureBlocking(false);
+        inbound.configureBlocking(false);
+        final Reader[] readers = new Reader[batches];
+        Thread inboundRead = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < readers.length; i++) {
+                    Reader reader = new Reader(inbound, payloadLength);
+                    reader.run();
+                    readers[i] = reader;
+                }
+            }
+        }, "Inbound read thread");
+        inboundRead.start();
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        when(handler.getChannel()).thenReturn(outbound);
+        replicator.connect(handler);
+
+        Node mirror = new Node(0x1638);
+        long sequenceNumber = System.currentTimeMillis();
+        for (int i = 0; i < batches; i++) {
+            @SuppressWarnings("unchecked")
+            EventEntry entry = new EventEntry(mock(Pool.class));
+            BatchHeader header = new BatchHeader(mirror, eventSize, magic,
+                                                 channel, sequenceNumber + i);
+            entry.set(header, i * eventSize, i * eventSize, eventChannel,
+                      segment, acknowledger, handler);
+            replicator.replicate(entry);
+        }
+        Util.waitFor("Never replicated the batches", new Util.Condition() {
+            @Override
+            public boolean value() {
+                replicator.writeReady();
+                return readers[readers.length - 1] != null
+                       && DuplicatorFSM.Waiting == replicator.getState();
+            }
+        }, 4000L, 100L);
+        inboundRead.join(4000);
+        for (int i = 0; i < batches; i++) {
+            assertEquals(i * eventSize, readers[i].header.getOffset());
+            assertEquals(i * eventSize, readers[i].header.getPosition());
+            assertEquals(sequenceNumber + i,
+                         readers[i].header.getSequenceNumber());
+            Event replicatedEvent = new Event(readers[i].replicated);
+            assertEquals(events[i].getCrc32(), replicatedEvent.getCrc32());
+            assertTrue(replicatedEvent.validate());
+            verify(eventChannel).commit(i * eventSize);
+            verify(acknowledger).acknowledge(channel, sequenceNumber + i);
+        }
+    }
+
+    @Test
+    public void testMirrorAck() throws Exception {
+        EventChannel eventChannel = mock(EventChannel.class);
+        File tmpFile = File.createTempFile("mirror-ack", ".tst");
+        tmpFile.deleteOnExit();
+        Segment segment = new Segment(eventChannel, tmpFile, Mode.APPEND);
+        Acknowledger acknowledger = mock(Acknowledger.class);
+
+        int magic = 666;
+        int batches = 4;
+        UUID channel = UUID.randomUUID();
+        Event[] events = new Event[batches];
+        for (int i = 0; i < batches; i++) {
+            byte[] payload = String.format("Give me Slack, or give me Food, or Kill me: %s",
+                                           i).getBytes();
+            events[i] = new Event(magic, ByteBuffer.wrap(payload));
+            events[i].rewind();
+            events[i].write(segment);
+        }
+        segment.force(false);
+        segment.close();
+        segment = new Segment(eventChannel, tmpFile, Mode.READ);
+        final int eventSize = events[0].totalSize();
+        final int payloadLength = events[0].size();
+
+        ReplicationLatency latency = new ReplicationLatency();
+        final Duplicator replicator = new Duplicator(new Node(0),
+                                                     Duplicator.DEFAULT_WINDOW,
+                                                     latency);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(true);
+
+        assertTrue(inbound.isConnected());
+        outbound.configureBlocking(false);
+        final Reader[] readers = new Reader[batches];
+        Thread inboundRead = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < readers.length; i++) {
+                    Reader reader = new Reader(inbound, payloadLength);
+                    reader.run();
+                    readers[i] = reader;
+                }
+            }
+        }, "Inbound read thread");
+        inboundRead.start();
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        when(handler.getChannel()).thenReturn(outbound);
+        replicator.connect(handler);
+
+        Node mirror = new Node(0x1638);
+        long sequenceNumber = System.currentTimeMillis();
+        for (int i = 0; i < batches; i++) {
+            @SuppressWarnings("unchecked")
+            EventEntry entry = new EventEntry(mock(Pool.class));
+            BatchHeader header = new BatchHeader(mirror, eventSize, magic,
+                                                 channel, sequenceNumber + i);
+            entry.set(header, i * eventSize, i * eventSize, eventChannel,
+                      segment, acknowledger, handler);
+            entry.getHeader().setAckMode(AckMode.MIRROR);
+            replicator.replicate(entry);
+        }
+        Util.waitFor("Never replicated the batches", new Util.Condition() {
+            @Override
+            public boolean value() {
+                replicator.writeReady();
+                return readers[readers.length - 1] != null
+                       && DuplicatorFSM.Waiting == replicator.getState();
+            }
+        }, 4000L, 100L);
+        inboundRead.join(4000);
+
+        // the batches are written, but not acknowledged until the mirror acks
+        assertEquals(batches, replicator.getUnacknowledged());
+        for (int i = 0; i < batches; i++) {
+            assertEquals(AckMode.MIRROR, readers[i].header.getAckMode());
+            verify(eventChannel, never()).commit(i * eventSize);
+            verify(acknowledger, never()).acknowledge(channel,
+                                                      sequenceNumber + i);
+        }
+
+        for (int i = 0; i < batches; i++) {
+            replicator.acknowledged(channel, sequenceNumber + i);
+        }
+        assertEquals(0, replicator.getUnacknowledged());
+        for (int i = 0; i < batches; i++) {
+            verify(eventChannel).commit(i * eventSize);
+            verify(acknowledger).acknowledge(channel, sequenceNumber + i);
+        }
+        assertEquals(batches, latency.getHistogram(Stage.MIRRORED).getCount());
+        assertEquals(batches,
+                     latency.getHistogram(Stage.ACKNOWLEDGED).getCount());
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.replication;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestMeteringGate {
+    @Test
+    public void testClose() throws Exception {
+        MeteringGate gate = new MeteringGate(100);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        gate.consume(200);
+        gate.select(handler);
+        verify(handler, never()).selectForRead();
+        assertEquals(1, gate.getBlocked());
+
+        gate.close();
+        verify(handler).selectForRead();
+        assertEquals(0, gate.getBlocked());
+    }
+
+    @Test
+    public void testCredits() throws Exception {
+        MeteringGate gate = new MeteringGate(100);
+        SocketChannelHandler first = mock(SocketChannelHandler.class);
+        SocketChannelHandler second = mock(SocketChannelHandler.class);
+
+        gate.consume(60);
+        gate.select(first);
+        verify(first).selectForRead();
+        assertEquals(40, gate.getCredits());
+
+        // the credits are overrun by the batch of the first producer
+        gate.consume(60);
+        assertEquals(-20, gate.getCredits());
+        gate.select(first);
+        gate.select(second);
+        verify(first).selectForRead();
+        verify(second, never()).selectForRead();
+        assertEquals(2, gate.getBlocked());
+
+        // the producers remain blocked until the credits are positive
+        gate.grant(20);
+        assertEquals(0, gate.getCredits());
+        assertEquals(2, gate.getBlocked());
+
+        gate.grant(1);
+        verify(first, times(2)).selectForRead();
+        verify(second).selectForRead();
+        assertEquals(0, gate.getBlocked());
+    }
+}
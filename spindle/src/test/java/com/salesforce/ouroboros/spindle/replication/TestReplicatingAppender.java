@@ -26,8 +26,10 @@
 package com.salesforce.ouroboros.spindle.replication;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -45,6 +47,7 @@ import com.hellblazer.pinkie.SocketOptions;
 import com.salesforce.ouroboros.BatchHeader;
 import com.salesforce.ouroboros.Event;
 import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.NullNode;
 import com.salesforce.ouroboros.spindle.Bundle;
 import com.salesforce.ouroboros.spindle.EventChannel;
 import com.salesforce.ouroboros.spindle.EventChannel.AppendSegment;
@@ -138,4 +141,195 @@ public class TestReplicatingAppender {
         verify(eventChannel).append(header, 0L, segment);
         verify(acknowledger).acknowledge(channel, sequenceNumber);
     }
+
+    @Test
+    public void testDrain() throws Exception {
+        EventChannel eventChannel = mock(EventChannel.class);
+        File tmpFile = File.createTempFile("drain-replication", ".tst");
+        tmpFile.deleteOnExit();
+        Segment segment = new Segment(eventChannel, tmpFile, Mode.APPEND);
+
+        int magic = BatchHeader.MAGIC;
+        UUID channel = UUID.randomUUID();
+        UUID unknown = UUID.randomUUID();
+        long sequenceNumber = System.currentTimeMillis();
+        final byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        Event event = new Event(magic, payloadBuffer);
+        Node mirror = NullNode.INSTANCE;
+        ReplicatedBatchHeader unknownHeader = new ReplicatedBatchHeader(
+                                                                        mirror,
+                                                                        event.totalSize(),
+                                                                        magic,
+                                                                        unknown,
+                                                                        sequenceNumber,
+                                                                        0, 0);
+        ReplicatedBatchHeader duplicateHeader = new ReplicatedBatchHeader(
+                                                                          mirror,
+                                                                          event.totalSize(),
+                                                                          magic,
+                                                                          channel,
+                                                                          sequenceNumber,
+                                                                          0, 0);
+        ReplicatedBatchHeader header = new ReplicatedBatchHeader(
+                                                                 mirror,
+                                                                 event.totalSize(),
+                                                                 magic,
+                                                                 channel,
+                                                                 sequenceNumber + 1,
+                                                                 0, 0);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getId()).thenReturn(new Node(0));
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        when(eventChannel.isDuplicate(duplicateHeader)).thenReturn(true);
+        when(eventChannel.appendSegmentFor(0L, 0)).thenReturn(new AppendSegment(
+                                                                                segment,
+                                                                                0,
+                                                                                0));
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+
+        final ReplicatingAppender replicator = new ReplicatingAppender(bundle);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        when(handler.getChannel()).thenReturn(inbound);
+
+        replicator.accept(handler);
+        assertEquals(AbstractAppenderFSM.Ready, replicator.getState());
+
+        // the batch of a channel which is not open on the replica
+        replicator.readReady();
+        unknownHeader.rewind();
+        unknownHeader.write(outbound);
+        event.rewind();
+        event.write(outbound);
+        replicator.readReady();
+        assertEquals(AbstractAppenderFSM.Ready, replicator.getState());
+
+        // the duplicate of an appended batch
+        replicator.readReady();
+        duplicateHeader.rewind();
+        duplicateHeader.write(outbound);
+        event.rewind();
+        event.write(outbound);
+        replicator.readReady();
+        assertEquals(AbstractAppenderFSM.Ready, replicator.getState());
+        verify(eventChannel, never()).append(duplicateHeader, 0L, segment);
+
+        // the following batch is read intact from the connection
+        replicator.readReady();
+        header.rewind();
+        header.write(outbound);
+        replicator.readReady();
+        assertEquals(AbstractAppenderFSM.Append, replicator.getState());
+        event.rewind();
+        event.write(outbound);
+        replicator.readReady();
+        assertEquals(AbstractAppenderFSM.Ready, replicator.getState());
+
+        segment = new Segment(eventChannel, tmpFile, Mode.READ);
+        Event replicatedEvent = new Event(segment);
+        assertEquals(event.getCrc32(), replicatedEvent.getCrc32());
+        assertTrue(replicatedEvent.validate());
+        verify(eventChannel).append(header, 0L, segment);
+    }
+
+    @Test
+    public void testNackUnopenedChannel() throws Exception {
+        int magic = BatchHeader.MAGIC;
+        UUID unknown = UUID.randomUUID();
+        long sequenceNumber = System.currentTimeMillis();
+        final byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        Event event = new Event(magic, payloadBuffer);
+        ReplicatedBatchHeader header = new ReplicatedBatchHeader(
+                                                                 NullNode.INSTANCE,
+                                                                 event.totalSize(),
+                                                                 magic,
+                                                                 unknown,
+                                                                 sequenceNumber,
+                                                                 0, 0);
+        header.setAckMode(AckMode.MIRROR);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getId()).thenReturn(new Node(0));
+        Replicator primary = mock(Replicator.class);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+
+        final ReplicatingAppender replicator = new ReplicatingAppender(bundle,
+                                                                       primary);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        when(handler.getChannel()).thenReturn(inbound);
+
+        replicator.accept(handler);
+        replicator.readReady();
+        header.rewind();
+        header.write(outbound);
+        event.rewind();
+        event.write(outbound);
+        replicator.readReady();
+        assertEquals(AbstractAppenderFSM.Ready, replicator.getState());
+
+        // the primary is not left waiting on the batch the mirror dropped
+        verify(primary).nack(unknown, sequenceNumber);
+        verify(primary, never()).acknowledge(unknown, sequenceNumber);
+    }
+
+    @Test
+    public void testInvalidAckMode() throws Exception {
+        int magic = BatchHeader.MAGIC;
+        UUID channel = UUID.randomUUID();
+        long sequenceNumber = System.currentTimeMillis();
+        final byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        Event event = new Event(magic, payloadBuffer);
+        ReplicatedBatchHeader header = new ReplicatedBatchHeader(
+                                                                 NullNode.INSTANCE,
+                                                                 event.totalSize(),
+                                                                 magic,
+                                                                 channel,
+                                                                 sequenceNumber,
+                                                                 0, 0);
+        header.getBytes().putInt(ReplicatedBatchHeader.HEADER_SIZE - 4,
+                                 AckMode.values().length);
+        assertFalse(header.hasValidAckMode());
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getId()).thenReturn(new Node(0));
+        Replicator primary = mock(Replicator.class);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+
+        final ReplicatingAppender replicator = new ReplicatingAppender(bundle,
+                                                                       primary);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        when(handler.getChannel()).thenReturn(inbound);
+
+        replicator.accept(handler);
+        replicator.readReady();
+        header.rewind();
+        header.write(outbound);
+        event.rewind();
+        event.write(outbound);
+        replicator.readReady();
+        assertEquals(AbstractAppenderFSM.Closed, replicator.getState());
+        verify(primary, never()).acknowledge(channel, sequenceNumber);
+        verify(primary, never()).nack(channel, sequenceNumber);
+    }
 }
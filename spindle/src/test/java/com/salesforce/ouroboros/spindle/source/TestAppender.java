@@ -48,6 +48,7 @@ import org.mockito.internal.verification.Times;
 import com.hellblazer.pinkie.SocketChannelHandler;
 import com.salesforce.ouroboros.BatchHeader;
 import com.salesforce.ouroboros.Event;
+import com.salesforce.ouroboros.EventHeader;
 import com.salesforce.ouroboros.Node;
 import com.salesforce.ouroboros.spindle.Bundle;
 import com.salesforce.ouroboros.spindle.EventChannel;
@@ -99,7 +100,7 @@ public class TestAppender {
         Event event = new Event(magic, payloadBuffer);
         BatchHeader header = new BatchHeader(mirror, event.totalSize(), magic,
                                              channel, sequenceNumber);
-        when(eventChannel.getCachedReadSegment(tmpFile)).thenReturn(writeSegment);
+        when(eventChannel.readSegmentFor(writeSegment)).thenReturn(writeSegment);
         when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
         when(eventChannel.appendSegmentFor(eq(header))).thenReturn(new AppendSegment(
                                                                                      writeSegment,
@@ -148,6 +149,7 @@ public class TestAppender {
         verify(bundle).eventChannelFor(channel);
         verify(eventChannel).append(isA(EventEntry.class),
                                     (Acknowledger) eq(null));
+        verify(eventChannel).index(eq(header), eq(0L), eq(writeSegment));
         verify(eventChannel).appendSegmentFor(eq(header));
         verify(eventChannel).isDuplicate(eq(header));
     }
@@ -224,4 +226,103 @@ public class TestAppender {
         verify(eventChannel).appendSegmentFor(eq(header));
         verify(eventChannel).isDuplicate(eq(header));
     };
+
+    @Test
+    public void testRejected() throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getId()).thenReturn(new Node(0));
+        Acknowledger acknowledger = mock(Acknowledger.class);
+        EventChannel eventChannel = mock(EventChannel.class);
+        final File tmpFile = File.createTempFile("rejected", ".tst");
+        tmpFile.deleteOnExit();
+        final Segment writeSegment = new Segment(eventChannel, tmpFile,
+                                                 Mode.APPEND);
+        final Segment readSegment = new Segment(eventChannel, tmpFile,
+                                                Mode.READ);
+        final Appender appender = new Appender(bundle, acknowledger,
+                                               new BatchVerifier(1));
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        when(handler.getChannel()).thenReturn(inbound);
+
+        appender.accept(handler);
+
+        Node mirror = new Node(0x1638);
+        int magic = BatchHeader.MAGIC;
+        UUID channel = UUID.randomUUID();
+        long sequenceNumber = System.currentTimeMillis();
+        Event rejected = new Event(
+                                   magic,
+                                   ByteBuffer.wrap("Give me Slack, or give me Food, or Kill me".getBytes()));
+        rejected.getBytes().put(EventHeader.HEADER_BYTE_SIZE, (byte) 0);
+        byte[] payload = "or kill me".getBytes();
+        final Event event = new Event(magic, ByteBuffer.wrap(payload));
+        BatchHeader rejectedHeader = new BatchHeader(mirror,
+                                                     rejected.totalSize(),
+                                                     magic, channel,
+                                                     sequenceNumber);
+        BatchHeader header = new BatchHeader(mirror, event.totalSize(), magic,
+                                             channel, sequenceNumber + 1);
+        when(eventChannel.readSegmentFor(writeSegment)).thenReturn(readSegment);
+        when(bundle.eventChannelFor(channel)).thenReturn(eventChannel);
+        // the rejected batch does not advance the next offset of the channel
+        when(eventChannel.appendSegmentFor(eq(rejectedHeader))).thenReturn(new AppendSegment(
+                                                                                             writeSegment,
+                                                                                             0,
+                                                                                             0));
+        when(eventChannel.appendSegmentFor(eq(header))).thenReturn(new AppendSegment(
+                                                                                     writeSegment,
+                                                                                     0,
+                                                                                     0));
+
+        rejectedHeader.rewind();
+        rejectedHeader.write(outbound);
+        rejected.rewind();
+        rejected.write(outbound);
+        header.rewind();
+        header.write(outbound);
+        event.rewind();
+        event.write(outbound);
+
+        Util.waitFor("Batches have not been fully read", new Util.Condition() {
+            @Override
+            public boolean value() {
+                appender.readReady();
+                return tmpFile.length() == event.totalSize()
+                       && appender.getState() == AbstractAppenderFSM.ReadBatchHeader;
+            }
+        }, 1000, 100);
+
+        outbound.close();
+        inbound.close();
+        server.close();
+
+        FileInputStream fis = new FileInputStream(tmpFile);
+        FileChannel segment = fis.getChannel();
+        Event inboundEvent = new Event(segment);
+        segment.close();
+        readSegment.close();
+        assertTrue(inboundEvent.validate());
+        assertEquals(payload.length, inboundEvent.size());
+        ByteBuffer writtenPayload = inboundEvent.getPayload();
+        for (byte b : payload) {
+            assertEquals(b, writtenPayload.get());
+        }
+
+        verify(eventChannel).append(isA(EventEntry.class),
+                                    (Acknowledger) eq(null));
+        verify(eventChannel, new Times(0)).index(eq(rejectedHeader), eq(0L),
+                                                 eq(writeSegment));
+        verify(eventChannel).index(eq(header), eq(0L), eq(writeSegment));
+        // the producer is told of the rejected batch alone
+        verify(acknowledger).nack(channel, sequenceNumber);
+        verify(acknowledger, new Times(0)).nack(channel, sequenceNumber + 1);
+    }
 }
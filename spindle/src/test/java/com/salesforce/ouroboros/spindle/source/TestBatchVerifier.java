@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle.source;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.salesforce.ouroboros.Batch;
+import com.salesforce.ouroboros.EventHeader;
+import com.salesforce.ouroboros.Node;
+import com.salesforce.ouroboros.spindle.EventChannel;
+import com.salesforce.ouroboros.spindle.Segment;
+import com.salesforce.ouroboros.spindle.Segment.Mode;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestBatchVerifier {
+
+    @Test
+    public void testSampling() {
+        BatchVerifier verifier = new BatchVerifier(3);
+        int sampled = 0;
+        for (int i = 0; i < 9; i++) {
+            if (verifier.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(3, sampled);
+        assertTrue(new BatchVerifier(1).sample());
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        verify(Mode.APPEND);
+        verify(Mode.MAPPED);
+    }
+
+    private void verify(Mode mode) throws Exception {
+        Batch batch = new Batch(
+                                new Node(0),
+                                UUID.randomUUID(),
+                                0L,
+                                Arrays.asList(ByteBuffer.wrap("Give me Slack".getBytes()),
+                                              ByteBuffer.wrap("or give me food".getBytes()),
+                                              ByteBuffer.wrap("or kill me".getBytes())));
+        int position = 7;
+        File file = File.createTempFile("TestBatchVerifier", ".segment");
+        file.delete();
+        file.deleteOnExit();
+        Segment segment = mode == Mode.MAPPED ? new Segment(
+                                                            mock(EventChannel.class),
+                                                            file, mode, 1024)
+                                             : new Segment(
+                                                           mock(EventChannel.class),
+                                                           file, mode);
+        Segment readSegment = mode == Mode.MAPPED ? segment
+                                                 : new Segment(
+                                                               mock(EventChannel.class),
+                                                               file, Mode.READ);
+        try {
+            segment.write(ByteBuffer.allocate(position), 0);
+            int length = batch.header.getBatchByteLength();
+            segment.write(batch.batch, position);
+            segment.appended(position + length);
+            BatchVerifier verifier = new BatchVerifier(1);
+            assertTrue(verifier.verify(batch.header, readSegment, position));
+
+            batch.batch.put(EventHeader.HEADER_BYTE_SIZE, (byte) 0);
+            batch.batch.rewind();
+            segment.write(batch.batch, position + length);
+            segment.appended(position + 2 * length);
+            assertFalse(verifier.verify(batch.header, readSegment, position
+                                                                   + length));
+            assertEquals(2, verifier.getVerified());
+            assertEquals(1, verifier.getRejected());
+        } finally {
+            segment.close();
+            readSegment.close();
+        }
+    }
+}
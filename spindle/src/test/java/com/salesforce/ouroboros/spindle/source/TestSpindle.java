@@ -87,6 +87,7 @@ public class TestSpindle {
                                                                                      0,
                                                                                      0));
         when(eventChannel.isDuplicate(eq(header))).thenReturn(false);
+        when(segment.acquire()).thenReturn(true);
         when(segment.transferFrom(socketChannel, 0, event.totalSize())).thenReturn(0L);
         header.rewind();
 